@@ -0,0 +1,569 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wasisto.encryptedsharedpreferences.compiler;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates the accessor classes of the interfaces annotated with {@code PreferenceSchema}. The
+ * annotations are referred to by name, so this processor does not depend on the Android library.
+ */
+public class PreferenceSchemaProcessor extends AbstractProcessor {
+
+    private static final String PREFERENCE_SCHEMA =
+            "com.wasisto.encryptedsharedpreferences.annotation.PreferenceSchema";
+
+    private static final String PREFERENCE_KEY =
+            "com.wasisto.encryptedsharedpreferences.annotation.PreferenceKey";
+
+    private static final String NO_DEFAULT_VALUE = "\u0000";
+
+    private static final String ENCRYPTED_SHARED_PREFERENCES =
+            "com.wasisto.encryptedsharedpreferences.EncryptedSharedPreferences";
+
+    private static final String GENERATED_CLASS_NAME_PREFIX = "Encrypted";
+
+    private static final Set<String> RESERVED_METHOD_NAMES = new HashSet<>(Arrays.asList(
+            "open", "getPreferences", "read", "edit"));
+
+    private enum PreferenceType {
+
+        STRING("String", "VALUE_TYPE_STRING", "getString", "putString", "null"),
+        STRING_SET("java.util.Set<String>", "VALUE_TYPE_STRING_SET", "getStringSet",
+                "putStringSet", "null"),
+        INT("int", "VALUE_TYPE_INT", "getInt", "putInt", "0"),
+        LONG("long", "VALUE_TYPE_LONG", "getLong", "putLong", "0L"),
+        FLOAT("float", "VALUE_TYPE_FLOAT", "getFloat", "putFloat", "0f"),
+        BOOLEAN("boolean", "VALUE_TYPE_BOOLEAN", "getBoolean", "putBoolean", "false");
+
+        private final String typeName;
+        private final String valueTypeConstant;
+        private final String getterName;
+        private final String putterName;
+        private final String defaultLiteral;
+
+        PreferenceType(String typeName, String valueTypeConstant, String getterName,
+                       String putterName, String defaultLiteral) {
+            this.typeName = typeName;
+            this.valueTypeConstant = valueTypeConstant;
+            this.getterName = getterName;
+            this.putterName = putterName;
+            this.defaultLiteral = defaultLiteral;
+        }
+
+        /**
+         * Returns the type the values returned by {@code getValues()} are cast to.
+         */
+        private String getBoxedTypeName() {
+            switch (this) {
+                case INT:
+                    return "Integer";
+                case LONG:
+                    return "Long";
+                case FLOAT:
+                    return "Float";
+                case BOOLEAN:
+                    return "Boolean";
+                default:
+                    return typeName;
+            }
+        }
+    }
+
+    private static final class Preference {
+
+        private final String methodName;
+        private final String propertyName;
+        private final String key;
+        private final PreferenceType type;
+        private final String defaultLiteral;
+
+        private Preference(String methodName, String key, PreferenceType type,
+                           String defaultLiteral) {
+            this.methodName = methodName;
+            this.propertyName = getPropertyName(methodName);
+            this.key = key;
+            this.type = type;
+            this.defaultLiteral = defaultLiteral;
+        }
+
+        private String getKeyConstant() {
+            return "KEY_" + toConstantCase(propertyName);
+        }
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton(PREFERENCE_SCHEMA);
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (TypeElement annotation : annotations) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                processSchema(element);
+            }
+        }
+        return true;
+    }
+
+    private void processSchema(Element element) {
+        if (element.getKind() != ElementKind.INTERFACE) {
+            error(element, "@PreferenceSchema can only be applied to interfaces");
+            return;
+        }
+        if (element.getModifiers().contains(Modifier.PRIVATE)) {
+            error(element, "@PreferenceSchema interfaces must not be private");
+            return;
+        }
+        TypeElement schema = (TypeElement) element;
+        String preferencesName = (String) getAnnotationValue(schema, PREFERENCE_SCHEMA, "value");
+        if (preferencesName == null || preferencesName.isEmpty()) {
+            error(schema, "The preferences name must not be empty");
+            return;
+        }
+
+        List<Preference> preferences = new ArrayList<>();
+        Set<String> keys = new HashSet<>();
+        Set<String> keyConstants = new HashSet<>();
+        boolean valid = true;
+        for (ExecutableElement method : ElementFilter.methodsIn(
+                processingEnv.getElementUtils().getAllMembers(schema))) {
+            if (!method.getModifiers().contains(Modifier.ABSTRACT) ||
+                    method.getEnclosingElement().getKind() != ElementKind.INTERFACE) {
+                continue;
+            }
+            Preference preference = createPreference(method);
+            if (preference == null) {
+                valid = false;
+            } else if (!keys.add(preference.key)) {
+                error(method, "Duplicate preference key \"" + preference.key + "\"");
+                valid = false;
+            } else if (!keyConstants.add(preference.getKeyConstant())) {
+                error(method, "Another method maps to the constant " +
+                        preference.getKeyConstant());
+                valid = false;
+            } else {
+                preferences.add(preference);
+            }
+        }
+        if (!valid) {
+            return;
+        }
+
+        String packageName = ((PackageElement) getPackage(schema)).getQualifiedName().toString();
+        String className = GENERATED_CLASS_NAME_PREFIX + schema.getSimpleName();
+        try {
+            Writer writer = processingEnv.getFiler().createSourceFile(packageName.isEmpty() ?
+                    className : packageName + "." + className, schema).openWriter();
+            try {
+                writer.write(generate(packageName, className,
+                        schema.getQualifiedName().toString(), preferencesName, preferences));
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            error(schema, "Failed to write " + className + ": " + e.getMessage());
+        }
+    }
+
+    private Preference createPreference(ExecutableElement method) {
+        String methodName = method.getSimpleName().toString();
+        if (RESERVED_METHOD_NAMES.contains(methodName)) {
+            error(method, "The method name " + methodName + " is reserved by the generated class");
+            return null;
+        }
+        if (!method.getParameters().isEmpty() || !method.getTypeParameters().isEmpty()) {
+            error(method, "Preference methods must not have parameters");
+            return null;
+        }
+        PreferenceType type = getPreferenceType(method.getReturnType());
+        if (type == null) {
+            error(method, "Unsupported preference type " + method.getReturnType() +
+                    ". Supported types are String, Set<String>, int, long, float, and boolean");
+            return null;
+        }
+
+        String key = (String) getAnnotationValue(method, PREFERENCE_KEY, "value");
+        if (key == null || key.isEmpty()) {
+            key = methodName;
+        }
+        String defaultValue = (String) getAnnotationValue(method, PREFERENCE_KEY,
+                "defaultValue");
+        String defaultLiteral = type.defaultLiteral;
+        if (defaultValue != null && !defaultValue.equals(NO_DEFAULT_VALUE)) {
+            defaultLiteral = toLiteral(defaultValue, type);
+            if (defaultLiteral == null) {
+                error(method, "Invalid default value \"" + defaultValue + "\" for type " +
+                        type.typeName);
+                return null;
+            }
+        }
+        return new Preference(methodName, key, type, defaultLiteral);
+    }
+
+    private PreferenceType getPreferenceType(TypeMirror type) {
+        switch (type.getKind()) {
+            case INT:
+                return PreferenceType.INT;
+            case LONG:
+                return PreferenceType.LONG;
+            case FLOAT:
+                return PreferenceType.FLOAT;
+            case BOOLEAN:
+                return PreferenceType.BOOLEAN;
+            case DECLARED:
+                DeclaredType declaredType = (DeclaredType) type;
+                String name = ((TypeElement) declaredType.asElement()).getQualifiedName()
+                        .toString();
+                if (name.equals("java.lang.String")) {
+                    return PreferenceType.STRING;
+                }
+                if (name.equals("java.util.Set") &&
+                        declaredType.getTypeArguments().size() == 1 &&
+                        declaredType.getTypeArguments().get(0).toString()
+                                .equals("java.lang.String")) {
+                    return PreferenceType.STRING_SET;
+                }
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Returns the Java literal of the specified default value, or {@code null} if it is not a
+     * valid value of the specified type.
+     */
+    private static String toLiteral(String defaultValue, PreferenceType type) {
+        try {
+            switch (type) {
+                case STRING:
+                    return toStringLiteral(defaultValue);
+                case INT:
+                    return Integer.toString(Integer.parseInt(defaultValue));
+                case LONG:
+                    return Long.parseLong(defaultValue) + "L";
+                case FLOAT:
+                    float floatValue = Float.parseFloat(defaultValue);
+                    if (Float.isNaN(floatValue)) {
+                        return "Float.NaN";
+                    } else if (Float.isInfinite(floatValue)) {
+                        return floatValue > 0 ? "Float.POSITIVE_INFINITY" :
+                                "Float.NEGATIVE_INFINITY";
+                    }
+                    return floatValue + "f";
+                case BOOLEAN:
+                    if (defaultValue.equals("true") || defaultValue.equals("false")) {
+                        return defaultValue;
+                    }
+                    return null;
+                default:
+                    return null;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String generate(String packageName, String className, String schemaName,
+                                   String preferencesName, List<Preference> preferences) {
+        StringBuilder source = new StringBuilder();
+        source.append("// Generated by ").append(PreferenceSchemaProcessor.class.getSimpleName())
+                .append(". Do not edit.\n");
+        if (!packageName.isEmpty()) {
+            source.append("package ").append(packageName).append(";\n");
+        }
+        source.append("\n")
+                .append("import android.content.Context;\n")
+                .append("\n")
+                .append("import ").append(ENCRYPTED_SHARED_PREFERENCES).append(";\n")
+                .append("\n")
+                .append("import java.util.Arrays;\n")
+                .append("\n")
+                .append("/**\n")
+                .append(" * The EncryptedSharedPreferences accessor of {@link ").append(schemaName)
+                .append("}.\n")
+                .append(" */\n")
+                .append("public final class ").append(className).append(" implements ")
+                .append(schemaName).append(" {\n")
+                .append("\n")
+                .append("    public static final String PREFERENCES_NAME = ")
+                .append(toStringLiteral(preferencesName)).append(";\n");
+        for (Preference preference : preferences) {
+            source.append("\n    public static final String ").append(preference.getKeyConstant())
+                    .append(" = ").append(toStringLiteral(preference.key)).append(";\n");
+        }
+
+        source.append("\n    private static final String[] KEYS = {");
+        for (int i = 0; i < preferences.size(); i++) {
+            source.append(i > 0 ? ", " : "").append(preferences.get(i).getKeyConstant());
+        }
+        source.append("};\n")
+                .append("\n    private static final int[] VALUE_TYPES = {");
+        for (int i = 0; i < preferences.size(); i++) {
+            source.append(i > 0 ? "," : "").append("\n            EncryptedSharedPreferences.")
+                    .append(preferences.get(i).type.valueTypeConstant);
+        }
+        source.append("\n    };\n")
+                .append("\n")
+                .append("    static {\n")
+                .append("        EncryptedSharedPreferences.registerKnownKeys(PREFERENCES_NAME, " +
+                        "Arrays.asList(KEYS));\n")
+                .append("    }\n")
+                .append("\n")
+                .append("    private final EncryptedSharedPreferences preferences;\n")
+                .append("\n")
+                .append("    public ").append(className)
+                .append("(EncryptedSharedPreferences preferences) {\n")
+                .append("        this.preferences = preferences;\n")
+                .append("    }\n")
+                .append("\n")
+                .append("    public static ").append(className).append(" open(Context context) {\n")
+                .append("        return new ").append(className)
+                .append("(EncryptedSharedPreferences.getEncryptedSharedPreferences(context,\n")
+                .append("                PREFERENCES_NAME));\n")
+                .append("    }\n")
+                .append("\n")
+                .append("    public EncryptedSharedPreferences getPreferences() {\n")
+                .append("        return preferences;\n")
+                .append("    }\n");
+        for (Preference preference : preferences) {
+            source.append("\n")
+                    .append("    @Override\n")
+                    .append("    public ").append(preference.type.typeName).append(" ")
+                    .append(preference.methodName).append("() {\n")
+                    .append("        return preferences.").append(preference.type.getterName)
+                    .append("(").append(preference.getKeyConstant()).append(", ")
+                    .append(preference.defaultLiteral).append(");\n")
+                    .append("    }\n");
+        }
+        source.append("\n")
+                .append("    /**\n")
+                .append("     * Reads every preference in one batch.\n")
+                .append("     */\n")
+                .append("    public ").append(schemaName).append(" read() {\n")
+                .append("        return new Snapshot(preferences.getValues(KEYS, VALUE_TYPES));\n")
+                .append("    }\n")
+                .append("\n")
+                .append("    public Editor edit() {\n")
+                .append("        return new Editor(preferences.edit());\n")
+                .append("    }\n");
+
+        source.append("\n")
+                .append("    private static final class Snapshot implements ").append(schemaName)
+                .append(" {\n");
+        for (Preference preference : preferences) {
+            source.append("\n        private final ").append(preference.type.typeName)
+                    .append(" ").append(preference.propertyName).append(";\n");
+        }
+        source.append("\n")
+                .append("        @SuppressWarnings(\"unchecked\")\n")
+                .append("        private Snapshot(Object[] values) {\n");
+        for (int i = 0; i < preferences.size(); i++) {
+            Preference preference = preferences.get(i);
+            // Qualified with this, since a property may be named like the parameter
+            source.append("            this.").append(preference.propertyName).append(" = values[")
+                    .append(i).append("] != null ? (").append(preference.type.getBoxedTypeName())
+                    .append(") values[").append(i).append("] :\n                    ")
+                    .append(preference.defaultLiteral).append(";\n");
+        }
+        source.append("        }\n");
+        for (Preference preference : preferences) {
+            source.append("\n")
+                    .append("        @Override\n")
+                    .append("        public ").append(preference.type.typeName).append(" ")
+                    .append(preference.methodName).append("() {\n")
+                    .append("            return ").append(preference.propertyName).append(";\n")
+                    .append("        }\n");
+        }
+        source.append("    }\n");
+
+        source.append("\n")
+                .append("    public static final class Editor {\n")
+                .append("\n")
+                .append("        private final EncryptedSharedPreferences.Editor editor;\n")
+                .append("\n")
+                .append("        private Editor(EncryptedSharedPreferences.Editor editor) {\n")
+                .append("            this.editor = editor;\n")
+                .append("        }\n");
+        for (Preference preference : preferences) {
+            String capitalizedName = capitalize(preference.propertyName);
+            source.append("\n")
+                    .append("        public Editor set").append(capitalizedName).append("(")
+                    .append(preference.type.typeName).append(" value) {\n")
+                    .append("            editor.").append(preference.type.putterName).append("(")
+                    .append(preference.getKeyConstant()).append(", value);\n")
+                    .append("            return this;\n")
+                    .append("        }\n")
+                    .append("\n")
+                    .append("        public Editor remove").append(capitalizedName)
+                    .append("() {\n")
+                    .append("            editor.remove(").append(preference.getKeyConstant())
+                    .append(");\n")
+                    .append("            return this;\n")
+                    .append("        }\n");
+        }
+        source.append("\n")
+                .append("        public Editor clear() {\n")
+                .append("            editor.clear();\n")
+                .append("            return this;\n")
+                .append("        }\n")
+                .append("\n")
+                .append("        public boolean commit() {\n")
+                .append("            return editor.commit();\n")
+                .append("        }\n")
+                .append("\n")
+                .append("        public void apply() {\n")
+                .append("            editor.apply();\n")
+                .append("        }\n")
+                .append("    }\n")
+                .append("}\n");
+        return source.toString();
+    }
+
+    private static Element getPackage(Element element) {
+        while (element.getKind() != ElementKind.PACKAGE) {
+            element = element.getEnclosingElement();
+        }
+        return element;
+    }
+
+    private static Object getAnnotationValue(Element element, String annotationName,
+                                             String valueName) {
+        for (AnnotationMirror annotationMirror : element.getAnnotationMirrors()) {
+            TypeElement annotationElement =
+                    (TypeElement) annotationMirror.getAnnotationType().asElement();
+            if (!annotationElement.getQualifiedName().contentEquals(annotationName)) {
+                continue;
+            }
+            for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry :
+                    annotationMirror.getElementValues().entrySet()) {
+                if (entry.getKey().getSimpleName().contentEquals(valueName)) {
+                    return entry.getValue().getValue();
+                }
+            }
+            // The value is not set, fall back to its declared default
+            for (ExecutableElement method : ElementFilter.methodsIn(
+                    annotationElement.getEnclosedElements())) {
+                if (method.getSimpleName().contentEquals(valueName) &&
+                        method.getDefaultValue() != null) {
+                    return method.getDefaultValue().getValue();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the name of the property of the specified getter, for example {@code darkMode} for
+     * {@code isDarkMode}.
+     */
+    private static String getPropertyName(String methodName) {
+        for (String prefix : new String[]{"get", "is"}) {
+            if (methodName.length() > prefix.length() && methodName.startsWith(prefix) &&
+                    Character.isUpperCase(methodName.charAt(prefix.length()))) {
+                String propertyName = methodName.substring(prefix.length());
+                propertyName = Character.toLowerCase(propertyName.charAt(0)) +
+                        propertyName.substring(1);
+                return SourceVersion.isKeyword(propertyName) ? methodName : propertyName;
+            }
+        }
+        return methodName;
+    }
+
+    private static String toConstantCase(String name) {
+        StringBuilder stringBuilder = new StringBuilder(name.length() + 8);
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (Character.isUpperCase(c) && i > 0 && !Character.isUpperCase(name.charAt(i - 1))) {
+                stringBuilder.append('_');
+            }
+            stringBuilder.append(c);
+        }
+        return stringBuilder.toString().toUpperCase(Locale.US);
+    }
+
+    private static String capitalize(String name) {
+        return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+
+    private static String toStringLiteral(String value) {
+        StringBuilder stringBuilder = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    stringBuilder.append("\\\"");
+                    break;
+                case '\\':
+                    stringBuilder.append("\\\\");
+                    break;
+                case '\n':
+                    stringBuilder.append("\\n");
+                    break;
+                case '\r':
+                    stringBuilder.append("\\r");
+                    break;
+                case '\t':
+                    stringBuilder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c > 0x7e) {
+                        stringBuilder.append(String.format(Locale.US, "\\u%04x", (int) c));
+                    } else {
+                        stringBuilder.append(c);
+                    }
+            }
+        }
+        return stringBuilder.append('"').toString();
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
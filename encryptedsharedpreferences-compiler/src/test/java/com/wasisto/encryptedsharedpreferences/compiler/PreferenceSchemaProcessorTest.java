@@ -0,0 +1,357 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wasisto.encryptedsharedpreferences.compiler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Scanner;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import static org.junit.Assert.*;
+
+public class PreferenceSchemaProcessorTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final File ANNOTATION_SOURCE_DIR = new File(
+            "../encryptedsharedpreferences/src/main/java/com/wasisto/encryptedsharedpreferences/annotation");
+
+    /**
+     * The parts of the library the generated classes use.
+     */
+    private static final String ENCRYPTED_SHARED_PREFERENCES_STUB = "" +
+            "package com.wasisto.encryptedsharedpreferences;\n" +
+            "public class EncryptedSharedPreferences {\n" +
+            "    public static final int VALUE_TYPE_STRING = 0;\n" +
+            "    public static final int VALUE_TYPE_INT = 1;\n" +
+            "    public static final int VALUE_TYPE_LONG = 2;\n" +
+            "    public static final int VALUE_TYPE_FLOAT = 3;\n" +
+            "    public static final int VALUE_TYPE_BOOLEAN = 4;\n" +
+            "    public static final int VALUE_TYPE_STRING_SET = -2;\n" +
+            "    public static Object[] values;\n" +
+            "    public static void registerKnownKeys(String name,\n" +
+            "            java.util.Collection<String> keys) {}\n" +
+            "    public static EncryptedSharedPreferences getEncryptedSharedPreferences(\n" +
+            "            android.content.Context context, String name) { return null; }\n" +
+            "    public String getString(String key, String defValue) { return defValue; }\n" +
+            "    public java.util.Set<String> getStringSet(String key,\n" +
+            "            java.util.Set<String> defValues) { return defValues; }\n" +
+            "    public int getInt(String key, int defValue) { return defValue; }\n" +
+            "    public long getLong(String key, long defValue) { return defValue; }\n" +
+            "    public float getFloat(String key, float defValue) { return defValue; }\n" +
+            "    public boolean getBoolean(String key, boolean defValue) { return defValue; }\n" +
+            "    public Object[] getValues(String[] keys, int[] valueTypes) { return values; }\n" +
+            "    public Editor edit() { return new Editor(); }\n" +
+            "    public class Editor {\n" +
+            "        public Editor putString(String key, String value) { return this; }\n" +
+            "        public Editor putStringSet(String key, java.util.Set<String> values) {\n" +
+            "            return this;\n" +
+            "        }\n" +
+            "        public Editor putInt(String key, int value) { return this; }\n" +
+            "        public Editor putLong(String key, long value) { return this; }\n" +
+            "        public Editor putFloat(String key, float value) { return this; }\n" +
+            "        public Editor putBoolean(String key, boolean value) { return this; }\n" +
+            "        public Editor remove(String key) { return this; }\n" +
+            "        public Editor clear() { return this; }\n" +
+            "        public boolean commit() { return true; }\n" +
+            "        public void apply() {}\n" +
+            "    }\n" +
+            "}\n";
+
+    private static final String CONTEXT_STUB = "" +
+            "package android.content;\n" +
+            "public class Context {}\n";
+
+    private static final String SETTINGS = "" +
+            "package com.example;\n" +
+            "import com.wasisto.encryptedsharedpreferences.annotation.PreferenceKey;\n" +
+            "import com.wasisto.encryptedsharedpreferences.annotation.PreferenceSchema;\n" +
+            "import java.util.Set;\n" +
+            "@PreferenceSchema(\"settings\")\n" +
+            "public interface Settings {\n" +
+            "    @PreferenceKey(value = \"user_name\", defaultValue = \"guest\")\n" +
+            "    String getUserName();\n" +
+            "    @PreferenceKey(defaultValue = \"3\")\n" +
+            "    int launchCount();\n" +
+            "    @PreferenceKey(defaultValue = \"-1\")\n" +
+            "    long lastSyncMillis();\n" +
+            "    @PreferenceKey(defaultValue = \"1.5\")\n" +
+            "    float fontScale();\n" +
+            "    @PreferenceKey(defaultValue = \"true\")\n" +
+            "    boolean isDarkMode();\n" +
+            "    Set<String> tags();\n" +
+            "    default String unrelated() { return null; }\n" +
+            "}\n";
+
+    private File directory;
+
+    private File sourceDir;
+
+    private File generatedSourceDir;
+
+    private File classDir;
+
+    private final DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("processor", "");
+        assertTrue(directory.delete() && directory.mkdir());
+        sourceDir = new File(directory, "src");
+        generatedSourceDir = new File(directory, "generated");
+        classDir = new File(directory, "classes");
+        assertTrue(generatedSourceDir.mkdirs() && classDir.mkdirs());
+        writeSource("com/wasisto/encryptedsharedpreferences/EncryptedSharedPreferences.java",
+                ENCRYPTED_SHARED_PREFERENCES_STUB);
+        writeSource("android/content/Context.java", CONTEXT_STUB);
+        for (String annotation : new String[]{"PreferenceSchema", "PreferenceKey"}) {
+            writeSource("com/wasisto/encryptedsharedpreferences/annotation/" + annotation +
+                    ".java", read(new File(ANNOTATION_SOURCE_DIR, annotation + ".java")));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        delete(directory);
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static String read(File file) throws IOException {
+        Scanner scanner = new Scanner(file, "UTF-8").useDelimiter("\\A");
+        try {
+            return scanner.hasNext() ? scanner.next() : "";
+        } finally {
+            scanner.close();
+        }
+    }
+
+    private void writeSource(String path, String source) throws IOException {
+        File file = new File(sourceDir, path);
+        assertTrue(file.getParentFile().isDirectory() || file.getParentFile().mkdirs());
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), UTF_8);
+        try {
+            writer.write(source);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private boolean compile() {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics,
+                Locale.US, UTF_8);
+        List<File> sources = new ArrayList<>();
+        collectSources(sourceDir, sources);
+        JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics,
+                Arrays.asList("-d", classDir.getPath(), "-s", generatedSourceDir.getPath()),
+                null, fileManager.getJavaFileObjectsFromFiles(sources));
+        task.setProcessors(Collections.singletonList(new PreferenceSchemaProcessor()));
+        return task.call();
+    }
+
+    private static void collectSources(File directory, List<File> sources) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    collectSources(file, sources);
+                } else {
+                    sources.add(file);
+                }
+            }
+        }
+    }
+
+    private String getErrors() {
+        StringBuilder errors = new StringBuilder();
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                errors.append(diagnostic.getMessage(Locale.US)).append('\n');
+            }
+        }
+        return errors.toString();
+    }
+
+    private void assertCompilationError(String expectedMessage) {
+        assertFalse(compile());
+        assertTrue(getErrors(), getErrors().contains(expectedMessage));
+    }
+
+    @Test
+    public void generatesAccessor() throws Exception {
+        writeSource("com/example/Settings.java", SETTINGS);
+
+        assertTrue(getErrors(), compile());
+
+        String generatedSource = read(new File(generatedSourceDir,
+                "com/example/EncryptedSettings.java"));
+        assertTrue(generatedSource.contains(
+                "public static final String KEY_USER_NAME = \"user_name\";"));
+        assertTrue(generatedSource.contains(
+                "public static final String KEY_DARK_MODE = \"isDarkMode\";"));
+        assertTrue(generatedSource.contains("public Editor setFontScale(float value)"));
+
+        URLClassLoader classLoader = new URLClassLoader(new URL[]{classDir.toURI().toURL()},
+                getClass().getClassLoader());
+        Class<?> preferencesClass = classLoader.loadClass(
+                "com.wasisto.encryptedsharedpreferences.EncryptedSharedPreferences");
+        Class<?> accessorClass = classLoader.loadClass("com.example.EncryptedSettings");
+        Object accessor = accessorClass.getConstructor(preferencesClass).newInstance(
+                preferencesClass.getConstructor().newInstance());
+
+        assertEquals("guest", accessorClass.getMethod("getUserName").invoke(accessor));
+        assertEquals(3, accessorClass.getMethod("launchCount").invoke(accessor));
+        assertEquals(1.5f, accessorClass.getMethod("fontScale").invoke(accessor));
+        assertEquals(true, accessorClass.getMethod("isDarkMode").invoke(accessor));
+
+        preferencesClass.getField("values").set(null, new Object[]{"foo", null, 42L, null,
+                false, new HashSet<>(Collections.singleton("bar"))});
+        Object snapshot = accessorClass.getMethod("read").invoke(accessor);
+        Method getUserName = snapshot.getClass().getMethod("getUserName");
+        getUserName.setAccessible(true);
+
+        assertEquals("foo", getUserName.invoke(snapshot));
+        assertEquals(3, invoke(snapshot, "launchCount"));
+        assertEquals(42L, invoke(snapshot, "lastSyncMillis"));
+        assertEquals(false, invoke(snapshot, "isDarkMode"));
+        assertEquals(Collections.singleton("bar"), invoke(snapshot, "tags"));
+    }
+
+    private static Object invoke(Object object, String methodName) throws Exception {
+        Method method = object.getClass().getMethod(methodName);
+        method.setAccessible(true);
+        return method.invoke(object);
+    }
+
+    @Test
+    public void propertyNamedLikeSnapshotParameter() throws Exception {
+        writeSource("com/example/Settings.java", "" +
+                "package com.example;\n" +
+                "import com.wasisto.encryptedsharedpreferences.annotation.PreferenceKey;\n" +
+                "import com.wasisto.encryptedsharedpreferences.annotation.PreferenceSchema;\n" +
+                "@PreferenceSchema(\"settings\")\n" +
+                "public interface Settings {\n" +
+                "    @PreferenceKey(defaultValue = \"7\")\n" +
+                "    int values();\n" +
+                "    String getValue();\n" +
+                "}\n");
+
+        assertTrue(getErrors(), compile());
+
+        URLClassLoader classLoader = new URLClassLoader(new URL[]{classDir.toURI().toURL()},
+                getClass().getClassLoader());
+        Class<?> preferencesClass = classLoader.loadClass(
+                "com.wasisto.encryptedsharedpreferences.EncryptedSharedPreferences");
+        Class<?> accessorClass = classLoader.loadClass("com.example.EncryptedSettings");
+        Object accessor = accessorClass.getConstructor(preferencesClass).newInstance(
+                preferencesClass.getConstructor().newInstance());
+        preferencesClass.getField("values").set(null, new Object[]{42, "foo"});
+        Object snapshot = accessorClass.getMethod("read").invoke(accessor);
+
+        assertEquals(42, invoke(snapshot, "values"));
+        assertEquals("foo", invoke(snapshot, "getValue"));
+    }
+
+    @Test
+    public void invalidDefaultValue() throws Exception {
+        writeSource("com/example/Settings.java", "" +
+                "package com.example;\n" +
+                "import com.wasisto.encryptedsharedpreferences.annotation.PreferenceKey;\n" +
+                "import com.wasisto.encryptedsharedpreferences.annotation.PreferenceSchema;\n" +
+                "@PreferenceSchema(\"settings\")\n" +
+                "public interface Settings {\n" +
+                "    @PreferenceKey(defaultValue = \"yes\")\n" +
+                "    boolean darkMode();\n" +
+                "}\n");
+
+        assertCompilationError("Invalid default value \"yes\" for type boolean");
+    }
+
+    @Test
+    public void unsupportedType() throws Exception {
+        writeSource("com/example/Settings.java", "" +
+                "package com.example;\n" +
+                "import com.wasisto.encryptedsharedpreferences.annotation.PreferenceSchema;\n" +
+                "@PreferenceSchema(\"settings\")\n" +
+                "public interface Settings {\n" +
+                "    double ratio();\n" +
+                "}\n");
+
+        assertCompilationError("Unsupported preference type double");
+    }
+
+    @Test
+    public void duplicateKey() throws Exception {
+        writeSource("com/example/Settings.java", "" +
+                "package com.example;\n" +
+                "import com.wasisto.encryptedsharedpreferences.annotation.PreferenceKey;\n" +
+                "import com.wasisto.encryptedsharedpreferences.annotation.PreferenceSchema;\n" +
+                "@PreferenceSchema(\"settings\")\n" +
+                "public interface Settings {\n" +
+                "    @PreferenceKey(\"foo\")\n" +
+                "    int bar();\n" +
+                "    @PreferenceKey(\"foo\")\n" +
+                "    int baz();\n" +
+                "}\n");
+
+        assertCompilationError("Duplicate preference key \"foo\"");
+    }
+
+    @Test
+    public void notAnInterface() throws Exception {
+        writeSource("com/example/Settings.java", "" +
+                "package com.example;\n" +
+                "import com.wasisto.encryptedsharedpreferences.annotation.PreferenceSchema;\n" +
+                "@PreferenceSchema(\"settings\")\n" +
+                "public abstract class Settings {\n" +
+                "}\n");
+
+        assertCompilationError("@PreferenceSchema can only be applied to interfaces");
+    }
+}
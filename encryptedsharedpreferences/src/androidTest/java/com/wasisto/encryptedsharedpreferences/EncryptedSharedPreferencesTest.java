@@ -20,13 +20,29 @@ import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.support.test.runner.AndroidJUnit4;
 
+import com.wasisto.encryptedsharedpreferences.model.AccessProfileReport;
+import com.wasisto.encryptedsharedpreferences.model.EncryptedSharedPreferencesStats;
+import com.wasisto.encryptedsharedpreferences.model.GroupCommitMetrics;
+import com.wasisto.encryptedsharedpreferences.model.KeyRotationOptions;
+import com.wasisto.encryptedsharedpreferences.model.MainThreadGuardOptions;
+import com.wasisto.encryptedsharedpreferences.model.MainThreadViolation;
+import com.wasisto.encryptedsharedpreferences.model.MigrationOptions;
+
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import static android.content.Context.MODE_PRIVATE;
+import static android.support.test.InstrumentationRegistry.getInstrumentation;
 import static android.support.test.InstrumentationRegistry.getTargetContext;
 import static java.lang.Thread.sleep;
 import static org.junit.Assert.*;
@@ -36,6 +52,7 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 @RunWith(AndroidJUnit4.class)
 public class EncryptedSharedPreferencesTest {
@@ -348,4 +365,875 @@ public class EncryptedSharedPreferencesTest {
 
         verify(listenerMock, never()).onSharedPreferenceChanged(any(), any());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void groupCommit() throws Exception {
+        String encryptedSharedPreferencesName = "groupCommit";
+        String key1 = "foo";
+        String key2 = "bar";
+        int value1 = -110883086;
+        long value2 = 836613320883456075L;
+
+        EncryptedSharedPreferences encryptedSharedPreferences =
+                EncryptedSharedPreferences.getEncryptedSharedPreferences(getTargetContext(),
+                        encryptedSharedPreferencesName);
+
+        EncryptedSharedPreferences.enableGroupCommit(getTargetContext(), 60000);
+        try {
+            long flushCount = EncryptedSharedPreferences.getGroupCommitMetrics().getFlushCount();
+
+            encryptedSharedPreferences.edit().putInt(key1, value1).apply();
+            encryptedSharedPreferences.edit().putLong(key2, value2).apply();
+
+            assertEquals(value1, encryptedSharedPreferences.getInt(key1, 0));
+            assertEquals(value2, encryptedSharedPreferences.getLong(key2, 0L));
+
+            assertTrue(encryptedSharedPreferences.awaitFlushed(10000));
+
+            GroupCommitMetrics metrics = EncryptedSharedPreferences.getGroupCommitMetrics();
+            assertEquals(flushCount + 1, metrics.getFlushCount());
+            assertTrue(metrics.getSavedWriteCount() >= 1);
+        } finally {
+            EncryptedSharedPreferences.disableGroupCommit();
+        }
+
+        assertEquals(value1, encryptedSharedPreferences.getInt(key1, 0));
+        assertEquals(value2, encryptedSharedPreferences.getLong(key2, 0L));
+    }
+
+    @Test
+    public void groupCommit_failedWrite() throws Exception {
+        SharedPreferences sharedPreferencesMock = mock(SharedPreferences.class);
+        SharedPreferences.Editor editorMock = mock(SharedPreferences.Editor.class);
+        when(sharedPreferencesMock.edit()).thenReturn(editorMock);
+        when(editorMock.putString(any(), any())).thenReturn(editorMock);
+        when(editorMock.commit()).thenReturn(false, true);
+
+        GroupCommitWriter groupCommitWriter = new GroupCommitWriter(sharedPreferencesMock, 60000);
+        Modifications modifications = new Modifications();
+        modifications.put("foo", "bar");
+
+        assertFalse(groupCommitWriter.enqueueAndCommit(modifications));
+        assertEquals("bar", groupCommitWriter.getString("foo"));
+        assertTrue(groupCommitWriter.awaitFlushed(10000));
+        verify(editorMock, timeout(10000).times(2)).commit();
+    }
+
+    @Test
+    public void migrateFrom() throws Exception {
+        String encryptedSharedPreferencesName = "migrateFrom";
+        String stringKey = "foo";
+        String intKey = "bar";
+        String booleanKey = "baz";
+        String stringValue = "i hate it when hitler steals my nutella";
+        int intValue = -110883086;
+        boolean booleanValue = true;
+
+        SharedPreferences source = getTargetContext().getSharedPreferences(
+                "migrateFromSource", MODE_PRIVATE);
+        source.edit()
+                .putString(stringKey, stringValue)
+                .putInt(intKey, intValue)
+                .putBoolean(booleanKey, booleanValue)
+                .commit();
+
+        EncryptedSharedPreferences encryptedSharedPreferences =
+                EncryptedSharedPreferences.getEncryptedSharedPreferences(getTargetContext(),
+                        encryptedSharedPreferencesName);
+
+        MigrationOptions options = new MigrationOptions();
+        options.setBatchSize(2);
+        options.setDeleteSource(true);
+
+        List<Integer> progress = new ArrayList<>();
+        encryptedSharedPreferences.migrateFrom(source, options,
+                (migratedCount, totalCount) -> progress.add(migratedCount));
+
+        assertEquals(stringValue, encryptedSharedPreferences.getString(stringKey, null));
+        assertEquals(intValue, encryptedSharedPreferences.getInt(intKey, 0));
+        assertEquals(booleanValue, encryptedSharedPreferences.getBoolean(booleanKey, false));
+        assertTrue(source.getAll().isEmpty());
+        assertEquals(3, (int) progress.get(progress.size() - 1));
+    }
+
+    @Test
+    public void migrateFrom_resumeWithAddedKey() throws Exception {
+        SharedPreferences source = getTargetContext().getSharedPreferences(
+                "migrateFrom_resumeWithAddedKeySource", MODE_PRIVATE);
+        source.edit().putString("b", "bar").putString("c", "baz").commit();
+
+        EncryptedSharedPreferences encryptedSharedPreferences =
+                EncryptedSharedPreferences.getEncryptedSharedPreferences(getTargetContext(),
+                        "migrateFrom_resumeWithAddedKey");
+
+        MigrationOptions options = new MigrationOptions();
+        options.setBatchSize(1);
+        options.setDeleteSource(true);
+
+        try {
+            encryptedSharedPreferences.migrateFrom(source, options,
+                    (migratedCount, totalCount) -> {
+                        if (migratedCount == 1) {
+                            throw new IllegalStateException("interrupted");
+                        }
+                    });
+            fail("The migration was not interrupted");
+        } catch (IllegalStateException expected) {
+            // expected
+        }
+
+        // Sorts before the checkpointed key
+        source.edit().putString("a", "foo").commit();
+        encryptedSharedPreferences.migrateFrom(source, options, null);
+
+        assertEquals("foo", encryptedSharedPreferences.getString("a", null));
+        assertEquals("bar", encryptedSharedPreferences.getString("b", null));
+        assertEquals("baz", encryptedSharedPreferences.getString("c", null));
+        assertTrue(source.getAll().isEmpty());
+    }
+
+    @Test
+    public void exportToAndImportFrom() throws Exception {
+        String key1 = "foo";
+        String key2 = "bar";
+        String value1 = "i hate it when hitler steals my nutella";
+        float value2 = 9.61f;
+        char[] passphrase = "correct horse battery staple".toCharArray();
+
+        EncryptedSharedPreferences source =
+                EncryptedSharedPreferences.getEncryptedSharedPreferences(getTargetContext(),
+                        "exportToAndImportFrom_source");
+        source.edit().putString(key1, value1).putFloat(key2, value2).commit();
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        source.exportTo(outputStream, passphrase);
+
+        EncryptedSharedPreferences destination =
+                EncryptedSharedPreferences.getEncryptedSharedPreferences(getTargetContext(),
+                        "exportToAndImportFrom_destination");
+        destination.importFrom(new ByteArrayInputStream(outputStream.toByteArray()), passphrase);
+
+        assertEquals(value1, destination.getString(key1, null));
+        assertEquals(value2, destination.getFloat(key2, 0f), 0f);
+    }
+
+    @Test
+    public void exportToAndImportFrom_expiry() throws Exception {
+        String key1 = "foo";
+        String key2 = "bar";
+        String value1 = "i hate it when hitler steals my nutella";
+        Set<String> value2 = new HashSet<String>() {{
+            add("potato");
+            add("unicorn");
+            add("rubber");
+        }};
+        char[] passphrase = "correct horse battery staple".toCharArray();
+
+        EncryptedSharedPreferences source =
+                EncryptedSharedPreferences.getEncryptedSharedPreferences(getTargetContext(),
+                        "exportToAndImportFrom_expiry_source");
+        source.edit()
+                .putString(key1, value1)
+                .putStringSet(key2, value2, 2000)
+                .commit();
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        source.exportTo(outputStream, passphrase);
+
+        EncryptedSharedPreferences destination =
+                EncryptedSharedPreferences.getEncryptedSharedPreferences(getTargetContext(),
+                        "exportToAndImportFrom_expiry_destination");
+        destination.edit().clear().commit();
+        destination.importFrom(new ByteArrayInputStream(outputStream.toByteArray()), passphrase);
+
+        assertEquals(value1, destination.getString(key1, null));
+        assertEquals(value2, destination.getStringSet(key2, null));
+
+        sleep(2500);
+
+        assertEquals(value1, destination.getString(key1, null));
+        assertFalse(destination.contains(key2));
+
+        destination.importFrom(new ByteArrayInputStream(outputStream.toByteArray()), passphrase);
+
+        assertFalse(destination.contains(key2));
+    }
+
+    @Test
+    public void rotateEncryptionKey() throws Exception {
+        String encryptedSharedPreferencesName = "rotateEncryptionKey";
+        String stringKey = "foo";
+        String stringSetKey = "bar";
+        String longKey = "baz";
+        String stringValue = "i hate it when hitler steals my nutella";
+        Set<String> stringSetValues = new HashSet<String>() {{
+            add("potato");
+            add("unicorn");
+            add("rubber");
+        }};
+        long longValue = 836613320883456075L;
+
+        SharedPreferences encryptedSharedPreferences =
+                EncryptedSharedPreferences.getEncryptedSharedPreferences(getTargetContext(),
+                        encryptedSharedPreferencesName);
+
+        encryptedSharedPreferences.edit()
+                .putString(stringKey, stringValue)
+                .putStringSet(stringSetKey, stringSetValues)
+                .commit();
+
+        KeyRotationOptions options = new KeyRotationOptions();
+        options.setBatchSize(1);
+        options.setBatchIntervalMillis(0);
+        EncryptedSharedPreferences.rotateEncryptionKey(getTargetContext(), options);
+
+        encryptedSharedPreferences.edit().putLong(longKey, longValue).commit();
+
+        assertFalse(EncryptedSharedPreferences.isKeyRotationInProgress(getTargetContext()));
+        assertEquals(stringValue, encryptedSharedPreferences.getString(stringKey, null));
+        assertEquals(stringSetValues, encryptedSharedPreferences.getStringSet(stringSetKey,
+                null));
+        assertEquals(longValue, encryptedSharedPreferences.getLong(longKey, 0L));
+    }
+
+    @Test
+    public void rotateEncryptionKey_multiProcess() throws Exception {
+        String encryptedSharedPreferencesName = "rotateEncryptionKey_multiProcess";
+        String key = "foo";
+        String value = "which came first, the chicken or the egg?";
+        String otherKey = "bar";
+        String otherValue = "potato";
+
+        EncryptedSharedPreferences.deleteEncryptedSharedPreferences(getTargetContext(),
+                encryptedSharedPreferencesName);
+        EncryptedSharedPreferences encryptedSharedPreferences =
+                EncryptedSharedPreferences.getMultiProcessEncryptedSharedPreferences(
+                        getTargetContext(), encryptedSharedPreferencesName);
+        encryptedSharedPreferences.edit().putString(key, value).commit();
+
+        KeyRotationOptions options = new KeyRotationOptions();
+        options.setBatchSize(1);
+        options.setBatchIntervalMillis(0);
+        EncryptedSharedPreferences.rotateEncryptionKey(getTargetContext(), options);
+
+        encryptedSharedPreferences.edit().putString(otherKey, otherValue).commit();
+
+        // Retires the key the other value was written with
+        EncryptedSharedPreferences.rotateEncryptionKey(getTargetContext(), options);
+
+        EncryptedSharedPreferences reopenedEncryptedSharedPreferences =
+                EncryptedSharedPreferences.getMultiProcessEncryptedSharedPreferences(
+                        getTargetContext(), encryptedSharedPreferencesName);
+        assertEquals(value, reopenedEncryptedSharedPreferences.getString(key, null));
+        assertEquals(otherValue, reopenedEncryptedSharedPreferences.getString(otherKey, null));
+        assertEquals(otherValue, encryptedSharedPreferences.getString(otherKey, null));
+    }
+
+    @Test
+    public void deleteEncryptedSharedPreferences() throws Exception {
+        String encryptedSharedPreferencesName = "deleteEncryptedSharedPreferences";
+        String key = "foo";
+        int value = -110883086;
+        int defaultValue = 174050977;
+
+        SharedPreferences encryptedSharedPreferences =
+                EncryptedSharedPreferences.getEncryptedSharedPreferences(getTargetContext(),
+                        encryptedSharedPreferencesName);
+
+        encryptedSharedPreferences.edit().putInt(key, value).apply();
+
+        assertTrue(EncryptedSharedPreferences.deleteEncryptedSharedPreferences(getTargetContext(),
+                encryptedSharedPreferencesName));
+
+        assertEquals(defaultValue, EncryptedSharedPreferences.getEncryptedSharedPreferences(
+                getTargetContext(), encryptedSharedPreferencesName).getInt(key, defaultValue));
+    }
+
+    @Test
+    public void packedPrimitives() throws Exception {
+        String encryptedSharedPreferencesName = "packedPrimitives";
+        String intKey = "foo";
+        String booleanKey = "bar";
+        String stringKey = "baz";
+        int intValue = -110883086;
+        int intValue2 = 174050977;
+        String stringValue = "i hate it when hitler steals my nutella";
+
+        SharedPreferences encryptedSharedPreferences =
+                EncryptedSharedPreferences.getEncryptedSharedPreferences(getTargetContext(),
+                        encryptedSharedPreferencesName);
+        encryptedSharedPreferences.edit().clear().commit();
+
+        encryptedSharedPreferences.edit().putInt(intKey, intValue).commit();
+
+        EncryptedSharedPreferences.enablePackedPrimitives();
+        try {
+            encryptedSharedPreferences.edit()
+                    .putInt(intKey, intValue2)
+                    .putBoolean(booleanKey, true)
+                    .putString(stringKey, stringValue)
+                    .commit();
+
+            assertEquals(intValue2, encryptedSharedPreferences.getInt(intKey, 0));
+            assertTrue(encryptedSharedPreferences.getBoolean(booleanKey, false));
+            assertTrue(encryptedSharedPreferences.contains(booleanKey));
+            assertEquals(3, encryptedSharedPreferences.getAll().size());
+
+            encryptedSharedPreferences.edit().remove(booleanKey).commit();
+
+            assertFalse(encryptedSharedPreferences.contains(booleanKey));
+
+            // clear() is applied before the puts of the same editor, wherever it is called
+            encryptedSharedPreferences.edit()
+                    .putBoolean(booleanKey, true)
+                    .putString(stringKey, stringValue)
+                    .clear()
+                    .commit();
+
+            assertFalse(encryptedSharedPreferences.contains(intKey));
+            assertTrue(encryptedSharedPreferences.getBoolean(booleanKey, false));
+            assertEquals(stringValue, encryptedSharedPreferences.getString(stringKey, null));
+
+            encryptedSharedPreferences.edit()
+                    .remove(booleanKey)
+                    .putInt(intKey, intValue2)
+                    .commit();
+        } finally {
+            EncryptedSharedPreferences.disablePackedPrimitives();
+        }
+
+        assertEquals(intValue2, encryptedSharedPreferences.getInt(intKey, 0));
+
+        encryptedSharedPreferences.edit().putString(intKey, stringValue).commit();
+
+        assertEquals(stringValue, encryptedSharedPreferences.getString(intKey, null));
+        assertEquals(2, encryptedSharedPreferences.getAll().size());
+    }
+
+    @Test
+    public void compression() throws Exception {
+        String encryptedSharedPreferencesName = "compression";
+        String key = "foo";
+        String setKey = "bar";
+        StringBuilder stringBuilder = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            stringBuilder.append("{\"id\":").append(i).append(",\"name\":\"potato\"},");
+        }
+        String value = stringBuilder.toString();
+        Set<String> setValues = new HashSet<String>() {{
+            add(value);
+            add("unicorn");
+        }};
+
+        SharedPreferences encryptedSharedPreferences =
+                EncryptedSharedPreferences.getEncryptedSharedPreferences(getTargetContext(),
+                        encryptedSharedPreferencesName);
+        SharedPreferences underlyingSharedPreferences = getTargetContext().getSharedPreferences(
+                encryptedSharedPreferencesName + ".esp", MODE_PRIVATE);
+
+        EncryptedSharedPreferences.enableCompression(256);
+        try {
+            encryptedSharedPreferences.edit()
+                    .putString(key, value)
+                    .putStringSet(setKey, setValues)
+                    .commit();
+        } finally {
+            EncryptedSharedPreferences.disableCompression();
+        }
+
+        assertTrue(underlyingSharedPreferences.getString(key, null).length() < value.length());
+        assertEquals(value, encryptedSharedPreferences.getString(key, null));
+        assertEquals(setValues, encryptedSharedPreferences.getStringSet(setKey, null));
+        assertEquals(value, encryptedSharedPreferences.getAll().get(key));
+    }
+
+    @Test
+    public void mainThreadGuard() throws Exception {
+        String encryptedSharedPreferencesName = "mainThreadGuard";
+        String key = "foo";
+        List<MainThreadViolation> violations = new ArrayList<>();
+
+        SharedPreferences encryptedSharedPreferences =
+                EncryptedSharedPreferences.getEncryptedSharedPreferences(getTargetContext(),
+                        encryptedSharedPreferencesName);
+
+        EncryptedSharedPreferences.enableMainThreadGuard(new MainThreadGuardOptions(),
+                violations::add);
+        try {
+            encryptedSharedPreferences.getString(key, null);
+
+            assertTrue(violations.isEmpty());
+
+            getInstrumentation().runOnMainSync(() -> {
+                encryptedSharedPreferences.edit().putString(key, "bar").commit();
+                encryptedSharedPreferences.getString(key, null);
+            });
+        } finally {
+            EncryptedSharedPreferences.disableMainThreadGuard();
+        }
+
+        assertEquals(2, violations.size());
+        assertEquals(MainThreadViolation.Operation.COMMIT, violations.get(0).getOperation());
+        assertEquals(MainThreadViolation.Operation.READ, violations.get(1).getOperation());
+        assertEquals(key, violations.get(1).getKey());
+        assertEquals(EncryptedSharedPreferencesTest.class.getName(),
+                violations.get(1).getCallSite().getClassName().replaceAll("\\$.*", ""));
+    }
+
+    @Test
+    public void getStats() throws Exception {
+        String encryptedSharedPreferencesName = "getStats";
+        String stringKey = "foo";
+        String intKey = "bar";
+
+        EncryptedSharedPreferences encryptedSharedPreferences =
+                EncryptedSharedPreferences.getEncryptedSharedPreferences(getTargetContext(),
+                        encryptedSharedPreferencesName);
+        encryptedSharedPreferences.edit()
+                .clear()
+                .putString(stringKey, "i hate it when hitler steals my nutella")
+                .putInt(intKey, -110883086)
+                .commit();
+
+        EncryptedSharedPreferencesStats stats = encryptedSharedPreferences.getStats();
+
+        assertEquals(encryptedSharedPreferencesName, stats.getPreferencesName());
+        assertEquals(2, stats.getEntryCount());
+        assertEquals(1, stats.getStringCount());
+        assertEquals(1, stats.getIntCount());
+        assertTrue(stats.getPayloadBytes() > 0);
+        assertTrue(stats.getEnvelopeBytes() > 0);
+        assertTrue(stats.getFileSizeBytes() > 0);
+        assertEquals(stringKey, stats.getLargestKeys().keySet().iterator().next());
+
+        boolean found = false;
+        for (EncryptedSharedPreferencesStats allStats :
+                EncryptedSharedPreferences.getAllStats(getTargetContext())) {
+            if (allStats.getPreferencesName().equals(encryptedSharedPreferencesName)) {
+                assertEquals(2, allStats.getEntryCount());
+                found = true;
+            }
+        }
+        assertTrue(found);
+    }
+
+    @Test
+    public void multiProcess() throws Exception {
+        String encryptedSharedPreferencesName = "multiProcess";
+        String key = "foo";
+        String value = "which came first, the chicken or the egg?";
+        String otherKey = "bar";
+        int otherValue = 1;
+
+        EncryptedSharedPreferences.deleteEncryptedSharedPreferences(getTargetContext(),
+                encryptedSharedPreferencesName);
+        EncryptedSharedPreferences.getEncryptedSharedPreferences(getTargetContext(),
+                encryptedSharedPreferencesName).edit().putString(key, value).commit();
+
+        EncryptedSharedPreferences encryptedSharedPreferences =
+                EncryptedSharedPreferences.getMultiProcessEncryptedSharedPreferences(
+                        getTargetContext(), encryptedSharedPreferencesName);
+
+        assertEquals(value, encryptedSharedPreferences.getString(key, null));
+
+        encryptedSharedPreferences.edit().putInt(otherKey, otherValue).commit();
+
+        assertEquals(otherValue, EncryptedSharedPreferences
+                .getMultiProcessEncryptedSharedPreferences(getTargetContext(),
+                        encryptedSharedPreferencesName).getInt(otherKey, 0));
+        assertEquals(otherValue, EncryptedSharedPreferences
+                .getEncryptedSharedPreferences(getTargetContext(),
+                        encryptedSharedPreferencesName).getInt(otherKey, 0));
+        assertEquals(2, encryptedSharedPreferences.getAll().size());
+        assertTrue(EncryptedSharedPreferences.deleteEncryptedSharedPreferences(getTargetContext(),
+                encryptedSharedPreferencesName));
+        assertFalse(encryptedSharedPreferences.contains(key));
+        File sharedPreferencesDir = new File(getTargetContext().getApplicationInfo().dataDir,
+                "shared_prefs");
+        assertFalse(new File(sharedPreferencesDir, encryptedSharedPreferencesName +
+                ".esp.mp").exists());
+        assertFalse(new File(sharedPreferencesDir, encryptedSharedPreferencesName +
+                ".esp.mp.version").exists());
+        assertFalse(EncryptedSharedPreferences.getEncryptedSharedPreferences(getTargetContext(),
+                encryptedSharedPreferencesName).contains(otherKey));
+    }
+
+    @Test
+    public void multiProcess_packedPrimitives() throws Exception {
+        String encryptedSharedPreferencesName = "multiProcess_packedPrimitives";
+        String intKey = "foo";
+        String booleanKey = "bar";
+        String longKey = "baz";
+        int intValue = -110883086;
+        long longValue = 836613320883456075L;
+
+        EncryptedSharedPreferences.deleteEncryptedSharedPreferences(getTargetContext(),
+                encryptedSharedPreferencesName);
+        EncryptedSharedPreferences.enablePackedPrimitives();
+        try {
+            EncryptedSharedPreferences.getEncryptedSharedPreferences(getTargetContext(),
+                    encryptedSharedPreferencesName).edit()
+                    .putInt(intKey, 1)
+                    .putBoolean(booleanKey, true)
+                    .commit();
+
+            EncryptedSharedPreferences encryptedSharedPreferences =
+                    EncryptedSharedPreferences.getMultiProcessEncryptedSharedPreferences(
+                            getTargetContext(), encryptedSharedPreferencesName);
+            encryptedSharedPreferences.edit()
+                    .putInt(intKey, intValue)
+                    .remove(booleanKey)
+                    .putLong(longKey, longValue)
+                    .commit();
+
+            assertEquals(intValue, encryptedSharedPreferences.getInt(intKey, 0));
+            assertFalse(encryptedSharedPreferences.contains(booleanKey));
+            assertEquals(longValue, encryptedSharedPreferences.getLong(longKey, 0));
+            assertEquals(2, encryptedSharedPreferences.getAll().size());
+        } finally {
+            EncryptedSharedPreferences.disablePackedPrimitives();
+        }
+        assertTrue(EncryptedSharedPreferences.deleteEncryptedSharedPreferences(getTargetContext(),
+                encryptedSharedPreferencesName));
+    }
+
+    @Test
+    public void putObjectAndGetObject() throws Exception {
+        String key = "foo";
+        List<String> value = Arrays.asList("potato", "unicorn", "rubber");
+        String otherKey = "bar";
+        int[] otherValue = {-110883086, 0, 1};
+
+        EncryptedSharedPreferences encryptedSharedPreferences =
+                EncryptedSharedPreferences.getEncryptedSharedPreferences(getTargetContext(),
+                        "putObjectAndGetObject");
+        encryptedSharedPreferences.edit()
+                .clear()
+                .commit();
+        encryptedSharedPreferences.edit()
+                .putObject(key, value, ObjectCodecs.STRING_LIST)
+                .commit();
+        encryptedSharedPreferences.edit()
+                .putObject(otherKey, otherValue, ObjectCodecs.INT_ARRAY)
+                .commit();
+
+        assertEquals(value, encryptedSharedPreferences.getObject(key, ObjectCodecs.STRING_LIST,
+                null));
+        assertArrayEquals(otherValue, encryptedSharedPreferences.getObject(otherKey,
+                ObjectCodecs.INT_ARRAY, null));
+        assertNull(encryptedSharedPreferences.getObject("baz", ObjectCodecs.STRING, null));
+        assertEquals(2, encryptedSharedPreferences.getStats().getObjectCount());
+
+        EncryptedSharedPreferences.enableObjectCache(16);
+        try {
+            List<String> cachedValue = encryptedSharedPreferences.getObject(key,
+                    ObjectCodecs.STRING_LIST, null);
+
+            assertSame(cachedValue, encryptedSharedPreferences.getObject(key,
+                    ObjectCodecs.STRING_LIST, null));
+
+            encryptedSharedPreferences.edit()
+                    .putObject(key, Arrays.asList("potato"), ObjectCodecs.STRING_LIST)
+                    .commit();
+
+            assertEquals(Arrays.asList("potato"), encryptedSharedPreferences.getObject(key,
+                    ObjectCodecs.STRING_LIST, null));
+        } finally {
+            EncryptedSharedPreferences.disableObjectCache();
+        }
+
+        try {
+            encryptedSharedPreferences.getString(key, null);
+            fail();
+        } catch (ClassCastException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void keyNameHashing() {
+        String key = "foo";
+        String value = "potato";
+        String otherKey = "bar";
+        Set<String> otherValue = new HashSet<>(Arrays.asList("unicorn", "rubber"));
+        String encryptedSharedPreferencesName = "keyNameHashing";
+
+        EncryptedSharedPreferences encryptedSharedPreferences =
+                EncryptedSharedPreferences.getEncryptedSharedPreferences(getTargetContext(),
+                        encryptedSharedPreferencesName);
+        encryptedSharedPreferences.edit()
+                .clear()
+                .putString(key, value)
+                .commit();
+        SharedPreferences sharedPreferences = getTargetContext().getSharedPreferences(
+                encryptedSharedPreferencesName + ".esp", MODE_PRIVATE);
+        assertTrue(sharedPreferences.contains(key));
+
+        OnSharedPreferenceChangeListener listener = mock(OnSharedPreferenceChangeListener.class);
+        EncryptedSharedPreferences.enableKeyNameHashing();
+        try {
+            encryptedSharedPreferences.registerOnSharedPreferenceChangeListener(listener);
+            encryptedSharedPreferences.edit()
+                    .putString(key, value)
+                    .putStringSet(otherKey, otherValue)
+                    .commit();
+
+            assertFalse(sharedPreferences.contains(key));
+            assertFalse(sharedPreferences.contains(otherKey));
+            assertEquals(2, sharedPreferences.getAll().size());
+            assertEquals(value, encryptedSharedPreferences.getString(key, null));
+            assertEquals(otherValue, encryptedSharedPreferences.getStringSet(otherKey, null));
+            assertTrue(encryptedSharedPreferences.contains(otherKey));
+            verify(listener, timeout(1000)).onSharedPreferenceChanged(encryptedSharedPreferences,
+                    otherKey);
+
+            Map<String, ?> all = encryptedSharedPreferences.getAll();
+            assertEquals(2, all.size());
+            assertEquals(value, all.get(key));
+            assertEquals(otherValue, all.get(otherKey));
+
+            encryptedSharedPreferences.edit()
+                    .remove(otherKey)
+                    .commit();
+
+            assertFalse(encryptedSharedPreferences.contains(otherKey));
+            verify(listener, timeout(1000).times(2)).onSharedPreferenceChanged(
+                    encryptedSharedPreferences, otherKey);
+        } finally {
+            EncryptedSharedPreferences.disableKeyNameHashing();
+            encryptedSharedPreferences.unregisterOnSharedPreferenceChangeListener(listener);
+        }
+
+        assertEquals(value, encryptedSharedPreferences.getString(key, null));
+
+        encryptedSharedPreferences.edit()
+                .putString(key, value)
+                .commit();
+
+        assertTrue(sharedPreferences.contains(key));
+        assertEquals(1, sharedPreferences.getAll().size());
+    }
+
+    @Test
+    public void putWithTtl() throws Exception {
+        String key = "foo";
+        String value = "potato";
+        String otherKey = "bar";
+        Set<String> otherValue = new HashSet<>(Arrays.asList("unicorn", "rubber"));
+        String longLivedKey = "baz";
+        String encryptedSharedPreferencesName = "putWithTtl";
+
+        EncryptedSharedPreferences encryptedSharedPreferences =
+                EncryptedSharedPreferences.getEncryptedSharedPreferences(getTargetContext(),
+                        encryptedSharedPreferencesName);
+        encryptedSharedPreferences.edit()
+                .clear()
+                .commit();
+        ((EncryptedSharedPreferences.Editor) encryptedSharedPreferences.edit())
+                .putString(key, value, 500)
+                .commit();
+        ((EncryptedSharedPreferences.Editor) encryptedSharedPreferences.edit())
+                .putStringSet(otherKey, otherValue, 500)
+                .commit();
+        ((EncryptedSharedPreferences.Editor) encryptedSharedPreferences.edit())
+                .putLong(longLivedKey, 42L, 60 * 60 * 1000)
+                .commit();
+
+        assertEquals(value, encryptedSharedPreferences.getString(key, null));
+        assertEquals(otherValue, encryptedSharedPreferences.getStringSet(otherKey, null));
+        assertTrue(encryptedSharedPreferences.contains(key));
+
+        sleep(1000);
+
+        assertNull(encryptedSharedPreferences.getString(key, null));
+        assertNull(encryptedSharedPreferences.getStringSet(otherKey, null));
+        assertFalse(encryptedSharedPreferences.contains(key));
+        assertEquals(42L, encryptedSharedPreferences.getLong(longLivedKey, 0));
+        assertEquals(1, encryptedSharedPreferences.getAll().size());
+
+        assertEquals(2, encryptedSharedPreferences.sweepExpiredPreferences(100));
+        SharedPreferences sharedPreferences = getTargetContext().getSharedPreferences(
+                encryptedSharedPreferencesName + ".esp", MODE_PRIVATE);
+        assertEquals(1, sharedPreferences.getAll().size());
+    }
+
+    @Test
+    public void snapshot() {
+        String key = "foo";
+        String value = "potato";
+        String otherKey = "bar";
+        long otherValue = -110883086L;
+
+        EncryptedSharedPreferences encryptedSharedPreferences =
+                EncryptedSharedPreferences.getEncryptedSharedPreferences(getTargetContext(),
+                        "snapshot");
+        encryptedSharedPreferences.edit()
+                .clear()
+                .putString(key, value)
+                .putLong(otherKey, otherValue)
+                .commit();
+
+        EncryptedSharedPreferences.Snapshot snapshot = encryptedSharedPreferences.snapshot();
+        encryptedSharedPreferences.edit()
+                .putString(key, "unicorn")
+                .remove(otherKey)
+                .apply();
+        EncryptedSharedPreferences.Snapshot otherSnapshot = encryptedSharedPreferences.snapshot();
+
+        assertEquals(value, snapshot.getString(key, null));
+        assertSame(snapshot.getString(key, null), snapshot.getString(key, null));
+        assertEquals(otherValue, snapshot.getLong(otherKey, 0));
+        assertTrue(snapshot.contains(otherKey));
+        assertEquals(2, snapshot.getAll().size());
+        assertEquals("unicorn", otherSnapshot.getString(key, null));
+        assertFalse(otherSnapshot.contains(otherKey));
+        assertEquals(1, otherSnapshot.getAll().size());
+
+        try {
+            snapshot.getInt(key, 0);
+            fail();
+        } catch (ClassCastException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void openAll() {
+        List<String> names = Arrays.asList("openAll0", "openAll1", "openAll2", "openAll0");
+        String key = "foo";
+
+        Map<String, EncryptedSharedPreferences> encryptedSharedPreferencesByName =
+                EncryptedSharedPreferences.openAll(getTargetContext(), names);
+
+        assertEquals(Arrays.asList("openAll0", "openAll1", "openAll2"),
+                new ArrayList<>(encryptedSharedPreferencesByName.keySet()));
+        for (Map.Entry<String, EncryptedSharedPreferences> entry :
+                encryptedSharedPreferencesByName.entrySet()) {
+            entry.getValue().edit()
+                    .putString(key, entry.getKey())
+                    .commit();
+        }
+        for (String name : encryptedSharedPreferencesByName.keySet()) {
+            assertEquals(name, EncryptedSharedPreferences.getEncryptedSharedPreferences(
+                    getTargetContext(), name).getString(key, null));
+        }
+        assertTrue(EncryptedSharedPreferences.getEncryptedSharedPreferencesNames(
+                getTargetContext()).containsAll(encryptedSharedPreferencesByName.keySet()));
+    }
+
+    @Test
+    public void openAllAsync() {
+        EncryptedSharedPreferences.OpenAllAsyncCallback callback =
+                mock(EncryptedSharedPreferences.OpenAllAsyncCallback.class);
+
+        getInstrumentation().runOnMainSync(() -> EncryptedSharedPreferences.openAllAsync(
+                getTargetContext(), Arrays.asList("openAll0", "openAll1"), callback));
+
+        verify(callback, timeout(5000)).onSuccess(any());
+        verify(callback, never()).onError(any());
+    }
+
+    @Test
+    public void getSecret() {
+        String key = "foo";
+        String value = "i hate it when hitler steals my nutella";
+
+        EncryptedSharedPreferences encryptedSharedPreferences =
+                EncryptedSharedPreferences.getEncryptedSharedPreferences(getTargetContext(),
+                        "getSecret");
+        encryptedSharedPreferences.edit()
+                .clear()
+                .putString(key, value)
+                .putInt("bar", 1)
+                .commit();
+
+        Secret secret = encryptedSharedPreferences.getSecret(key);
+        assertArrayEquals(value.toCharArray(), secret.toCharArray());
+        secret.close();
+        assertTrue(secret.isClosed());
+        assertNull(encryptedSharedPreferences.getSecret("baz"));
+
+        EncryptedSharedPreferences.enableSecretCache(16);
+        try {
+            Secret cachedSecret = encryptedSharedPreferences.getSecret(key);
+            Secret otherCachedSecret = encryptedSharedPreferences.getSecret(key);
+            cachedSecret.close();
+
+            assertEquals(value.length(), otherCachedSecret.length());
+            otherCachedSecret.close();
+
+            encryptedSharedPreferences.edit()
+                    .putString(key, "potato")
+                    .commit();
+
+            Secret changedSecret = encryptedSharedPreferences.getSecret(key);
+            assertArrayEquals("potato".toCharArray(), changedSecret.toCharArray());
+            changedSecret.close();
+        } finally {
+            EncryptedSharedPreferences.disableSecretCache();
+        }
+
+        try {
+            encryptedSharedPreferences.getSecret("bar");
+            fail();
+        } catch (ClassCastException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void accessProfiling() throws Exception {
+        String key = "foo";
+        String value = "potato";
+        String otherKey = "bar";
+        int otherValue = -110883086;
+
+        EncryptedSharedPreferences.deleteEncryptedSharedPreferences(getTargetContext(),
+                "accessProfiling");
+        EncryptedSharedPreferences.enableAccessProfiling();
+        try {
+            EncryptedSharedPreferences encryptedSharedPreferences =
+                    EncryptedSharedPreferences.getEncryptedSharedPreferences(getTargetContext(),
+                            "accessProfiling");
+            encryptedSharedPreferences.edit()
+                    .putString(key, value)
+                    .putInt(otherKey, otherValue)
+                    .commit();
+
+            assertEquals(value, encryptedSharedPreferences.getString(key, null));
+            assertEquals(value, encryptedSharedPreferences.getString(key, null));
+            assertEquals(otherValue, encryptedSharedPreferences.getInt(otherKey, 0));
+
+            AccessProfileReport report = encryptedSharedPreferences.getAccessProfileReport();
+            assertEquals(3, report.getMissCount());
+            assertEquals(key, report.getKeys().get(0).getKey());
+            assertEquals(2, report.getKeys().get(0).getReadCount());
+
+            encryptedSharedPreferences.saveAccessProfile();
+
+            // Simulates a later launch
+            EncryptedSharedPreferences.disableAccessProfiling();
+            EncryptedSharedPreferences.enableAccessProfiling();
+            encryptedSharedPreferences =
+                    EncryptedSharedPreferences.getEncryptedSharedPreferences(getTargetContext(),
+                            "accessProfiling");
+            sleep(1000);
+
+            assertEquals(value, encryptedSharedPreferences.getString(key, null));
+            assertEquals(otherValue, encryptedSharedPreferences.getInt(otherKey, 0));
+
+            report = encryptedSharedPreferences.getAccessProfileReport();
+            assertEquals(2, report.getHitCount());
+            assertEquals(0, report.getMissCount());
+
+            encryptedSharedPreferences.edit()
+                    .putString(key, "unicorn")
+                    .commit();
+
+            assertEquals("unicorn", encryptedSharedPreferences.getString(key, null));
+            assertEquals(1, encryptedSharedPreferences.getAccessProfileReport().getMissCount());
+        } finally {
+            EncryptedSharedPreferences.disableAccessProfiling();
+        }
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.wasisto.encryptedsharedpreferences;
+
+import com.wasisto.encryptedsharedpreferences.model.AccessProfileReport;
+import com.wasisto.encryptedsharedpreferences.model.KeyAccessStats;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records the reads of one EncryptedSharedPreferences since it was opened, and holds the values
+ * preloaded from the hot keys of a previous run. A preloaded value is only returned while the
+ * stored value is unchanged.
+ * <p>
+ * The persisted profile holds one line per hot key: the length of the key, a colon, the key, and
+ * the read count, the first access time, and the average decrypt cost separated by commas.
+ */
+final class AccessProfiler {
+
+    static final int MAX_HOT_KEYS = 32;
+
+    static final long PROFILING_WINDOW_MILLIS = 10 * 1000;
+
+    private final long openedAtMillis;
+
+    private final Map<String, KeyAccess> keyAccesses = new HashMap<>();
+
+    private final Map<String, PreloadedValue> preloadedValues = new HashMap<>();
+
+    private final Map<String, Long> profiledDecryptNanos = new HashMap<>();
+
+    private boolean preloadStarted;
+
+    private boolean saved;
+
+    private long hitCount;
+
+    private long missCount;
+
+    private long mainThreadHitCount;
+
+    private long mainThreadMissCount;
+
+    private long mainThreadDecryptNanos;
+
+    private long savedMainThreadDecryptNanos;
+
+    private static final class KeyAccess {
+
+        private long readCount;
+
+        private long firstAccessMillis;
+
+        private long decryptCount;
+
+        private long decryptNanos;
+
+        private long getAverageDecryptNanos() {
+            return decryptCount > 0 ? decryptNanos / decryptCount : 0;
+        }
+    }
+
+    private static final class PreloadedValue {
+
+        private final String rawValue;
+
+        private final Object value;
+
+        private PreloadedValue(String rawValue, Object value) {
+            this.rawValue = rawValue;
+            this.value = value;
+        }
+    }
+
+    /**
+     * @param openedAtMillis The time the EncryptedSharedPreferences was opened, of a monotonic
+     * clock.
+     */
+    AccessProfiler(long openedAtMillis) {
+        this.openedAtMillis = openedAtMillis;
+    }
+
+    /**
+     * @return {@code true} the first time it is called, when the hot keys should be preloaded.
+     */
+    synchronized boolean tryBeginPreload() {
+        if (preloadStarted) {
+            return false;
+        }
+        preloadStarted = true;
+        return true;
+    }
+
+    /**
+     * Remembers the decrypt costs of a previous run, to estimate the time saved by the hits on
+     * keys that have not been decrypted in this run.
+     */
+    synchronized void setProfile(List<KeyAccessStats> profile) {
+        for (KeyAccessStats keyAccessStats : profile) {
+            profiledDecryptNanos.put(keyAccessStats.getKey(),
+                    keyAccessStats.getAverageDecryptNanos());
+        }
+    }
+
+    /**
+     * Returns the preloaded value of the specified key if it was decrypted from the specified
+     * stored value, or {@code null} otherwise.
+     */
+    synchronized Object getPreloadedValue(String key, String rawValue) {
+        PreloadedValue preloadedValue = preloadedValues.get(key);
+        if (preloadedValue == null) {
+            return null;
+        }
+        if (!preloadedValue.rawValue.equals(rawValue)) {
+            preloadedValues.remove(key);
+            return null;
+        }
+        return preloadedValue.value;
+    }
+
+    synchronized void putPreloadedValue(String key, String rawValue, Object value) {
+        if (preloadedValues.size() < MAX_HOT_KEYS || preloadedValues.containsKey(key)) {
+            preloadedValues.put(key, new PreloadedValue(rawValue, value));
+        }
+    }
+
+    /**
+     * Records a read served by a preloaded value.
+     */
+    synchronized void recordHit(String key, long nowMillis, boolean mainThread) {
+        KeyAccess keyAccess = recordRead(key, nowMillis);
+        hitCount++;
+        if (mainThread) {
+            mainThreadHitCount++;
+            if (keyAccess.decryptCount > 0) {
+                savedMainThreadDecryptNanos += keyAccess.getAverageDecryptNanos();
+            } else {
+                Long decryptNanos = profiledDecryptNanos.get(key);
+                savedMainThreadDecryptNanos += decryptNanos != null ? decryptNanos : 0;
+            }
+        }
+    }
+
+    /**
+     * Records a read that decrypted the value.
+     */
+    synchronized void recordMiss(String key, long nowMillis, long decryptNanos,
+                                 boolean mainThread) {
+        KeyAccess keyAccess = recordRead(key, nowMillis);
+        keyAccess.decryptCount++;
+        keyAccess.decryptNanos += decryptNanos;
+        missCount++;
+        if (mainThread) {
+            mainThreadMissCount++;
+            mainThreadDecryptNanos += decryptNanos;
+        }
+    }
+
+    private KeyAccess recordRead(String key, long nowMillis) {
+        KeyAccess keyAccess = keyAccesses.get(key);
+        if (keyAccess == null) {
+            keyAccess = new KeyAccess();
+            keyAccess.firstAccessMillis = nowMillis - openedAtMillis;
+            keyAccesses.put(key, keyAccess);
+        }
+        keyAccess.readCount++;
+        return keyAccess;
+    }
+
+    /**
+     * @return {@code true} once per profiler, when the profiling window has elapsed and the
+     * profile should be saved.
+     */
+    synchronized boolean shouldSave(long nowMillis) {
+        if (saved || keyAccesses.isEmpty() || nowMillis - openedAtMillis <
+                PROFILING_WINDOW_MILLIS) {
+            return false;
+        }
+        saved = true;
+        return true;
+    }
+
+    /**
+     * Returns the most read keys, in the order they were first read.
+     */
+    synchronized List<KeyAccessStats> getHotKeys() {
+        List<KeyAccessStats> hotKeys = getKeyAccessStats();
+        hotKeys = new ArrayList<>(hotKeys.subList(0, Math.min(MAX_HOT_KEYS, hotKeys.size())));
+        Collections.sort(hotKeys, (keyAccessStats, otherKeyAccessStats) ->
+                Long.compare(keyAccessStats.getFirstAccessMillis(),
+                        otherKeyAccessStats.getFirstAccessMillis()));
+        return hotKeys;
+    }
+
+    synchronized AccessProfileReport getReport(String preferencesName) {
+        AccessProfileReport report = new AccessProfileReport();
+        report.setPreferencesName(preferencesName);
+        report.setHitCount(hitCount);
+        report.setMissCount(missCount);
+        report.setMainThreadHitCount(mainThreadHitCount);
+        report.setMainThreadMissCount(mainThreadMissCount);
+        report.setMainThreadDecryptNanos(mainThreadDecryptNanos);
+        report.setSavedMainThreadDecryptNanos(savedMainThreadDecryptNanos);
+        report.setKeys(getKeyAccessStats());
+        return report;
+    }
+
+    /**
+     * Returns the stats of every read key, most read first.
+     */
+    private List<KeyAccessStats> getKeyAccessStats() {
+        List<KeyAccessStats> keyAccessStatsList = new ArrayList<>(keyAccesses.size());
+        for (Map.Entry<String, KeyAccess> entry : keyAccesses.entrySet()) {
+            KeyAccess keyAccess = entry.getValue();
+            Long profiledNanos = profiledDecryptNanos.get(entry.getKey());
+            keyAccessStatsList.add(createKeyAccessStats(entry.getKey(), keyAccess.readCount,
+                    keyAccess.firstAccessMillis, keyAccess.decryptCount > 0 || profiledNanos ==
+                            null ? keyAccess.getAverageDecryptNanos() : profiledNanos));
+        }
+        Collections.sort(keyAccessStatsList, (keyAccessStats, otherKeyAccessStats) -> {
+            int comparison = Long.compare(otherKeyAccessStats.getReadCount(),
+                    keyAccessStats.getReadCount());
+            return comparison != 0 ? comparison : Long.compare(
+                    keyAccessStats.getFirstAccessMillis(),
+                    otherKeyAccessStats.getFirstAccessMillis());
+        });
+        return keyAccessStatsList;
+    }
+
+    static String format(List<KeyAccessStats> profile) {
+        StringBuilder stringBuilder = new StringBuilder(profile.size() * 32);
+        for (KeyAccessStats keyAccessStats : profile) {
+            String key = keyAccessStats.getKey();
+            stringBuilder.append(key.length()).append(':').append(key)
+                    .append(keyAccessStats.getReadCount()).append(',')
+                    .append(keyAccessStats.getFirstAccessMillis()).append(',')
+                    .append(keyAccessStats.getAverageDecryptNanos()).append('\n');
+        }
+        return stringBuilder.toString();
+    }
+
+    static List<KeyAccessStats> parse(String plaintext) {
+        List<KeyAccessStats> profile = new ArrayList<>();
+        int position = 0;
+        try {
+            while (position < plaintext.length()) {
+                int colon = plaintext.indexOf(':', position);
+                int keyLength = Integer.parseInt(plaintext.substring(position, colon));
+                position = colon + 1;
+                String key = plaintext.substring(position, position + keyLength);
+                position += keyLength;
+                int lineBreak = plaintext.indexOf('\n', position);
+                String[] fields = plaintext.substring(position, lineBreak).split(",", -1);
+                position = lineBreak + 1;
+                if (fields.length != 3) {
+                    throw new RuntimeException("Malformed access profile at index " + position);
+                }
+                profile.add(createKeyAccessStats(key, Long.parseLong(fields[0]),
+                        Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+            }
+        } catch (IndexOutOfBoundsException | NumberFormatException e) {
+            throw new RuntimeException("Malformed access profile at index " + position, e);
+        }
+        return profile;
+    }
+
+    private static KeyAccessStats createKeyAccessStats(String key, long readCount,
+                                                       long firstAccessMillis,
+                                                       long averageDecryptNanos) {
+        KeyAccessStats keyAccessStats = new KeyAccessStats();
+        keyAccessStats.setKey(key);
+        keyAccessStats.setReadCount(readCount);
+        keyAccessStats.setFirstAccessMillis(firstAccessMillis);
+        keyAccessStats.setAverageDecryptNanos(averageDecryptNanos);
+        return keyAccessStats;
+    }
+}
@@ -0,0 +1,554 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wasisto.encryptedsharedpreferences;
+
+import com.wasisto.encryptedsharedpreferences.exception.InvalidBackupException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The streaming backup archive format.
+ * <p>
+ * An archive starts with a header (magic, format version, key derivation parameters) followed by
+ * chunks. Each chunk holds a number of whole entry records encrypted with AES-256-CTR under a
+ * fresh IV and authenticated with HMAC-SHA256 over the header, the chunk index, the final-chunk
+ * flag and the ciphertext, so reordered, truncated or modified archives are rejected. The last
+ * chunk carries the final-chunk flag.
+ * <p>
+ * An entry record is a type, the key, the expiry time if the type has {@link #TYPE_FLAG_EXPIRES}
+ * set, and the value.
+ */
+final class BackupArchive {
+
+    private static final byte[] MAGIC = {'E', 'S', 'P', 'B'};
+
+    private static final int VERSION = 1;
+
+    private static final int KDF_RAW_KEY = 0;
+    private static final int KDF_PBKDF2 = 1;
+
+    private static final int PBKDF2_ITERATIONS = 10000;
+    private static final int MAX_PBKDF2_ITERATIONS = 1000000;
+    private static final int SALT_LENGTH = 16;
+    private static final int MIN_RAW_KEY_LENGTH = 16;
+
+    private static final int IV_LENGTH = 16;
+    private static final int MAC_LENGTH = 32;
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_CHUNK_LENGTH = 16 * 1024 * 1024;
+
+    private static final int FLAG_FINAL = 1;
+
+    private static final int TYPE_STRING = 1;
+    private static final int TYPE_STRING_SET = 2;
+    private static final int TYPE_INT = 3;
+    private static final int TYPE_LONG = 4;
+    private static final int TYPE_FLOAT = 5;
+    private static final int TYPE_BOOLEAN = 6;
+    private static final int TYPE_BYTES = 7;
+
+    private static final int TYPE_FLAG_EXPIRES = 0x80;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private BackupArchive() {
+    }
+
+    private static byte[] deriveMasterKey(char[] passphrase, byte[] salt, int iterations)
+            throws GeneralSecurityException {
+        PBEKeySpec keySpec = new PBEKeySpec(passphrase, salt, iterations, 256);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1").generateSecret(keySpec)
+                    .getEncoded();
+        } finally {
+            keySpec.clearPassword();
+        }
+    }
+
+    private static byte[] deriveSubkey(byte[] masterKey, String label)
+            throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(masterKey, "HmacSHA256"));
+        return mac.doFinal(label.getBytes(UTF_8));
+    }
+
+    private static void checkRawKey(byte[] key) {
+        if (key == null || key.length < MIN_RAW_KEY_LENGTH) {
+            throw new IllegalArgumentException("key must be at least " + MIN_RAW_KEY_LENGTH +
+                    " bytes long");
+        }
+    }
+
+    private static byte[] computeMac(Mac mac, byte[] header, long chunkIndex, int flags,
+                                     byte[] iv, byte[] ciphertext) {
+        mac.update(header);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            mac.update((byte) (chunkIndex >>> shift));
+        }
+        mac.update((byte) flags);
+        mac.update(iv);
+        mac.update(ciphertext);
+        return mac.doFinal();
+    }
+
+    /**
+     * Writes entries into an archive, sealing a chunk whenever the buffered records reach the
+     * chunk size.
+     */
+    static final class Writer {
+
+        private final DataOutputStream outputStream;
+
+        private final byte[] header;
+
+        private final Cipher cipher;
+
+        private final Mac mac;
+
+        private final SecretKeySpec encryptionKey;
+
+        private final SecureRandom secureRandom = new SecureRandom();
+
+        private final ChunkBuffer chunkBuffer = new ChunkBuffer();
+
+        private final DataOutputStream chunkOutputStream = new DataOutputStream(chunkBuffer);
+
+        private long chunkIndex;
+
+        private boolean finished;
+
+        Writer(OutputStream outputStream, char[] passphrase) throws IOException {
+            this.outputStream = new DataOutputStream(outputStream);
+            try {
+                byte[] salt = new byte[SALT_LENGTH];
+                secureRandom.nextBytes(salt);
+                header = createHeader(KDF_PBKDF2, PBKDF2_ITERATIONS, salt);
+                byte[] masterKey = deriveMasterKey(passphrase, salt, PBKDF2_ITERATIONS);
+                encryptionKey = new SecretKeySpec(deriveSubkey(masterKey, "enc"), "AES");
+                mac = Mac.getInstance("HmacSHA256");
+                mac.init(new SecretKeySpec(deriveSubkey(masterKey, "mac"), "HmacSHA256"));
+                Arrays.fill(masterKey, (byte) 0);
+                cipher = Cipher.getInstance("AES/CTR/NoPadding");
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e);
+            }
+            this.outputStream.write(header);
+        }
+
+        Writer(OutputStream outputStream, byte[] key) throws IOException {
+            checkRawKey(key);
+            this.outputStream = new DataOutputStream(outputStream);
+            try {
+                header = createHeader(KDF_RAW_KEY, 0, new byte[0]);
+                encryptionKey = new SecretKeySpec(deriveSubkey(key, "enc"), "AES");
+                mac = Mac.getInstance("HmacSHA256");
+                mac.init(new SecretKeySpec(deriveSubkey(key, "mac"), "HmacSHA256"));
+                cipher = Cipher.getInstance("AES/CTR/NoPadding");
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e);
+            }
+            this.outputStream.write(header);
+        }
+
+        private static byte[] createHeader(int kdf, int iterations, byte[] salt)
+                throws IOException {
+            ByteArrayOutputStream headerBuffer = new ByteArrayOutputStream();
+            DataOutputStream headerOutputStream = new DataOutputStream(headerBuffer);
+            headerOutputStream.write(MAGIC);
+            headerOutputStream.writeByte(VERSION);
+            headerOutputStream.writeByte(kdf);
+            headerOutputStream.writeInt(iterations);
+            headerOutputStream.writeByte(salt.length);
+            headerOutputStream.write(salt);
+            return headerBuffer.toByteArray();
+        }
+
+        void writeEntry(String key, Object value) throws IOException {
+            writeEntry(key, value, 0);
+        }
+
+        /**
+         * Writes an entry that expires at the specified time in milliseconds since the epoch, or
+         * never if it is {@code 0}.
+         */
+        void writeEntry(String key, Object value, long expiresAtMillis) throws IOException {
+            if (finished) {
+                throw new IllegalStateException("The archive is already finished");
+            }
+            int recordStart = chunkBuffer.size();
+            try {
+                writeRecord(key, value, expiresAtMillis);
+            } catch (RuntimeException e) {
+                chunkBuffer.truncate(recordStart);
+                throw e;
+            }
+            if (chunkBuffer.size() - recordStart > MAX_CHUNK_LENGTH) {
+                chunkBuffer.truncate(recordStart);
+                throw new IOException("Entry is too large. key: " + key);
+            }
+            if (chunkBuffer.size() > MAX_CHUNK_LENGTH) {
+                // The record fits into a chunk of its own only
+                byte[] record = chunkBuffer.copyFrom(recordStart);
+                chunkBuffer.truncate(recordStart);
+                writeChunk(0);
+                chunkBuffer.write(record);
+                Arrays.fill(record, (byte) 0);
+            }
+            if (chunkBuffer.size() >= CHUNK_SIZE) {
+                writeChunk(0);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void writeRecord(String key, Object value, long expiresAtMillis)
+                throws IOException {
+            if (value instanceof String) {
+                writeKey(TYPE_STRING, key, expiresAtMillis);
+                writeString((String) value);
+            } else if (value instanceof Set<?>) {
+                writeKey(TYPE_STRING_SET, key, expiresAtMillis);
+                Set<String> values = (Set<String>) value;
+                chunkOutputStream.writeInt(values.size());
+                for (String setValue : values) {
+                    writeString(setValue);
+                }
+            } else if (value instanceof Integer) {
+                writeKey(TYPE_INT, key, expiresAtMillis);
+                chunkOutputStream.writeInt((Integer) value);
+            } else if (value instanceof Long) {
+                writeKey(TYPE_LONG, key, expiresAtMillis);
+                chunkOutputStream.writeLong((Long) value);
+            } else if (value instanceof Float) {
+                writeKey(TYPE_FLOAT, key, expiresAtMillis);
+                chunkOutputStream.writeFloat((Float) value);
+            } else if (value instanceof Boolean) {
+                writeKey(TYPE_BOOLEAN, key, expiresAtMillis);
+                chunkOutputStream.writeBoolean((Boolean) value);
+            } else if (value instanceof byte[]) {
+                writeKey(TYPE_BYTES, key, expiresAtMillis);
+                chunkOutputStream.writeInt(((byte[]) value).length);
+                chunkOutputStream.write((byte[]) value);
+            } else {
+                throw new IllegalArgumentException("Unsupported value type. valueType: " +
+                        (value != null ? value.getClass().getCanonicalName() : null));
+            }
+        }
+
+        private void writeKey(int type, String key, long expiresAtMillis) throws IOException {
+            chunkOutputStream.writeByte(expiresAtMillis != 0 ? type | TYPE_FLAG_EXPIRES : type);
+            writeString(key);
+            if (expiresAtMillis != 0) {
+                chunkOutputStream.writeLong(expiresAtMillis);
+            }
+        }
+
+        private void writeString(String value) throws IOException {
+            byte[] bytes = value.getBytes(UTF_8);
+            chunkOutputStream.writeInt(bytes.length);
+            chunkOutputStream.write(bytes);
+        }
+
+        private void writeChunk(int flags) throws IOException {
+            byte[] plaintext = chunkBuffer.toByteArray();
+            chunkBuffer.truncate(0);
+            byte[] iv = new byte[IV_LENGTH];
+            secureRandom.nextBytes(iv);
+            byte[] ciphertext;
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new IvParameterSpec(iv));
+                ciphertext = cipher.doFinal(plaintext);
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e);
+            } finally {
+                Arrays.fill(plaintext, (byte) 0);
+            }
+            outputStream.writeByte(flags);
+            outputStream.write(iv);
+            outputStream.writeInt(ciphertext.length);
+            outputStream.write(ciphertext);
+            outputStream.write(computeMac(mac, header, chunkIndex, flags, iv, ciphertext));
+            chunkIndex++;
+        }
+
+        /**
+         * Writes the buffered entries and the final chunk. Does not close the underlying stream.
+         */
+        void finish() throws IOException {
+            if (!finished) {
+                writeChunk(FLAG_FINAL);
+                outputStream.flush();
+                finished = true;
+            }
+        }
+    }
+
+    /**
+     * Reads entries from an archive, verifying every chunk before decrypting it.
+     */
+    static final class Reader {
+
+        private final DataInputStream inputStream;
+
+        private final byte[] header;
+
+        private final Cipher cipher;
+
+        private final Mac mac;
+
+        private final SecretKeySpec encryptionKey;
+
+        private DataInputStream chunkInputStream;
+
+        private long chunkIndex;
+
+        private boolean finalChunkRead;
+
+        Reader(InputStream inputStream, char[] passphrase) throws IOException {
+            this(inputStream, passphrase, null);
+        }
+
+        Reader(InputStream inputStream, byte[] key) throws IOException {
+            this(inputStream, null, key);
+        }
+
+        private Reader(InputStream inputStream, char[] passphrase, byte[] key)
+                throws IOException {
+            if (key != null) {
+                checkRawKey(key);
+            }
+            this.inputStream = new DataInputStream(inputStream);
+            try {
+                byte[] magic = new byte[MAGIC.length];
+                this.inputStream.readFully(magic);
+                if (!Arrays.equals(magic, MAGIC)) {
+                    throw new InvalidBackupException("Not a backup archive");
+                }
+                int version = this.inputStream.readUnsignedByte();
+                if (version != VERSION) {
+                    throw new InvalidBackupException("Unsupported backup archive version. " +
+                            "version: " + version);
+                }
+                int kdf = this.inputStream.readUnsignedByte();
+                int iterations = this.inputStream.readInt();
+                byte[] salt = new byte[this.inputStream.readUnsignedByte()];
+                this.inputStream.readFully(salt);
+
+                ByteArrayOutputStream headerBuffer = new ByteArrayOutputStream();
+                DataOutputStream headerOutputStream = new DataOutputStream(headerBuffer);
+                headerOutputStream.write(magic);
+                headerOutputStream.writeByte(version);
+                headerOutputStream.writeByte(kdf);
+                headerOutputStream.writeInt(iterations);
+                headerOutputStream.writeByte(salt.length);
+                headerOutputStream.write(salt);
+                header = headerBuffer.toByteArray();
+
+                byte[] masterKey;
+                if (kdf == KDF_PBKDF2 && passphrase != null && iterations > 0 &&
+                        iterations <= MAX_PBKDF2_ITERATIONS) {
+                    masterKey = deriveMasterKey(passphrase, salt, iterations);
+                } else if (kdf == KDF_RAW_KEY && key != null) {
+                    masterKey = key.clone();
+                } else {
+                    throw new InvalidBackupException("The backup archive was exported with a " +
+                            (kdf == KDF_PBKDF2 ? "passphrase" : "key"));
+                }
+                encryptionKey = new SecretKeySpec(deriveSubkey(masterKey, "enc"), "AES");
+                mac = Mac.getInstance("HmacSHA256");
+                mac.init(new SecretKeySpec(deriveSubkey(masterKey, "mac"), "HmacSHA256"));
+                Arrays.fill(masterKey, (byte) 0);
+                cipher = Cipher.getInstance("AES/CTR/NoPadding");
+            } catch (EOFException e) {
+                throw new InvalidBackupException("The backup archive is truncated");
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /**
+         * Returns the next entry, or {@code null} once the final chunk has been read.
+         */
+        Entry readEntry() throws IOException {
+            while (chunkInputStream == null || chunkInputStream.available() == 0) {
+                if (finalChunkRead) {
+                    return null;
+                }
+                readChunk();
+            }
+            try {
+                int type = chunkInputStream.readUnsignedByte();
+                String key = readString();
+                long expiresAtMillis = 0;
+                if ((type & TYPE_FLAG_EXPIRES) != 0) {
+                    expiresAtMillis = chunkInputStream.readLong();
+                    if (expiresAtMillis == 0) {
+                        throw new InvalidBackupException("Invalid expiry time");
+                    }
+                    type &= ~TYPE_FLAG_EXPIRES;
+                }
+                Object value;
+                switch (type) {
+                    case TYPE_STRING:
+                        value = readString();
+                        break;
+                    case TYPE_STRING_SET:
+                        int size = chunkInputStream.readInt();
+                        if (size < 0) {
+                            throw new InvalidBackupException("Invalid string set size");
+                        }
+                        Set<String> values = new HashSet<>();
+                        for (int i = 0; i < size; i++) {
+                            values.add(readString());
+                        }
+                        value = values;
+                        break;
+                    case TYPE_INT:
+                        value = chunkInputStream.readInt();
+                        break;
+                    case TYPE_LONG:
+                        value = chunkInputStream.readLong();
+                        break;
+                    case TYPE_FLOAT:
+                        value = chunkInputStream.readFloat();
+                        break;
+                    case TYPE_BOOLEAN:
+                        value = chunkInputStream.readBoolean();
+                        break;
+                    case TYPE_BYTES:
+                        int length = chunkInputStream.readInt();
+                        if (length < 0 || length > chunkInputStream.available()) {
+                            throw new InvalidBackupException("Invalid byte array length");
+                        }
+                        byte[] bytes = new byte[length];
+                        chunkInputStream.readFully(bytes);
+                        value = bytes;
+                        break;
+                    default:
+                        throw new InvalidBackupException("Unsupported entry type. type: " + type);
+                }
+                return new Entry(key, value, expiresAtMillis);
+            } catch (EOFException e) {
+                throw new InvalidBackupException("Malformed entry record");
+            }
+        }
+
+        private String readString() throws IOException {
+            int length = chunkInputStream.readInt();
+            if (length < 0 || length > chunkInputStream.available()) {
+                throw new InvalidBackupException("Invalid string length");
+            }
+            byte[] bytes = new byte[length];
+            chunkInputStream.readFully(bytes);
+            return new String(bytes, UTF_8);
+        }
+
+        private void readChunk() throws IOException {
+            try {
+                int flags = inputStream.readUnsignedByte();
+                if ((flags & ~FLAG_FINAL) != 0) {
+                    throw new InvalidBackupException("Invalid chunk flags");
+                }
+                byte[] iv = new byte[IV_LENGTH];
+                inputStream.readFully(iv);
+                int length = inputStream.readInt();
+                if (length < 0 || length > MAX_CHUNK_LENGTH) {
+                    throw new InvalidBackupException("Invalid chunk length");
+                }
+                byte[] ciphertext = new byte[length];
+                inputStream.readFully(ciphertext);
+                byte[] expectedMac = new byte[MAC_LENGTH];
+                inputStream.readFully(expectedMac);
+
+                byte[] actualMac = computeMac(mac, header, chunkIndex, flags, iv, ciphertext);
+                if (!MessageDigest.isEqual(expectedMac, actualMac)) {
+                    throw new InvalidBackupException("The backup archive is corrupted or the " +
+                            "key is wrong");
+                }
+
+                cipher.init(Cipher.DECRYPT_MODE, encryptionKey, new IvParameterSpec(iv));
+                chunkInputStream = new DataInputStream(new ByteArrayInputStream(
+                        cipher.doFinal(ciphertext)));
+                chunkIndex++;
+                finalChunkRead = (flags & FLAG_FINAL) != 0;
+            } catch (EOFException e) {
+                throw new InvalidBackupException("The backup archive is truncated");
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Buffers the records of a chunk. Discarded records are zeroed.
+     */
+    private static final class ChunkBuffer extends ByteArrayOutputStream {
+
+        byte[] copyFrom(int from) {
+            return Arrays.copyOfRange(buf, from, count);
+        }
+
+        void truncate(int size) {
+            Arrays.fill(buf, size, count, (byte) 0);
+            count = size;
+        }
+    }
+
+    /**
+     * An entry read from an archive.
+     */
+    static final class Entry extends AbstractMap.SimpleImmutableEntry<String, Object> {
+
+        private final long expiresAtMillis;
+
+        Entry(String key, Object value, long expiresAtMillis) {
+            super(key, value);
+            this.expiresAtMillis = expiresAtMillis;
+        }
+
+        /**
+         * Returns the expiry time in milliseconds since the epoch, or {@code 0} if the entry does
+         * not expire.
+         */
+        long getExpiresAtMillis() {
+            return expiresAtMillis;
+        }
+    }
+}
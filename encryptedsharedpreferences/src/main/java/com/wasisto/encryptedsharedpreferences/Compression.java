@@ -0,0 +1,178 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wasisto.encryptedsharedpreferences;
+
+import com.wasisto.encryptedsharedpreferences.EncryptedSharedPreferences.CompressionCodec;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The compression settings and the registered compression codecs. Codecs stay registered after
+ * compression is disabled so that values compressed with them remain readable.
+ */
+final class Compression {
+
+    static final CompressionCodec DEFLATE = new DeflateCompressionCodec();
+
+    private static final Map<String, CompressionCodec> codecs = new ConcurrentHashMap<>();
+
+    static {
+        codecs.put(DEFLATE.getName(), DEFLATE);
+    }
+
+    private static volatile CompressionCodec codec;
+
+    private static volatile int thresholdChars;
+
+    private Compression() {
+    }
+
+    static synchronized void enable(int thresholdChars, CompressionCodec codec) {
+        if (thresholdChars < 0) {
+            throw new IllegalArgumentException("thresholdChars must not be negative. " +
+                    "thresholdChars: " + thresholdChars);
+        }
+        String name = codec.getName();
+        if (name == null || !name.matches("[A-Za-z0-9._-]+")) {
+            throw new IllegalArgumentException("Invalid compression codec name. name: " + name);
+        }
+        CompressionCodec registeredCodec = codecs.get(name);
+        if (registeredCodec != null && registeredCodec != codec &&
+                registeredCodec.getClass() != codec.getClass()) {
+            throw new IllegalArgumentException("Another compression codec is already " +
+                    "registered with the same name. name: " + name);
+        }
+        codecs.put(name, codec);
+        Compression.thresholdChars = thresholdChars;
+        Compression.codec = codec;
+    }
+
+    static void disable() {
+        codec = null;
+    }
+
+    /**
+     * Returns the codec a value of the specified length in characters should be compressed with,
+     * or {@code null} if it should not be compressed.
+     */
+    static CompressionCodec getCodec(int length) {
+        CompressionCodec codec = Compression.codec;
+        return codec != null && length >= thresholdChars ? codec : null;
+    }
+
+    /**
+     * @throws RuntimeException If no codec with the specified name is registered.
+     */
+    static CompressionCodec getCodec(String name) {
+        CompressionCodec codec = codecs.get(name);
+        if (codec == null) {
+            throw new RuntimeException("Unknown compression codec. name: " + name);
+        }
+        return codec;
+    }
+
+    /**
+     * Compresses with a Deflater and decompresses with an Inflater created for every call, since
+     * they hold native memory until they are ended, and values are compressed on many short-lived
+     * threads. The buffers are zeroed after use, since they hold plaintext.
+     */
+    private static final class DeflateCompressionCodec implements CompressionCodec {
+
+        private static final int BUFFER_SIZE = 8192;
+
+        @Override
+        public String getName() {
+            return "deflate";
+        }
+
+        @Override
+        public byte[] compress(byte[] data) {
+            Deflater deflater = new Deflater();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            ZeroingOutputStream outputStream = new ZeroingOutputStream(data.length / 4 + 16);
+            try {
+                deflater.setInput(data);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    outputStream.write(buffer, 0, deflater.deflate(buffer));
+                }
+                return outputStream.toByteArray();
+            } finally {
+                deflater.end();
+                Arrays.fill(buffer, (byte) 0);
+                outputStream.zero();
+            }
+        }
+
+        @Override
+        public byte[] decompress(byte[] data) {
+            Inflater inflater = new Inflater();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            ZeroingOutputStream outputStream = new ZeroingOutputStream(data.length * 4);
+            try {
+                inflater.setInput(data);
+                while (!inflater.finished()) {
+                    int length = inflater.inflate(buffer);
+                    if (length == 0 && !inflater.finished() && (inflater.needsInput() ||
+                            inflater.needsDictionary())) {
+                        throw new RuntimeException("Malformed compressed value");
+                    }
+                    outputStream.write(buffer, 0, length);
+                }
+                return outputStream.toByteArray();
+            } catch (DataFormatException e) {
+                throw new RuntimeException(e);
+            } finally {
+                inflater.end();
+                Arrays.fill(buffer, (byte) 0);
+                outputStream.zero();
+            }
+        }
+    }
+
+    /**
+     * A ByteArrayOutputStream that zeroes the arrays it outgrows, and its array on
+     * {@link #zero()}.
+     */
+    private static final class ZeroingOutputStream extends ByteArrayOutputStream {
+
+        ZeroingOutputStream(int size) {
+            super(size);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            if (count + len > buf.length) {
+                byte[] oldBuf = buf;
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + len));
+                Arrays.fill(oldBuf, (byte) 0);
+            }
+            super.write(b, off, len);
+        }
+
+        synchronized void zero() {
+            Arrays.fill(buf, (byte) 0);
+            count = 0;
+        }
+    }
+}
@@ -17,80 +17,264 @@
 package com.wasisto.encryptedsharedpreferences;
 
 import android.app.Activity;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.content.res.Configuration;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.annotation.Nullable;
 import android.util.Base64;
+import android.util.Log;
 
 import com.wasisto.androidkeystoreencryption.EncryptionService;
 import com.wasisto.androidkeystoreencryption.exception.EncryptionKeyLostException;
 import com.wasisto.androidkeystoreencryption.model.EncryptedDataAndIv;
+import com.wasisto.encryptedsharedpreferences.exception.InvalidBackupException;
 import com.wasisto.encryptedsharedpreferences.exception.PreferencesLostException;
-
-import org.json.JSONException;
-import org.json.JSONObject;
-
+import com.wasisto.encryptedsharedpreferences.model.AccessProfileReport;
+import com.wasisto.encryptedsharedpreferences.model.EncryptedSharedPreferencesStats;
+import com.wasisto.encryptedsharedpreferences.model.GroupCommitMetrics;
+import com.wasisto.encryptedsharedpreferences.model.KeyAccessStats;
+import com.wasisto.encryptedsharedpreferences.model.KeyRotationOptions;
+import com.wasisto.encryptedsharedpreferences.model.MainThreadGuardOptions;
+import com.wasisto.encryptedsharedpreferences.model.MainThreadViolation;
+import com.wasisto.encryptedsharedpreferences.model.MainThreadViolation.Operation;
+import com.wasisto.encryptedsharedpreferences.model.MigrationOptions;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static android.content.Context.MODE_PRIVATE;
-import static android.util.Base64.DEFAULT;
+import static android.util.Base64.NO_WRAP;
 
 /**
  * The encrypted SharedPreferences implementation.
  */
 public class EncryptedSharedPreferences implements SharedPreferences {
 
+    /**
+     * The value type of string preferences. See {@link #getValues(String[], int[])}.
+     */
+    public static final int VALUE_TYPE_STRING = EncryptedValueEnvelope.TYPE_STRING;
+
+    /**
+     * The value type of int preferences. See {@link #getValues(String[], int[])}.
+     */
+    public static final int VALUE_TYPE_INT = EncryptedValueEnvelope.TYPE_INT;
+
+    /**
+     * The value type of long preferences. See {@link #getValues(String[], int[])}.
+     */
+    public static final int VALUE_TYPE_LONG = EncryptedValueEnvelope.TYPE_LONG;
+
+    /**
+     * The value type of float preferences. See {@link #getValues(String[], int[])}.
+     */
+    public static final int VALUE_TYPE_FLOAT = EncryptedValueEnvelope.TYPE_FLOAT;
+
+    /**
+     * The value type of boolean preferences. See {@link #getValues(String[], int[])}.
+     */
+    public static final int VALUE_TYPE_BOOLEAN = EncryptedValueEnvelope.TYPE_BOOLEAN;
+
+    /**
+     * The value type of string set preferences. See {@link #getValues(String[], int[])}.
+     */
+    public static final int VALUE_TYPE_STRING_SET = -2;
+
     private static final String ENCRYPTED_SHARED_PREFERENCES_NAME_SUFFIX = ".esp";
 
     private static final String CONTEXT_DEFAULT_ENCRYPTED_SHARED_PREFERENCES_NAME_SUFFIX =
             "_preferences";
 
+    private static final String SHARED_PREFERENCES_DIR_NAME = "shared_prefs";
+
+    private static final String SHARED_PREFERENCES_FILE_EXTENSION = ".xml";
+
+    private static final String SHARED_PREFERENCES_BACKUP_FILE_EXTENSION = ".bak";
+
+    private static final String MULTI_PROCESS_FILE_EXTENSION = ".mp";
+
+    private static final int MAX_DELETE_THREADS = 4;
+
+    private static final int MAX_OPEN_THREADS = 4;
+
     private static final String ESP_SHARED_PREFERENCES_NAME =
             "com.wasisto.encryptedsharedpreferences";
 
+    private static final String KEY_SHARED_PREFERENCES_FILE_NAME = ESP_SHARED_PREFERENCES_NAME +
+            ".keys" + MULTI_PROCESS_FILE_EXTENSION;
+
     private static final String PREFERENCE_ENCRYPTED_SHARED_PREFERENCES_NAMES =
             "encryptedSharedPreferencesNames";
 
-    private static final String TYPE = "type";
-    private static final String ENCRYPTED_DATA = "encrypted_data";
-    private static final String IV = "iv";
+    private static final String PREFERENCE_ACCESS_PROFILE_PREFIX = "accessProfile.";
+
+    private static final int IMPORT_BATCH_SIZE = 100;
+
+    private static final int SWEEP_BATCH_SIZE = 100;
+
+    private static final String TAG = "EncryptedSharedPrefs";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Class<?>[] VALUE_TYPE_CLASSES = {
+            String.class,
+            Integer.class,
+            Long.class,
+            Float.class,
+            Boolean.class
+    };
+
+    private static final ConcurrentMap<String, GroupCommitWriter> groupCommitWriters =
+            new ConcurrentHashMap<>();
+
+    private static final Set<String> openedEncryptedSharedPreferencesNames =
+            Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    private static final ConcurrentMap<String, PrimitivePages> primitivePagesByName =
+            new ConcurrentHashMap<>();
+
+    private static volatile long groupCommitWindowMillis;
+
+    private static volatile boolean packedPrimitivesEnabled;
+
+    private static volatile boolean keyNameHashingEnabled;
+
+    private static final ConcurrentMap<String, ObjectCache> objectCachesByName =
+            new ConcurrentHashMap<>();
+
+    private static volatile int objectCacheMaxEntries;
+
+    private static final ConcurrentMap<String, SecretCache> secretCachesByName =
+            new ConcurrentHashMap<>();
+
+    private static volatile int secretCacheMaxEntries;
+
+    private static final ConcurrentMap<String, Set<String>> knownKeysByName =
+            new ConcurrentHashMap<>();
+
+    private static volatile boolean accessProfilingEnabled;
+
+    private static final ConcurrentMap<String, AccessProfiler> accessProfilersByName =
+            new ConcurrentHashMap<>();
+
+    private static final ExpirySweeper expirySweeper = new ExpirySweeper();
+
+    private static final ConcurrentMap<String, RawPreferencesSnapshot>
+            rawPreferencesSnapshotsByName = new ConcurrentHashMap<>();
+
+    private static final Object registryLock = new Object();
+
+    private static boolean groupCommitComponentCallbacksRegistered;
 
     private EncryptionService encryptionService;
 
+    private KeyRing keyRing;
+
+    private String name;
+
     private SharedPreferences sharedPreferences;
 
+    private File sharedPreferencesFile;
+
+    private SharedPreferences espSharedPreferences;
+
+    private MultiProcessSharedPreferences keySharedPreferences;
+
     private Map<Object, OnSharedPreferenceChangeListener> listeners = new HashMap<>();
 
-    private EncryptedSharedPreferences(Context context, String encryptedPreferencesName) {
+    private volatile boolean keyNamesIndexed;
+
+    private EncryptedSharedPreferences(Context context, String encryptedPreferencesName,
+                                       boolean multiProcess) {
+        this(context, null, encryptedPreferencesName, multiProcess, true);
+    }
+
+    /**
+     * @param encryptionService The encryption service, or {@code null} to get it here.
+     *
+     * @param registerName Whether to add the name to the registry of preferences names. Callers
+     * that open several EncryptedSharedPreferences at once register their names together.
+     */
+    private EncryptedSharedPreferences(Context context,
+                                       @Nullable EncryptionService encryptionService,
+                                       String encryptedPreferencesName, boolean multiProcess,
+                                       boolean registerName) {
+        long guardStartNanos = MainThreadGuard.begin();
         try {
-            encryptionService = EncryptionService.getInstance(context);
-            sharedPreferences = context.getSharedPreferences(encryptedPreferencesName +
-                    ENCRYPTED_SHARED_PREFERENCES_NAME_SUFFIX, MODE_PRIVATE);
+            this.encryptionService = encryptionService != null ? encryptionService :
+                    EncryptionService.getInstance(context);
+            name = encryptedPreferencesName;
+            if (multiProcess) {
+                sharedPreferences = getMultiProcessSharedPreferences(context,
+                        encryptedPreferencesName);
+                sharedPreferencesFile = getMultiProcessFile(context, encryptedPreferencesName);
+            } else {
+                sharedPreferences = context.getSharedPreferences(encryptedPreferencesName +
+                        ENCRYPTED_SHARED_PREFERENCES_NAME_SUFFIX, MODE_PRIVATE);
+                sharedPreferencesFile = getSharedPreferencesFile(context,
+                        encryptedPreferencesName);
+            }
+            openedEncryptedSharedPreferencesNames.add(encryptedPreferencesName);
 
-            SharedPreferences espSharedPreferences = context.getSharedPreferences(
-                    ESP_SHARED_PREFERENCES_NAME, MODE_PRIVATE);
+            espSharedPreferences = context.getSharedPreferences(ESP_SHARED_PREFERENCES_NAME,
+                    MODE_PRIVATE);
 
-            Set<String> encryptedSharedPreferencesNames = espSharedPreferences.getStringSet(
-                    PREFERENCE_ENCRYPTED_SHARED_PREFERENCES_NAMES, new HashSet<>());
+            keySharedPreferences = getKeySharedPreferences(context);
 
-            encryptedSharedPreferencesNames.add(encryptedPreferencesName);
+            keyRing = KeyRing.getInstance(keySharedPreferences, this.encryptionService);
 
-            espSharedPreferences.edit().putStringSet(PREFERENCE_ENCRYPTED_SHARED_PREFERENCES_NAMES,
-                    encryptedSharedPreferencesNames).apply();
+            if (registerName) {
+                registerEncryptedSharedPreferencesNames(espSharedPreferences,
+                        Collections.singleton(encryptedPreferencesName));
+            }
         } catch (EncryptionKeyLostException e) {
             throw new PreferencesLostException(e);
         }
+        Set<String> knownKeys = knownKeysByName.get(encryptedPreferencesName);
+        if (knownKeys != null) {
+            new Thread(() -> preload(knownKeys)).start();
+        }
+        AccessProfiler accessProfiler = getAccessProfiler();
+        if (accessProfiler != null && accessProfiler.tryBeginPreload()) {
+            new Thread(() -> preloadHotKeys(accessProfiler)).start();
+        }
+        scheduleExpirySweep();
+        MainThreadGuard.end(guardStartNanos, Operation.OPEN, encryptedPreferencesName, null);
     }
 
     /**
      * Returns an EncryptedSharedPreferences with the specified name. Equivalent to
-     * {@link Context#getSharedPreferences(String, int)}.
+     * {@link Context#getSharedPreferences(String, int)}. If the preferences have been moved to
+     * the multi-process file by
+     * {@link #getMultiProcessEncryptedSharedPreferences(Context, String)}, they are opened in
+     * multi-process mode.
      *
      * @param context The context of the preferences whose values are wanted.
      *
@@ -101,7 +285,8 @@ public class EncryptedSharedPreferences implements SharedPreferences {
      */
     public static EncryptedSharedPreferences getEncryptedSharedPreferences(Context context,
                                                                            String name) {
-        return new EncryptedSharedPreferences(context, name);
+        return new EncryptedSharedPreferences(context, name,
+                getMultiProcessFile(context, name).exists());
     }
 
     /**
@@ -135,6 +320,96 @@ public class EncryptedSharedPreferences implements SharedPreferences {
         }).start();
     }
 
+    /**
+     * Returns the EncryptedSharedPreferences with the specified names, opened together. The
+     * encryption key is loaded once, the preference files are loaded in parallel, and the names
+     * are added to the registry of preferences names in a single write. This method returns once
+     * every preference file is loaded. Preferences that have been moved to the multi-process file
+     * are opened in multi-process mode.
+     *
+     * @param context The context of the preferences whose values are wanted.
+     *
+     * @param names The preferences names.
+     *
+     * @return The EncryptedSharedPreferences instances by name, in the order of the names.
+     *
+     * @throws PreferencesLostException If the encryption key is lost.
+     */
+    public static Map<String, EncryptedSharedPreferences> openAll(Context context,
+                                                                  Collection<String> names) {
+        long guardStartNanos = MainThreadGuard.begin();
+        EncryptionService encryptionService;
+        try {
+            encryptionService = EncryptionService.getInstance(context);
+        } catch (EncryptionKeyLostException e) {
+            throw new PreferencesLostException(e);
+        }
+        List<String> uniqueNames = new ArrayList<>(new LinkedHashSet<>(names));
+        List<Callable<EncryptedSharedPreferences>> tasks = new ArrayList<>(uniqueNames.size());
+        for (String name : uniqueNames) {
+            tasks.add(() -> {
+                EncryptedSharedPreferences encryptedSharedPreferences =
+                        new EncryptedSharedPreferences(context, encryptionService, name,
+                                getMultiProcessFile(context, name).exists(), false);
+                encryptedSharedPreferences.awaitLoaded();
+                return encryptedSharedPreferences;
+            });
+        }
+
+        Map<String, EncryptedSharedPreferences> encryptedSharedPreferencesByName =
+                new LinkedHashMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(
+                tasks.size(), MAX_OPEN_THREADS)));
+        try {
+            List<Future<EncryptedSharedPreferences>> futures = executor.invokeAll(tasks);
+            for (int i = 0; i < futures.size(); i++) {
+                encryptedSharedPreferencesByName.put(uniqueNames.get(i), futures.get(i).get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+
+        registerEncryptedSharedPreferencesNames(getEspSharedPreferences(context), uniqueNames);
+        MainThreadGuard.end(guardStartNanos, Operation.OPEN, String.valueOf(uniqueNames), null);
+        return encryptedSharedPreferencesByName;
+    }
+
+    /**
+     * Asynchronously returns the EncryptedSharedPreferences with the specified names, opened
+     * together. See {@link #openAll(Context, Collection)}.
+     *
+     * @param context The context of the preferences whose values are wanted.
+     *
+     * @param names The preferences names.
+     *
+     * @param callback The callback.
+     */
+    public static void openAllAsync(Context context, Collection<String> names,
+                                    OpenAllAsyncCallback callback) {
+        Handler handler = new Handler(Looper.myLooper() != null ? Looper.myLooper() :
+                Looper.getMainLooper());
+
+        new Thread(() -> {
+            try {
+                Map<String, EncryptedSharedPreferences> encryptedSharedPreferencesByName =
+                        openAll(context, names);
+                handler.post(() -> callback.onSuccess(encryptedSharedPreferencesByName));
+            } catch (PreferencesLostException e) {
+                handler.post(() -> callback.onPreferencesLost(e));
+            } catch (Throwable t) {
+                handler.post(() -> callback.onError(t));
+            }
+        }).start();
+    }
+
     /**
      * Returns an EncryptedSharedPreferences that is private to the specified activity. Equivalent
      * to {@link Activity#getPreferences(int)}.
@@ -219,25 +494,82 @@ public class EncryptedSharedPreferences implements SharedPreferences {
     }
 
     /**
-     * Resets the encryption key and clear all EncryptedSharedPreferences.
+     * Returns an EncryptedSharedPreferences with the specified name that can be used by several
+     * processes of the application at the same time. Commits are guarded by a file lock, so
+     * processes do not overwrite each other's preferences, and values are read again from the
+     * preference file only after another process changed it, which is detected with a version
+     * counter shared through memory. Listeners are notified of changes made by other processes.
+     * <p>
+     * The preferences are stored in a different file than the ones returned by
+     * {@link #getEncryptedSharedPreferences(Context, String)}. The existing preferences are moved
+     * to it when the multi-process EncryptedSharedPreferences is opened for the first time, after
+     * which {@link #getEncryptedSharedPreferences(Context, String)} opens it in multi-process mode
+     * too, until it is deleted. Encryption key rotations are not
+     * coordinated between processes and should only be started while no other process is running.
+     *
+     * @param context The context of the preferences whose values are wanted.
+     *
+     * @param name The preferences name.
+     *
+     * @return An EncryptedSharedPreferences instance that can be used to retrieve and listen to
+     * values of the preferences.
+     */
+    public static EncryptedSharedPreferences getMultiProcessEncryptedSharedPreferences(
+            Context context, String name) {
+        return new EncryptedSharedPreferences(context, name, true);
+    }
+
+    /**
+     * Asynchronously returns an EncryptedSharedPreferences with the specified name that can be
+     * used by several processes of the application at the same time. See
+     * {@link #getMultiProcessEncryptedSharedPreferences(Context, String)}.
+     *
+     * @param context The context of the preferences whose values are wanted.
+     *
+     * @param name The preferences name.
+     *
+     * @param callback The callback.
+     */
+    public static void getMultiProcessEncryptedSharedPreferencesAsync(Context context,
+                                                                      String name,
+                                                                      GetEncryptedSharedPreferencesAsyncCallback callback) {
+        Handler handler = new Handler(Looper.myLooper() != null ? Looper.myLooper() :
+                Looper.getMainLooper());
+
+        new Thread(() -> {
+            try {
+                EncryptedSharedPreferences encryptedSharedPreferences =
+                        getMultiProcessEncryptedSharedPreferences(context, name);
+                handler.post(() -> callback.onSuccess(encryptedSharedPreferences));
+            } catch (Throwable t) {
+                if (t instanceof PreferencesLostException) {
+                    callback.onPreferencesLost((PreferencesLostException) t);
+                } else {
+                    callback.onError(t);
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * Resets the encryption key and clear all EncryptedSharedPreferences. The preference files are
+     * deleted in parallel without being loaded, and this method returns once every file is deleted.
      *
      * @param context The context.
      */
     public static synchronized void resetEncryptedSharedPreferences(Context context) {
         EncryptionService.resetEncryptionKey(context);
 
-        SharedPreferences espSharedPreferences = context.getSharedPreferences(
-                ESP_SHARED_PREFERENCES_NAME, MODE_PRIVATE);
+        SharedPreferences espSharedPreferences = getEspSharedPreferences(context);
         Set<String> encryptedSharedPreferencesNames = espSharedPreferences.getStringSet(
                 PREFERENCE_ENCRYPTED_SHARED_PREFERENCES_NAMES, null);
         if (encryptedSharedPreferencesNames != null) {
-            for (String encryptedSharedPreferencesName : encryptedSharedPreferencesNames) {
-                context.getSharedPreferences(encryptedSharedPreferencesName +
-                        ENCRYPTED_SHARED_PREFERENCES_NAME_SUFFIX, MODE_PRIVATE).edit().clear()
-                        .apply();
-            }
-            espSharedPreferences.edit().clear().apply();
+            deleteEncryptedSharedPreferencesFiles(context, encryptedSharedPreferencesNames);
+            espSharedPreferences.edit().clear().commit();
         }
+        getKeySharedPreferences(context).edit().clear().commit();
+        KeyRing.reset();
+        KeyNameHasher.reset();
     }
 
     /**
@@ -261,193 +593,1712 @@ public class EncryptedSharedPreferences implements SharedPreferences {
         }).start();
     }
 
-    private static EncryptedDataAndIv createEncryptedDataAndIv(JSONObject encryptedValueJsonObject) {
+    /**
+     * Deletes the EncryptedSharedPreferences with the specified name. Equivalent to
+     * {@link Context#deleteSharedPreferences(String)}. The preference file is deleted without
+     * being loaded, and this method returns once it is deleted.
+     *
+     * @param context The context.
+     *
+     * @param name The preferences name.
+     *
+     * @return {@code true} if the EncryptedSharedPreferences was successfully deleted.
+     */
+    public static synchronized boolean deleteEncryptedSharedPreferences(Context context,
+                                                                        String name) {
+        boolean deleted = deleteEncryptedSharedPreferencesFiles(context,
+                Collections.singleton(name));
+
+        SharedPreferences espSharedPreferences = getEspSharedPreferences(context);
+        Set<String> encryptedSharedPreferencesNames = getEncryptedSharedPreferencesNames(context);
+        boolean registered = encryptedSharedPreferencesNames.remove(name);
+        boolean profiled = espSharedPreferences.contains(PREFERENCE_ACCESS_PROFILE_PREFIX + name);
+        if (registered || profiled) {
+            espSharedPreferences.edit()
+                    .putStringSet(PREFERENCE_ENCRYPTED_SHARED_PREFERENCES_NAMES,
+                            encryptedSharedPreferencesNames)
+                    .remove(PREFERENCE_ACCESS_PROFILE_PREFIX + name)
+                    .commit();
+        }
+        return deleted;
+    }
+
+    /**
+     * Asynchronously deletes the EncryptedSharedPreferences with the specified name. Equivalent
+     * to {@link Context#deleteSharedPreferences(String)}.
+     *
+     * @param context The context.
+     *
+     * @param name The preferences name.
+     *
+     * @param callback The callback.
+     */
+    public static void deleteEncryptedSharedPreferencesAsync(Context context, String name,
+                                                             DeleteEncryptedSharedPreferencesAsyncCallback callback) {
+        Handler handler = new Handler(Looper.myLooper() != null ? Looper.myLooper() :
+                Looper.getMainLooper());
+
+        new Thread(() -> {
+            try {
+                boolean deleted = deleteEncryptedSharedPreferences(context, name);
+                handler.post(() -> callback.onSuccess(deleted));
+            } catch (Throwable t) {
+                handler.post(() -> callback.onError(t));
+            }
+        }).start();
+    }
+
+    private static boolean deleteEncryptedSharedPreferencesFiles(Context context,
+                                                                 Collection<String> names) {
+        List<Callable<Boolean>> tasks = new ArrayList<>(names.size());
+        for (String name : names) {
+            tasks.add(() -> deleteEncryptedSharedPreferencesFile(context, name));
+        }
+        if (tasks.size() == 1) {
+            try {
+                return tasks.get(0).call();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(
+                tasks.size(), MAX_DELETE_THREADS)));
         try {
-            EncryptedDataAndIv encryptedDataAndIv = new EncryptedDataAndIv();
-            encryptedDataAndIv.setEncryptedData(Base64.decode(encryptedValueJsonObject.getString(
-                    ENCRYPTED_DATA), DEFAULT));
-            encryptedDataAndIv.setIv(Base64.decode(encryptedValueJsonObject.getString(IV),
-                    DEFAULT));
-            return encryptedDataAndIv;
-        } catch (JSONException e) {
+            boolean deleted = true;
+            for (Future<Boolean> future : executor.invokeAll(tasks)) {
+                deleted &= future.get();
+            }
+            return deleted;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdown();
         }
     }
 
-    private static boolean parseBoolean(int intValue) {
-        if (intValue == 1) {
-            return true;
-        } else if (intValue == 0) {
-            return false;
-        } else {
-            throw new RuntimeException("Failed to parse boolean value. intValue: " + intValue);
+    private static boolean deleteEncryptedSharedPreferencesFile(Context context, String name) {
+        GroupCommitWriter groupCommitWriter = groupCommitWriters.remove(name);
+        if (groupCommitWriter != null) {
+            groupCommitWriter.discard();
+        }
+        primitivePagesByName.remove(name);
+        objectCachesByName.remove(name);
+        SecretCache secretCache = secretCachesByName.remove(name);
+        if (secretCache != null) {
+            secretCache.clear();
+        }
+        accessProfilersByName.remove(name);
+
+        boolean deleted = true;
+        File multiProcessFile = getMultiProcessFile(context, name);
+        if (multiProcessFile.exists()) {
+            // The snapshot listens to the instance that is forgotten with the deleted files
+            RawPreferencesSnapshot rawPreferencesSnapshot =
+                    rawPreferencesSnapshotsByName.remove(name);
+            if (rawPreferencesSnapshot != null) {
+                MultiProcessSharedPreferences.getInstance(multiProcessFile)
+                        .unregisterOnSharedPreferenceChangeListener(rawPreferencesSnapshot);
+                rawPreferencesSnapshot.invalidate();
+            }
+            deleted = MultiProcessSharedPreferences.delete(multiProcessFile);
         }
+
+        String sharedPreferencesName = name + ENCRYPTED_SHARED_PREFERENCES_NAME_SUFFIX;
+        if (openedEncryptedSharedPreferencesNames.contains(name)) {
+            // The SharedPreferences is cached by the framework, deleting its file would leave the
+            // cached values behind
+            boolean cleared = context.getSharedPreferences(sharedPreferencesName, MODE_PRIVATE)
+                    .edit().clear().commit();
+            invalidateRawPreferencesSnapshot(name);
+            return deleted && cleared;
+        }
+
+        File sharedPreferencesFile = getSharedPreferencesFile(context, name);
+        File sharedPreferencesBackupFile = new File(sharedPreferencesFile.getPath() +
+                SHARED_PREFERENCES_BACKUP_FILE_EXTENSION);
+        deleted &= !sharedPreferencesFile.exists() || sharedPreferencesFile.delete();
+        deleted &= !sharedPreferencesBackupFile.exists() || sharedPreferencesBackupFile.delete();
+        return deleted;
     }
 
     /**
-     * {@inheritDoc}
+     * Enables the group commit mode. In this mode, the modifications of every
+     * {@link SharedPreferences.Editor#apply()} call made within the specified window on the same
+     * EncryptedSharedPreferences, from any number of editors, are merged into a single write. The
+     * pending modifications are also written when the application goes to the background.
+     * {@link SharedPreferences.Editor#commit()} writes every pending modification immediately.
+     * Multi-process EncryptedSharedPreferences are not affected, since they merge the
+     * modifications of concurrent apply calls themselves.
+     *
+     * @param context The context.
+     *
+     * @param windowMillis The time in milliseconds to wait for further modifications before
+     * writing.
      */
-    @SuppressWarnings("unchecked")
-    @Override
-    public Map<String, ?> getAll() {
-        Map<String, ?> encryptedPreferences = sharedPreferences.getAll();
-        Map<String, Object> decryptedPreferences = new HashMap<>(encryptedPreferences.size());
-        for (Map.Entry<String, ?> encryptedPreference : encryptedPreferences.entrySet()) {
-            try {
-                Object encryptedPreferenceValue = encryptedPreference.getValue();
-                if (encryptedPreferenceValue instanceof Set<?>) {
-                    Set<String> decryptedSetValues = new HashSet<>();
-                    Set<String> encryptedSetValueJsonSet = (Set<String>) encryptedPreferenceValue;
-                    for (String encryptedSetValueJson : encryptedSetValueJsonSet) {
-                        JSONObject encryptedValueJsonObject = new JSONObject(encryptedSetValueJson);
-                        String valueType = encryptedValueJsonObject.getString(TYPE);
-                        if (!valueType.equals(String.class.getCanonicalName())) {
-                            throw new ClassCastException(valueType + " cannot be cast to " +
-                                    String.class.getCanonicalName());
+    public static synchronized void enableGroupCommit(Context context, long windowMillis) {
+        if (windowMillis <= 0) {
+            throw new IllegalArgumentException("windowMillis must be positive. windowMillis: " +
+                    windowMillis);
+        }
+        if (groupCommitWindowMillis != windowMillis) {
+            awaitGroupCommitWritersFlushed();
+            groupCommitWriters.clear();
+            groupCommitWindowMillis = windowMillis;
+        }
+        if (!groupCommitComponentCallbacksRegistered) {
+            context.getApplicationContext().registerComponentCallbacks(new ComponentCallbacks2() {
+                @Override
+                public void onTrimMemory(int level) {
+                    if (level >= TRIM_MEMORY_UI_HIDDEN) {
+                        for (GroupCommitWriter groupCommitWriter : groupCommitWriters.values()) {
+                            groupCommitWriter.flush();
                         }
-                        EncryptedDataAndIv encryptedDataAndIv = createEncryptedDataAndIv(
-                                encryptedValueJsonObject);
-                        String decryptedValue = encryptionService.decryptString(
-                                encryptedDataAndIv);
-                        decryptedSetValues.add(decryptedValue);
-                    }
-                    decryptedPreferences.put(encryptedPreference.getKey(), decryptedSetValues);
-                } else {
-                    String encryptedValueJson = (String) encryptedPreference.getValue();
-                    JSONObject encryptedValueJsonObject = new JSONObject(encryptedValueJson);
-                    EncryptedDataAndIv encryptedDataAndIv = createEncryptedDataAndIv(
-                            encryptedValueJsonObject);
-                    String valueType = encryptedValueJsonObject.getString(TYPE);
-                    if (valueType.equals(String.class.getCanonicalName())) {
-                        String decryptedValue = encryptionService.decryptString(
-                                encryptedDataAndIv);
-                        decryptedPreferences.put(encryptedPreference.getKey(), decryptedValue);
-                    } else if (valueType.equals(Integer.class.getCanonicalName())) {
-                        int decryptedValue = encryptionService.decryptInt(encryptedDataAndIv);
-                        decryptedPreferences.put(encryptedPreference.getKey(), decryptedValue);
-                    } else if (valueType.equals(Long.class.getCanonicalName())) {
-                        long decryptedValue = encryptionService.decryptLong(encryptedDataAndIv);
-                        decryptedPreferences.put(encryptedPreference.getKey(), decryptedValue);
-                    } else if (valueType.equals(Float.class.getCanonicalName())) {
-                        float decryptedValue = encryptionService.decryptFloat(encryptedDataAndIv);
-                        decryptedPreferences.put(encryptedPreference.getKey(), decryptedValue);
-                    } else if (valueType.equals(Boolean.class.getCanonicalName())) {
-                        int decryptedIntValue = encryptionService.decryptInt(encryptedDataAndIv);
-                        boolean decryptedValue = parseBoolean(decryptedIntValue);
-                        decryptedPreferences.put(encryptedPreference.getKey(), decryptedValue);
-                    } else {
-                        throw new RuntimeException("Unsupported value type. valueType: " +
-                                valueType);
                     }
                 }
-            } catch (JSONException e) {
-                throw new RuntimeException(e);
-            }
+
+                @Override
+                public void onConfigurationChanged(Configuration newConfig) {
+                }
+
+                @Override
+                public void onLowMemory() {
+                }
+            });
+            groupCommitComponentCallbacksRegistered = true;
         }
-        return decryptedPreferences;
     }
 
     /**
-     * {@inheritDoc}
+     * Disables the group commit mode and waits until every pending modification is written.
      */
-    @Nullable
-    @Override
-    public String getString(String key, @Nullable String defValue) {
-        String encryptedValueJson = sharedPreferences.getString(key, null);
-        if (encryptedValueJson != null) {
-            try {
-                JSONObject encryptedValueJsonObject = new JSONObject(encryptedValueJson);
-                String valueType = encryptedValueJsonObject.getString(TYPE);
-                if (!valueType.equals(String.class.getCanonicalName())) {
-                    throw new ClassCastException(valueType + " cannot be cast to " +
-                            String.class.getCanonicalName());
-                }
-                EncryptedDataAndIv encryptedDataAndIv = createEncryptedDataAndIv(
-                        encryptedValueJsonObject);
-                return encryptionService.decryptString(encryptedDataAndIv);
-            } catch (JSONException e) {
-                throw new RuntimeException(e);
-            }
-        }
-        return defValue;
+    public static synchronized void disableGroupCommit() {
+        groupCommitWindowMillis = 0;
+        awaitGroupCommitWritersFlushed();
+        groupCommitWriters.clear();
     }
 
     /**
-     * {@inheritDoc}
+     * Returns the statistics of the group commit mode.
+     *
+     * @return The statistics of every write performed by the group commit mode so far.
      */
-    @Nullable
-    @Override
-    public Set<String> getStringSet(String key, @Nullable Set<String> defValues) {
-        Set<String> decryptedValues = new HashSet<>();
-        Set<String> encryptedValueJsonSet = sharedPreferences.getStringSet(key, null);
-        if (encryptedValueJsonSet != null) {
-            for (String encryptedValueJson : encryptedValueJsonSet) {
-                try {
-                    JSONObject encryptedValueJsonObject = new JSONObject(encryptedValueJson);
-                    String valueType = encryptedValueJsonObject.getString(TYPE);
-                    if (!valueType.equals(String.class.getCanonicalName())) {
-                        throw new ClassCastException(valueType + " cannot be cast to " +
-                                String.class.getCanonicalName());
-                    }
-                    EncryptedDataAndIv encryptedDataAndIv = createEncryptedDataAndIv(
-                            encryptedValueJsonObject);
-                    String decryptedValue = encryptionService.decryptString(encryptedDataAndIv);
-                    decryptedValues.add(decryptedValue);
-                } catch (JSONException e) {
-                    throw new RuntimeException(e);
-                }
-            }
-            return decryptedValues;
-        }
-        return defValues;
+    public static GroupCommitMetrics getGroupCommitMetrics() {
+        return GroupCommitWriter.getMetrics();
     }
 
     /**
-     * {@inheritDoc}
+     * Registers keys that are known to be read from the EncryptedSharedPreferences with the
+     * specified name. Every time such an EncryptedSharedPreferences is opened afterwards, the
+     * primitive pages holding these keys are decrypted in the background, so the first reads of
+     * packed values are served from memory. The accessor classes generated from
+     * {@link com.wasisto.encryptedsharedpreferences.annotation.PreferenceSchema} interfaces
+     * register their keys automatically.
+     *
+     * @param name The preferences name.
+     *
+     * @param keys The keys.
      */
-    @Override
-    public int getInt(String key, int defValue) {
-        String encryptedValueJson = sharedPreferences.getString(key, null);
-        if (encryptedValueJson != null) {
-            try {
-                JSONObject encryptedValueJsonObject = new JSONObject(encryptedValueJson);
-                String valueType = encryptedValueJsonObject.getString(TYPE);
-                if (!valueType.equals(Integer.class.getCanonicalName())) {
-                    throw new ClassCastException(valueType + " cannot be cast to " +
-                            Integer.class.getCanonicalName());
-                }
-                EncryptedDataAndIv encryptedDataAndIv = createEncryptedDataAndIv(
-                        encryptedValueJsonObject);
-                return encryptionService.decryptInt(encryptedDataAndIv);
-            } catch (JSONException e) {
-                throw new RuntimeException(e);
+    public static void registerKnownKeys(String name, Collection<String> keys) {
+        Set<String> knownKeys = knownKeysByName.get(name);
+        if (knownKeys == null) {
+            knownKeys = Collections.newSetFromMap(new ConcurrentHashMap<>());
+            Set<String> existingKnownKeys = knownKeysByName.putIfAbsent(name, knownKeys);
+            if (existingKnownKeys != null) {
+                knownKeys = existingKnownKeys;
             }
         }
-        return defValue;
+        knownKeys.addAll(keys);
     }
 
     /**
-     * {@inheritDoc}
+     * Enables the packed primitive mode. In this mode, int, long, float, and boolean values are not
+     * stored as separate encrypted preferences but grouped into a small number of encrypted pages
+     * that hold many values each. A page is decrypted once and served from memory until it
+     * changes, which reduces both the size of the preference file and the number of cryptographic
+     * operations. Writing a value rewrites the page it belongs to.
+     * <p>
+     * Values are readable regardless of the mode they were written in, so the mode can be enabled
+     * and disabled at any time. Existing values are moved into or out of the pages when they are
+     * written again.
+     * <p>
+     * Multi-process EncryptedSharedPreferences never move values into the pages, since every
+     * write would rewrite a page other processes may be writing too. Values in pages they were
+     * given when they were opened in multi-process mode for the first time stay readable.
      */
-    @Override
-    public long getLong(String key, long defValue) {
-        String encryptedValueJson = sharedPreferences.getString(key, null);
-        if (encryptedValueJson != null) {
-            try {
-                JSONObject encryptedValueJsonObject = new JSONObject(encryptedValueJson);
-                String valueType = encryptedValueJsonObject.getString(TYPE);
-                if (!valueType.equals(Long.class.getCanonicalName())) {
-                    throw new ClassCastException(valueType + " cannot be cast to " +
-                            Long.class.getCanonicalName());
-                }
-                EncryptedDataAndIv encryptedDataAndIv = createEncryptedDataAndIv(
-                        encryptedValueJsonObject);
-                return encryptionService.decryptLong(encryptedDataAndIv);
-            } catch (JSONException e) {
-                throw new RuntimeException(e);
-            }
+    public static void enablePackedPrimitives() {
+        packedPrimitivesEnabled = true;
+    }
+
+    /**
+     * Disables the packed primitive mode. See {@link #enablePackedPrimitives()}.
+     */
+    public static void disablePackedPrimitives() {
+        packedPrimitivesEnabled = false;
+    }
+
+    /**
+     * Enables the hashed key name mode. In this mode, preferences are not stored under their keys
+     * but under a keyed hash of them, so the preference files do not reveal what is stored. The
+     * key itself is stored encrypted next to the value. Reading and writing a single preference
+     * still looks it up directly by the hash, and enumerating the preferences, for example with
+     * {@link #getAll()} or through listeners, returns the keys, which are decrypted once per
+     * process and then remembered. The keys of packed primitives are stored inside their
+     * encrypted pages and therefore never visible.
+     * <p>
+     * Values are readable regardless of the mode they were written in, so the mode can be enabled
+     * and disabled at any time. Existing values are moved to or from their hashed keys when they
+     * are written again.
+     */
+    public static void enableKeyNameHashing() {
+        keyNameHashingEnabled = true;
+    }
+
+    /**
+     * Disables the hashed key name mode. See {@link #enableKeyNameHashing()}.
+     */
+    public static void disableKeyNameHashing() {
+        keyNameHashingEnabled = false;
+    }
+
+    /**
+     * Enables compressing string values with Deflate before they are encrypted.
+     * See {@link #enableCompression(int, CompressionCodec)}.
+     *
+     * @param thresholdChars The minimum length in characters of the values to compress.
+     */
+    public static void enableCompression(int thresholdChars) {
+        enableCompression(thresholdChars, Compression.DEFLATE);
+    }
+
+    /**
+     * Enables compressing string values, including the values of string sets, with the specified
+     * codec before they are encrypted. A value is only stored compressed if it is at least the
+     * specified length and compressing it makes it smaller. Compressed values are decompressed
+     * transparently when read, regardless of whether compression is still enabled.
+     * <p>
+     * The codec is registered under its name. Values compressed with a custom codec can only be
+     * read after the codec has been registered again in the current process, so this method must
+     * be called before such values are read.
+     *
+     * @param thresholdChars The minimum length in characters of the values to compress.
+     *
+     * @param codec The compression codec.
+     */
+    public static void enableCompression(int thresholdChars, CompressionCodec codec) {
+        Compression.enable(thresholdChars, codec);
+    }
+
+    /**
+     * Disables compressing values. Compressed values stay readable.
+     */
+    public static void disableCompression() {
+        Compression.disable();
+    }
+
+    /**
+     * Enables caching the objects decoded by
+     * {@link #getObject(String, ObjectCodec, Object)}. Up to the specified number of objects are
+     * cached per EncryptedSharedPreferences, and a cached object is returned as long as the stored
+     * value is unchanged and it is read with the same codec instance, without decrypting and
+     * decoding it again. Cached objects are shared between callers, so they must not be modified.
+     *
+     * @param maxEntries The maximum number of cached objects per EncryptedSharedPreferences.
+     */
+    public static void enableObjectCache(int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive. maxEntries: " +
+                    maxEntries);
+        }
+        objectCacheMaxEntries = maxEntries;
+        objectCachesByName.clear();
+    }
+
+    /**
+     * Disables caching decoded objects and releases the cached objects.
+     */
+    public static void disableObjectCache() {
+        objectCacheMaxEntries = 0;
+        objectCachesByName.clear();
+    }
+
+    /**
+     * Enables caching the secrets decrypted by {@link #getSecret(String)}. Up to the specified
+     * number of secrets are kept outside of the Java heap per EncryptedSharedPreferences, and a
+     * cached secret is returned as long as the stored value is unchanged, without decrypting it
+     * again. A cached secret is wiped once it is evicted and every secret returned for it is
+     * closed.
+     *
+     * @param maxEntries The maximum number of cached secrets per EncryptedSharedPreferences.
+     */
+    public static void enableSecretCache(int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive. maxEntries: " +
+                    maxEntries);
+        }
+        secretCacheMaxEntries = maxEntries;
+        clearSecretCaches();
+    }
+
+    /**
+     * Disables caching secrets and wipes the cached secrets that are not in use.
+     */
+    public static void disableSecretCache() {
+        secretCacheMaxEntries = 0;
+        clearSecretCaches();
+    }
+
+    /**
+     * Enables the access profiler. While it is enabled, every read of a String, int, long, float,
+     * or boolean value stored as a separate preference is recorded with its decrypt cost and the
+     * time since the EncryptedSharedPreferences was first opened in the process. Once
+     * {@link AccessProfiler#PROFILING_WINDOW_MILLIS} has elapsed since opening, the most read keys
+     * are saved, encrypted, as the hot key profile of the preferences. Every time the
+     * preferences are opened in a later process, the hot keys are decrypted in the background and
+     * kept in memory, so their first reads do not decrypt them again. Packed values are served
+     * from their primitive pages, which are preloaded for the hot keys as well. See
+     * {@link #getAccessProfileReport()} for how many reads were served by the preloaded values.
+     */
+    public static void enableAccessProfiling() {
+        accessProfilingEnabled = true;
+    }
+
+    /**
+     * Disables the access profiler and releases the recorded reads and the preloaded values. The
+     * saved hot key profiles are kept.
+     */
+    public static void disableAccessProfiling() {
+        accessProfilingEnabled = false;
+        accessProfilersByName.clear();
+    }
+
+    private static void clearSecretCaches() {
+        for (Iterator<SecretCache> iterator = secretCachesByName.values().iterator();
+                iterator.hasNext(); ) {
+            iterator.next().clear();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Enables the main thread guard. While it is enabled, every synchronous open, single value
+     * read, {@link #getAll()}, and {@link SharedPreferences.Editor#commit()} made on the main
+     * thread is measured, and the calls that take at least the threshold of their operation are
+     * reported to the specified listener together with their call site. If
+     * {@link MainThreadGuardOptions#isThrowOnViolation()} is set, for example in debug builds, a
+     * {@link com.wasisto.encryptedsharedpreferences.exception.MainThreadViolationException} is
+     * thrown after the call completes.
+     *
+     * @param options The thresholds of the operations.
+     *
+     * @param listener The listener notified of every violation on the main thread, or
+     * {@code null}.
+     */
+    public static void enableMainThreadGuard(MainThreadGuardOptions options,
+                                             @Nullable MainThreadViolationListener listener) {
+        MainThreadGuard.enable(options, listener);
+    }
+
+    /**
+     * Disables the main thread guard.
+     */
+    public static void disableMainThreadGuard() {
+        MainThreadGuard.disable();
+    }
+
+    /**
+     * Returns the footprint of every EncryptedSharedPreferences. The stats are computed from the
+     * stored envelopes without decrypting them and without accessing the encryption key.
+     *
+     * @param context The context.
+     *
+     * @return The stats of every EncryptedSharedPreferences, the one with the largest preference
+     * file first.
+     */
+    public static List<EncryptedSharedPreferencesStats> getAllStats(Context context) {
+        List<EncryptedSharedPreferencesStats> allStats = new ArrayList<>();
+        for (String name : getEncryptedSharedPreferencesNames(context)) {
+            GroupCommitWriter groupCommitWriter = groupCommitWriters.get(name);
+            File multiProcessFile = getMultiProcessFile(context, name);
+            boolean multiProcess = multiProcessFile.exists();
+            Map<String, ?> encryptedPreferences;
+            if (groupCommitWriter != null) {
+                encryptedPreferences = groupCommitWriter.getAll();
+            } else if (multiProcess) {
+                encryptedPreferences = getMultiProcessSharedPreferences(context, name).getAll();
+            } else {
+                openedEncryptedSharedPreferencesNames.add(name);
+                encryptedPreferences = context.getSharedPreferences(name +
+                        ENCRYPTED_SHARED_PREFERENCES_NAME_SUFFIX, MODE_PRIVATE).getAll();
+            }
+            allStats.add(StatsCollector.collect(name, encryptedPreferences, multiProcess ?
+                    multiProcessFile : getSharedPreferencesFile(context, name)));
+        }
+        Collections.sort(allStats, (stats, otherStats) ->
+                Long.compare(otherStats.getFileSizeBytes(), stats.getFileSizeBytes()));
+        return allStats;
+    }
+
+    /**
+     * Generates a new encryption key and re-encrypts every preference of every
+     * EncryptedSharedPreferences with it in small batches. Values written while the rotation is in
+     * progress are encrypted with the new key, and preferences that are not re-encrypted yet stay
+     * readable. Once every EncryptedSharedPreferences has been re-encrypted, the previous keys are
+     * deleted. If the rotation is interrupted, for example because the process is killed, calling
+     * this method again resumes it instead of starting a new one.
+     *
+     * @param context The context.
+     *
+     * @param options The rotation options.
+     */
+    public static synchronized void rotateEncryptionKey(Context context,
+                                                        KeyRotationOptions options) {
+        try {
+            new KeyRotator(context, EncryptionService.getInstance(context)).rotate(options);
+        } catch (EncryptionKeyLostException e) {
+            throw new PreferencesLostException(e);
+        }
+    }
+
+    /**
+     * Asynchronously rotates the encryption key. See
+     * {@link #rotateEncryptionKey(Context, KeyRotationOptions)}.
+     *
+     * @param context The context.
+     *
+     * @param options The rotation options.
+     *
+     * @param callback The callback.
+     */
+    public static void rotateEncryptionKeyAsync(Context context, KeyRotationOptions options,
+                                                RotateEncryptionKeyAsyncCallback callback) {
+        Handler handler = new Handler(Looper.myLooper() != null ? Looper.myLooper() :
+                Looper.getMainLooper());
+
+        new Thread(() -> {
+            try {
+                rotateEncryptionKey(context, options);
+                handler.post(callback::onSuccess);
+            } catch (Throwable t) {
+                if (t instanceof PreferencesLostException) {
+                    handler.post(() -> callback.onPreferencesLost((PreferencesLostException) t));
+                } else {
+                    handler.post(() -> callback.onError(t));
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * Returns whether an encryption key rotation was started and has not finished yet.
+     *
+     * @param context The context.
+     *
+     * @return {@code true} if {@link #rotateEncryptionKey(Context, KeyRotationOptions)} should be
+     * called again to finish an interrupted rotation.
+     */
+    public static boolean isKeyRotationInProgress(Context context) {
+        return KeyRotator.isInProgress(getEspSharedPreferences(context));
+    }
+
+    private static File getSharedPreferencesFile(Context context, String name) {
+        File sharedPreferencesDir = new File(context.getApplicationInfo().dataDir,
+                SHARED_PREFERENCES_DIR_NAME);
+        return new File(sharedPreferencesDir, name + ENCRYPTED_SHARED_PREFERENCES_NAME_SUFFIX +
+                SHARED_PREFERENCES_FILE_EXTENSION);
+    }
+
+    private static File getMultiProcessFile(Context context, String name) {
+        File sharedPreferencesDir = new File(context.getApplicationInfo().dataDir,
+                SHARED_PREFERENCES_DIR_NAME);
+        return new File(sharedPreferencesDir, name + ENCRYPTED_SHARED_PREFERENCES_NAME_SUFFIX +
+                MULTI_PROCESS_FILE_EXTENSION);
+    }
+
+    /**
+     * Returns the underlying SharedPreferences of the multi-process EncryptedSharedPreferences
+     * with the specified name, moving the preferences of the single-process one to it if its file
+     * does not exist yet.
+     */
+    private static MultiProcessSharedPreferences getMultiProcessSharedPreferences(Context context,
+                                                                                 String name) {
+        File multiProcessFile = getMultiProcessFile(context, name);
+        MultiProcessSharedPreferences multiProcessSharedPreferences =
+                MultiProcessSharedPreferences.getInstance(multiProcessFile);
+        if (!multiProcessFile.exists()) {
+            SharedPreferences singleProcessSharedPreferences = context.getSharedPreferences(name +
+                    ENCRYPTED_SHARED_PREFERENCES_NAME_SUFFIX, MODE_PRIVATE);
+            Map<String, ?> encryptedPreferences = singleProcessSharedPreferences.getAll();
+            if (multiProcessSharedPreferences.initialize(encryptedPreferences) &&
+                    !encryptedPreferences.isEmpty()) {
+                singleProcessSharedPreferences.edit().clear().commit();
+            }
+        }
+        return multiProcessSharedPreferences;
+    }
+
+    /**
+     * Adds the specified names to the registry of preferences names. Does not write anything if
+     * every name is registered already.
+     */
+    private static void registerEncryptedSharedPreferencesNames(
+            SharedPreferences espSharedPreferences, Collection<String> names) {
+        synchronized (registryLock) {
+            Set<String> encryptedSharedPreferencesNames = new HashSet<>(
+                    espSharedPreferences.getStringSet(PREFERENCE_ENCRYPTED_SHARED_PREFERENCES_NAMES,
+                            new HashSet<>()));
+            if (encryptedSharedPreferencesNames.addAll(names)) {
+                espSharedPreferences.edit().putStringSet(
+                        PREFERENCE_ENCRYPTED_SHARED_PREFERENCES_NAMES,
+                        encryptedSharedPreferencesNames).apply();
+            }
+        }
+    }
+
+    static SharedPreferences getEspSharedPreferences(Context context) {
+        return context.getSharedPreferences(ESP_SHARED_PREFERENCES_NAME, MODE_PRIVATE);
+    }
+
+    /**
+     * Returns the SharedPreferences the data encryption keys and the key name hash key are stored
+     * in. Unlike the metadata preferences, they are shared by every process. Keys stored in the
+     * metadata preferences by earlier versions are moved to them when their file does not exist
+     * yet.
+     */
+    static MultiProcessSharedPreferences getKeySharedPreferences(Context context) {
+        File keySharedPreferencesFile = new File(new File(context.getApplicationInfo().dataDir,
+                SHARED_PREFERENCES_DIR_NAME), KEY_SHARED_PREFERENCES_FILE_NAME);
+        MultiProcessSharedPreferences keySharedPreferences =
+                MultiProcessSharedPreferences.getInstance(keySharedPreferencesFile);
+        if (!keySharedPreferencesFile.exists()) {
+            SharedPreferences espSharedPreferences = getEspSharedPreferences(context);
+            Map<String, Object> keyPreferences = new HashMap<>();
+            for (Map.Entry<String, ?> entry : espSharedPreferences.getAll().entrySet()) {
+                if (KeyRing.isKeyRingPreference(entry.getKey()) ||
+                        KeyNameHasher.isKeyNameHasherPreference(entry.getKey())) {
+                    keyPreferences.put(entry.getKey(), entry.getValue());
+                }
+            }
+            if (keySharedPreferences.initialize(keyPreferences) && !keyPreferences.isEmpty()) {
+                SharedPreferences.Editor editor = espSharedPreferences.edit();
+                for (String key : keyPreferences.keySet()) {
+                    editor.remove(key);
+                }
+                editor.commit();
+            }
+        }
+        return keySharedPreferences;
+    }
+
+    static Set<String> getEncryptedSharedPreferencesNames(Context context) {
+        return new HashSet<>(getEspSharedPreferences(context).getStringSet(
+                PREFERENCE_ENCRYPTED_SHARED_PREFERENCES_NAMES, new HashSet<>()));
+    }
+
+    static void awaitGroupCommitWritersFlushed() {
+        for (GroupCommitWriter groupCommitWriter : groupCommitWriters.values()) {
+            try {
+                groupCommitWriter.awaitFlushed(Long.MAX_VALUE / 2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static void putValue(SharedPreferences.Editor editor, String key, Object value) {
+        if (value instanceof String) {
+            editor.putString(key, (String) value);
+        } else if (value instanceof Set<?>) {
+            editor.putStringSet(key, (Set<String>) value);
+        } else if (value instanceof Integer) {
+            editor.putInt(key, (Integer) value);
+        } else if (value instanceof Long) {
+            editor.putLong(key, (Long) value);
+        } else if (value instanceof Float) {
+            editor.putFloat(key, (Float) value);
+        } else if (value instanceof Boolean) {
+            editor.putBoolean(key, (Boolean) value);
+        } else if (value instanceof byte[] && editor instanceof Editor) {
+            ((Editor) editor).putObject(key, (byte[]) value, ObjectCodecs.BYTE_ARRAY);
+        } else {
+            throw new RuntimeException("Unsupported value type. valueType: " +
+                    (value != null ? value.getClass().getCanonicalName() : null));
+        }
+    }
+
+    /**
+     * Puts the specified value that expires after the specified time into the specified editor.
+     * See {@link #putValue(SharedPreferences.Editor, String, Object)}.
+     */
+    @SuppressWarnings("unchecked")
+    private static void putExpiringValue(Editor editor, String key, Object value,
+                                         long ttlMillis) {
+        if (value instanceof String) {
+            editor.putString(key, (String) value, ttlMillis);
+        } else if (value instanceof Set<?>) {
+            editor.putStringSet(key, (Set<String>) value, ttlMillis);
+        } else if (value instanceof Integer) {
+            editor.putInt(key, (Integer) value, ttlMillis);
+        } else if (value instanceof Long) {
+            editor.putLong(key, (Long) value, ttlMillis);
+        } else if (value instanceof Float) {
+            editor.putFloat(key, (Float) value, ttlMillis);
+        } else if (value instanceof Boolean) {
+            editor.putBoolean(key, (Boolean) value, ttlMillis);
+        } else if (value instanceof byte[]) {
+            editor.putObject(key, (byte[]) value, ObjectCodecs.BYTE_ARRAY, ttlMillis);
+        } else {
+            throw new RuntimeException("Unsupported value type. valueType: " +
+                    (value != null ? value.getClass().getCanonicalName() : null));
+        }
+    }
+
+    @Nullable
+    private GroupCommitWriter getGroupCommitWriter() {
+        long windowMillis = groupCommitWindowMillis;
+        if (windowMillis <= 0 || isMultiProcess()) {
+            return null;
+        }
+        GroupCommitWriter groupCommitWriter = groupCommitWriters.get(name);
+        if (groupCommitWriter == null) {
+            groupCommitWriter = new GroupCommitWriter(sharedPreferences, windowMillis);
+            GroupCommitWriter existingGroupCommitWriter = groupCommitWriters.putIfAbsent(name,
+                    groupCommitWriter);
+            if (existingGroupCommitWriter != null) {
+                groupCommitWriter = existingGroupCommitWriter;
+            }
+        }
+        return groupCommitWriter;
+    }
+
+    private boolean isMultiProcess() {
+        return sharedPreferences instanceof MultiProcessSharedPreferences;
+    }
+
+    /**
+     * Writes the modifications the specified transaction computes from the latest raw
+     * preferences, through the group commit writer if the group commit mode is enabled. The
+     * caller must hold the lock of the primitive pages. In multi-process mode, the transaction
+     * runs while holding the lock of the preference file, so that no other process writes in
+     * between.
+     *
+     * @return {@code true} if the modifications were written.
+     */
+    private boolean writeTransaction(MultiProcessStore.Transaction transaction) {
+        boolean committed;
+        if (isMultiProcess()) {
+            committed = ((MultiProcessSharedPreferences) sharedPreferences).writeTransaction(
+                    transaction);
+        } else {
+            Modifications modifications = transaction.run(getRawAll());
+            if (modifications == null) {
+                return true;
+            }
+            GroupCommitWriter groupCommitWriter = getGroupCommitWriter();
+            if (groupCommitWriter != null) {
+                committed = groupCommitWriter.enqueueAndCommit(modifications);
+            } else {
+                committed = modifications.writeTo(sharedPreferences.edit()).commit();
+            }
+        }
+        invalidateRawPreferencesSnapshot(name);
+        return committed;
+    }
+
+    private String getRawString(String key) {
+        GroupCommitWriter groupCommitWriter = getGroupCommitWriter();
+        if (groupCommitWriter != null) {
+            return groupCommitWriter.getString(key);
+        }
+        return sharedPreferences.getString(key, null);
+    }
+
+    private Set<String> getRawStringSet(String key) {
+        GroupCommitWriter groupCommitWriter = getGroupCommitWriter();
+        if (groupCommitWriter != null) {
+            return groupCommitWriter.getStringSet(key);
+        }
+        return sharedPreferences.getStringSet(key, null);
+    }
+
+    private Map<String, ?> getRawAll() {
+        GroupCommitWriter groupCommitWriter = getGroupCommitWriter();
+        if (groupCommitWriter != null) {
+            return groupCommitWriter.getAll();
+        }
+        return sharedPreferences.getAll();
+    }
+
+    /**
+     * Returns the key name hasher, or {@code null} if the hashed key name mode is disabled and
+     * has never been enabled, in which case no value is stored under a hashed key.
+     */
+    @Nullable
+    private KeyNameHasher getKeyNameHasher() {
+        return KeyNameHasher.getInstance(keySharedPreferences, encryptionService,
+                keyNameHashingEnabled);
+    }
+
+    /**
+     * Returns the raw value of the specified key, or {@code null} if it does not exist or has
+     * expired. The key is looked up under its hashed key first if the hashed key name mode is
+     * enabled, and under the key itself first otherwise.
+     */
+    private String getStoredString(String key) {
+        String encryptedValueJson = findStoredString(key);
+        return encryptedValueJson != null && !checkExpired(encryptedValueJson) ?
+                encryptedValueJson : null;
+    }
+
+    private String findStoredString(String key) {
+        KeyNameHasher keyNameHasher = getKeyNameHasher();
+        if (keyNameHasher == null) {
+            return getRawString(key);
+        }
+        String hashedKey = keyNameHasher.hash(key);
+        String encryptedValueJson = getRawString(keyNameHashingEnabled ? hashedKey : key);
+        if (encryptedValueJson == null) {
+            encryptedValueJson = getRawString(keyNameHashingEnabled ? key : hashedKey);
+        }
+        return encryptedValueJson;
+    }
+
+    /**
+     * See {@link #getStoredString(String)}.
+     */
+    private Set<String> getStoredStringSet(String key) {
+        Set<String> encryptedValueJsonSet = findStoredStringSet(key);
+        return encryptedValueJsonSet != null && !checkExpired(encryptedValueJsonSet) ?
+                encryptedValueJsonSet : null;
+    }
+
+    private Set<String> findStoredStringSet(String key) {
+        KeyNameHasher keyNameHasher = getKeyNameHasher();
+        if (keyNameHasher == null) {
+            return getRawStringSet(key);
+        }
+        String hashedKey = keyNameHasher.hash(key);
+        Set<String> encryptedValueJsonSet = getRawStringSet(keyNameHashingEnabled ? hashedKey :
+                key);
+        if (encryptedValueJsonSet == null) {
+            encryptedValueJsonSet = getRawStringSet(keyNameHashingEnabled ? key : hashedKey);
+        }
+        return encryptedValueJsonSet;
+    }
+
+    /**
+     * Returns the raw key the specified key is stored under, or {@code null} if it is not stored
+     * outside of the primitive pages.
+     */
+    @Nullable
+    private String findStoredKey(String key) {
+        KeyNameHasher keyNameHasher = getKeyNameHasher();
+        if (keyNameHasher == null) {
+            return containsRaw(key) ? key : null;
+        }
+        String hashedKey = keyNameHasher.hash(key);
+        String preferredKey = keyNameHashingEnabled ? hashedKey : key;
+        String otherKey = keyNameHashingEnabled ? key : hashedKey;
+        return containsRaw(preferredKey) ? preferredKey : containsRaw(otherKey) ? otherKey : null;
+    }
+
+    private Object getRawValue(String key) {
+        try {
+            return getRawString(key);
+        } catch (ClassCastException e) {
+            return getRawStringSet(key);
+        }
+    }
+
+    private boolean containsRaw(String key) {
+        GroupCommitWriter groupCommitWriter = getGroupCommitWriter();
+        return groupCommitWriter != null ? groupCommitWriter.contains(key) :
+                sharedPreferences.contains(key);
+    }
+
+    /**
+     * Returns the key of the specified stored preference, decrypting it from the stored value if
+     * the preference is stored under a hashed key that has not been seen in this process yet.
+     */
+    @SuppressWarnings("unchecked")
+    private String getKeyName(String rawKey, Object encryptedPreferenceValue) {
+        if (!KeyNameHasher.isHashedKey(rawKey)) {
+            return rawKey;
+        }
+        KeyNameHasher keyNameHasher = getKeyNameHasher();
+        if (keyNameHasher == null) {
+            throw new RuntimeException("Key name hash key not found");
+        }
+        String keyName = keyNameHasher.getKeyName(rawKey);
+        if (keyName == null) {
+            EncryptedDataAndIv encryptedKeyNameAndIv = null;
+            int keyVersion = KeyRing.KEYSTORE_KEY_VERSION;
+            if (encryptedPreferenceValue instanceof Set<?>) {
+                for (String encryptedValueJson : (Set<String>) encryptedPreferenceValue) {
+                    EncryptedValueEnvelope envelope = EncryptedValueEnvelope.parse(
+                            encryptedValueJson);
+                    if (envelope.getType() == EncryptedValueEnvelope.TYPE_KEY_NAME) {
+                        encryptedKeyNameAndIv = envelope.toEncryptedDataAndIv();
+                        keyVersion = envelope.getKeyVersion();
+                        break;
+                    }
+                }
+            } else {
+                EncryptedValueEnvelope envelope = EncryptedValueEnvelope.parse(
+                        (String) encryptedPreferenceValue);
+                encryptedKeyNameAndIv = envelope.toEncryptedKeyNameAndIv();
+                keyVersion = envelope.getKeyVersion();
+            }
+            if (encryptedKeyNameAndIv == null) {
+                throw new RuntimeException("Key name not found. hashedKey: " + rawKey);
+            }
+            keyName = decryptString(keyVersion, encryptedKeyNameAndIv);
+            keyNameHasher.putKeyName(rawKey, keyName);
+        }
+        return keyName;
+    }
+
+    /**
+     * Adds the encrypted key to the specified raw value that is about to be stored under the
+     * hashed key.
+     */
+    @SuppressWarnings("unchecked")
+    private Object addKeyName(Object rawValue, String keyName) {
+        if (rawValue instanceof Set<?>) {
+            for (String encryptedValueJson : (Set<String>) rawValue) {
+                if (EncryptedValueEnvelope.parse(encryptedValueJson).getType() ==
+                        EncryptedValueEnvelope.TYPE_KEY_NAME) {
+                    return rawValue;
+                }
+            }
+            Set<String> encryptedValueJsonSet = new HashSet<>((Set<String>) rawValue);
+            encryptedValueJsonSet.add(createKeyNameJson(keyName));
+            return encryptedValueJsonSet;
+        }
+        String encryptedValueJson = (String) rawValue;
+        int keyVersion = EncryptedValueEnvelope.parse(encryptedValueJson).getKeyVersion();
+        return EncryptedValueEnvelope.withKeyName(encryptedValueJson,
+                encryptString(keyName, keyVersion));
+    }
+
+    private String createKeyNameJson(String keyName) {
+        int keyVersion = keyRing.getCurrentVersion();
+        return EncryptedValueEnvelope.format(EncryptedValueEnvelope.TYPE_KEY_NAME,
+                encryptString(keyName, keyVersion), keyVersion);
+    }
+
+    /**
+     * Adds the specified expiry time to the specified raw value. String sets get it in an
+     * additional key name member.
+     */
+    @SuppressWarnings("unchecked")
+    private Object addExpiry(Object rawValue, String keyName, long expiresAtMillis) {
+        if (rawValue instanceof Set<?>) {
+            Set<String> encryptedValueJsonSet = new HashSet<>((Set<String>) rawValue);
+            encryptedValueJsonSet.add(EncryptedValueEnvelope.withExpiry(
+                    createKeyNameJson(keyName), expiresAtMillis));
+            return encryptedValueJsonSet;
+        }
+        return EncryptedValueEnvelope.withExpiry((String) rawValue, expiresAtMillis);
+    }
+
+    /**
+     * Returns the expiry time of the specified raw value in milliseconds since the epoch, or
+     * {@code 0} if it does not expire. Reads the plaintext envelope only.
+     */
+    @SuppressWarnings("unchecked")
+    private static long getExpiresAtMillis(Object encryptedPreferenceValue) {
+        if (encryptedPreferenceValue instanceof Set<?>) {
+            for (String encryptedValueJson : (Set<String>) encryptedPreferenceValue) {
+                EncryptedValueEnvelope envelope = EncryptedValueEnvelope.parse(encryptedValueJson);
+                if (envelope.getType() == EncryptedValueEnvelope.TYPE_KEY_NAME) {
+                    return envelope.getExpiresAtMillis();
+                }
+            }
+            return 0;
+        }
+        return EncryptedValueEnvelope.parse((String) encryptedPreferenceValue)
+                .getExpiresAtMillis();
+    }
+
+    private static boolean isExpired(Object encryptedPreferenceValue, long nowMillis) {
+        long expiresAtMillis = getExpiresAtMillis(encryptedPreferenceValue);
+        return expiresAtMillis != 0 && expiresAtMillis <= nowMillis;
+    }
+
+    /**
+     * Returns whether the specified raw value has expired, and schedules a sweep if it has.
+     */
+    private boolean checkExpired(Object encryptedPreferenceValue) {
+        if (isExpired(encryptedPreferenceValue, System.currentTimeMillis())) {
+            scheduleExpirySweep();
+            return true;
+        }
+        return false;
+    }
+
+    private static long toExpiresAtMillis(long ttlMillis) {
+        if (ttlMillis <= 0) {
+            throw new IllegalArgumentException("ttlMillis must be positive. ttlMillis: " +
+                    ttlMillis);
+        }
+        long nowMillis = System.currentTimeMillis();
+        return ttlMillis < Long.MAX_VALUE - nowMillis ? nowMillis + ttlMillis : Long.MAX_VALUE;
+    }
+
+    /**
+     * Starts deleting the expired preferences on the sweep thread, unless a sweep of this
+     * EncryptedSharedPreferences is already running or has started recently.
+     */
+    private void scheduleExpirySweep() {
+        if (expirySweeper.tryBegin(name, SystemClock.elapsedRealtime())) {
+            expirySweeper.post(this::sweepExpiredPreferencesBatch);
+        }
+    }
+
+    /**
+     * Deletes one batch of expired preferences, and posts the next batch if this one was full so
+     * that the sweeps of other EncryptedSharedPreferences are interleaved. A failed batch ends the
+     * sweep; the expired preferences stay invisible and are deleted by a later sweep.
+     */
+    private void sweepExpiredPreferencesBatch() {
+        boolean nextBatchPosted = false;
+        try {
+            if (sweepExpiredPreferences(SWEEP_BATCH_SIZE) == SWEEP_BATCH_SIZE) {
+                expirySweeper.post(this::sweepExpiredPreferencesBatch);
+                nextBatchPosted = true;
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to delete the expired preferences. name: " + name, e);
+        } finally {
+            if (!nextBatchPosted) {
+                expirySweeper.end(name);
+            }
+        }
+    }
+
+    /**
+     * Deletes up to the specified number of expired preferences in one commit. Preferences
+     * written again concurrently are kept. Only the plaintext envelopes are read.
+     *
+     * @return The number of expired preferences found.
+     *
+     * @throws RuntimeException If the deletion could not be committed.
+     */
+    int sweepExpiredPreferences(int maxCount) {
+        long nowMillis = System.currentTimeMillis();
+        List<String> expiredKeys = new ArrayList<>();
+        for (Map.Entry<String, ?> encryptedPreference : getRawAll().entrySet()) {
+            if (expiredKeys.size() == maxCount) {
+                break;
+            }
+            if (!PrimitivePages.isPageKey(encryptedPreference.getKey()) &&
+                    isExpired(encryptedPreference.getValue(), nowMillis)) {
+                expiredKeys.add(encryptedPreference.getKey());
+            }
+        }
+        if (expiredKeys.isEmpty()) {
+            return 0;
+        }
+
+        boolean committed;
+        synchronized (getPrimitivePages()) {
+            committed = writeTransaction(currentEncryptedPreferences -> {
+                Modifications modifications = new Modifications();
+                for (String key : expiredKeys) {
+                    Object encryptedPreferenceValue = currentEncryptedPreferences.get(key);
+                    if (encryptedPreferenceValue != null &&
+                            isExpired(encryptedPreferenceValue, nowMillis)) {
+                        modifications.remove(key);
+                    }
+                }
+                return modifications;
+            });
+        }
+        if (!committed) {
+            throw new RuntimeException("Failed to delete the expired preferences");
+        }
+        return expiredKeys.size();
+    }
+
+    /**
+     * Moves the keys of the specified modifications to their hashed keys if the hashed key name
+     * mode is enabled, or back from them otherwise. The other form of every modified key is
+     * removed.
+     */
+    private Modifications hashKeyNames(Modifications modifications,
+                                       KeyNameHasher keyNameHasher) {
+        Modifications hashedModifications = new Modifications();
+        if (modifications.isCleared()) {
+            hashedModifications.clear();
+        }
+        for (String key : modifications.getKeys()) {
+            Object rawValue = modifications.lookup(key);
+            if (PrimitivePages.isPageKey(key)) {
+                hashedModifications.put(key, rawValue != Modifications.REMOVED ? rawValue : null);
+                continue;
+            }
+            String hashedKey = keyNameHasher.hash(key);
+            if (rawValue == Modifications.REMOVED) {
+                hashedModifications.remove(key);
+                hashedModifications.remove(hashedKey);
+            } else if (keyNameHashingEnabled) {
+                hashedModifications.put(hashedKey, addKeyName(rawValue, key));
+                hashedModifications.remove(key);
+            } else {
+                hashedModifications.put(key, rawValue);
+                hashedModifications.remove(hashedKey);
+            }
+        }
+        return hashedModifications;
+    }
+
+    /**
+     * Blocks until the underlying preference file is loaded. Every read does.
+     */
+    private void awaitLoaded() {
+        sharedPreferences.contains(PrimitivePages.getPageKey(0));
+    }
+
+    private RawPreferencesSnapshot getRawPreferencesSnapshot() {
+        RawPreferencesSnapshot rawPreferencesSnapshot = rawPreferencesSnapshotsByName.get(name);
+        if (rawPreferencesSnapshot == null) {
+            rawPreferencesSnapshot = new RawPreferencesSnapshot();
+            RawPreferencesSnapshot existingRawPreferencesSnapshot =
+                    rawPreferencesSnapshotsByName.putIfAbsent(name, rawPreferencesSnapshot);
+            if (existingRawPreferencesSnapshot != null) {
+                rawPreferencesSnapshot = existingRawPreferencesSnapshot;
+            } else {
+                sharedPreferences.registerOnSharedPreferenceChangeListener(
+                        rawPreferencesSnapshot);
+            }
+        }
+        return rawPreferencesSnapshot;
+    }
+
+    /**
+     * Drops the shared copy of the raw preferences. Called after every modification.
+     */
+    private static void invalidateRawPreferencesSnapshot(String name) {
+        RawPreferencesSnapshot rawPreferencesSnapshot = rawPreferencesSnapshotsByName.get(name);
+        if (rawPreferencesSnapshot != null) {
+            rawPreferencesSnapshot.invalidate();
+        }
+    }
+
+    private PrimitivePages getPrimitivePages() {
+        PrimitivePages primitivePages = primitivePagesByName.get(name);
+        if (primitivePages == null) {
+            primitivePages = new PrimitivePages();
+            PrimitivePages existingPrimitivePages = primitivePagesByName.putIfAbsent(name,
+                    primitivePages);
+            if (existingPrimitivePages != null) {
+                primitivePages = existingPrimitivePages;
+            }
+        }
+        return primitivePages;
+    }
+
+    /**
+     * Decrypts the primitive pages holding the specified keys, which caches them.
+     */
+    private void preload(Collection<String> keys) {
+        Set<String> pageKeys = new HashSet<>();
+        for (String key : keys) {
+            pageKeys.add(PrimitivePages.getPageKey(key));
+        }
+        try {
+            for (String pageKey : pageKeys) {
+                getPageValues(pageKey);
+            }
+        } catch (RuntimeException e) {
+            // Reading the values reports the error
+        }
+    }
+
+    /**
+     * Returns the object cache of this EncryptedSharedPreferences, or {@code null} if caching
+     * objects is disabled.
+     */
+    @Nullable
+    private ObjectCache getObjectCache() {
+        int maxEntries = objectCacheMaxEntries;
+        if (maxEntries <= 0) {
+            return null;
+        }
+        ObjectCache objectCache = objectCachesByName.get(name);
+        if (objectCache == null || objectCache.getMaxEntries() != maxEntries) {
+            objectCache = new ObjectCache(maxEntries);
+            objectCachesByName.put(name, objectCache);
+        }
+        return objectCache;
+    }
+
+    /**
+     * Returns the secret cache of this EncryptedSharedPreferences, or {@code null} if caching
+     * secrets is disabled.
+     */
+    @Nullable
+    private SecretCache getSecretCache() {
+        int maxEntries = secretCacheMaxEntries;
+        if (maxEntries <= 0) {
+            return null;
+        }
+        SecretCache secretCache = secretCachesByName.get(name);
+        if (secretCache == null || secretCache.getMaxEntries() != maxEntries) {
+            secretCache = new SecretCache(maxEntries);
+            SecretCache previousSecretCache = secretCachesByName.put(name, secretCache);
+            if (previousSecretCache != null) {
+                previousSecretCache.clear();
+            }
+        }
+        return secretCache;
+    }
+
+    /**
+     * Returns the access profiler of this EncryptedSharedPreferences, or {@code null} if the access
+     * profiler is disabled.
+     */
+    @Nullable
+    private AccessProfiler getAccessProfiler() {
+        if (!accessProfilingEnabled) {
+            return null;
+        }
+        AccessProfiler accessProfiler = accessProfilersByName.get(name);
+        if (accessProfiler == null) {
+            accessProfiler = new AccessProfiler(SystemClock.elapsedRealtime());
+            AccessProfiler existingAccessProfiler = accessProfilersByName.putIfAbsent(name,
+                    accessProfiler);
+            if (existingAccessProfiler != null) {
+                accessProfiler = existingAccessProfiler;
+            }
+        }
+        return accessProfiler;
+    }
+
+    /**
+     * Decrypts the values of the keys in the saved hot key profile, which keeps them in the
+     * specified access profiler, and the primitive pages holding them.
+     */
+    private void preloadHotKeys(AccessProfiler accessProfiler) {
+        List<KeyAccessStats> profile;
+        try {
+            String encryptedProfileJson = espSharedPreferences.getString(
+                    PREFERENCE_ACCESS_PROFILE_PREFIX + name, null);
+            if (encryptedProfileJson == null) {
+                return;
+            }
+            EncryptedValueEnvelope envelope = EncryptedValueEnvelope.parse(encryptedProfileJson);
+            envelope.checkType(EncryptedValueEnvelope.TYPE_STRING);
+            profile = AccessProfiler.parse(decryptString(envelope));
+        } catch (RuntimeException e) {
+            // The profile is replaced when the profiling window of this process elapses
+            return;
+        }
+        accessProfiler.setProfile(profile);
+        List<String> keys = new ArrayList<>(profile.size());
+        for (KeyAccessStats keyAccessStats : profile) {
+            keys.add(keyAccessStats.getKey());
+        }
+        preload(keys);
+        for (String key : keys) {
+            try {
+                String encryptedValueJson = getStoredString(key);
+                if (encryptedValueJson != null) {
+                    accessProfiler.putPreloadedValue(key, encryptedValueJson,
+                            decryptRawValue(encryptedValueJson));
+                }
+            } catch (RuntimeException e) {
+                // Reading the value reports the error
+            }
+        }
+    }
+
+    private Map<String, Object> getPageValues(String pageKey) {
+        String rawPage = getRawString(pageKey);
+        if (rawPage == null) {
+            return Collections.emptyMap();
+        }
+        return getPageValues(pageKey, rawPage);
+    }
+
+    private Map<String, Object> getPageValues(String pageKey,
+                                              @Nullable Map<String, ?> rawPreferences) {
+        if (rawPreferences == null) {
+            return getPageValues(pageKey);
+        }
+        Object rawPage = rawPreferences.get(pageKey);
+        if (rawPage == null) {
+            return Collections.emptyMap();
+        }
+        return getPageValues(pageKey, (String) rawPage);
+    }
+
+    private Map<String, Object> getPageValues(String pageKey, String rawPage) {
+        PrimitivePages primitivePages = getPrimitivePages();
+        Map<String, Object> pageValues = primitivePages.getCachedValues(pageKey, rawPage);
+        if (pageValues == null) {
+            EncryptedValueEnvelope envelope = EncryptedValueEnvelope.parse(rawPage);
+            envelope.checkType(EncryptedValueEnvelope.TYPE_STRING);
+            pageValues = PrimitivePages.parse(decryptString(envelope));
+            primitivePages.putCachedValues(pageKey, rawPage, pageValues);
+        }
+        return pageValues;
+    }
+
+    /**
+     * Returns the value of the specified key stored in a primitive page, or {@code null} if there
+     * is none.
+     */
+    @Nullable
+    private Object getPackedValue(String key) {
+        return getPageValues(PrimitivePages.getPageKey(key)).get(key);
+    }
+
+    /**
+     * Moves the keys affected by the specified modifications out of the primitive pages, adds the
+     * specified packed values to the pages, and adds the rewritten pages to the modifications. The
+     * caller must hold the lock of the primitive pages until the modifications are applied.
+     *
+     * @param rawPreferences The raw preferences to read the pages from, or {@code null} to read
+     * them from the underlying SharedPreferences.
+     */
+    private void resolvePrimitivePages(Modifications modifications,
+                                       Map<String, Object> packedValues,
+                                       @Nullable Map<String, ?> rawPreferences) {
+        Map<String, Map<String, Object>> changedPages = new HashMap<>();
+        for (String key : modifications.getKeys()) {
+            String pageKey = PrimitivePages.getPageKey(key);
+            Map<String, Object> pageValues = changedPages.get(pageKey);
+            if (pageValues == null) {
+                if (modifications.isCleared()) {
+                    continue;
+                }
+                Map<String, Object> currentPageValues = getPageValues(pageKey, rawPreferences);
+                if (!currentPageValues.containsKey(key)) {
+                    continue;
+                }
+                pageValues = new HashMap<>(currentPageValues);
+                changedPages.put(pageKey, pageValues);
+            }
+            pageValues.remove(key);
+        }
+        for (Map.Entry<String, Object> packedValue : packedValues.entrySet()) {
+            String pageKey = PrimitivePages.getPageKey(packedValue.getKey());
+            Map<String, Object> pageValues = changedPages.get(pageKey);
+            if (pageValues == null) {
+                pageValues = modifications.isCleared() ? new HashMap<>() :
+                        new HashMap<>(getPageValues(pageKey, rawPreferences));
+                changedPages.put(pageKey, pageValues);
+            }
+            pageValues.put(packedValue.getKey(), packedValue.getValue());
+        }
+
+        PrimitivePages primitivePages = getPrimitivePages();
+        for (Map.Entry<String, Map<String, Object>> changedPage : changedPages.entrySet()) {
+            String pageKey = changedPage.getKey();
+            Map<String, Object> pageValues = changedPage.getValue();
+            if (pageValues.isEmpty()) {
+                modifications.remove(pageKey);
+            } else {
+                String rawPage = createEncryptedStringJson(PrimitivePages.format(pageValues));
+                modifications.put(pageKey, rawPage);
+                primitivePages.putCachedValues(pageKey, rawPage, pageValues);
+            }
+        }
+    }
+
+    private static boolean parseBoolean(int intValue) {
+        if (intValue == 1) {
+            return true;
+        } else if (intValue == 0) {
+            return false;
+        } else {
+            throw new RuntimeException("Failed to parse boolean value. intValue: " + intValue);
         }
-        return defValue;
+    }
+
+    private static String createEncryptedValueJson(EncryptedDataAndIv encryptedDataAndIv,
+                                                   int type, int keyVersion) {
+        return EncryptedValueEnvelope.format(type, encryptedDataAndIv, keyVersion);
+    }
+
+    private String createEncryptedStringJson(String value) {
+        int keyVersion = keyRing.getCurrentVersion();
+        CompressionCodec codec = Compression.getCodec(value.length());
+        if (codec != null) {
+            String encryptedValueJson = createCompressedStringJson(value, codec, keyVersion);
+            if (encryptedValueJson != null) {
+                return encryptedValueJson;
+            }
+        }
+        return createEncryptedValueJson(encryptString(value, keyVersion),
+                EncryptedValueEnvelope.TYPE_STRING, keyVersion);
+    }
+
+    /**
+     * Returns the envelope of the compressed value, or {@code null} if compressing does not make
+     * the value smaller. Values encrypted with the Android KeyStore key can only be encrypted as
+     * strings, so their compressed bytes are Base64 encoded first.
+     */
+    @Nullable
+    private String createCompressedStringJson(String value, CompressionCodec codec,
+                                              int keyVersion) {
+        byte[] data = value.getBytes(UTF_8);
+        byte[] compressedData = codec.compress(data);
+        EncryptedDataAndIv encryptedDataAndIv;
+        if (keyVersion == KeyRing.KEYSTORE_KEY_VERSION) {
+            if ((compressedData.length + 2) / 3 * 4 >= data.length) {
+                return null;
+            }
+            encryptedDataAndIv = encryptionService.encrypt(Base64.encodeToString(compressedData,
+                    NO_WRAP));
+        } else {
+            if (compressedData.length >= data.length) {
+                return null;
+            }
+            encryptedDataAndIv = keyRing.encrypt(keyVersion, compressedData);
+        }
+        return EncryptedValueEnvelope.format(EncryptedValueEnvelope.TYPE_STRING,
+                encryptedDataAndIv, keyVersion, codec.getName());
+    }
+
+    private String createEncryptedIntJson(int value) {
+        int keyVersion = keyRing.getCurrentVersion();
+        return createEncryptedValueJson(encryptInt(value, keyVersion),
+                EncryptedValueEnvelope.TYPE_INT, keyVersion);
+    }
+
+    private String createEncryptedLongJson(long value) {
+        int keyVersion = keyRing.getCurrentVersion();
+        EncryptedDataAndIv encryptedDataAndIv = keyVersion == KeyRing.KEYSTORE_KEY_VERSION ?
+                encryptionService.encrypt(value) : keyRing.encryptLong(keyVersion, value);
+        return createEncryptedValueJson(encryptedDataAndIv, EncryptedValueEnvelope.TYPE_LONG,
+                keyVersion);
+    }
+
+    private String createEncryptedFloatJson(float value) {
+        int keyVersion = keyRing.getCurrentVersion();
+        EncryptedDataAndIv encryptedDataAndIv = keyVersion == KeyRing.KEYSTORE_KEY_VERSION ?
+                encryptionService.encrypt(value) :
+                keyRing.encryptInt(keyVersion, Float.floatToRawIntBits(value));
+        return createEncryptedValueJson(encryptedDataAndIv, EncryptedValueEnvelope.TYPE_FLOAT,
+                keyVersion);
+    }
+
+    private String createEncryptedBooleanJson(boolean value) {
+        int keyVersion = keyRing.getCurrentVersion();
+        return createEncryptedValueJson(encryptInt(value ? 1 : 0, keyVersion),
+                EncryptedValueEnvelope.TYPE_BOOLEAN, keyVersion);
+    }
+
+    /**
+     * Values encrypted with the Android KeyStore key can only be encrypted as strings, so their
+     * bytes are Base64 encoded first.
+     */
+    private String createEncryptedBytesJson(byte[] value) {
+        int keyVersion = keyRing.getCurrentVersion();
+        EncryptedDataAndIv encryptedDataAndIv = keyVersion == KeyRing.KEYSTORE_KEY_VERSION ?
+                encryptionService.encrypt(Base64.encodeToString(value, NO_WRAP)) :
+                keyRing.encrypt(keyVersion, value);
+        return createEncryptedValueJson(encryptedDataAndIv, EncryptedValueEnvelope.TYPE_BYTES,
+                keyVersion);
+    }
+
+    private EncryptedDataAndIv encryptInt(int value, int keyVersion) {
+        return keyVersion == KeyRing.KEYSTORE_KEY_VERSION ? encryptionService.encrypt(value) :
+                keyRing.encryptInt(keyVersion, value);
+    }
+
+    private EncryptedDataAndIv encryptString(String value, int keyVersion) {
+        return keyVersion == KeyRing.KEYSTORE_KEY_VERSION ? encryptionService.encrypt(value) :
+                keyRing.encrypt(keyVersion, value.getBytes(UTF_8));
+    }
+
+    private String decryptString(EncryptedValueEnvelope envelope) {
+        int keyVersion = envelope.getKeyVersion();
+        String compression = envelope.getCompression();
+        EncryptedDataAndIv encryptedDataAndIv = envelope.toEncryptedDataAndIv();
+        if (compression != null) {
+            CompressionCodec codec = Compression.getCodec(compression);
+            byte[] compressedData = keyVersion == KeyRing.KEYSTORE_KEY_VERSION ?
+                    Base64.decode(encryptionService.decryptString(encryptedDataAndIv), NO_WRAP) :
+                    keyRing.decrypt(keyVersion, encryptedDataAndIv);
+            return new String(codec.decompress(compressedData), UTF_8);
+        }
+        return decryptString(keyVersion, encryptedDataAndIv);
+    }
+
+    /**
+     * Decrypts a string value into a new secret buffer. Values encrypted with a key ring key are
+     * decrypted into a byte array that is wiped right after it is copied. Values encrypted with the
+     * KeyStore key can only be decrypted into a string, which is encoded straight into the buffer
+     * but stays on the heap until it is garbage collected.
+     */
+    private Secret.Buffer decryptSecret(EncryptedValueEnvelope envelope) {
+        int keyVersion = envelope.getKeyVersion();
+        String compression = envelope.getCompression();
+        EncryptedDataAndIv encryptedDataAndIv = envelope.toEncryptedDataAndIv();
+        if (keyVersion == KeyRing.KEYSTORE_KEY_VERSION && compression == null) {
+            return Secret.Buffer.encode(encryptionService.decryptString(encryptedDataAndIv));
+        }
+        byte[] data = keyVersion == KeyRing.KEYSTORE_KEY_VERSION ?
+                Base64.decode(encryptionService.decryptString(encryptedDataAndIv), NO_WRAP) :
+                keyRing.decrypt(keyVersion, encryptedDataAndIv);
+        if (compression != null) {
+            byte[] compressedData = data;
+            data = Compression.getCodec(compression).decompress(compressedData);
+            Arrays.fill(compressedData, (byte) 0);
+        }
+        return Secret.Buffer.wrap(data);
+    }
+
+    private String decryptString(int keyVersion, EncryptedDataAndIv encryptedDataAndIv) {
+        if (keyVersion == KeyRing.KEYSTORE_KEY_VERSION) {
+            return encryptionService.decryptString(encryptedDataAndIv);
+        }
+        return new String(keyRing.decrypt(keyVersion, encryptedDataAndIv), UTF_8);
+    }
+
+    private int decryptInt(EncryptedValueEnvelope envelope) {
+        int keyVersion = envelope.getKeyVersion();
+        EncryptedDataAndIv encryptedDataAndIv = envelope.toEncryptedDataAndIv();
+        if (keyVersion == KeyRing.KEYSTORE_KEY_VERSION) {
+            return encryptionService.decryptInt(encryptedDataAndIv);
+        }
+        return KeyRing.readInt(keyRing.decrypt(keyVersion, encryptedDataAndIv));
+    }
+
+    private long decryptLong(EncryptedValueEnvelope envelope) {
+        int keyVersion = envelope.getKeyVersion();
+        EncryptedDataAndIv encryptedDataAndIv = envelope.toEncryptedDataAndIv();
+        if (keyVersion == KeyRing.KEYSTORE_KEY_VERSION) {
+            return encryptionService.decryptLong(encryptedDataAndIv);
+        }
+        return KeyRing.readLong(keyRing.decrypt(keyVersion, encryptedDataAndIv));
+    }
+
+    private float decryptFloat(EncryptedValueEnvelope envelope) {
+        int keyVersion = envelope.getKeyVersion();
+        EncryptedDataAndIv encryptedDataAndIv = envelope.toEncryptedDataAndIv();
+        if (keyVersion == KeyRing.KEYSTORE_KEY_VERSION) {
+            return encryptionService.decryptFloat(encryptedDataAndIv);
+        }
+        return Float.intBitsToFloat(KeyRing.readInt(keyRing.decrypt(keyVersion,
+                encryptedDataAndIv)));
+    }
+
+    private boolean decryptBoolean(EncryptedValueEnvelope envelope) {
+        return parseBoolean(decryptInt(envelope));
+    }
+
+    private byte[] decryptBytes(EncryptedValueEnvelope envelope) {
+        int keyVersion = envelope.getKeyVersion();
+        EncryptedDataAndIv encryptedDataAndIv = envelope.toEncryptedDataAndIv();
+        if (keyVersion == KeyRing.KEYSTORE_KEY_VERSION) {
+            return Base64.decode(encryptionService.decryptString(encryptedDataAndIv), NO_WRAP);
+        }
+        return keyRing.decrypt(keyVersion, encryptedDataAndIv);
+    }
+
+    private Set<String> decryptStringSet(Set<String> encryptedValueJsonSet) {
+        Set<String> decryptedValues = new HashSet<>(encryptedValueJsonSet.size() * 4 / 3 + 1);
+        for (String encryptedValueJson : encryptedValueJsonSet) {
+            EncryptedValueEnvelope envelope = EncryptedValueEnvelope.parse(encryptedValueJson);
+            if (envelope.getType() == EncryptedValueEnvelope.TYPE_KEY_NAME) {
+                continue;
+            }
+            envelope.checkType(EncryptedValueEnvelope.TYPE_STRING);
+            decryptedValues.add(decryptString(envelope));
+        }
+        return decryptedValues;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object decryptRawValue(Object encryptedPreferenceValue) {
+        if (encryptedPreferenceValue instanceof Set<?>) {
+            return decryptStringSet((Set<String>) encryptedPreferenceValue);
+        }
+        EncryptedValueEnvelope envelope = EncryptedValueEnvelope.parse(
+                (String) encryptedPreferenceValue);
+        envelope.checkSupportedType();
+        switch (envelope.getType()) {
+            case EncryptedValueEnvelope.TYPE_STRING:
+                return decryptString(envelope);
+            case EncryptedValueEnvelope.TYPE_INT:
+                return decryptInt(envelope);
+            case EncryptedValueEnvelope.TYPE_LONG:
+                return decryptLong(envelope);
+            case EncryptedValueEnvelope.TYPE_FLOAT:
+                return decryptFloat(envelope);
+            case EncryptedValueEnvelope.TYPE_BYTES:
+                return decryptBytes(envelope);
+            default:
+                return decryptBoolean(envelope);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object encryptValue(Object value) {
+        if (value instanceof String) {
+            return createEncryptedStringJson((String) value);
+        } else if (value instanceof Set<?>) {
+            Set<String> encryptedValueJsonSet = new HashSet<>();
+            for (String setValue : (Set<String>) value) {
+                encryptedValueJsonSet.add(createEncryptedStringJson(setValue));
+            }
+            return encryptedValueJsonSet;
+        } else if (value instanceof Integer) {
+            return createEncryptedIntJson((Integer) value);
+        } else if (value instanceof Long) {
+            return createEncryptedLongJson((Long) value);
+        } else if (value instanceof Float) {
+            return createEncryptedFloatJson((Float) value);
+        } else if (value instanceof Boolean) {
+            return createEncryptedBooleanJson((Boolean) value);
+        } else if (value instanceof byte[]) {
+            return createEncryptedBytesJson((byte[]) value);
+        } else {
+            throw new RuntimeException("Unsupported value type. valueType: " +
+                    (value != null ? value.getClass().getCanonicalName() : null));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static boolean isEncryptedWith(Object encryptedPreferenceValue, int keyVersion) {
+        if (encryptedPreferenceValue instanceof Set<?>) {
+            for (String encryptedSetValueJson : (Set<String>) encryptedPreferenceValue) {
+                if (EncryptedValueEnvelope.parse(encryptedSetValueJson).getKeyVersion() !=
+                        keyVersion) {
+                    return false;
+                }
+            }
+            return true;
+        } else {
+            return EncryptedValueEnvelope.parse((String) encryptedPreferenceValue)
+                    .getKeyVersion() == keyVersion;
+        }
+    }
+
+    /**
+     * Re-encrypts up to the specified number of preferences that are not encrypted with the
+     * specified key version yet. Preferences modified concurrently are skipped; they are written
+     * with the current key anyway. The values are decrypted without holding the lock of the
+     * editors, and only compared and written while holding it, through the group commit writer
+     * if the group commit mode is enabled. In multi-process mode, they are compared and written
+     * while holding the lock of the preference file too.
+     *
+     * @return The number of re-encrypted preferences, {@code 0} once every preference is
+     * encrypted with the specified key version.
+     */
+    int reencryptPreferences(int keyVersion, int maxCount) {
+        Map<String, ?> encryptedPreferences = getRawAll();
+        Map<String, Object> reencryptedPreferences = new HashMap<>();
+        for (Map.Entry<String, ?> encryptedPreference : encryptedPreferences.entrySet()) {
+            if (reencryptedPreferences.size() == maxCount) {
+                break;
+            }
+            if (!isEncryptedWith(encryptedPreference.getValue(), keyVersion)) {
+                String key = encryptedPreference.getKey();
+                Object reencryptedPreferenceValue = encryptValue(decryptRawValue(
+                        encryptedPreference.getValue()));
+                long expiresAtMillis = getExpiresAtMillis(encryptedPreference.getValue());
+                if (expiresAtMillis != 0) {
+                    reencryptedPreferenceValue = addExpiry(reencryptedPreferenceValue,
+                            getKeyName(key, encryptedPreference.getValue()), expiresAtMillis);
+                }
+                if (KeyNameHasher.isHashedKey(key)) {
+                    reencryptedPreferenceValue = addKeyName(reencryptedPreferenceValue,
+                            getKeyName(key, encryptedPreference.getValue()));
+                }
+                reencryptedPreferences.put(key, reencryptedPreferenceValue);
+            }
+        }
+        if (reencryptedPreferences.isEmpty()) {
+            return 0;
+        }
+
+        boolean committed;
+        synchronized (getPrimitivePages()) {
+            committed = writeTransaction(currentEncryptedPreferences -> {
+                Modifications modifications = new Modifications();
+                for (Map.Entry<String, Object> reencryptedPreference :
+                        reencryptedPreferences.entrySet()) {
+                    String key = reencryptedPreference.getKey();
+                    Object encryptedPreferenceValue = encryptedPreferences.get(key);
+                    if (encryptedPreferenceValue.equals(currentEncryptedPreferences.get(key))) {
+                        modifications.put(key, reencryptedPreference.getValue());
+                    }
+                }
+                return modifications;
+            });
+        }
+        if (!committed) {
+            throw new RuntimeException("Failed to commit the re-encrypted preferences");
+        }
+        return reencryptedPreferences.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, ?> getAll() {
+        long guardStartNanos = MainThreadGuard.begin();
+        Map<String, ?> value = readAll();
+        MainThreadGuard.end(guardStartNanos, Operation.GET_ALL, name, null);
+        return value;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Nullable
+    @Override
+    public String getString(String key, @Nullable String defValue) {
+        long guardStartNanos = MainThreadGuard.begin();
+        String value = readString(key, defValue);
+        MainThreadGuard.end(guardStartNanos, Operation.READ, name, key);
+        return value;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Nullable
+    @Override
+    public Set<String> getStringSet(String key, @Nullable Set<String> defValues) {
+        long guardStartNanos = MainThreadGuard.begin();
+        Set<String> value = readStringSet(key, defValues);
+        MainThreadGuard.end(guardStartNanos, Operation.READ, name, key);
+        return value;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getInt(String key, int defValue) {
+        long guardStartNanos = MainThreadGuard.begin();
+        int value = readInt(key, defValue);
+        MainThreadGuard.end(guardStartNanos, Operation.READ, name, key);
+        return value;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getLong(String key, long defValue) {
+        long guardStartNanos = MainThreadGuard.begin();
+        long value = readLong(key, defValue);
+        MainThreadGuard.end(guardStartNanos, Operation.READ, name, key);
+        return value;
     }
 
     /**
@@ -455,48 +2306,335 @@ public class EncryptedSharedPreferences implements SharedPreferences {
      */
     @Override
     public float getFloat(String key, float defValue) {
-        String encryptedValueJson = sharedPreferences.getString(key, null);
+        long guardStartNanos = MainThreadGuard.begin();
+        float value = readFloat(key, defValue);
+        MainThreadGuard.end(guardStartNanos, Operation.READ, name, key);
+        return value;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        long guardStartNanos = MainThreadGuard.begin();
+        boolean value = readBoolean(key, defValue);
+        MainThreadGuard.end(guardStartNanos, Operation.READ, name, key);
+        return value;
+    }
+
+    /**
+     * Retrieve an object value from the preferences. The decrypted bytes are decoded by the
+     * specified codec, which must be equivalent to the one the value was stored with. See
+     * {@link #enableObjectCache(int)} for caching the decoded objects.
+     *
+     * @param key The name of the preference to retrieve.
+     *
+     * @param codec The codec that decodes the value.
+     *
+     * @param defValue Value to return if this preference does not exist.
+     *
+     * @param <T> The type of the value.
+     *
+     * @return The preference value if it exists, or defValue.
+     *
+     * @throws ClassCastException If there is a preference with this name that is not an object.
+     */
+    @Nullable
+    public <T> T getObject(String key, ObjectCodec<T> codec, @Nullable T defValue) {
+        long guardStartNanos = MainThreadGuard.begin();
+        T value = readObject(key, codec, defValue);
+        MainThreadGuard.end(guardStartNanos, Operation.READ, name, key);
+        return value;
+    }
+
+    /**
+     * Retrieve a String value from the preferences as a secret, whose plaintext is kept outside of
+     * the Java heap and overwritten with zeros once it is closed. See
+     * {@link #enableSecretCache(int)} for caching the secrets.
+     *
+     * @param key The name of the preference to retrieve.
+     *
+     * @return The secret, which must be closed once it is no longer needed, or {@code null} if
+     * this preference does not exist.
+     *
+     * @throws ClassCastException If there is a preference with this name that is not a String.
+     */
+    @Nullable
+    public Secret getSecret(String key) {
+        long guardStartNanos = MainThreadGuard.begin();
+        Secret value = readSecret(key);
+        MainThreadGuard.end(guardStartNanos, Operation.READ, name, key);
+        return value;
+    }
+
+    private Map<String, ?> readAll() {
+        Map<String, ?> encryptedPreferences = getRawAll();
+        Map<String, Object> decryptedPreferences = new HashMap<>(encryptedPreferences.size());
+        for (Map.Entry<String, ?> encryptedPreference : encryptedPreferences.entrySet()) {
+            if (checkExpired(encryptedPreference.getValue())) {
+                continue;
+            }
+            if (PrimitivePages.isPageKey(encryptedPreference.getKey())) {
+                decryptedPreferences.putAll(getPageValues(encryptedPreference.getKey(),
+                        (String) encryptedPreference.getValue()));
+            } else {
+                decryptedPreferences.put(getKeyName(encryptedPreference.getKey(),
+                        encryptedPreference.getValue()),
+                        decryptRawValue(encryptedPreference.getValue()));
+            }
+        }
+        return decryptedPreferences;
+    }
+
+    @Nullable
+    private String readString(String key, @Nullable String defValue) {
+        String encryptedValueJson = getStoredString(key);
         if (encryptedValueJson != null) {
-            try {
-                JSONObject encryptedValueJsonObject = new JSONObject(encryptedValueJson);
-                String valueType = encryptedValueJsonObject.getString(TYPE);
-                if (!valueType.equals(Float.class.getCanonicalName())) {
-                    throw new ClassCastException(valueType + " cannot be cast to " +
-                            Float.class.getCanonicalName());
-                }
-                EncryptedDataAndIv encryptedDataAndIv = createEncryptedDataAndIv(
-                        encryptedValueJsonObject);
-                return encryptionService.decryptFloat(encryptedDataAndIv);
-            } catch (JSONException e) {
-                throw new RuntimeException(e);
+            return (String) decryptStoredValue(key, encryptedValueJson, VALUE_TYPE_STRING);
+        }
+        Object packedValue = getPackedValue(key);
+        if (packedValue != null) {
+            return (String) packedValue;
+        }
+        return defValue;
+    }
+
+    @Nullable
+    private Secret readSecret(String key) {
+        String encryptedValueJson = getStoredString(key);
+        if (encryptedValueJson != null) {
+            SecretCache secretCache = getSecretCache();
+            if (secretCache != null) {
+                Secret cachedSecret = secretCache.get(key, encryptedValueJson);
+                if (cachedSecret != null) {
+                    return cachedSecret;
+                }
+            }
+            EncryptedValueEnvelope envelope = EncryptedValueEnvelope.parse(encryptedValueJson);
+            envelope.checkType(EncryptedValueEnvelope.TYPE_STRING);
+            Secret.Buffer buffer = decryptSecret(envelope);
+            if (secretCache != null) {
+                secretCache.put(key, encryptedValueJson, buffer);
+            }
+            return new Secret(buffer);
+        }
+        Object packedValue = getPackedValue(key);
+        if (packedValue != null) {
+            return new Secret(Secret.Buffer.encode((String) packedValue));
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Nullable
+    private Set<String> readStringSet(String key, @Nullable Set<String> defValues) {
+        Set<String> encryptedValueJsonSet = getStoredStringSet(key);
+        if (encryptedValueJsonSet != null) {
+            return decryptStringSet(encryptedValueJsonSet);
+        }
+        Object packedValue = getPackedValue(key);
+        if (packedValue != null) {
+            return (Set<String>) packedValue;
+        }
+        return defValues;
+    }
+
+    private int readInt(String key, int defValue) {
+        String encryptedValueJson = getStoredString(key);
+        if (encryptedValueJson != null) {
+            return (Integer) decryptStoredValue(key, encryptedValueJson, VALUE_TYPE_INT);
+        }
+        Object packedValue = getPackedValue(key);
+        if (packedValue != null) {
+            return (Integer) packedValue;
+        }
+        return defValue;
+    }
+
+    private long readLong(String key, long defValue) {
+        String encryptedValueJson = getStoredString(key);
+        if (encryptedValueJson != null) {
+            return (Long) decryptStoredValue(key, encryptedValueJson, VALUE_TYPE_LONG);
+        }
+        Object packedValue = getPackedValue(key);
+        if (packedValue != null) {
+            return (Long) packedValue;
+        }
+        return defValue;
+    }
+
+    private float readFloat(String key, float defValue) {
+        String encryptedValueJson = getStoredString(key);
+        if (encryptedValueJson != null) {
+            return (Float) decryptStoredValue(key, encryptedValueJson, VALUE_TYPE_FLOAT);
+        }
+        Object packedValue = getPackedValue(key);
+        if (packedValue != null) {
+            return (Float) packedValue;
+        }
+        return defValue;
+    }
+
+    private boolean readBoolean(String key, boolean defValue) {
+        String encryptedValueJson = getStoredString(key);
+        if (encryptedValueJson != null) {
+            return (Boolean) decryptStoredValue(key, encryptedValueJson, VALUE_TYPE_BOOLEAN);
+        }
+        Object packedValue = getPackedValue(key);
+        if (packedValue != null) {
+            return (Boolean) packedValue;
+        }
+        return defValue;
+    }
+
+    /**
+     * Retrieve the values of several preferences in one call. Used by the accessor classes
+     * generated from {@link com.wasisto.encryptedsharedpreferences.annotation.PreferenceSchema}
+     * interfaces, which precompute the keys and value types.
+     *
+     * @param keys The names of the preferences to retrieve.
+     *
+     * @param valueTypes The expected type of every preference, one of the {@code VALUE_TYPE_}
+     * constants.
+     *
+     * @return The values in the order of the keys, with {@code null} for the preferences that do
+     * not exist. Int, long, float, and boolean values are boxed.
+     *
+     * @throws ClassCastException If there is a preference with one of the names that is not of
+     * its expected type.
+     */
+    public Object[] getValues(String[] keys, int[] valueTypes) {
+        if (keys.length != valueTypes.length) {
+            throw new IllegalArgumentException("keys and valueTypes must have the same length");
+        }
+        long guardStartNanos = MainThreadGuard.begin();
+        Object[] values = new Object[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            values[i] = readValue(keys[i], valueTypes[i]);
+        }
+        MainThreadGuard.end(guardStartNanos, Operation.GET_ALL, name, null);
+        return values;
+    }
+
+    @Nullable
+    private Object readValue(String key, int valueType) {
+        if (valueType == VALUE_TYPE_STRING_SET) {
+            return readStringSet(key, null);
+        }
+        if (valueType < VALUE_TYPE_STRING || valueType > VALUE_TYPE_BOOLEAN) {
+            throw new IllegalArgumentException("Unknown value type. valueType: " + valueType);
+        }
+        String encryptedValueJson = getStoredString(key);
+        if (encryptedValueJson != null) {
+            return decryptStoredValue(key, encryptedValueJson, valueType);
+        }
+        Object packedValue = getPackedValue(key);
+        if (packedValue != null && !VALUE_TYPE_CLASSES[valueType].isInstance(packedValue)) {
+            throw new ClassCastException(packedValue.getClass().getCanonicalName() +
+                    " cannot be cast to " + VALUE_TYPE_CLASSES[valueType].getCanonicalName());
+        }
+        return packedValue;
+    }
+
+    /**
+     * Decrypts the specified stored value of a String, int, long, float, or boolean preference,
+     * or returns its preloaded value, and records the read if the access profiler is enabled.
+     *
+     * @throws ClassCastException If the stored value is not of the specified type.
+     */
+    private Object decryptStoredValue(String key, String encryptedValueJson, int valueType) {
+        EncryptedValueEnvelope envelope = EncryptedValueEnvelope.parse(encryptedValueJson);
+        envelope.checkType(valueType);
+        AccessProfiler accessProfiler = getAccessProfiler();
+        if (accessProfiler == null) {
+            return decryptValue(envelope, valueType);
+        }
+        boolean mainThread = Looper.myLooper() == Looper.getMainLooper();
+        Object value = accessProfiler.getPreloadedValue(key, encryptedValueJson);
+        long nowMillis;
+        if (value != null) {
+            nowMillis = SystemClock.elapsedRealtime();
+            accessProfiler.recordHit(key, nowMillis, mainThread);
+        } else {
+            long startNanos = System.nanoTime();
+            value = decryptValue(envelope, valueType);
+            long decryptNanos = System.nanoTime() - startNanos;
+            nowMillis = SystemClock.elapsedRealtime();
+            accessProfiler.recordMiss(key, nowMillis, decryptNanos, mainThread);
+        }
+        if (accessProfiler.shouldSave(nowMillis)) {
+            new Thread(() -> {
+                try {
+                    saveAccessProfile();
+                } catch (RuntimeException e) {
+                    // The previous profile stays in use
+                }
+            }).start();
+        }
+        return value;
+    }
+
+    private Object decryptValue(EncryptedValueEnvelope envelope, int valueType) {
+        switch (valueType) {
+            case VALUE_TYPE_STRING:
+                return decryptString(envelope);
+            case VALUE_TYPE_INT:
+                return decryptInt(envelope);
+            case VALUE_TYPE_LONG:
+                return decryptLong(envelope);
+            case VALUE_TYPE_FLOAT:
+                return decryptFloat(envelope);
+            default:
+                return decryptBoolean(envelope);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Nullable
+    private <T> T readObject(String key, ObjectCodec<T> codec, @Nullable T defValue) {
+        String encryptedValueJson = getStoredString(key);
+        if (encryptedValueJson != null) {
+            ObjectCache objectCache = getObjectCache();
+            if (objectCache != null) {
+                Object cachedValue = objectCache.get(key, encryptedValueJson, codec);
+                if (cachedValue != null) {
+                    return (T) cachedValue;
+                }
             }
+            EncryptedValueEnvelope envelope = EncryptedValueEnvelope.parse(encryptedValueJson);
+            envelope.checkType(EncryptedValueEnvelope.TYPE_BYTES);
+            T value = codec.decode(decryptBytes(envelope));
+            if (objectCache != null && value != null) {
+                objectCache.put(key, encryptedValueJson, codec, value);
+            }
+            return value;
+        }
+        Object packedValue = getPackedValue(key);
+        if (packedValue != null) {
+            return codec.decode((byte[]) packedValue);
         }
         return defValue;
     }
 
     /**
-     * {@inheritDoc}
+     * Returns an immutable point-in-time view of every preference, for reading several related
+     * preferences consistently without locking. Modifications committed or applied after this
+     * call are not visible through the snapshot. Taking a snapshot is cheap: the stored values
+     * are shared between snapshots until the preferences are modified, and values are only
+     * decrypted when they are first read from the snapshot, after which they are remembered for
+     * the life of the snapshot.
+     *
+     * @return The snapshot.
      */
-    @Override
-    public boolean getBoolean(String key, boolean defValue) {
-        String encryptedValueJson = sharedPreferences.getString(key, null);
-        if (encryptedValueJson != null) {
-            try {
-                JSONObject encryptedValueJsonObject = new JSONObject(encryptedValueJson);
-                String valueType = encryptedValueJsonObject.getString(TYPE);
-                if (!valueType.equals(Boolean.class.getCanonicalName())) {
-                    throw new ClassCastException(valueType + " cannot be cast to " +
-                            Boolean.class.getCanonicalName());
-                }
-                EncryptedDataAndIv encryptedDataAndIv = createEncryptedDataAndIv(
-                        encryptedValueJsonObject);
-                int decryptedIntValue = encryptionService.decryptInt(encryptedDataAndIv);
-                return parseBoolean(decryptedIntValue);
-            } catch (JSONException e) {
-                throw new RuntimeException(e);
-            }
+    public Snapshot snapshot() {
+        RawPreferencesSnapshot rawPreferencesSnapshot = getRawPreferencesSnapshot();
+        Map<String, ?> rawPreferences = rawPreferencesSnapshot.get();
+        if (rawPreferences == null) {
+            long generation = rawPreferencesSnapshot.getGeneration();
+            rawPreferences = rawPreferencesSnapshot.put(getRawAll(), generation);
         }
-        return defValue;
+        return new Snapshot(rawPreferences);
     }
 
     /**
@@ -504,7 +2642,14 @@ public class EncryptedSharedPreferences implements SharedPreferences {
      */
     @Override
     public boolean contains(String key) {
-        return sharedPreferences.contains(key);
+        String storedKey = findStoredKey(key);
+        if (storedKey != null) {
+            Object encryptedPreferenceValue = getRawValue(storedKey);
+            if (encryptedPreferenceValue != null && !checkExpired(encryptedPreferenceValue)) {
+                return true;
+            }
+        }
+        return getPackedValue(key) != null;
     }
 
     /**
@@ -521,14 +2666,93 @@ public class EncryptedSharedPreferences implements SharedPreferences {
     @Override
     public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
         if (listener != null && !listeners.containsKey(listener)) {
-            OnSharedPreferenceChangeListener customListener = (sharedPreferences, key) ->
-                    listener.onSharedPreferenceChanged(
-                            EncryptedSharedPreferences.this, key);
+            Map<String, Map<String, Object>> pageValuesSnapshots = new HashMap<>();
+            for (int i = 0; i < PrimitivePages.PAGE_COUNT; i++) {
+                String pageKey = PrimitivePages.getPageKey(i);
+                pageValuesSnapshots.put(pageKey, getPageValues(pageKey));
+            }
+            OnSharedPreferenceChangeListener customListener = (sharedPreferences, key) -> {
+                if (PrimitivePages.isPageKey(key)) {
+                    notifyPageChanged(listener, pageValuesSnapshots, key);
+                } else if (KeyNameHasher.isHashedKey(key)) {
+                    indexKeyNames();
+                    String keyName = findKeyName(key);
+                    if (keyName != null) {
+                        listener.onSharedPreferenceChanged(EncryptedSharedPreferences.this,
+                                keyName);
+                    }
+                } else {
+                    listener.onSharedPreferenceChanged(EncryptedSharedPreferences.this, key);
+                }
+            };
             listeners.put(listener, customListener);
             sharedPreferences.registerOnSharedPreferenceChangeListener(customListener);
         }
     }
 
+    /**
+     * Adds the keys of every preference stored under a hashed key to the reverse index, so that
+     * listeners can be notified of their removal. Runs once, on the first change of a preference
+     * stored under a hashed key, so that registering a listener does not decrypt every key name
+     * on the calling thread. Keys read or written before are indexed already.
+     */
+    private void indexKeyNames() {
+        if (keyNamesIndexed) {
+            return;
+        }
+        keyNamesIndexed = true;
+        for (Map.Entry<String, ?> encryptedPreference : getRawAll().entrySet()) {
+            try {
+                getKeyName(encryptedPreference.getKey(), encryptedPreference.getValue());
+            } catch (RuntimeException e) {
+                // Reading the value reports the error
+            }
+        }
+    }
+
+    /**
+     * Returns the key of the specified hashed key, or {@code null} if it is unknown and the
+     * preference does not exist anymore, which only happens if it was written and removed by
+     * another process before the reverse index was built.
+     */
+    @Nullable
+    private String findKeyName(String hashedKey) {
+        KeyNameHasher keyNameHasher = getKeyNameHasher();
+        String keyName = keyNameHasher != null ? keyNameHasher.getKeyName(hashedKey) : null;
+        if (keyName == null) {
+            Object encryptedPreferenceValue = getRawAll().get(hashedKey);
+            if (encryptedPreferenceValue != null) {
+                keyName = getKeyName(hashedKey, encryptedPreferenceValue);
+            }
+        }
+        return keyName;
+    }
+
+    /**
+     * Notifies the specified listener of every key whose value in the specified primitive page
+     * differs from the snapshot the listener has seen last.
+     */
+    private void notifyPageChanged(OnSharedPreferenceChangeListener listener,
+                                   Map<String, Map<String, Object>> pageValuesSnapshots,
+                                   String pageKey) {
+        Map<String, Object> pageValues = getPageValues(pageKey);
+        Map<String, Object> previousPageValues;
+        synchronized (pageValuesSnapshots) {
+            previousPageValues = pageValuesSnapshots.put(pageKey, pageValues);
+        }
+        Set<String> keys = new HashSet<>(pageValues.keySet());
+        if (previousPageValues != null) {
+            keys.addAll(previousPageValues.keySet());
+        }
+        for (String key : keys) {
+            Object value = pageValues.get(key);
+            Object previousValue = previousPageValues != null ? previousPageValues.get(key) : null;
+            if (value == null ? previousValue != null : !value.equals(previousValue)) {
+                listener.onSharedPreferenceChanged(this, key);
+            }
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -538,23 +2762,557 @@ public class EncryptedSharedPreferences implements SharedPreferences {
         listeners.remove(listener);
     }
 
+    /**
+     * Returns the footprint of this EncryptedSharedPreferences: the number of entries by type, the
+     * size of the encrypted payload versus the envelope overhead, the largest keys, and the size
+     * of the preference file. The stats are computed from the stored envelopes without decrypting
+     * them.
+     *
+     * @return The stats.
+     */
+    public EncryptedSharedPreferencesStats getStats() {
+        return StatsCollector.collect(name, getRawAll(), sharedPreferencesFile);
+    }
+
+    /**
+     * Returns the reads recorded by the access profiler since this EncryptedSharedPreferences was
+     * first opened in the process, and how much decryption on the main thread the values
+     * preloaded from the hot key profile removed. See {@link #enableAccessProfiling()}.
+     *
+     * @return The report, which is empty if the access profiler is disabled.
+     */
+    public AccessProfileReport getAccessProfileReport() {
+        AccessProfiler accessProfiler = getAccessProfiler();
+        if (accessProfiler == null) {
+            AccessProfileReport report = new AccessProfileReport();
+            report.setPreferencesName(name);
+            report.setKeys(Collections.emptyList());
+            return report;
+        }
+        return accessProfiler.getReport(name);
+    }
+
+    /**
+     * Saves the most read keys as the hot key profile now instead of once the profiling window
+     * has elapsed, for example when the app has finished launching. Does nothing if the access
+     * profiler is disabled or no reads have been recorded yet. See
+     * {@link #enableAccessProfiling()}.
+     */
+    public void saveAccessProfile() {
+        AccessProfiler accessProfiler = getAccessProfiler();
+        if (accessProfiler == null) {
+            return;
+        }
+        List<KeyAccessStats> hotKeys = accessProfiler.getHotKeys();
+        if (hotKeys.isEmpty()) {
+            return;
+        }
+        String encryptedProfileJson = createEncryptedValueJson(encryptionService.encrypt(
+                AccessProfiler.format(hotKeys)), EncryptedValueEnvelope.TYPE_STRING,
+                KeyRing.KEYSTORE_KEY_VERSION);
+        espSharedPreferences.edit()
+                .putString(PREFERENCE_ACCESS_PROFILE_PREFIX + name, encryptedProfileJson)
+                .commit();
+    }
+
+    /**
+     * Starts writing the modifications queued by the group commit mode without waiting for the
+     * window to elapse. Does nothing if the group commit mode is disabled.
+     */
+    public void flush() {
+        GroupCommitWriter groupCommitWriter = getGroupCommitWriter();
+        if (groupCommitWriter != null) {
+            groupCommitWriter.flush();
+        }
+    }
+
+    /**
+     * Writes the modifications queued by the group commit mode and waits until they are written.
+     * Returns immediately if the group commit mode is disabled.
+     *
+     * @param timeoutMillis The maximum time to wait in milliseconds.
+     *
+     * @return {@code true} if every modification queued before this call has been written,
+     * {@code false} if a write failed or the timeout elapsed first. Modifications whose write
+     * failed stay queued and are retried.
+     *
+     * @throws InterruptedException If the current thread is interrupted while waiting.
+     */
+    public boolean awaitFlushed(long timeoutMillis) throws InterruptedException {
+        GroupCommitWriter groupCommitWriter = getGroupCommitWriter();
+        return groupCommitWriter == null || groupCommitWriter.awaitFlushed(timeoutMillis);
+    }
+
+    /**
+     * Encrypts every entry of the specified plaintext SharedPreferences into this
+     * EncryptedSharedPreferences. The entries are encrypted in parallel and committed in batches.
+     * If the migration is interrupted, calling this method again resumes it after the last
+     * committed batch, unless keys were added to or removed from the source since, in which case
+     * every entry is migrated again. A failed commit stops the migration with a RuntimeException.
+     *
+     * @param source The plaintext SharedPreferences.
+     *
+     * @param options The migration options.
+     *
+     * @param progressListener The listener notified after every committed batch, or {@code null}.
+     */
+    public void migrateFrom(SharedPreferences source, MigrationOptions options,
+                            @Nullable MigrationProgressListener progressListener) {
+        new PlaintextMigrator(this, espSharedPreferences, name).migrate(source, options,
+                progressListener);
+    }
+
+    /**
+     * Asynchronously encrypts every entry of the specified plaintext SharedPreferences into this
+     * EncryptedSharedPreferences. See
+     * {@link #migrateFrom(SharedPreferences, MigrationOptions, MigrationProgressListener)}.
+     *
+     * @param source The plaintext SharedPreferences.
+     *
+     * @param options The migration options.
+     *
+     * @param callback The callback.
+     */
+    public void migrateFromAsync(SharedPreferences source, MigrationOptions options,
+                                 MigrateFromAsyncCallback callback) {
+        Handler handler = new Handler(Looper.myLooper() != null ? Looper.myLooper() :
+                Looper.getMainLooper());
+
+        new Thread(() -> {
+            try {
+                migrateFrom(source, options, (migratedCount, totalCount) ->
+                        handler.post(() -> callback.onProgress(migratedCount, totalCount)));
+                handler.post(callback::onSuccess);
+            } catch (Throwable t) {
+                handler.post(() -> callback.onError(t));
+            }
+        }).start();
+    }
+
+    /**
+     * Writes every preference into the specified stream as an authenticated, chunked backup
+     * archive encrypted with a key derived from the specified passphrase. Preferences are
+     * decrypted and re-encrypted one at a time, so memory usage does not grow with the number of
+     * preferences. Preferences that expire keep their expiry time. The stream is not closed.
+     *
+     * @param outputStream The stream to write the backup archive into.
+     *
+     * @param passphrase The passphrase.
+     *
+     * @throws IOException If an I/O error occurred.
+     */
+    public void exportTo(OutputStream outputStream, char[] passphrase) throws IOException {
+        exportTo(new BackupArchive.Writer(outputStream, passphrase));
+    }
+
+    /**
+     * Writes every preference into the specified stream as an authenticated, chunked backup
+     * archive encrypted with the specified key. See {@link #exportTo(OutputStream, char[])}.
+     *
+     * @param outputStream The stream to write the backup archive into.
+     *
+     * @param key The key. Must be at least 16 bytes long.
+     *
+     * @throws IOException If an I/O error occurred.
+     */
+    public void exportTo(OutputStream outputStream, byte[] key) throws IOException {
+        exportTo(new BackupArchive.Writer(outputStream, key));
+    }
+
+    private void exportTo(BackupArchive.Writer backupArchiveWriter) throws IOException {
+        for (Map.Entry<String, ?> encryptedPreference : getRawAll().entrySet()) {
+            if (checkExpired(encryptedPreference.getValue())) {
+                continue;
+            }
+            if (PrimitivePages.isPageKey(encryptedPreference.getKey())) {
+                for (Map.Entry<String, Object> packedPreference : getPageValues(
+                        encryptedPreference.getKey(), (String) encryptedPreference.getValue())
+                        .entrySet()) {
+                    backupArchiveWriter.writeEntry(packedPreference.getKey(),
+                            packedPreference.getValue());
+                }
+            } else {
+                backupArchiveWriter.writeEntry(getKeyName(encryptedPreference.getKey(),
+                        encryptedPreference.getValue()),
+                        decryptRawValue(encryptedPreference.getValue()),
+                        getExpiresAtMillis(encryptedPreference.getValue()));
+            }
+        }
+        backupArchiveWriter.finish();
+    }
+
+    /**
+     * Reads the preferences from the specified backup archive created by
+     * {@link #exportTo(OutputStream, char[])} and writes them into this EncryptedSharedPreferences
+     * in batches. Existing preferences whose keys are not in the archive are kept. Preferences
+     * that expire are written with their remaining time to live, and skipped if they have expired
+     * already. The stream is not closed.
+     *
+     * @param inputStream The stream to read the backup archive from.
+     *
+     * @param passphrase The passphrase the archive was exported with.
+     *
+     * @throws InvalidBackupException If the archive is corrupted, truncated, or the passphrase is
+     * wrong. Batches read before the problem was detected are already written.
+     *
+     * @throws IOException If an I/O error occurred.
+     */
+    public void importFrom(InputStream inputStream, char[] passphrase) throws IOException {
+        importFrom(new BackupArchive.Reader(inputStream, passphrase));
+    }
+
+    /**
+     * Reads the preferences from the specified backup archive created by
+     * {@link #exportTo(OutputStream, byte[])} and writes them into this EncryptedSharedPreferences
+     * in batches. See {@link #importFrom(InputStream, char[])}.
+     *
+     * @param inputStream The stream to read the backup archive from.
+     *
+     * @param key The key the archive was exported with.
+     *
+     * @throws InvalidBackupException If the archive is corrupted, truncated, or the key is wrong.
+     *
+     * @throws IOException If an I/O error occurred.
+     */
+    public void importFrom(InputStream inputStream, byte[] key) throws IOException {
+        importFrom(new BackupArchive.Reader(inputStream, key));
+    }
+
+    private void importFrom(BackupArchive.Reader backupArchiveReader) throws IOException {
+        Editor editor = edit();
+        int batchCount = 0;
+        BackupArchive.Entry entry;
+        while ((entry = backupArchiveReader.readEntry()) != null) {
+            if (entry.getExpiresAtMillis() == 0) {
+                putValue(editor, entry.getKey(), entry.getValue());
+            } else {
+                long ttlMillis = entry.getExpiresAtMillis() - System.currentTimeMillis();
+                if (ttlMillis <= 0) {
+                    continue;
+                }
+                putExpiringValue(editor, entry.getKey(), entry.getValue(), ttlMillis);
+            }
+            if (++batchCount == IMPORT_BATCH_SIZE) {
+                commitImportBatch(editor);
+                batchCount = 0;
+            }
+        }
+        if (batchCount > 0) {
+            commitImportBatch(editor);
+        }
+    }
+
+    private static void commitImportBatch(SharedPreferences.Editor editor) throws IOException {
+        if (!editor.commit()) {
+            throw new IOException("Failed to commit the imported preferences");
+        }
+    }
+
+    /**
+     * An immutable point-in-time view of an EncryptedSharedPreferences. See {@link #snapshot()}.
+     */
+    public class Snapshot {
+
+        private final Map<String, ?> rawPreferences;
+
+        private final long createdAtMillis = System.currentTimeMillis();
+
+        private final Map<String, Object> values = new ConcurrentHashMap<>();
+
+        private Snapshot(Map<String, ?> rawPreferences) {
+            this.rawPreferences = rawPreferences;
+        }
+
+        /**
+         * Returns the decrypted value of the specified key, or {@code null} if there is none.
+         */
+        @Nullable
+        private Object getValue(String key) {
+            Object value = values.get(key);
+            if (value != null) {
+                return value;
+            }
+            Object encryptedPreferenceValue = getRawValue(key);
+            if (encryptedPreferenceValue != null) {
+                value = decryptRawValue(encryptedPreferenceValue);
+                if (value instanceof Set<?>) {
+                    value = Collections.unmodifiableSet((Set<?>) value);
+                }
+            } else {
+                String pageKey = PrimitivePages.getPageKey(key);
+                Object rawPage = rawPreferences.get(pageKey);
+                if (rawPage != null) {
+                    value = getPageValues(pageKey, (String) rawPage).get(key);
+                }
+            }
+            if (value != null) {
+                values.put(key, value);
+            }
+            return value;
+        }
+
+        /**
+         * Returns the raw value of the specified key, or {@code null} if it is not stored outside
+         * of the primitive pages or had expired when this snapshot was taken.
+         */
+        @Nullable
+        private Object getRawValue(String key) {
+            Object encryptedPreferenceValue;
+            KeyNameHasher keyNameHasher = getKeyNameHasher();
+            if (keyNameHasher == null) {
+                encryptedPreferenceValue = rawPreferences.get(key);
+            } else {
+                String hashedKey = keyNameHasher.hash(key);
+                encryptedPreferenceValue = rawPreferences.get(keyNameHashingEnabled ? hashedKey :
+                        key);
+                if (encryptedPreferenceValue == null) {
+                    encryptedPreferenceValue = rawPreferences.get(keyNameHashingEnabled ? key :
+                            hashedKey);
+                }
+            }
+            return encryptedPreferenceValue != null &&
+                    !isExpired(encryptedPreferenceValue, createdAtMillis) ?
+                    encryptedPreferenceValue : null;
+        }
+
+        private Object read(String key) {
+            long guardStartNanos = MainThreadGuard.begin();
+            Object value = getValue(key);
+            MainThreadGuard.end(guardStartNanos, Operation.READ, name, key);
+            return value;
+        }
+
+        /**
+         * Retrieve all values from the snapshot. The returned map must not be modified.
+         *
+         * @return A map containing a list of pairs key/value representing the preferences.
+         */
+        public Map<String, ?> getAll() {
+            long guardStartNanos = MainThreadGuard.begin();
+            Map<String, Object> decryptedPreferences = new HashMap<>(rawPreferences.size());
+            for (Map.Entry<String, ?> encryptedPreference : rawPreferences.entrySet()) {
+                String rawKey = encryptedPreference.getKey();
+                if (PrimitivePages.isPageKey(rawKey)) {
+                    decryptedPreferences.putAll(getPageValues(rawKey,
+                            (String) encryptedPreference.getValue()));
+                } else if (!isExpired(encryptedPreference.getValue(), createdAtMillis)) {
+                    String key = getKeyName(rawKey, encryptedPreference.getValue());
+                    Object value = values.get(key);
+                    if (value == null) {
+                        value = decryptRawValue(encryptedPreference.getValue());
+                        if (value instanceof Set<?>) {
+                            value = Collections.unmodifiableSet((Set<?>) value);
+                        }
+                        values.put(key, value);
+                    }
+                    decryptedPreferences.put(key, value);
+                }
+            }
+            MainThreadGuard.end(guardStartNanos, Operation.GET_ALL, name, null);
+            return Collections.unmodifiableMap(decryptedPreferences);
+        }
+
+        /**
+         * Retrieve a String value from the snapshot.
+         *
+         * @param key The name of the preference to retrieve.
+         *
+         * @param defValue Value to return if this preference does not exist.
+         *
+         * @return The preference value if it exists, or defValue.
+         *
+         * @throws ClassCastException If there is a preference with this name that is not a
+         * String.
+         */
+        @Nullable
+        public String getString(String key, @Nullable String defValue) {
+            Object value = read(key);
+            return value != null ? (String) value : defValue;
+        }
+
+        /**
+         * Retrieve a set of String values from the snapshot. The returned set must not be
+         * modified.
+         *
+         * @param key The name of the preference to retrieve.
+         *
+         * @param defValues Values to return if this preference does not exist.
+         *
+         * @return The preference values if they exist, or defValues.
+         *
+         * @throws ClassCastException If there is a preference with this name that is not a Set.
+         */
+        @SuppressWarnings("unchecked")
+        @Nullable
+        public Set<String> getStringSet(String key, @Nullable Set<String> defValues) {
+            Object value = read(key);
+            return value != null ? (Set<String>) value : defValues;
+        }
+
+        /**
+         * Retrieve an int value from the snapshot.
+         *
+         * @param key The name of the preference to retrieve.
+         *
+         * @param defValue Value to return if this preference does not exist.
+         *
+         * @return The preference value if it exists, or defValue.
+         *
+         * @throws ClassCastException If there is a preference with this name that is not an
+         * int.
+         */
+        public int getInt(String key, int defValue) {
+            Object value = read(key);
+            return value != null ? (Integer) value : defValue;
+        }
+
+        /**
+         * Retrieve a long value from the snapshot.
+         *
+         * @param key The name of the preference to retrieve.
+         *
+         * @param defValue Value to return if this preference does not exist.
+         *
+         * @return The preference value if it exists, or defValue.
+         *
+         * @throws ClassCastException If there is a preference with this name that is not a long.
+         */
+        public long getLong(String key, long defValue) {
+            Object value = read(key);
+            return value != null ? (Long) value : defValue;
+        }
+
+        /**
+         * Retrieve a float value from the snapshot.
+         *
+         * @param key The name of the preference to retrieve.
+         *
+         * @param defValue Value to return if this preference does not exist.
+         *
+         * @return The preference value if it exists, or defValue.
+         *
+         * @throws ClassCastException If there is a preference with this name that is not a
+         * float.
+         */
+        public float getFloat(String key, float defValue) {
+            Object value = read(key);
+            return value != null ? (Float) value : defValue;
+        }
+
+        /**
+         * Retrieve a boolean value from the snapshot.
+         *
+         * @param key The name of the preference to retrieve.
+         *
+         * @param defValue Value to return if this preference does not exist.
+         *
+         * @return The preference value if it exists, or defValue.
+         *
+         * @throws ClassCastException If there is a preference with this name that is not a
+         * boolean.
+         */
+        public boolean getBoolean(String key, boolean defValue) {
+            Object value = read(key);
+            return value != null ? (Boolean) value : defValue;
+        }
+
+        /**
+         * Retrieve an object value from the snapshot. The decrypted bytes are remembered, but
+         * they are decoded on every call.
+         *
+         * @param key The name of the preference to retrieve.
+         *
+         * @param codec The codec that decodes the value.
+         *
+         * @param defValue Value to return if this preference does not exist.
+         *
+         * @param <T> The type of the value.
+         *
+         * @return The preference value if it exists, or defValue.
+         *
+         * @throws ClassCastException If there is a preference with this name that is not an
+         * object.
+         */
+        @Nullable
+        public <T> T getObject(String key, ObjectCodec<T> codec, @Nullable T defValue) {
+            Object value = read(key);
+            return value != null ? codec.decode((byte[]) value) : defValue;
+        }
+
+        /**
+         * Checks whether the snapshot contains a preference.
+         *
+         * @param key The name of the preference to check.
+         *
+         * @return Returns true if the preference exists in the snapshot, otherwise false.
+         */
+        public boolean contains(String key) {
+            if (getRawValue(key) != null) {
+                return true;
+            }
+            Object rawPage = rawPreferences.get(PrimitivePages.getPageKey(key));
+            return rawPage != null && getPageValues(PrimitivePages.getPageKey(key),
+                    (String) rawPage).containsKey(key);
+        }
+    }
+
     public class Editor implements SharedPreferences.Editor {
 
-        private SharedPreferences.Editor sharedPreferencesEditor = sharedPreferences.edit();
+        private Modifications modifications = new Modifications();
+
+        private Map<String, Object> packedValues = new HashMap<>();
+
+        private synchronized void putRaw(String key, Object rawValue) {
+            modifications.put(key, rawValue);
+            packedValues.remove(key);
+        }
+
+        private synchronized void putPacked(String key, Object value) {
+            modifications.remove(key);
+            packedValues.put(key, value);
+        }
+
+        /**
+         * Takes the pending modifications together with the rewritten primitive pages. The caller
+         * must hold the lock of the primitive pages until the modifications are applied.
+         *
+         * @param rawPreferences The raw preferences to read the pages from, or {@code null} to
+         * read them from the underlying SharedPreferences.
+         */
+        private synchronized Modifications takeModifications(
+                @Nullable Map<String, ?> rawPreferences) {
+            Modifications takenModifications = modifications;
+            resolvePrimitivePages(takenModifications, packedValues, rawPreferences);
+            KeyNameHasher keyNameHasher = getKeyNameHasher();
+            if (keyNameHasher != null) {
+                takenModifications = hashKeyNames(takenModifications, keyNameHasher);
+            }
+            modifications = new Modifications();
+            packedValues = new HashMap<>();
+            return takenModifications;
+        }
 
-        private String createEncryptedValueJson(EncryptedDataAndIv encryptedDataAndIv,
-                                                Class<?> dataClass) {
-            try {
-                JSONObject encryptedValueJsonObject = new JSONObject();
-                encryptedValueJsonObject.put(TYPE, dataClass.getCanonicalName());
-                encryptedValueJsonObject.put(ENCRYPTED_DATA, Base64.encodeToString(
-                        encryptedDataAndIv.getEncryptedData(), DEFAULT));
-                encryptedValueJsonObject.put(IV, Base64.encodeToString(encryptedDataAndIv.getIv(),
-                        DEFAULT));
-                return encryptedValueJsonObject.toString();
-            } catch (JSONException e) {
-                throw new RuntimeException(e);
+        /**
+         * Returns whether the pending modifications rewrite a primitive page. In multi-process
+         * mode, such modifications must be resolved against the latest pages of every process.
+         */
+        private synchronized boolean modifiesPrimitivePages() {
+            if (!packedValues.isEmpty()) {
+                return true;
+            }
+            if (modifications.isCleared()) {
+                return false;
             }
+            for (String key : modifications.getKeys()) {
+                if (getPackedValue(key) != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean isPacking() {
+            return packedPrimitivesEnabled && !isMultiProcess();
         }
 
         /**
@@ -563,12 +3321,9 @@ public class EncryptedSharedPreferences implements SharedPreferences {
         @Override
         public SharedPreferences.Editor putString(String key, @Nullable String value) {
             if (value != null) {
-                EncryptedDataAndIv encryptedDataAndIv = encryptionService.encrypt(value);
-                String encryptedValueJson = createEncryptedValueJson(encryptedDataAndIv,
-                        String.class);
-                sharedPreferencesEditor.putString(key, encryptedValueJson);
+                putRaw(key, createEncryptedStringJson(value));
             } else {
-                sharedPreferencesEditor.putString(key, null);
+                putRaw(key, null);
             }
             return this;
         }
@@ -581,14 +3336,11 @@ public class EncryptedSharedPreferences implements SharedPreferences {
             if (values != null) {
                 Set<String> encryptedValueJsonSet = new HashSet<>(values.size());
                 for (String value : values) {
-                    EncryptedDataAndIv encryptedDataAndIv = encryptionService.encrypt(value);
-                    String encryptedValueJson = createEncryptedValueJson(encryptedDataAndIv,
-                            String.class);
-                    encryptedValueJsonSet.add(encryptedValueJson);
+                    encryptedValueJsonSet.add(createEncryptedStringJson(value));
                 }
-                sharedPreferencesEditor.putStringSet(key, encryptedValueJsonSet);
+                putRaw(key, encryptedValueJsonSet);
             } else {
-                sharedPreferencesEditor.putStringSet(key, null);
+                putRaw(key, null);
             }
             return this;
         }
@@ -598,9 +3350,11 @@ public class EncryptedSharedPreferences implements SharedPreferences {
          */
         @Override
         public SharedPreferences.Editor putInt(String key, int value) {
-            EncryptedDataAndIv encryptedDataAndIv = encryptionService.encrypt(value);
-            String encryptedValueJson = createEncryptedValueJson(encryptedDataAndIv, Integer.class);
-            sharedPreferencesEditor.putString(key, encryptedValueJson);
+            if (isPacking()) {
+                putPacked(key, value);
+            } else {
+                putRaw(key, createEncryptedIntJson(value));
+            }
             return this;
         }
 
@@ -609,9 +3363,11 @@ public class EncryptedSharedPreferences implements SharedPreferences {
          */
         @Override
         public SharedPreferences.Editor putLong(String key, long value) {
-            EncryptedDataAndIv encryptedDataAndIv = encryptionService.encrypt(value);
-            String encryptedValueJson = createEncryptedValueJson(encryptedDataAndIv, Long.class);
-            sharedPreferencesEditor.putString(key, encryptedValueJson);
+            if (isPacking()) {
+                putPacked(key, value);
+            } else {
+                putRaw(key, createEncryptedLongJson(value));
+            }
             return this;
         }
 
@@ -620,9 +3376,11 @@ public class EncryptedSharedPreferences implements SharedPreferences {
          */
         @Override
         public SharedPreferences.Editor putFloat(String key, float value) {
-            EncryptedDataAndIv encryptedDataAndIv = encryptionService.encrypt(value);
-            String encryptedValueJson = createEncryptedValueJson(encryptedDataAndIv, Float.class);
-            sharedPreferencesEditor.putString(key, encryptedValueJson);
+            if (isPacking()) {
+                putPacked(key, value);
+            } else {
+                putRaw(key, createEncryptedFloatJson(value));
+            }
             return this;
         }
 
@@ -631,10 +3389,192 @@ public class EncryptedSharedPreferences implements SharedPreferences {
          */
         @Override
         public SharedPreferences.Editor putBoolean(String key, boolean value) {
-            int intValue = value ? 1 : 0;
-            EncryptedDataAndIv encryptedDataAndIv = encryptionService.encrypt(intValue);
-            String encryptedValueJson = createEncryptedValueJson(encryptedDataAndIv, Boolean.class);
-            sharedPreferencesEditor.putString(key, encryptedValueJson);
+            if (isPacking()) {
+                putPacked(key, value);
+            } else {
+                putRaw(key, createEncryptedBooleanJson(value));
+            }
+            return this;
+        }
+
+        /**
+         * Set an object value in the preferences editor. The value is encoded by the specified
+         * codec and the encoded bytes are encrypted directly.
+         *
+         * @param key The name of the preference to modify.
+         *
+         * @param value The new value for the preference. Passing {@code null} for this argument
+         * is equivalent to calling {@link #remove(String)} with this key.
+         *
+         * @param codec The codec that encodes the value.
+         *
+         * @param <T> The type of the value.
+         *
+         * @return A reference to the same Editor object, so you can chain put calls together.
+         */
+        public <T> SharedPreferences.Editor putObject(String key, @Nullable T value,
+                                                      ObjectCodec<T> codec) {
+            if (value != null) {
+                putRaw(key, createEncryptedBytesJson(codec.encode(value)));
+            } else {
+                putRaw(key, null);
+            }
+            return this;
+        }
+
+        /**
+         * Set a String value in the preferences editor that expires after the specified time.
+         * Expired values are treated as absent and deleted in the background. Values that expire
+         * are never stored in the primitive pages, and their expiry time is stored unencrypted.
+         *
+         * @param key The name of the preference to modify.
+         *
+         * @param value The new value for the preference. Passing {@code null} for this argument
+         * is equivalent to calling {@link #remove(String)} with this key.
+         *
+         * @param ttlMillis The time to live of the value in milliseconds. Measured with the wall
+         * clock, so it survives process restarts.
+         *
+         * @return A reference to the same Editor object, so you can chain put calls together.
+         */
+        public SharedPreferences.Editor putString(String key, @Nullable String value,
+                                                  long ttlMillis) {
+            long expiresAtMillis = toExpiresAtMillis(ttlMillis);
+            if (value != null) {
+                putRaw(key, addExpiry(createEncryptedStringJson(value), key, expiresAtMillis));
+            } else {
+                putRaw(key, null);
+            }
+            return this;
+        }
+
+        /**
+         * Set a set of String values in the preferences editor that expires after the specified
+         * time. See {@link #putString(String, String, long)}.
+         *
+         * @param key The name of the preference to modify.
+         *
+         * @param values The set of new values for the preference. Passing {@code null} for this
+         * argument is equivalent to calling {@link #remove(String)} with this key.
+         *
+         * @param ttlMillis The time to live of the values in milliseconds.
+         *
+         * @return A reference to the same Editor object, so you can chain put calls together.
+         */
+        public SharedPreferences.Editor putStringSet(String key, @Nullable Set<String> values,
+                                                     long ttlMillis) {
+            long expiresAtMillis = toExpiresAtMillis(ttlMillis);
+            if (values != null) {
+                Set<String> encryptedValueJsonSet = new HashSet<>(values.size() + 1);
+                for (String value : values) {
+                    encryptedValueJsonSet.add(createEncryptedStringJson(value));
+                }
+                putRaw(key, addExpiry(encryptedValueJsonSet, key, expiresAtMillis));
+            } else {
+                putRaw(key, null);
+            }
+            return this;
+        }
+
+        /**
+         * Set an int value in the preferences editor that expires after the specified time. See
+         * {@link #putString(String, String, long)}.
+         *
+         * @param key The name of the preference to modify.
+         *
+         * @param value The new value for the preference.
+         *
+         * @param ttlMillis The time to live of the value in milliseconds.
+         *
+         * @return A reference to the same Editor object, so you can chain put calls together.
+         */
+        public SharedPreferences.Editor putInt(String key, int value, long ttlMillis) {
+            putRaw(key, addExpiry(createEncryptedIntJson(value), key,
+                    toExpiresAtMillis(ttlMillis)));
+            return this;
+        }
+
+        /**
+         * Set a long value in the preferences editor that expires after the specified time. See
+         * {@link #putString(String, String, long)}.
+         *
+         * @param key The name of the preference to modify.
+         *
+         * @param value The new value for the preference.
+         *
+         * @param ttlMillis The time to live of the value in milliseconds.
+         *
+         * @return A reference to the same Editor object, so you can chain put calls together.
+         */
+        public SharedPreferences.Editor putLong(String key, long value, long ttlMillis) {
+            putRaw(key, addExpiry(createEncryptedLongJson(value), key,
+                    toExpiresAtMillis(ttlMillis)));
+            return this;
+        }
+
+        /**
+         * Set a float value in the preferences editor that expires after the specified time. See
+         * {@link #putString(String, String, long)}.
+         *
+         * @param key The name of the preference to modify.
+         *
+         * @param value The new value for the preference.
+         *
+         * @param ttlMillis The time to live of the value in milliseconds.
+         *
+         * @return A reference to the same Editor object, so you can chain put calls together.
+         */
+        public SharedPreferences.Editor putFloat(String key, float value, long ttlMillis) {
+            putRaw(key, addExpiry(createEncryptedFloatJson(value), key,
+                    toExpiresAtMillis(ttlMillis)));
+            return this;
+        }
+
+        /**
+         * Set a boolean value in the preferences editor that expires after the specified time.
+         * See {@link #putString(String, String, long)}.
+         *
+         * @param key The name of the preference to modify.
+         *
+         * @param value The new value for the preference.
+         *
+         * @param ttlMillis The time to live of the value in milliseconds.
+         *
+         * @return A reference to the same Editor object, so you can chain put calls together.
+         */
+        public SharedPreferences.Editor putBoolean(String key, boolean value, long ttlMillis) {
+            putRaw(key, addExpiry(createEncryptedBooleanJson(value), key,
+                    toExpiresAtMillis(ttlMillis)));
+            return this;
+        }
+
+        /**
+         * Set an object value in the preferences editor that expires after the specified time.
+         * See {@link #putObject(String, Object, ObjectCodec)} and
+         * {@link #putString(String, String, long)}.
+         *
+         * @param key The name of the preference to modify.
+         *
+         * @param value The new value for the preference. Passing {@code null} for this argument
+         * is equivalent to calling {@link #remove(String)} with this key.
+         *
+         * @param codec The codec that encodes the value.
+         *
+         * @param ttlMillis The time to live of the value in milliseconds.
+         *
+         * @param <T> The type of the value.
+         *
+         * @return A reference to the same Editor object, so you can chain put calls together.
+         */
+        public <T> SharedPreferences.Editor putObject(String key, @Nullable T value,
+                                                      ObjectCodec<T> codec, long ttlMillis) {
+            long expiresAtMillis = toExpiresAtMillis(ttlMillis);
+            if (value != null) {
+                putRaw(key, addExpiry(createEncryptedBytesJson(codec.encode(value)), key,
+                        expiresAtMillis));
+            } else {
+                putRaw(key, null);
+            }
             return this;
         }
 
@@ -643,7 +3583,10 @@ public class EncryptedSharedPreferences implements SharedPreferences {
          */
         @Override
         public SharedPreferences.Editor remove(String key) {
-            sharedPreferencesEditor.remove(key);
+            synchronized (this) {
+                modifications.remove(key);
+                packedValues.remove(key);
+            }
             return this;
         }
 
@@ -652,7 +3595,11 @@ public class EncryptedSharedPreferences implements SharedPreferences {
          */
         @Override
         public SharedPreferences.Editor clear() {
-            sharedPreferencesEditor.clear();
+            synchronized (this) {
+                // Like the puts of other values, the packed values are kept, since clear() is
+                // applied first regardless of the order of the calls
+                modifications.clear();
+            }
             return this;
         }
 
@@ -661,7 +3608,24 @@ public class EncryptedSharedPreferences implements SharedPreferences {
          */
         @Override
         public boolean commit() {
-            return sharedPreferencesEditor.commit();
+            long guardStartNanos = MainThreadGuard.begin();
+            boolean result;
+            synchronized (getPrimitivePages()) {
+                if (isMultiProcess() && modifiesPrimitivePages()) {
+                    result = writeTransaction(this::takeModifications);
+                } else {
+                    Modifications modifications = takeModifications(null);
+                    GroupCommitWriter groupCommitWriter = getGroupCommitWriter();
+                    if (groupCommitWriter != null) {
+                        result = groupCommitWriter.enqueueAndCommit(modifications);
+                    } else {
+                        result = modifications.writeTo(sharedPreferences.edit()).commit();
+                    }
+                    invalidateRawPreferencesSnapshot(name);
+                }
+            }
+            MainThreadGuard.end(guardStartNanos, Operation.COMMIT, name, null);
+            return result;
         }
 
         /**
@@ -669,10 +3633,100 @@ public class EncryptedSharedPreferences implements SharedPreferences {
          */
         @Override
         public void apply() {
-            sharedPreferencesEditor.apply();
+            synchronized (getPrimitivePages()) {
+                if (isMultiProcess() && modifiesPrimitivePages()) {
+                    // Written synchronously, since the pages must be rewritten while holding the
+                    // lock of the preference file
+                    writeTransaction(this::takeModifications);
+                } else {
+                    Modifications modifications = takeModifications(null);
+                    GroupCommitWriter groupCommitWriter = getGroupCommitWriter();
+                    if (groupCommitWriter != null) {
+                        groupCommitWriter.enqueue(modifications);
+                    } else {
+                        modifications.writeTo(sharedPreferences.edit()).apply();
+                    }
+                    invalidateRawPreferencesSnapshot(name);
+                }
+            }
         }
     }
 
+    /**
+     * The listener interface for {@link #enableMainThreadGuard(MainThreadGuardOptions, MainThreadViolationListener)}.
+     */
+    public interface MainThreadViolationListener {
+
+        /**
+         * Called on the main thread after a blocking call took at least the threshold of its
+         * operation.
+         *
+         * @param violation The violation.
+         */
+        void onMainThreadViolation(MainThreadViolation violation);
+    }
+
+    /**
+     * A compression algorithm applied to string values before they are encrypted. See
+     * {@link #enableCompression(int, CompressionCodec)}.
+     */
+    public interface CompressionCodec {
+
+        /**
+         * Returns the name the codec is stored under in every value it compressed. Must only
+         * consist of letters, digits, dots, underscores, and hyphens, and must not change.
+         *
+         * @return The name of the codec.
+         */
+        String getName();
+
+        /**
+         * Compresses the specified data.
+         *
+         * @param data The data.
+         *
+         * @return The compressed data.
+         */
+        byte[] compress(byte[] data);
+
+        /**
+         * Decompresses the specified data.
+         *
+         * @param data The data compressed by {@link #compress(byte[])}.
+         *
+         * @return The decompressed data.
+         */
+        byte[] decompress(byte[] data);
+    }
+
+    /**
+     * Converts object values to and from bytes. See
+     * {@link Editor#putObject(String, Object, ObjectCodec)} and {@link ObjectCodecs} for the
+     * built-in codecs.
+     *
+     * @param <T> The type of the values.
+     */
+    public interface ObjectCodec<T> {
+
+        /**
+         * Encodes the specified value.
+         *
+         * @param value The value.
+         *
+         * @return The encoded value.
+         */
+        byte[] encode(T value);
+
+        /**
+         * Decodes the specified data.
+         *
+         * @param data The data encoded by {@link #encode(Object)}.
+         *
+         * @return The decoded value.
+         */
+        T decode(byte[] data);
+    }
+
     /**
      * The callback interface for
      * {@link #getEncryptedSharedPreferencesAsync(Context, String, GetEncryptedSharedPreferencesAsyncCallback)},
@@ -705,6 +3759,119 @@ public class EncryptedSharedPreferences implements SharedPreferences {
         void onError(Throwable error);
     }
 
+    /**
+     * The listener interface for the progress of
+     * {@link #migrateFrom(SharedPreferences, MigrationOptions, MigrationProgressListener)}.
+     */
+    public interface MigrationProgressListener {
+
+        /**
+         * Called after a batch of entries is committed.
+         *
+         * @param migratedCount The number of entries migrated so far.
+         *
+         * @param totalCount The number of entries in the source SharedPreferences.
+         */
+        void onProgress(int migratedCount, int totalCount);
+    }
+
+    /**
+     * The callback interface for the
+     * {@link #migrateFromAsync(SharedPreferences, MigrationOptions, MigrateFromAsyncCallback)}
+     * method.
+     */
+    public interface MigrateFromAsyncCallback extends MigrationProgressListener {
+
+        /**
+         * Called if the operation is successful.
+         */
+        void onSuccess();
+
+        /**
+         * Called if an error occurred.
+         *
+         * @param error The error.
+         */
+        void onError(Throwable error);
+    }
+
+    /**
+     * The callback interface for the
+     * {@link #rotateEncryptionKeyAsync(Context, KeyRotationOptions, RotateEncryptionKeyAsyncCallback)}
+     * method.
+     */
+    public interface RotateEncryptionKeyAsyncCallback {
+
+        /**
+         * Called if the operation is successful.
+         */
+        void onSuccess();
+
+        /**
+         * Called if the encryption key is lost.
+         *
+         * @param e The exception.
+         */
+        void onPreferencesLost(PreferencesLostException e);
+
+        /**
+         * Called if an error occurred.
+         *
+         * @param error The error.
+         */
+        void onError(Throwable error);
+    }
+
+    /**
+     * The callback interface for {@link #openAllAsync(Context, Collection, OpenAllAsyncCallback)}.
+     */
+    public interface OpenAllAsyncCallback {
+
+        /**
+         * Called if the operation is successful.
+         *
+         * @param encryptedSharedPreferencesByName The EncryptedSharedPreferences instances by
+         * name, in the order of the names.
+         */
+        void onSuccess(Map<String, EncryptedSharedPreferences> encryptedSharedPreferencesByName);
+
+        /**
+         * Called if the encryption key is lost.
+         *
+         * @param e The exception.
+         */
+        void onPreferencesLost(PreferencesLostException e);
+
+        /**
+         * Called if an error occurred.
+         *
+         * @param error The error.
+         */
+        void onError(Throwable error);
+    }
+
+    /**
+     * The callback interface for the
+     * {@link #deleteEncryptedSharedPreferencesAsync(Context, String, DeleteEncryptedSharedPreferencesAsyncCallback)}
+     * method.
+     */
+    public interface DeleteEncryptedSharedPreferencesAsyncCallback {
+
+        /**
+         * Called if the operation is successful.
+         *
+         * @param deleted {@code true} if the EncryptedSharedPreferences was successfully deleted.
+         */
+        void onSuccess(boolean deleted);
+
+        /**
+         * Called if an error occurred.
+         *
+         * @param error The error.
+         */
+        void onError(Throwable error);
+    }
+
     /**
      * The callback interface for the
      * {@link #resetEncryptedSharedPreferencesAsync(Context, ResetEncryptedSharedPreferencesAsyncCallback)}
@@ -0,0 +1,520 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wasisto.encryptedsharedpreferences;
+
+import com.wasisto.androidkeystoreencryption.model.EncryptedDataAndIv;
+
+import java.util.Arrays;
+
+/**
+ * Parses and formats the JSON envelope of an encrypted value, for example
+ * {@code {"type":"java.lang.Integer","encrypted_data":"...","iv":"...","key_version":1}}. String
+ * values that were compressed before encryption also have a {@code "compression"} field holding
+ * the name of the compression codec. Values stored under a hashed key also hold the encrypted key
+ * in the {@code "key_name"} and {@code "key_name_iv"} fields, encrypted with the same key version,
+ * and values that expire hold the expiry time in milliseconds since the epoch in the plaintext
+ * {@code "expires_at"} field. String sets cannot carry extra fields, so they hold the key and the
+ * expiry time in an additional member of the {@link #TYPE_KEY_NAME} type instead.
+ * <p>
+ * Parsing only records the positions of the fields inside the JSON string and decodes the Base64
+ * fields straight from it, and formatting writes into a reused StringBuilder, so neither creates
+ * intermediate objects. Envelopes written by {@link org.json.JSONObject}, which escapes slashes
+ * and line breaks of the Base64 fields, are also accepted.
+ * <p>
+ * {@link #parse(String)} returns a thread-local instance that is only valid until the next call
+ * on the same thread.
+ */
+final class EncryptedValueEnvelope {
+
+    static final int TYPE_UNKNOWN = -1;
+    static final int TYPE_STRING = 0;
+    static final int TYPE_INT = 1;
+    static final int TYPE_LONG = 2;
+    static final int TYPE_FLOAT = 3;
+    static final int TYPE_BOOLEAN = 4;
+    static final int TYPE_BYTES = 5;
+    static final int TYPE_KEY_NAME = 6;
+
+    private static final String[] TYPE_NAMES = {
+            String.class.getCanonicalName(),
+            Integer.class.getCanonicalName(),
+            Long.class.getCanonicalName(),
+            Float.class.getCanonicalName(),
+            Boolean.class.getCanonicalName(),
+            byte[].class.getCanonicalName(),
+            "com.wasisto.encryptedsharedpreferences.KeyName"
+    };
+
+    private static final String TYPE = "type";
+    private static final String ENCRYPTED_DATA = "encrypted_data";
+    private static final String IV = "iv";
+    private static final String KEY_VERSION = "key_version";
+    private static final String COMPRESSION = "compression";
+    private static final String KEY_NAME = "key_name";
+    private static final String KEY_NAME_IV = "key_name_iv";
+    private static final String EXPIRES_AT = "expires_at";
+
+    private static final char[] BASE64_ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private static final byte[] BASE64_VALUES = new byte[128];
+
+    static {
+        Arrays.fill(BASE64_VALUES, (byte) -1);
+        for (int i = 0; i < BASE64_ALPHABET.length; i++) {
+            BASE64_VALUES[BASE64_ALPHABET[i]] = (byte) i;
+        }
+    }
+
+    private static final ThreadLocal<EncryptedValueEnvelope> envelopes =
+            new ThreadLocal<EncryptedValueEnvelope>() {
+                @Override
+                protected EncryptedValueEnvelope initialValue() {
+                    return new EncryptedValueEnvelope();
+                }
+            };
+
+    private static final ThreadLocal<StringBuilder> stringBuilders =
+            new ThreadLocal<StringBuilder>() {
+                @Override
+                protected StringBuilder initialValue() {
+                    return new StringBuilder(128);
+                }
+            };
+
+    private String json;
+
+    private int type;
+    private int typeStart;
+    private int typeEnd;
+
+    private int encryptedDataStart;
+    private int encryptedDataEnd;
+
+    private int ivStart;
+    private int ivEnd;
+
+    private int keyVersion;
+
+    private int compressionStart;
+    private int compressionEnd;
+
+    private int keyNameStart;
+    private int keyNameEnd;
+
+    private int keyNameIvStart;
+    private int keyNameIvEnd;
+
+    private long expiresAtMillis;
+
+    private int position;
+
+    private EncryptedValueEnvelope() {
+    }
+
+    static String getTypeName(int type) {
+        return TYPE_NAMES[type];
+    }
+
+    /**
+     * Parses the specified envelope into the thread-local instance.
+     */
+    static EncryptedValueEnvelope parse(String json) {
+        EncryptedValueEnvelope envelope = envelopes.get();
+        envelope.reset(json);
+        envelope.parseObject();
+        return envelope;
+    }
+
+    /**
+     * Formats an envelope of an uncompressed value.
+     */
+    static String format(int type, EncryptedDataAndIv encryptedDataAndIv, int keyVersion) {
+        return format(type, encryptedDataAndIv, keyVersion, null);
+    }
+
+    /**
+     * Formats an envelope.
+     *
+     * @param compression The name of the codec the value was compressed with, or {@code null} if
+     * it is not compressed. Must not need escaping in JSON.
+     */
+    static String format(int type, EncryptedDataAndIv encryptedDataAndIv, int keyVersion,
+                         String compression) {
+        StringBuilder stringBuilder = stringBuilders.get();
+        stringBuilder.setLength(0);
+        stringBuilder.append("{\"").append(TYPE).append("\":\"").append(TYPE_NAMES[type])
+                .append("\",\"").append(ENCRYPTED_DATA).append("\":\"");
+        appendBase64(stringBuilder, encryptedDataAndIv.getEncryptedData());
+        stringBuilder.append("\",\"").append(IV).append("\":\"");
+        appendBase64(stringBuilder, encryptedDataAndIv.getIv());
+        stringBuilder.append('"');
+        if (keyVersion != KeyRing.KEYSTORE_KEY_VERSION) {
+            stringBuilder.append(",\"").append(KEY_VERSION).append("\":").append(keyVersion);
+        }
+        if (compression != null) {
+            stringBuilder.append(",\"").append(COMPRESSION).append("\":\"").append(compression)
+                    .append('"');
+        }
+        stringBuilder.append('}');
+        return stringBuilder.toString();
+    }
+
+    /**
+     * Returns the specified envelope with the specified encrypted key added.
+     */
+    static String withKeyName(String json, EncryptedDataAndIv encryptedKeyNameAndIv) {
+        StringBuilder stringBuilder = stringBuilders.get();
+        stringBuilder.setLength(0);
+        stringBuilder.append(json, 0, json.lastIndexOf('}'))
+                .append(",\"").append(KEY_NAME).append("\":\"");
+        appendBase64(stringBuilder, encryptedKeyNameAndIv.getEncryptedData());
+        stringBuilder.append("\",\"").append(KEY_NAME_IV).append("\":\"");
+        appendBase64(stringBuilder, encryptedKeyNameAndIv.getIv());
+        stringBuilder.append("\"}");
+        return stringBuilder.toString();
+    }
+
+    /**
+     * Returns the specified envelope with the specified expiry time added.
+     */
+    static String withExpiry(String json, long expiresAtMillis) {
+        StringBuilder stringBuilder = stringBuilders.get();
+        stringBuilder.setLength(0);
+        stringBuilder.append(json, 0, json.lastIndexOf('}'))
+                .append(",\"").append(EXPIRES_AT).append("\":").append(expiresAtMillis)
+                .append('}');
+        return stringBuilder.toString();
+    }
+
+    int getType() {
+        return type;
+    }
+
+    int getKeyVersion() {
+        return keyVersion;
+    }
+
+    /**
+     * Returns the expiry time in milliseconds since the epoch, or {@code 0} if the value does not
+     * expire.
+     */
+    long getExpiresAtMillis() {
+        return expiresAtMillis;
+    }
+
+    /**
+     * Returns the name of the codec the value was compressed with, or {@code null} if it is not
+     * compressed.
+     */
+    String getCompression() {
+        return compressionStart >= 0 ? json.substring(compressionStart, compressionEnd) : null;
+    }
+
+    /**
+     * @throws ClassCastException If the value is not of the specified type.
+     */
+    void checkType(int expectedType) {
+        if (type != expectedType) {
+            throw new ClassCastException(json.substring(typeStart, typeEnd) +
+                    " cannot be cast to " + TYPE_NAMES[expectedType]);
+        }
+    }
+
+    /**
+     * @throws RuntimeException If the value is not of a supported type.
+     */
+    void checkSupportedType() {
+        if (type == TYPE_UNKNOWN || type == TYPE_KEY_NAME) {
+            throw new RuntimeException("Unsupported value type. valueType: " +
+                    json.substring(typeStart, typeEnd));
+        }
+    }
+
+    /**
+     * Returns the length in bytes of the encrypted data without decoding it.
+     */
+    int getEncryptedDataLength() {
+        return countBase64Digits(json, encryptedDataStart, encryptedDataEnd) * 6 / 8;
+    }
+
+    /**
+     * Returns the length in bytes of the IV without decoding it.
+     */
+    int getIvLength() {
+        return countBase64Digits(json, ivStart, ivEnd) * 6 / 8;
+    }
+
+    EncryptedDataAndIv toEncryptedDataAndIv() {
+        EncryptedDataAndIv encryptedDataAndIv = new EncryptedDataAndIv();
+        encryptedDataAndIv.setEncryptedData(decodeBase64(json, encryptedDataStart,
+                encryptedDataEnd));
+        encryptedDataAndIv.setIv(decodeBase64(json, ivStart, ivEnd));
+        return encryptedDataAndIv;
+    }
+
+    /**
+     * Returns the encrypted key, or {@code null} if the envelope does not hold one.
+     */
+    EncryptedDataAndIv toEncryptedKeyNameAndIv() {
+        if (keyNameStart < 0 || keyNameIvStart < 0) {
+            return null;
+        }
+        EncryptedDataAndIv encryptedKeyNameAndIv = new EncryptedDataAndIv();
+        encryptedKeyNameAndIv.setEncryptedData(decodeBase64(json, keyNameStart, keyNameEnd));
+        encryptedKeyNameAndIv.setIv(decodeBase64(json, keyNameIvStart, keyNameIvEnd));
+        return encryptedKeyNameAndIv;
+    }
+
+    private void reset(String json) {
+        this.json = json;
+        type = TYPE_UNKNOWN;
+        typeStart = typeEnd = 0;
+        encryptedDataStart = encryptedDataEnd = -1;
+        ivStart = ivEnd = -1;
+        keyVersion = KeyRing.KEYSTORE_KEY_VERSION;
+        compressionStart = compressionEnd = -1;
+        keyNameStart = keyNameEnd = -1;
+        keyNameIvStart = keyNameIvEnd = -1;
+        expiresAtMillis = 0;
+        position = 0;
+    }
+
+    private RuntimeException malformed() {
+        return new RuntimeException("Malformed encrypted value at index " + position + ": " +
+                json);
+    }
+
+    private void skipWhitespace() {
+        while (position < json.length() && json.charAt(position) <= ' ') {
+            position++;
+        }
+    }
+
+    private void expect(char c) {
+        skipWhitespace();
+        if (position >= json.length() || json.charAt(position) != c) {
+            throw malformed();
+        }
+        position++;
+    }
+
+    /**
+     * Skips a JSON string starting at the current position and returns the index of its closing
+     * quote. The content start is the current position plus one.
+     */
+    private int skipString() {
+        expect('"');
+        while (position < json.length()) {
+            char c = json.charAt(position);
+            if (c == '\\') {
+                position += 2;
+            } else if (c == '"') {
+                return position++;
+            } else {
+                position++;
+            }
+        }
+        throw malformed();
+    }
+
+    private boolean fieldNameEquals(int start, int end, String name) {
+        return end - start == name.length() && json.regionMatches(start, name, 0, name.length());
+    }
+
+    private void parseObject() {
+        expect('{');
+        skipWhitespace();
+        if (position < json.length() && json.charAt(position) == '}') {
+            position++;
+        } else {
+            do {
+                skipWhitespace();
+                int nameStart = position + 1;
+                int nameEnd = skipString();
+                expect(':');
+                skipWhitespace();
+                parseField(nameStart, nameEnd);
+                skipWhitespace();
+                if (position >= json.length()) {
+                    throw malformed();
+                }
+            } while (json.charAt(position++) == ',');
+            if (json.charAt(position - 1) != '}') {
+                throw malformed();
+            }
+        }
+        if (encryptedDataStart < 0 || ivStart < 0 || typeEnd == 0) {
+            throw malformed();
+        }
+    }
+
+    private void parseField(int nameStart, int nameEnd) {
+        if (fieldNameEquals(nameStart, nameEnd, TYPE)) {
+            typeStart = position + 1;
+            typeEnd = skipString();
+            type = TYPE_UNKNOWN;
+            for (int i = 0; i < TYPE_NAMES.length; i++) {
+                if (fieldNameEquals(typeStart, typeEnd, TYPE_NAMES[i])) {
+                    type = i;
+                    break;
+                }
+            }
+        } else if (fieldNameEquals(nameStart, nameEnd, ENCRYPTED_DATA)) {
+            encryptedDataStart = position + 1;
+            encryptedDataEnd = skipString();
+        } else if (fieldNameEquals(nameStart, nameEnd, IV)) {
+            ivStart = position + 1;
+            ivEnd = skipString();
+        } else if (fieldNameEquals(nameStart, nameEnd, KEY_VERSION)) {
+            keyVersion = (int) parseLong();
+        } else if (fieldNameEquals(nameStart, nameEnd, COMPRESSION)) {
+            compressionStart = position + 1;
+            compressionEnd = skipString();
+        } else if (fieldNameEquals(nameStart, nameEnd, KEY_NAME)) {
+            keyNameStart = position + 1;
+            keyNameEnd = skipString();
+        } else if (fieldNameEquals(nameStart, nameEnd, KEY_NAME_IV)) {
+            keyNameIvStart = position + 1;
+            keyNameIvEnd = skipString();
+        } else if (fieldNameEquals(nameStart, nameEnd, EXPIRES_AT)) {
+            expiresAtMillis = parseLong();
+        } else {
+            skipValue();
+        }
+    }
+
+    private long parseLong() {
+        skipWhitespace();
+        boolean negative = position < json.length() && json.charAt(position) == '-';
+        if (negative) {
+            position++;
+        }
+        int start = position;
+        long value = 0;
+        while (position < json.length()) {
+            char c = json.charAt(position);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            value = value * 10 + (c - '0');
+            position++;
+        }
+        if (position == start) {
+            throw malformed();
+        }
+        return negative ? -value : value;
+    }
+
+    private void skipValue() {
+        if (json.charAt(position) == '"') {
+            skipString();
+        } else {
+            while (position < json.length()) {
+                char c = json.charAt(position);
+                if (c == ',' || c == '}' || c <= ' ') {
+                    break;
+                }
+                if (c == '{' || c == '[' || c == '"') {
+                    throw malformed();
+                }
+                position++;
+            }
+        }
+    }
+
+    private static void appendBase64(StringBuilder stringBuilder, byte[] data) {
+        int i = 0;
+        for (; i + 3 <= data.length; i += 3) {
+            int bits = (data[i] & 0xff) << 16 | (data[i + 1] & 0xff) << 8 | data[i + 2] & 0xff;
+            stringBuilder.append(BASE64_ALPHABET[bits >>> 18])
+                    .append(BASE64_ALPHABET[bits >>> 12 & 0x3f])
+                    .append(BASE64_ALPHABET[bits >>> 6 & 0x3f])
+                    .append(BASE64_ALPHABET[bits & 0x3f]);
+        }
+        int remaining = data.length - i;
+        if (remaining == 1) {
+            int bits = (data[i] & 0xff) << 16;
+            stringBuilder.append(BASE64_ALPHABET[bits >>> 18])
+                    .append(BASE64_ALPHABET[bits >>> 12 & 0x3f])
+                    .append("==");
+        } else if (remaining == 2) {
+            int bits = (data[i] & 0xff) << 16 | (data[i + 1] & 0xff) << 8;
+            stringBuilder.append(BASE64_ALPHABET[bits >>> 18])
+                    .append(BASE64_ALPHABET[bits >>> 12 & 0x3f])
+                    .append(BASE64_ALPHABET[bits >>> 6 & 0x3f])
+                    .append('=');
+        }
+    }
+
+    /**
+     * Returns the Base64 digit value of the specified JSON string character, {@code -1} for
+     * characters to skip, or {@code -2} for padding. If the character is a backslash, the escaped
+     * character decides: escaped slashes are decoded and escaped line breaks are skipped.
+     */
+    private static int base64Value(char c, char escaped) {
+        if (c == '\\') {
+            c = escaped == '/' ? '/' : ' ';
+        }
+        if (c == '=') {
+            return -2;
+        }
+        if (c >= 128 || BASE64_VALUES[c] < 0) {
+            if (c <= ' ') {
+                return -1;
+            }
+            throw new RuntimeException("Invalid Base64 character: " + c);
+        }
+        return BASE64_VALUES[c];
+    }
+
+    private static int countBase64Digits(String json, int start, int end) {
+        int digitCount = 0;
+        for (int i = start; i < end; i++) {
+            char c = json.charAt(i);
+            int value = base64Value(c, c == '\\' ? json.charAt(++i) : 0);
+            if (value == -2) {
+                break;
+            } else if (value >= 0) {
+                digitCount++;
+            }
+        }
+        return digitCount;
+    }
+
+    static byte[] decodeBase64(String json, int start, int end) {
+        byte[] data = new byte[countBase64Digits(json, start, end) * 6 / 8];
+        int bits = 0;
+        int bitCount = 0;
+        int dataIndex = 0;
+        for (int i = start; i < end && dataIndex < data.length; i++) {
+            char c = json.charAt(i);
+            int value = base64Value(c, c == '\\' ? json.charAt(++i) : 0);
+            if (value == -2) {
+                break;
+            } else if (value >= 0) {
+                bits = bits << 6 | value;
+                bitCount += 6;
+                if (bitCount >= 8) {
+                    bitCount -= 8;
+                    data[dataIndex++] = (byte) (bits >>> bitCount);
+                }
+            }
+        }
+        return data;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.wasisto.encryptedsharedpreferences;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Rate limits the background sweeps that delete expired preferences. At most one sweep per
+ * EncryptedSharedPreferences runs at a time, and a new one starts at most once per
+ * {@link #MIN_SWEEP_INTERVAL_MILLIS}. Sweeps run one batch at a time on a single sweep thread.
+ */
+final class ExpirySweeper {
+
+    static final long MIN_SWEEP_INTERVAL_MILLIS = 60 * 1000;
+
+    private final Map<String, Long> sweepStartMillisByName = new HashMap<>();
+
+    private final Set<String> sweepingNames = new HashSet<>();
+
+    private Handler handler;
+
+    /**
+     * Starts a sweep of the EncryptedSharedPreferences with the specified name if allowed.
+     *
+     * @param nowMillis The current time of a monotonic clock.
+     *
+     * @return {@code true} if the sweep may run, in which case {@link #end(String)} must be called
+     * once it is done.
+     */
+    synchronized boolean tryBegin(String name, long nowMillis) {
+        if (sweepingNames.contains(name)) {
+            return false;
+        }
+        Long sweepStartMillis = sweepStartMillisByName.get(name);
+        if (sweepStartMillis != null && nowMillis - sweepStartMillis < MIN_SWEEP_INTERVAL_MILLIS) {
+            return false;
+        }
+        sweepStartMillisByName.put(name, nowMillis);
+        sweepingNames.add(name);
+        return true;
+    }
+
+    synchronized void end(String name) {
+        sweepingNames.remove(name);
+    }
+
+    /**
+     * Runs the specified batch of a sweep on the sweep thread.
+     */
+    synchronized void post(Runnable batch) {
+        if (handler == null) {
+            HandlerThread handlerThread =
+                    new HandlerThread("EncryptedSharedPreferences-ExpirySweep");
+            handlerThread.start();
+            handler = new Handler(handlerThread.getLooper());
+        }
+        handler.post(batch);
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wasisto.encryptedsharedpreferences;
+
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import com.wasisto.encryptedsharedpreferences.model.GroupCommitMetrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Merges the modifications of every {@code apply()} call made on one underlying SharedPreferences
+ * within a time window into a single write.
+ */
+final class GroupCommitWriter {
+
+    private static HandlerThread handlerThread;
+
+    private static long flushCount;
+    private static long mergedApplyCount;
+    private static int maxBatchSize;
+
+    private final SharedPreferences sharedPreferences;
+
+    private final Handler handler;
+
+    private final long windowMillis;
+
+    private final Object writeLock = new Object();
+
+    private final Runnable flushRunnable = this::writePendingModifications;
+
+    private Modifications pendingModifications;
+    private Modifications inFlightModifications;
+
+    private int pendingApplyCount;
+
+    private long enqueuedGeneration;
+    private long writtenGeneration;
+
+    private long failedWriteCount;
+
+    GroupCommitWriter(SharedPreferences sharedPreferences, long windowMillis) {
+        this.sharedPreferences = sharedPreferences;
+        this.windowMillis = windowMillis;
+        handler = new Handler(getHandlerThread().getLooper());
+    }
+
+    private static synchronized HandlerThread getHandlerThread() {
+        if (handlerThread == null) {
+            handlerThread = new HandlerThread("EncryptedSharedPreferences-GroupCommit");
+            handlerThread.start();
+        }
+        return handlerThread;
+    }
+
+    static synchronized GroupCommitMetrics getMetrics() {
+        GroupCommitMetrics metrics = new GroupCommitMetrics();
+        metrics.setFlushCount(flushCount);
+        metrics.setMergedApplyCount(mergedApplyCount);
+        metrics.setSavedWriteCount(mergedApplyCount - flushCount);
+        metrics.setMaxBatchSize(maxBatchSize);
+        metrics.setAverageBatchSize(flushCount > 0 ? (float) mergedApplyCount / flushCount : 0f);
+        return metrics;
+    }
+
+    private static synchronized void recordFlush(int applyCount) {
+        flushCount++;
+        mergedApplyCount += applyCount;
+        maxBatchSize = Math.max(maxBatchSize, applyCount);
+    }
+
+    /**
+     * Queues the specified modifications. They will be written when the current window elapses.
+     */
+    synchronized void enqueue(Modifications modifications) {
+        boolean flushScheduled = pendingModifications != null;
+        if (!flushScheduled) {
+            pendingModifications = new Modifications();
+        }
+        pendingModifications.merge(modifications);
+        pendingApplyCount++;
+        enqueuedGeneration++;
+        if (!flushScheduled) {
+            handler.postDelayed(flushRunnable, windowMillis);
+        }
+    }
+
+    /**
+     * Queues the specified modifications and synchronously writes them together with every other
+     * pending modification.
+     *
+     * @return {@code true} if the new values were successfully written to persistent storage.
+     */
+    boolean enqueueAndCommit(Modifications modifications) {
+        enqueue(modifications);
+        return writePendingModifications();
+    }
+
+    /**
+     * Starts writing the pending modifications without waiting for the current window to elapse.
+     */
+    void flush() {
+        handler.removeCallbacks(flushRunnable);
+        handler.post(flushRunnable);
+    }
+
+    /**
+     * Flushes the pending modifications and waits until they are written.
+     *
+     * @return {@code true} if every modification queued before this call has been written,
+     * {@code false} if a write failed or the timeout elapsed first.
+     */
+    boolean awaitFlushed(long timeoutMillis) throws InterruptedException {
+        long deadline = SystemClock.uptimeMillis() + timeoutMillis;
+        synchronized (this) {
+            long targetGeneration = enqueuedGeneration;
+            long initialFailedWriteCount = failedWriteCount;
+            flush();
+            while (writtenGeneration < targetGeneration) {
+                if (failedWriteCount != initialFailedWriteCount) {
+                    return false;
+                }
+                long remainingMillis = deadline - SystemClock.uptimeMillis();
+                if (remainingMillis <= 0) {
+                    return false;
+                }
+                wait(remainingMillis);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Drops the pending modifications without writing them and waits for an in-flight write to
+     * finish.
+     */
+    void discard() {
+        synchronized (writeLock) {
+            synchronized (this) {
+                handler.removeCallbacks(flushRunnable);
+                pendingModifications = null;
+                pendingApplyCount = 0;
+                writtenGeneration = enqueuedGeneration;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Writes the pending modifications. If the write fails, the modifications are queued again
+     * under the modifications enqueued since, and retried when the next window elapses.
+     *
+     * @return {@code true} if every modification pending when the write started, including those
+     * of a write that failed before, was successfully written to persistent storage.
+     */
+    private boolean writePendingModifications() {
+        synchronized (writeLock) {
+            Modifications modifications;
+            int applyCount;
+            long generation;
+            synchronized (this) {
+                handler.removeCallbacks(flushRunnable);
+                if (pendingModifications == null) {
+                    return true;
+                }
+                modifications = pendingModifications;
+                applyCount = pendingApplyCount;
+                generation = enqueuedGeneration;
+                inFlightModifications = modifications;
+                pendingModifications = null;
+                pendingApplyCount = 0;
+            }
+            boolean result = modifications.writeTo(sharedPreferences.edit()).commit();
+            if (result) {
+                recordFlush(applyCount);
+            }
+            synchronized (this) {
+                inFlightModifications = null;
+                if (result) {
+                    writtenGeneration = generation;
+                } else {
+                    failedWriteCount++;
+                    requeue(modifications, applyCount);
+                }
+                notifyAll();
+            }
+            return result;
+        }
+    }
+
+    private void requeue(Modifications modifications, int applyCount) {
+        if (pendingModifications != null) {
+            modifications.merge(pendingModifications);
+        } else {
+            handler.postDelayed(flushRunnable, windowMillis);
+        }
+        pendingModifications = modifications;
+        pendingApplyCount += applyCount;
+    }
+
+    private Object lookup(String key) {
+        if (pendingModifications != null) {
+            Object rawValue = pendingModifications.lookup(key);
+            if (rawValue != null) {
+                return rawValue;
+            }
+        }
+        if (inFlightModifications != null) {
+            return inFlightModifications.lookup(key);
+        }
+        return null;
+    }
+
+    synchronized String getString(String key) {
+        Object rawValue = lookup(key);
+        if (rawValue == null) {
+            return sharedPreferences.getString(key, null);
+        }
+        return rawValue != Modifications.REMOVED ? (String) rawValue : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    synchronized Set<String> getStringSet(String key) {
+        Object rawValue = lookup(key);
+        if (rawValue == null) {
+            return sharedPreferences.getStringSet(key, null);
+        }
+        return rawValue != Modifications.REMOVED ? (Set<String>) rawValue : null;
+    }
+
+    synchronized boolean contains(String key) {
+        Object rawValue = lookup(key);
+        if (rawValue == null) {
+            return sharedPreferences.contains(key);
+        }
+        return rawValue != Modifications.REMOVED;
+    }
+
+    synchronized Map<String, ?> getAll() {
+        Map<String, Object> rawPreferences = new HashMap<>(sharedPreferences.getAll());
+        if (inFlightModifications != null) {
+            inFlightModifications.applyTo(rawPreferences);
+        }
+        if (pendingModifications != null) {
+            pendingModifications.applyTo(rawPreferences);
+        }
+        return rawPreferences;
+    }
+}
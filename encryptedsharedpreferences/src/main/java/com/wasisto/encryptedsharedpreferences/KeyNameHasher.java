@@ -0,0 +1,223 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.wasisto.encryptedsharedpreferences;
+
+import android.util.Base64;
+
+import com.wasisto.androidkeystoreencryption.EncryptionService;
+import com.wasisto.androidkeystoreencryption.model.EncryptedDataAndIv;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import static android.util.Base64.DEFAULT;
+import static android.util.Base64.NO_WRAP;
+
+/**
+ * Hashes preference keys for the hashed key name mode. A hashed key is {@link #HASHED_KEY_PREFIX}
+ * followed by the hex encoded first 128 bits of the HMAC-SHA256 of the key. The HMAC key is a
+ * random key stored in the key preferences wrapped by the Android KeyStore key. The key
+ * preferences are shared by every process, and the HMAC key is stored while holding their file
+ * lock only if no other process has stored one, so every process hashes with the same key.
+ * <p>
+ * Every key hashed in this process is remembered together with its hash, so the reverse index
+ * from hashed keys to keys fills up as keys are read, written, and enumerated.
+ */
+final class KeyNameHasher {
+
+    static final String HASHED_KEY_PREFIX = "com.wasisto.encryptedsharedpreferences.key.";
+
+    private static final String PREFERENCE_KEY_NAME_HASH_KEY = "keyNameHashKey";
+
+    private static final String ENCRYPTED_DATA = "encrypted_data";
+    private static final String IV = "iv";
+
+    private static final int KEY_LENGTH = 32;
+    private static final int HASH_LENGTH = 16;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static volatile KeyNameHasher instance;
+
+    private static final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                return Mac.getInstance("HmacSHA256");
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    private final SecretKey key;
+
+    private final Map<String, String> hashedKeys = new ConcurrentHashMap<>();
+
+    private final Map<String, String> keyNames = new ConcurrentHashMap<>();
+
+    KeyNameHasher(byte[] key) {
+        this.key = new SecretKeySpec(key, "HmacSHA256");
+    }
+
+    /**
+     * Returns the hasher, creating and storing its key first if it does not exist and
+     * {@code create} is {@code true}.
+     *
+     * @return The hasher, or {@code null} if its key does not exist and {@code create} is
+     * {@code false}.
+     */
+    static KeyNameHasher getInstance(MultiProcessSharedPreferences keySharedPreferences,
+                                     EncryptionService encryptionService, boolean create) {
+        KeyNameHasher keyNameHasher = instance;
+        if (keyNameHasher != null || (!create &&
+                !keySharedPreferences.contains(PREFERENCE_KEY_NAME_HASH_KEY))) {
+            return keyNameHasher;
+        }
+        synchronized (KeyNameHasher.class) {
+            return loadInstance(keySharedPreferences, encryptionService, create);
+        }
+    }
+
+    private static KeyNameHasher loadInstance(MultiProcessSharedPreferences keySharedPreferences,
+                                              EncryptionService encryptionService,
+                                              boolean create) {
+        if (instance == null) {
+            String wrappedKeyJson = keySharedPreferences.getString(PREFERENCE_KEY_NAME_HASH_KEY,
+                    null);
+            try {
+                if (wrappedKeyJson == null && create) {
+                    byte[] keyBytes = new byte[KEY_LENGTH];
+                    new SecureRandom().nextBytes(keyBytes);
+                    EncryptedDataAndIv wrappedKey = encryptionService.encrypt(
+                            Base64.encodeToString(keyBytes, NO_WRAP));
+                    JSONObject wrappedKeyJsonObject = new JSONObject();
+                    wrappedKeyJsonObject.put(ENCRYPTED_DATA, Base64.encodeToString(
+                            wrappedKey.getEncryptedData(), DEFAULT));
+                    wrappedKeyJsonObject.put(IV, Base64.encodeToString(wrappedKey.getIv(),
+                            DEFAULT));
+                    String newWrappedKeyJson = wrappedKeyJsonObject.toString();
+                    boolean written = keySharedPreferences.writeTransaction(keyPreferences -> {
+                        if (keyPreferences.containsKey(PREFERENCE_KEY_NAME_HASH_KEY)) {
+                            return null;
+                        }
+                        Modifications modifications = new Modifications();
+                        modifications.put(PREFERENCE_KEY_NAME_HASH_KEY, newWrappedKeyJson);
+                        return modifications;
+                    });
+                    if (!written) {
+                        throw new RuntimeException("Failed to store the key name hash key");
+                    }
+                    wrappedKeyJson = keySharedPreferences.getString(PREFERENCE_KEY_NAME_HASH_KEY,
+                            null);
+                    if (newWrappedKeyJson.equals(wrappedKeyJson)) {
+                        instance = new KeyNameHasher(keyBytes);
+                        return instance;
+                    }
+                }
+                if (wrappedKeyJson != null) {
+                    JSONObject wrappedKeyJsonObject = new JSONObject(wrappedKeyJson);
+                    EncryptedDataAndIv wrappedKey = new EncryptedDataAndIv();
+                    wrappedKey.setEncryptedData(Base64.decode(wrappedKeyJsonObject.getString(
+                            ENCRYPTED_DATA), DEFAULT));
+                    wrappedKey.setIv(Base64.decode(wrappedKeyJsonObject.getString(IV), DEFAULT));
+                    instance = new KeyNameHasher(Base64.decode(encryptionService.decryptString(
+                            wrappedKey), NO_WRAP));
+                }
+            } catch (JSONException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Forgets the key and the hashed keys. Called after the key preferences are cleared.
+     */
+    static synchronized void reset() {
+        instance = null;
+    }
+
+    /**
+     * Returns whether the specified key of the key preferences belongs to the hasher.
+     */
+    static boolean isKeyNameHasherPreference(String preferenceKey) {
+        return preferenceKey.equals(PREFERENCE_KEY_NAME_HASH_KEY);
+    }
+
+    static boolean isHashedKey(String key) {
+        return key != null && key.startsWith(HASHED_KEY_PREFIX);
+    }
+
+    String hash(String keyName) {
+        String hashedKey = hashedKeys.get(keyName);
+        if (hashedKey == null) {
+            byte[] hash;
+            try {
+                Mac mac = macs.get();
+                mac.init(key);
+                hash = mac.doFinal(keyName.getBytes(UTF_8));
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e);
+            }
+            StringBuilder stringBuilder = new StringBuilder(HASHED_KEY_PREFIX.length() +
+                    HASH_LENGTH * 2).append(HASHED_KEY_PREFIX);
+            for (int i = 0; i < HASH_LENGTH; i++) {
+                stringBuilder.append(HEX_DIGITS[hash[i] >>> 4 & 0xf])
+                        .append(HEX_DIGITS[hash[i] & 0xf]);
+            }
+            hashedKey = stringBuilder.toString();
+            hashedKeys.put(keyName, hashedKey);
+            keyNames.put(hashedKey, keyName);
+        }
+        return hashedKey;
+    }
+
+    /**
+     * Returns the key of the specified hashed key if it has been hashed in this process, or
+     * {@code null} otherwise.
+     */
+    String getKeyName(String hashedKey) {
+        return keyNames.get(hashedKey);
+    }
+
+    /**
+     * Adds the specified key, read from the envelope stored under the specified hashed key, to
+     * the reverse index.
+     *
+     * @throws RuntimeException If the key does not hash to the hashed key.
+     */
+    void putKeyName(String hashedKey, String keyName) {
+        if (!hash(keyName).equals(hashedKey)) {
+            throw new RuntimeException("Key name does not match its hashed key. hashedKey: " +
+                    hashedKey);
+        }
+    }
+}
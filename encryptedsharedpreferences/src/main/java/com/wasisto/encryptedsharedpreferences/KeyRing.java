@@ -0,0 +1,318 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wasisto.encryptedsharedpreferences;
+
+import android.os.Build;
+import android.util.Base64;
+
+import com.wasisto.androidkeystoreencryption.EncryptionService;
+import com.wasisto.androidkeystoreencryption.model.EncryptedDataAndIv;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static android.util.Base64.DEFAULT;
+import static android.util.Base64.NO_WRAP;
+
+/**
+ * The versioned data encryption keys. Version 0 is the Android KeyStore key of
+ * {@link EncryptionService} itself. Every later version is a random AES-256 key that is stored in
+ * the key preferences wrapped by the Android KeyStore key and used with AES-GCM. The key
+ * preferences are shared by every process, and new versions are allocated while holding their
+ * file lock so that two processes never store different keys under the same version.
+ */
+final class KeyRing {
+
+    static final int KEYSTORE_KEY_VERSION = 0;
+
+    private static final String PREFERENCE_ENCRYPTION_KEY_VERSION = "encryptionKeyVersion";
+
+    private static final String PREFERENCE_ENCRYPTION_KEY_PREFIX = "encryptionKey.";
+
+    private static final String ENCRYPTED_DATA = "encrypted_data";
+    private static final String IV = "iv";
+
+    private static final int KEY_LENGTH = 32;
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_LENGTH_BITS = 128;
+
+    private static KeyRing instance;
+
+    private static final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            try {
+                return Cipher.getInstance("AES/GCM/NoPadding");
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    private static final ThreadLocal<byte[]> scratchBuffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[8];
+        }
+    };
+
+    private final MultiProcessSharedPreferences keySharedPreferences;
+
+    private final EncryptionService encryptionService;
+
+    private final SecureRandom secureRandom = new SecureRandom();
+
+    private final Map<Integer, SecretKey> keys = new ConcurrentHashMap<>();
+
+    private KeyRing(MultiProcessSharedPreferences keySharedPreferences,
+                    EncryptionService encryptionService) {
+        this.keySharedPreferences = keySharedPreferences;
+        this.encryptionService = encryptionService;
+    }
+
+    static synchronized KeyRing getInstance(MultiProcessSharedPreferences keySharedPreferences,
+                                            EncryptionService encryptionService) {
+        if (instance == null) {
+            instance = new KeyRing(keySharedPreferences, encryptionService);
+        }
+        return instance;
+    }
+
+    /**
+     * Forgets the cached keys. Called after the key preferences are cleared.
+     */
+    static synchronized void reset() {
+        instance = null;
+    }
+
+    /**
+     * Returns whether the specified key of the key preferences belongs to the key ring.
+     */
+    static boolean isKeyRingPreference(String preferenceKey) {
+        return preferenceKey.equals(PREFERENCE_ENCRYPTION_KEY_VERSION) ||
+                preferenceKey.startsWith(PREFERENCE_ENCRYPTION_KEY_PREFIX);
+    }
+
+    /**
+     * Returns the version of the key new values are encrypted with.
+     */
+    int getCurrentVersion() {
+        return keySharedPreferences.getInt(PREFERENCE_ENCRYPTION_KEY_VERSION,
+                KEYSTORE_KEY_VERSION);
+    }
+
+    void setCurrentVersion(int version) {
+        keySharedPreferences.edit().putInt(PREFERENCE_ENCRYPTION_KEY_VERSION, version).commit();
+    }
+
+    /**
+     * Returns the versions of every stored key, excluding the Android KeyStore key.
+     */
+    TreeSet<Integer> getVersions() {
+        return getVersions(keySharedPreferences.getAll());
+    }
+
+    private static TreeSet<Integer> getVersions(Map<String, ?> keyPreferences) {
+        TreeSet<Integer> versions = new TreeSet<>();
+        for (String preferenceKey : keyPreferences.keySet()) {
+            if (preferenceKey.startsWith(PREFERENCE_ENCRYPTION_KEY_PREFIX)) {
+                versions.add(Integer.parseInt(preferenceKey.substring(
+                        PREFERENCE_ENCRYPTION_KEY_PREFIX.length())));
+            }
+        }
+        return versions;
+    }
+
+    /**
+     * Generates and stores a new key. Its version is allocated from the latest key preferences
+     * while holding their file lock. The current version is not changed.
+     *
+     * @return The version of the new key.
+     */
+    synchronized int createKey() {
+        byte[] keyBytes = new byte[KEY_LENGTH];
+        secureRandom.nextBytes(keyBytes);
+        EncryptedDataAndIv wrappedKey = encryptionService.encrypt(Base64.encodeToString(keyBytes,
+                NO_WRAP));
+        String wrappedKeyJson;
+        try {
+            JSONObject wrappedKeyJsonObject = new JSONObject();
+            wrappedKeyJsonObject.put(ENCRYPTED_DATA, Base64.encodeToString(
+                    wrappedKey.getEncryptedData(), DEFAULT));
+            wrappedKeyJsonObject.put(IV, Base64.encodeToString(wrappedKey.getIv(), DEFAULT));
+            wrappedKeyJson = wrappedKeyJsonObject.toString();
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+
+        int[] version = new int[1];
+        boolean written = keySharedPreferences.writeTransaction(keyPreferences -> {
+            TreeSet<Integer> versions = getVersions(keyPreferences);
+            Integer currentVersion = (Integer) keyPreferences.get(
+                    PREFERENCE_ENCRYPTION_KEY_VERSION);
+            version[0] = Math.max(currentVersion != null ? currentVersion : KEYSTORE_KEY_VERSION,
+                    versions.isEmpty() ? 0 : versions.last()) + 1;
+            Modifications modifications = new Modifications();
+            modifications.put(PREFERENCE_ENCRYPTION_KEY_PREFIX + version[0], wrappedKeyJson);
+            return modifications;
+        });
+        if (!written) {
+            throw new RuntimeException("Failed to store the encryption key. version: " +
+                    version[0]);
+        }
+        keys.put(version[0], new SecretKeySpec(keyBytes, "AES"));
+        return version[0];
+    }
+
+    /**
+     * Deletes the key with the specified version. Values encrypted with it can no longer be
+     * decrypted.
+     */
+    void retireKey(int version) {
+        keys.remove(version);
+        keySharedPreferences.edit().remove(PREFERENCE_ENCRYPTION_KEY_PREFIX + version).commit();
+    }
+
+    private SecretKey getKey(int version) {
+        SecretKey key = keys.get(version);
+        if (key == null) {
+            String wrappedKeyJson = keySharedPreferences.getString(
+                    PREFERENCE_ENCRYPTION_KEY_PREFIX + version, null);
+            if (wrappedKeyJson == null) {
+                throw new RuntimeException("Encryption key not found. version: " + version);
+            }
+            try {
+                JSONObject wrappedKeyJsonObject = new JSONObject(wrappedKeyJson);
+                EncryptedDataAndIv wrappedKey = new EncryptedDataAndIv();
+                wrappedKey.setEncryptedData(Base64.decode(wrappedKeyJsonObject.getString(
+                        ENCRYPTED_DATA), DEFAULT));
+                wrappedKey.setIv(Base64.decode(wrappedKeyJsonObject.getString(IV), DEFAULT));
+                key = new SecretKeySpec(Base64.decode(encryptionService.decryptString(wrappedKey),
+                        NO_WRAP), "AES");
+            } catch (JSONException e) {
+                throw new RuntimeException(e);
+            }
+            keys.put(version, key);
+        }
+        return key;
+    }
+
+    private static AlgorithmParameterSpec createParameterSpec(byte[] iv) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return new GCMParameterSpec(TAG_LENGTH_BITS, iv);
+        } else {
+            return new IvParameterSpec(iv);
+        }
+    }
+
+    EncryptedDataAndIv encrypt(int version, byte[] data) {
+        return encrypt(version, data, data.length);
+    }
+
+    EncryptedDataAndIv encryptInt(int version, int value) {
+        byte[] data = scratchBuffers.get();
+        writeInt(data, value);
+        try {
+            return encrypt(version, data, 4);
+        } finally {
+            Arrays.fill(data, (byte) 0);
+        }
+    }
+
+    EncryptedDataAndIv encryptLong(int version, long value) {
+        byte[] data = scratchBuffers.get();
+        writeInt(data, (int) (value >>> 32));
+        data[4] = (byte) (value >>> 24);
+        data[5] = (byte) (value >>> 16);
+        data[6] = (byte) (value >>> 8);
+        data[7] = (byte) value;
+        try {
+            return encrypt(version, data, 8);
+        } finally {
+            Arrays.fill(data, (byte) 0);
+        }
+    }
+
+    private EncryptedDataAndIv encrypt(int version, byte[] data, int length) {
+        try {
+            byte[] iv = new byte[IV_LENGTH];
+            secureRandom.nextBytes(iv);
+            Cipher cipher = ciphers.get();
+            cipher.init(Cipher.ENCRYPT_MODE, getKey(version), createParameterSpec(iv));
+            EncryptedDataAndIv encryptedDataAndIv = new EncryptedDataAndIv();
+            encryptedDataAndIv.setEncryptedData(cipher.doFinal(data, 0, length));
+            encryptedDataAndIv.setIv(iv);
+            return encryptedDataAndIv;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    byte[] decrypt(int version, EncryptedDataAndIv encryptedDataAndIv) {
+        try {
+            Cipher cipher = ciphers.get();
+            cipher.init(Cipher.DECRYPT_MODE, getKey(version),
+                    createParameterSpec(encryptedDataAndIv.getIv()));
+            return cipher.doFinal(encryptedDataAndIv.getEncryptedData());
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void writeInt(byte[] data, int value) {
+        data[0] = (byte) (value >>> 24);
+        data[1] = (byte) (value >>> 16);
+        data[2] = (byte) (value >>> 8);
+        data[3] = (byte) value;
+    }
+
+    /**
+     * Reads a big-endian int from the first four bytes of the specified array.
+     */
+    static int readInt(byte[] data) {
+        return readInt(data, 0);
+    }
+
+    /**
+     * Reads a big-endian long from the first eight bytes of the specified array.
+     */
+    static long readLong(byte[] data) {
+        return (long) readInt(data, 0) << 32 | readInt(data, 4) & 0xffffffffL;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        if (data.length < offset + 4) {
+            throw new RuntimeException("Decrypted value is too short. length: " + data.length);
+        }
+        return (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16 |
+                (data[offset + 2] & 0xff) << 8 | data[offset + 3] & 0xff;
+    }
+}
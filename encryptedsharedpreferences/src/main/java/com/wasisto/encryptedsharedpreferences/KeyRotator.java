@@ -0,0 +1,111 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wasisto.encryptedsharedpreferences;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.wasisto.androidkeystoreencryption.EncryptionService;
+import com.wasisto.encryptedsharedpreferences.model.KeyRotationOptions;
+
+/**
+ * Re-encrypts every registered EncryptedSharedPreferences with a new key. The target key version
+ * is stored in the metadata preferences before any preference is touched, so an interrupted
+ * rotation resumes with the same key. The old keys are retired only after a pass over every
+ * EncryptedSharedPreferences finds no value encrypted with them.
+ */
+final class KeyRotator {
+
+    private static final String PREFERENCE_KEY_ROTATION_TARGET_VERSION =
+            "keyRotationTargetVersion";
+
+    private final Context context;
+
+    private final SharedPreferences espSharedPreferences;
+
+    private final KeyRing keyRing;
+
+    KeyRotator(Context context, EncryptionService encryptionService) {
+        this.context = context;
+        espSharedPreferences = EncryptedSharedPreferences.getEspSharedPreferences(context);
+        keyRing = KeyRing.getInstance(EncryptedSharedPreferences.getKeySharedPreferences(context),
+                encryptionService);
+    }
+
+    static boolean isInProgress(SharedPreferences espSharedPreferences) {
+        return espSharedPreferences.contains(PREFERENCE_KEY_ROTATION_TARGET_VERSION);
+    }
+
+    void rotate(KeyRotationOptions options) {
+        if (options.getBatchSize() <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive. batchSize: " +
+                    options.getBatchSize());
+        }
+
+        int targetVersion = espSharedPreferences.getInt(PREFERENCE_KEY_ROTATION_TARGET_VERSION,
+                -1);
+        if (targetVersion < 0) {
+            targetVersion = keyRing.createKey();
+            espSharedPreferences.edit().putInt(PREFERENCE_KEY_ROTATION_TARGET_VERSION,
+                    targetVersion).commit();
+        }
+        keyRing.setCurrentVersion(targetVersion);
+
+        boolean verified = false;
+        while (!verified) {
+            verified = reencryptAll(targetVersion, options) == 0;
+        }
+
+        for (int version : keyRing.getVersions()) {
+            if (version != targetVersion) {
+                keyRing.retireKey(version);
+            }
+        }
+
+        espSharedPreferences.edit().remove(PREFERENCE_KEY_ROTATION_TARGET_VERSION).commit();
+    }
+
+    /**
+     * Re-encrypts every registered EncryptedSharedPreferences with the specified key version,
+     * after writing the modifications queued by the group commit writers.
+     *
+     * @return The number of re-encrypted preferences. The old keys may only be retired after a
+     * pass that re-encrypted nothing, since editors that encrypted their values before the
+     * current version changed may commit them while a pass runs.
+     */
+    private int reencryptAll(int targetVersion, KeyRotationOptions options) {
+        EncryptedSharedPreferences.awaitGroupCommitWritersFlushed();
+
+        int reencryptedCount = 0;
+        for (String name : EncryptedSharedPreferences.getEncryptedSharedPreferencesNames(context)) {
+            EncryptedSharedPreferences encryptedSharedPreferences =
+                    EncryptedSharedPreferences.getEncryptedSharedPreferences(context, name);
+            int count;
+            while ((count = encryptedSharedPreferences.reencryptPreferences(targetVersion,
+                    options.getBatchSize())) > 0) {
+                reencryptedCount += count;
+                try {
+                    Thread.sleep(options.getBatchIntervalMillis());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+        return reencryptedCount;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wasisto.encryptedsharedpreferences;
+
+import android.os.Looper;
+
+import com.wasisto.encryptedsharedpreferences.EncryptedSharedPreferences.MainThreadViolationListener;
+import com.wasisto.encryptedsharedpreferences.exception.MainThreadViolationException;
+import com.wasisto.encryptedsharedpreferences.model.MainThreadGuardOptions;
+import com.wasisto.encryptedsharedpreferences.model.MainThreadViolation;
+import com.wasisto.encryptedsharedpreferences.model.MainThreadViolation.Operation;
+
+import java.util.Arrays;
+
+/**
+ * Measures the blocking calls made on the main thread and reports the ones that take longer than
+ * the threshold of their operation. Costs a single volatile read per call while disabled.
+ */
+final class MainThreadGuard {
+
+    private static final String[] GUARDED_CLASS_NAMES = {
+            MainThreadGuard.class.getName(),
+            EncryptedSharedPreferences.class.getName()
+    };
+
+    private static volatile MainThreadGuardOptions options;
+
+    private static volatile MainThreadViolationListener listener;
+
+    private MainThreadGuard() {
+    }
+
+    static synchronized void enable(MainThreadGuardOptions options,
+                                    MainThreadViolationListener listener) {
+        MainThreadGuard.listener = listener;
+        MainThreadGuard.options = options;
+    }
+
+    static synchronized void disable() {
+        options = null;
+        listener = null;
+    }
+
+    /**
+     * Starts measuring a call.
+     *
+     * @return The start time in nanoseconds, or {@code -1} if the call does not need to be
+     * measured.
+     */
+    static long begin() {
+        if (options == null || Looper.myLooper() != Looper.getMainLooper()) {
+            return -1;
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Finishes measuring a call started with {@link #begin()} and reports it if it took at least the
+     * threshold of its operation.
+     *
+     * @throws MainThreadViolationException If the call is reported and {@code throwOnViolation} is
+     * set.
+     */
+    static void end(long startNanos, Operation operation, String preferencesName, String key) {
+        if (startNanos < 0) {
+            return;
+        }
+        long durationNanos = System.nanoTime() - startNanos;
+        MainThreadGuardOptions options = MainThreadGuard.options;
+        MainThreadViolationListener listener = MainThreadGuard.listener;
+        if (options == null) {
+            return;
+        }
+        long thresholdMillis = getThresholdMillis(options, operation);
+        if (thresholdMillis < 0 || durationNanos < thresholdMillis * 1000000) {
+            return;
+        }
+
+        MainThreadViolation violation = new MainThreadViolation();
+        violation.setOperation(operation);
+        violation.setPreferencesName(preferencesName);
+        violation.setKey(key);
+        violation.setDurationMillis(durationNanos / 1000000f);
+        violation.setStackTrace(getCallerStackTrace(new Throwable().getStackTrace()));
+        if (listener != null) {
+            listener.onMainThreadViolation(violation);
+        }
+        if (options.isThrowOnViolation()) {
+            throw new MainThreadViolationException(violation);
+        }
+    }
+
+    private static long getThresholdMillis(MainThreadGuardOptions options, Operation operation) {
+        switch (operation) {
+            case OPEN:
+                return options.getOpenThresholdMillis();
+            case READ:
+                return options.getReadThresholdMillis();
+            case GET_ALL:
+                return options.getGetAllThresholdMillis();
+            default:
+                return options.getCommitThresholdMillis();
+        }
+    }
+
+    /**
+     * Drops the frames of the guard and of EncryptedSharedPreferences, including its nested
+     * classes, from the top of the specified stack trace.
+     */
+    static StackTraceElement[] getCallerStackTrace(StackTraceElement[] stackTrace) {
+        int callSiteIndex = 0;
+        while (callSiteIndex < stackTrace.length &&
+                isGuardedClassName(stackTrace[callSiteIndex].getClassName())) {
+            callSiteIndex++;
+        }
+        return Arrays.copyOfRange(stackTrace, callSiteIndex, stackTrace.length);
+    }
+
+    private static boolean isGuardedClassName(String className) {
+        for (String guardedClassName : GUARDED_CLASS_NAMES) {
+            if (className.equals(guardedClassName) ||
+                    className.startsWith(guardedClassName + "$")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wasisto.encryptedsharedpreferences;
+
+import android.content.SharedPreferences;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A set of pending raw (already encrypted) modifications to an underlying SharedPreferences.
+ */
+final class Modifications {
+
+    static final Object REMOVED = new Object();
+
+    private boolean cleared;
+
+    private Map<String, Object> values = new HashMap<>();
+
+    void put(String key, Object rawValue) {
+        values.put(key, rawValue != null ? rawValue : REMOVED);
+    }
+
+    void remove(String key) {
+        values.put(key, REMOVED);
+    }
+
+    void clear() {
+        cleared = true;
+    }
+
+    boolean isCleared() {
+        return cleared;
+    }
+
+    /**
+     * Returns the keys put or removed by these modifications.
+     */
+    Set<String> getKeys() {
+        return values.keySet();
+    }
+
+    boolean isEmpty() {
+        return !cleared && values.isEmpty();
+    }
+
+    int size() {
+        return values.size();
+    }
+
+    /**
+     * Merges the specified modifications into this one. The specified modifications take
+     * precedence.
+     */
+    void merge(Modifications other) {
+        if (other.cleared) {
+            cleared = true;
+            values.clear();
+        }
+        values.putAll(other.values);
+    }
+
+    /**
+     * Returns the raw value of the specified key, {@link #REMOVED} if the key is removed by these
+     * modifications, or {@code null} if these modifications do not affect the key.
+     */
+    Object lookup(String key) {
+        Object rawValue = values.get(key);
+        if (rawValue != null) {
+            return rawValue;
+        }
+        return cleared ? REMOVED : null;
+    }
+
+    void applyTo(Map<String, Object> rawPreferences) {
+        if (cleared) {
+            rawPreferences.clear();
+        }
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            if (entry.getValue() == REMOVED) {
+                rawPreferences.remove(entry.getKey());
+            } else {
+                rawPreferences.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    SharedPreferences.Editor writeTo(SharedPreferences.Editor sharedPreferencesEditor) {
+        if (cleared) {
+            sharedPreferencesEditor.clear();
+        }
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            Object rawValue = entry.getValue();
+            if (rawValue == REMOVED) {
+                sharedPreferencesEditor.remove(entry.getKey());
+            } else if (rawValue instanceof Set<?>) {
+                sharedPreferencesEditor.putStringSet(entry.getKey(), (Set<String>) rawValue);
+            } else {
+                sharedPreferencesEditor.putString(entry.getKey(), (String) rawValue);
+            }
+        }
+        return sharedPreferencesEditor;
+    }
+}
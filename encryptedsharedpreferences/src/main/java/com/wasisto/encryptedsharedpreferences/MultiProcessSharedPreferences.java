@@ -0,0 +1,321 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wasisto.encryptedsharedpreferences;
+
+import android.content.SharedPreferences;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * A SharedPreferences backed by a {@link MultiProcessStore}, used as the underlying
+ * SharedPreferences of a multi-process EncryptedSharedPreferences. Listeners are notified on the
+ * main thread of changes made by this process and, while at least one listener is registered, of
+ * changes made by other processes.
+ */
+final class MultiProcessSharedPreferences implements SharedPreferences {
+
+    private static final Map<String, MultiProcessSharedPreferences> instances = new HashMap<>();
+
+    private static HandlerThread handlerThread;
+
+    private final MultiProcessStore store;
+
+    private final Handler writeHandler;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final Set<OnSharedPreferenceChangeListener> listeners =
+            Collections.newSetFromMap(new WeakHashMap<>());
+
+    private FileObserver fileObserver;
+
+    private MultiProcessSharedPreferences(MultiProcessStore store) {
+        this.store = store;
+        writeHandler = new Handler(getHandlerThread().getLooper());
+    }
+
+    /**
+     * Returns the instance of this process for the specified file.
+     */
+    static synchronized MultiProcessSharedPreferences getInstance(File file) {
+        try {
+            String path = file.getCanonicalPath();
+            MultiProcessSharedPreferences instance = instances.get(path);
+            if (instance == null) {
+                instance = new MultiProcessSharedPreferences(new MultiProcessStore(file));
+                instances.put(path, instance);
+            }
+            return instance;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static synchronized HandlerThread getHandlerThread() {
+        if (handlerThread == null) {
+            handlerThread = new HandlerThread("EncryptedSharedPreferences-MultiProcess");
+            handlerThread.start();
+        }
+        return handlerThread;
+    }
+
+    /**
+     * Writes the specified raw preferences if the file of this SharedPreferences does not exist
+     * yet.
+     *
+     * @return {@code true} if the preferences were written.
+     */
+    boolean initialize(Map<String, ?> rawPreferences) {
+        try {
+            return store.initialize(rawPreferences);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Deletes the files of the store of the specified file, see {@link MultiProcessStore#delete()}.
+     * The instance of this process is forgotten, so opening the store again creates new files.
+     *
+     * @return {@code true} if the files were deleted.
+     */
+    static synchronized boolean delete(File file) {
+        MultiProcessSharedPreferences instance = getInstance(file);
+        try {
+            instances.remove(file.getCanonicalPath());
+            instance.notifyListeners(instance.store.delete());
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    File getFile() {
+        return store.getFile();
+    }
+
+    /**
+     * See {@link MultiProcessStore#writeTransaction(MultiProcessStore.Transaction)}.
+     *
+     * @return {@code true} if the modifications were written.
+     */
+    boolean writeTransaction(MultiProcessStore.Transaction transaction) {
+        try {
+            notifyListeners(store.writeTransaction(transaction));
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        return new HashMap<>(store.getAll());
+    }
+
+    @Override
+    public String getString(String key, String defValue) {
+        String value = (String) store.get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<String> getStringSet(String key, Set<String> defValues) {
+        Set<String> values = (Set<String>) store.get(key);
+        return values != null ? values : defValues;
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        Integer value = (Integer) store.get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        Long value = (Long) store.get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        Float value = (Float) store.get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        Boolean value = (Boolean) store.get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return store.getAll().containsKey(key);
+    }
+
+    @Override
+    public Editor edit() {
+        return new MultiProcessEditor();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        synchronized (listeners) {
+            listeners.add(listener);
+            if (fileObserver == null) {
+                File file = store.getFile();
+                String fileName = file.getName();
+                fileObserver = new FileObserver(file.getParent(), FileObserver.MOVED_TO) {
+                    @Override
+                    public void onEvent(int event, String path) {
+                        if (fileName.equals(path)) {
+                            notifyListeners(store.refresh());
+                        }
+                    }
+                };
+                fileObserver.startWatching();
+            }
+        }
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        synchronized (listeners) {
+            listeners.remove(listener);
+            if (listeners.isEmpty() && fileObserver != null) {
+                fileObserver.stopWatching();
+                fileObserver = null;
+            }
+        }
+    }
+
+    private void notifyListeners(Set<String> changedKeys) {
+        if (changedKeys.isEmpty()) {
+            return;
+        }
+        List<OnSharedPreferenceChangeListener> listenersCopy;
+        synchronized (listeners) {
+            if (listeners.isEmpty()) {
+                return;
+            }
+            listenersCopy = new ArrayList<>(listeners);
+        }
+        mainHandler.post(() -> {
+            for (String key : changedKeys) {
+                for (OnSharedPreferenceChangeListener listener : listenersCopy) {
+                    listener.onSharedPreferenceChanged(this, key);
+                }
+            }
+        });
+    }
+
+    private boolean writePending() {
+        try {
+            notifyListeners(store.writePending());
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private final class MultiProcessEditor implements Editor {
+
+        private Modifications modifications = new Modifications();
+
+        @Override
+        public Editor putString(String key, String value) {
+            modifications.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putStringSet(String key, Set<String> values) {
+            modifications.put(key, values != null ?
+                    Collections.unmodifiableSet(new HashSet<>(values)) : null);
+            return this;
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            modifications.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            modifications.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            modifications.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            modifications.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor remove(String key) {
+            modifications.remove(key);
+            return this;
+        }
+
+        @Override
+        public Editor clear() {
+            modifications.clear();
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            notifyListeners(store.addPending(takeModifications()));
+            return writePending();
+        }
+
+        @Override
+        public void apply() {
+            notifyListeners(store.addPending(takeModifications()));
+            writeHandler.post(MultiProcessSharedPreferences.this::writePending);
+        }
+
+        private Modifications takeModifications() {
+            Modifications takenModifications = modifications;
+            modifications = new Modifications();
+            return takenModifications;
+        }
+    }
+}
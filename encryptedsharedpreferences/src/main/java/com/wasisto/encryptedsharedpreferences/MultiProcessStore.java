@@ -0,0 +1,477 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wasisto.encryptedsharedpreferences;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A raw preference file that can be shared by several processes. Writers hold an exclusive lock
+ * on a separate version file, replace the data file atomically, and increment the version counter
+ * stored in the version file. Every process maps the version file into memory, so checking
+ * whether another process changed the data is a single memory read, and the data file is only
+ * read again after it changed.
+ * <p>
+ * Modifications are visible in the current process as soon as they are added and are written by
+ * {@link #writePending()}. Values are strings, string sets, integers, longs, floats, or
+ * booleans.
+ */
+final class MultiProcessStore {
+
+    private static final int MAGIC = 0x45535031;
+
+    private static final byte TYPE_STRING = 0;
+    private static final byte TYPE_STRING_SET = 1;
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_FLOAT = 4;
+    private static final byte TYPE_BOOLEAN = 5;
+
+    private static final String VERSION_FILE_EXTENSION = ".version";
+    private static final String TEMPORARY_FILE_EXTENSION = ".tmp";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File file;
+
+    private final File temporaryFile;
+
+    private final File versionFile;
+
+    private final FileChannel versionChannel;
+
+    private final MappedByteBuffer versionBuffer;
+
+    /**
+     * Serializes the file locking of this process, because file locks are held by the whole
+     * process and cannot be nested.
+     */
+    private final Object fileLock = new Object();
+
+    private Map<String, Object> diskValues = Collections.emptyMap();
+
+    private long diskVersion = -1;
+
+    private final List<Modifications> pendingModifications = new ArrayList<>();
+
+    private Map<String, Object> values = Collections.emptyMap();
+
+    MultiProcessStore(File file) throws IOException {
+        this.file = file;
+        temporaryFile = new File(file.getPath() + TEMPORARY_FILE_EXTENSION);
+        File parentFile = file.getParentFile();
+        if (parentFile != null && !parentFile.exists() && !parentFile.mkdirs() &&
+                !parentFile.exists()) {
+            throw new IOException("Failed to create directory " + parentFile);
+        }
+        versionFile = new File(file.getPath() + VERSION_FILE_EXTENSION);
+        versionChannel = new RandomAccessFile(versionFile, "rw").getChannel();
+        versionBuffer = versionChannel.map(FileChannel.MapMode.READ_WRITE, 0, 8);
+        refresh();
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the version counter, which is incremented by every write of any process.
+     */
+    long getVersion() {
+        return versionBuffer.getLong(0);
+    }
+
+    /**
+     * Returns the current values, reading the data file again first if another process changed
+     * it.
+     */
+    Map<String, Object> getAll() {
+        refresh();
+        synchronized (this) {
+            return values;
+        }
+    }
+
+    Object get(String key) {
+        return getAll().get(key);
+    }
+
+    /**
+     * Reads the data file again if another process changed it.
+     *
+     * @return The keys whose values changed.
+     */
+    Set<String> refresh() {
+        if (getVersion() == diskVersion()) {
+            return Collections.emptySet();
+        }
+        synchronized (fileLock) {
+            long version;
+            Map<String, Object> newDiskValues;
+            try {
+                FileLock lock = versionChannel.lock(0, Long.MAX_VALUE, true);
+                try {
+                    version = getVersion();
+                    if (version == diskVersion()) {
+                        return Collections.emptySet();
+                    }
+                    newDiskValues = read();
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return setDiskValues(newDiskValues, version, 0);
+        }
+    }
+
+    /**
+     * Adds the specified modifications. They are visible in this process immediately.
+     *
+     * @return The keys whose values changed.
+     */
+    Set<String> addPending(Modifications modifications) {
+        synchronized (this) {
+            pendingModifications.add(modifications);
+            Map<String, Object> newValues = new HashMap<>(values);
+            modifications.applyTo(newValues);
+            return setValues(newValues);
+        }
+    }
+
+    /**
+     * Writes every pending modification on top of the latest data file.
+     *
+     * @return The keys whose values were changed by other processes in the meantime.
+     *
+     * @throws IOException If the data file could not be written.
+     */
+    Set<String> writePending() throws IOException {
+        synchronized (fileLock) {
+            List<Modifications> batch;
+            synchronized (this) {
+                if (pendingModifications.isEmpty()) {
+                    return Collections.emptySet();
+                }
+                batch = new ArrayList<>(pendingModifications);
+            }
+            FileLock lock = versionChannel.lock();
+            try {
+                long version = getVersion();
+                Map<String, Object> newDiskValues = new HashMap<>(version == diskVersion() ?
+                        diskValues() : read());
+                for (Modifications modifications : batch) {
+                    modifications.applyTo(newDiskValues);
+                }
+                write(newDiskValues);
+                versionBuffer.putLong(0, version + 1);
+                versionBuffer.force();
+                return setDiskValues(newDiskValues, version + 1, batch.size());
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Writes every pending modification, then computes modifications from the resulting values
+     * and writes them too, while holding the lock of the data file, so that no other process
+     * writes in between.
+     *
+     * @return The keys whose values changed.
+     *
+     * @throws IOException If the data file could not be written.
+     */
+    Set<String> writeTransaction(Transaction transaction) throws IOException {
+        synchronized (fileLock) {
+            List<Modifications> batch;
+            synchronized (this) {
+                batch = new ArrayList<>(pendingModifications);
+            }
+            FileLock lock = versionChannel.lock();
+            try {
+                long version = getVersion();
+                Map<String, Object> newDiskValues = new HashMap<>(version == diskVersion() ?
+                        diskValues() : read());
+                for (Modifications modifications : batch) {
+                    modifications.applyTo(newDiskValues);
+                }
+                Modifications modifications = transaction.run(Collections.unmodifiableMap(
+                        newDiskValues));
+                boolean modified = modifications != null && !modifications.isEmpty();
+                if (modified) {
+                    modifications.applyTo(newDiskValues);
+                }
+                if (modified || !batch.isEmpty()) {
+                    write(newDiskValues);
+                    version++;
+                    versionBuffer.putLong(0, version);
+                    versionBuffer.force();
+                }
+                return setDiskValues(newDiskValues, version, batch.size());
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Deletes the data file and the version file, and discards the pending modifications. The
+     * version counter is incremented first, so processes that have the store open see it empty.
+     * Their later writes are not seen by processes that open the store afterwards, since they
+     * still have the deleted version file mapped.
+     *
+     * @return The keys whose values changed.
+     *
+     * @throws IOException If a file could not be deleted.
+     */
+    Set<String> delete() throws IOException {
+        synchronized (fileLock) {
+            FileLock lock = versionChannel.lock();
+            try {
+                if ((file.exists() && !file.delete()) ||
+                        (temporaryFile.exists() && !temporaryFile.delete())) {
+                    throw new IOException("Failed to delete " + file);
+                }
+                long version = getVersion() + 1;
+                versionBuffer.putLong(0, version);
+                versionBuffer.force();
+                if (!versionFile.delete()) {
+                    throw new IOException("Failed to delete " + versionFile);
+                }
+                synchronized (this) {
+                    pendingModifications.clear();
+                    return setDiskValues(new HashMap<>(), version, 0);
+                }
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Writes the specified values if the data file does not exist yet.
+     *
+     * @return {@code true} if the values were written.
+     */
+    boolean initialize(Map<String, ?> initialValues) throws IOException {
+        synchronized (fileLock) {
+            FileLock lock = versionChannel.lock();
+            try {
+                if (file.exists()) {
+                    return false;
+                }
+                Map<String, Object> newDiskValues = new HashMap<>(initialValues);
+                write(newDiskValues);
+                long version = getVersion() + 1;
+                versionBuffer.putLong(0, version);
+                versionBuffer.force();
+                setDiskValues(newDiskValues, version, 0);
+                return true;
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Computes modifications from the values of the data file. See
+     * {@link #writeTransaction(Transaction)}.
+     */
+    interface Transaction {
+
+        /**
+         * @param values The values. Only valid until this method returns.
+         *
+         * @return The modifications to write, or {@code null} to write nothing.
+         */
+        Modifications run(Map<String, ?> values);
+    }
+
+    private synchronized long diskVersion() {
+        return diskVersion;
+    }
+
+    private synchronized Map<String, Object> diskValues() {
+        return diskValues;
+    }
+
+    /**
+     * Replaces the values read from or written to the data file and drops the specified number of
+     * pending modifications, which are included in them.
+     */
+    private synchronized Set<String> setDiskValues(Map<String, Object> newDiskValues,
+                                                   long version, int writtenPendingCount) {
+        diskValues = Collections.unmodifiableMap(newDiskValues);
+        diskVersion = version;
+        pendingModifications.subList(0, writtenPendingCount).clear();
+        Map<String, Object> newValues = new HashMap<>(newDiskValues);
+        for (Modifications modifications : pendingModifications) {
+            modifications.applyTo(newValues);
+        }
+        return setValues(newValues);
+    }
+
+    private Set<String> setValues(Map<String, Object> newValues) {
+        Set<String> changedKeys = new HashSet<>();
+        for (Map.Entry<String, Object> entry : newValues.entrySet()) {
+            Object value = values.get(entry.getKey());
+            if (value == null || !value.equals(entry.getValue())) {
+                changedKeys.add(entry.getKey());
+            } else {
+                // Keep the old instance so that caches keyed by it stay valid
+                entry.setValue(value);
+            }
+        }
+        for (String key : values.keySet()) {
+            if (!newValues.containsKey(key)) {
+                changedKeys.add(key);
+            }
+        }
+        values = Collections.unmodifiableMap(newValues);
+        return changedKeys;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void write(Map<String, Object> newDiskValues) throws IOException {
+        FileOutputStream fileOutputStream = new FileOutputStream(temporaryFile);
+        try {
+            DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(
+                    fileOutputStream));
+            outputStream.writeInt(MAGIC);
+            outputStream.writeInt(newDiskValues.size());
+            for (Map.Entry<String, Object> entry : newDiskValues.entrySet()) {
+                Object value = entry.getValue();
+                if (value instanceof Set<?>) {
+                    outputStream.writeByte(TYPE_STRING_SET);
+                    writeString(outputStream, entry.getKey());
+                    outputStream.writeInt(((Set<String>) value).size());
+                    for (String setValue : (Set<String>) value) {
+                        writeString(outputStream, setValue);
+                    }
+                } else if (value instanceof Integer) {
+                    outputStream.writeByte(TYPE_INT);
+                    writeString(outputStream, entry.getKey());
+                    outputStream.writeInt((Integer) value);
+                } else if (value instanceof Long) {
+                    outputStream.writeByte(TYPE_LONG);
+                    writeString(outputStream, entry.getKey());
+                    outputStream.writeLong((Long) value);
+                } else if (value instanceof Float) {
+                    outputStream.writeByte(TYPE_FLOAT);
+                    writeString(outputStream, entry.getKey());
+                    outputStream.writeFloat((Float) value);
+                } else if (value instanceof Boolean) {
+                    outputStream.writeByte(TYPE_BOOLEAN);
+                    writeString(outputStream, entry.getKey());
+                    outputStream.writeBoolean((Boolean) value);
+                } else {
+                    outputStream.writeByte(TYPE_STRING);
+                    writeString(outputStream, entry.getKey());
+                    writeString(outputStream, (String) value);
+                }
+            }
+            outputStream.flush();
+            fileOutputStream.getFD().sync();
+        } finally {
+            fileOutputStream.close();
+        }
+        if (!temporaryFile.renameTo(file)) {
+            throw new IOException("Failed to rename " + temporaryFile + " to " + file);
+        }
+    }
+
+    private Map<String, Object> read() throws IOException {
+        Map<String, Object> readValues = new HashMap<>();
+        DataInputStream inputStream;
+        try {
+            inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (FileNotFoundException e) {
+            return readValues;
+        }
+        try {
+            if (inputStream.readInt() != MAGIC) {
+                throw new IOException("Not a multi-process preference file: " + file);
+            }
+            int count = inputStream.readInt();
+            for (int i = 0; i < count; i++) {
+                byte type = inputStream.readByte();
+                String key = readString(inputStream);
+                if (type == TYPE_STRING_SET) {
+                    int setCount = inputStream.readInt();
+                    Set<String> setValues = new HashSet<>();
+                    for (int j = 0; j < setCount; j++) {
+                        setValues.add(readString(inputStream));
+                    }
+                    readValues.put(key, Collections.unmodifiableSet(setValues));
+                } else if (type == TYPE_STRING) {
+                    readValues.put(key, readString(inputStream));
+                } else if (type == TYPE_INT) {
+                    readValues.put(key, inputStream.readInt());
+                } else if (type == TYPE_LONG) {
+                    readValues.put(key, inputStream.readLong());
+                } else if (type == TYPE_FLOAT) {
+                    readValues.put(key, inputStream.readFloat());
+                } else if (type == TYPE_BOOLEAN) {
+                    readValues.put(key, inputStream.readBoolean());
+                } else {
+                    throw new IOException("Unknown value type " + type + " in " + file);
+                }
+            }
+        } finally {
+            inputStream.close();
+        }
+        return readValues;
+    }
+
+    private static void writeString(DataOutputStream outputStream, String string)
+            throws IOException {
+        byte[] bytes = string.getBytes(UTF_8);
+        outputStream.writeInt(bytes.length);
+        outputStream.write(bytes);
+    }
+
+    private static String readString(DataInputStream inputStream) throws IOException {
+        int length = inputStream.readInt();
+        if (length < 0) {
+            throw new IOException("Negative string length");
+        }
+        byte[] bytes = new byte[length];
+        inputStream.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
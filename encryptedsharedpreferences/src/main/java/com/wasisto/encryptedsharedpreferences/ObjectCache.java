@@ -0,0 +1,76 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wasisto.encryptedsharedpreferences;
+
+import com.wasisto.encryptedsharedpreferences.EncryptedSharedPreferences.ObjectCodec;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The decoded object values of one EncryptedSharedPreferences, least recently used first. An
+ * entry is only returned while the stored value is unchanged and for the codec that decoded it.
+ */
+final class ObjectCache {
+
+    private final int maxEntries;
+
+    private final Map<String, Entry> entries;
+
+    private static final class Entry {
+
+        private final String rawValue;
+
+        private final ObjectCodec<?> codec;
+
+        private final Object value;
+
+        private Entry(String rawValue, ObjectCodec<?> codec, Object value) {
+            this.rawValue = rawValue;
+            this.codec = codec;
+            this.value = value;
+        }
+    }
+
+    ObjectCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > ObjectCache.this.maxEntries;
+            }
+        };
+    }
+
+    int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Returns the cached value of the specified key if it was decoded by the specified codec from
+     * the specified stored value, or {@code null} otherwise.
+     */
+    synchronized Object get(String key, String rawValue, ObjectCodec<?> codec) {
+        Entry entry = entries.get(key);
+        return entry != null && entry.codec == codec && entry.rawValue.equals(rawValue) ?
+                entry.value : null;
+    }
+
+    synchronized void put(String key, String rawValue, ObjectCodec<?> codec, Object value) {
+        entries.put(key, new Entry(rawValue, codec, value));
+    }
+}
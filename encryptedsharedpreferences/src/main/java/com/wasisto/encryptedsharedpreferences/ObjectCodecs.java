@@ -0,0 +1,248 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wasisto.encryptedsharedpreferences;
+
+import com.wasisto.encryptedsharedpreferences.EncryptedSharedPreferences.ObjectCodec;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Built-in {@link ObjectCodec}s for
+ * {@link EncryptedSharedPreferences.Editor#putObject(String, Object, ObjectCodec)} and
+ * {@link EncryptedSharedPreferences#getObject(String, ObjectCodec, Object)}.
+ */
+public final class ObjectCodecs {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Stores byte arrays as they are.
+     */
+    public static final ObjectCodec<byte[]> BYTE_ARRAY = new ObjectCodec<byte[]>() {
+        @Override
+        public byte[] encode(byte[] value) {
+            return value;
+        }
+
+        @Override
+        public byte[] decode(byte[] data) {
+            return data;
+        }
+    };
+
+    /**
+     * Stores strings as UTF-8 bytes.
+     */
+    public static final ObjectCodec<String> STRING = new ObjectCodec<String>() {
+        @Override
+        public byte[] encode(String value) {
+            return value.getBytes(UTF_8);
+        }
+
+        @Override
+        public String decode(byte[] data) {
+            return new String(data, UTF_8);
+        }
+    };
+
+    /**
+     * Stores ordered lists of non-null strings, each as its length followed by its UTF-8 bytes.
+     */
+    public static final ObjectCodec<List<String>> STRING_LIST = new ObjectCodec<List<String>>() {
+        @Override
+        public byte[] encode(List<String> value) {
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+            DataOutputStream outputStream = new DataOutputStream(byteArrayOutputStream);
+            try {
+                outputStream.writeInt(value.size());
+                for (String element : value) {
+                    byte[] bytes = element.getBytes(UTF_8);
+                    outputStream.writeInt(bytes.length);
+                    outputStream.write(bytes);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return byteArrayOutputStream.toByteArray();
+        }
+
+        @Override
+        public List<String> decode(byte[] data) {
+            DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(data));
+            try {
+                int size = inputStream.readInt();
+                if (size < 0 || size > data.length / 4) {
+                    throw new RuntimeException("Invalid string list size. size: " + size);
+                }
+                List<String> value = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    int length = inputStream.readInt();
+                    if (length < 0 || length > inputStream.available()) {
+                        throw new RuntimeException("Invalid string length. length: " + length);
+                    }
+                    byte[] bytes = new byte[length];
+                    inputStream.readFully(bytes);
+                    value.add(new String(bytes, UTF_8));
+                }
+                return value;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    /**
+     * Stores int arrays as 4 big-endian bytes per element.
+     */
+    public static final ObjectCodec<int[]> INT_ARRAY = new ObjectCodec<int[]>() {
+        @Override
+        public byte[] encode(int[] value) {
+            ByteBuffer byteBuffer = ByteBuffer.allocate(value.length * 4);
+            byteBuffer.asIntBuffer().put(value);
+            return byteBuffer.array();
+        }
+
+        @Override
+        public int[] decode(byte[] data) {
+            checkLength(data, 4);
+            int[] value = new int[data.length / 4];
+            ByteBuffer.wrap(data).asIntBuffer().get(value);
+            return value;
+        }
+    };
+
+    /**
+     * Stores long arrays as 8 big-endian bytes per element.
+     */
+    public static final ObjectCodec<long[]> LONG_ARRAY = new ObjectCodec<long[]>() {
+        @Override
+        public byte[] encode(long[] value) {
+            ByteBuffer byteBuffer = ByteBuffer.allocate(value.length * 8);
+            byteBuffer.asLongBuffer().put(value);
+            return byteBuffer.array();
+        }
+
+        @Override
+        public long[] decode(byte[] data) {
+            checkLength(data, 8);
+            long[] value = new long[data.length / 8];
+            ByteBuffer.wrap(data).asLongBuffer().get(value);
+            return value;
+        }
+    };
+
+    /**
+     * Stores float arrays as 4 big-endian bytes per element.
+     */
+    public static final ObjectCodec<float[]> FLOAT_ARRAY = new ObjectCodec<float[]>() {
+        @Override
+        public byte[] encode(float[] value) {
+            ByteBuffer byteBuffer = ByteBuffer.allocate(value.length * 4);
+            byteBuffer.asFloatBuffer().put(value);
+            return byteBuffer.array();
+        }
+
+        @Override
+        public float[] decode(byte[] data) {
+            checkLength(data, 4);
+            float[] value = new float[data.length / 4];
+            ByteBuffer.wrap(data).asFloatBuffer().get(value);
+            return value;
+        }
+    };
+
+    /**
+     * Stores JSON objects as the UTF-8 bytes of their compact string form.
+     */
+    public static final ObjectCodec<JSONObject> JSON_OBJECT = new ObjectCodec<JSONObject>() {
+        @Override
+        public byte[] encode(JSONObject value) {
+            return value.toString().getBytes(UTF_8);
+        }
+
+        @Override
+        public JSONObject decode(byte[] data) {
+            try {
+                return new JSONObject(new String(data, UTF_8));
+            } catch (JSONException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    private ObjectCodecs() {
+    }
+
+    /**
+     * Returns a codec that stores objects using Java serialization. Prefer one of the other codecs
+     * or a codec that writes the fields of the objects directly, because serialized objects are
+     * larger and slower to decode.
+     *
+     * @param type The class of the objects.
+     *
+     * @param <T> The type of the objects.
+     *
+     * @return The codec.
+     */
+    public static <T extends Serializable> ObjectCodec<T> serializable(Class<T> type) {
+        return new ObjectCodec<T>() {
+            @Override
+            public byte[] encode(T value) {
+                ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+                try {
+                    ObjectOutputStream outputStream = new ObjectOutputStream(
+                            byteArrayOutputStream);
+                    outputStream.writeObject(value);
+                    outputStream.close();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                return byteArrayOutputStream.toByteArray();
+            }
+
+            @Override
+            public T decode(byte[] data) {
+                try {
+                    return type.cast(new ObjectInputStream(new ByteArrayInputStream(data))
+                            .readObject());
+                } catch (IOException | ClassNotFoundException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+    }
+
+    private static void checkLength(byte[] data, int elementLength) {
+        if (data.length % elementLength != 0) {
+            throw new RuntimeException("Invalid array length. length: " + data.length);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wasisto.encryptedsharedpreferences;
+
+import android.content.SharedPreferences;
+import android.support.annotation.Nullable;
+import android.util.Base64;
+
+import com.wasisto.encryptedsharedpreferences.EncryptedSharedPreferences.MigrationProgressListener;
+import com.wasisto.encryptedsharedpreferences.model.MigrationOptions;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Moves the entries of a plaintext SharedPreferences into an EncryptedSharedPreferences in
+ * batches. The migrated keys are checkpointed after every batch so an interrupted migration
+ * resumes where it stopped. The checkpoint also records a fingerprint of the keys of the source, and
+ * a checkpoint of a source with different keys is discarded, so entries added to the source or a
+ * different source are always migrated in full.
+ */
+final class PlaintextMigrator {
+
+    private static final String PREFERENCE_MIGRATION_CHECKPOINT_PREFIX = "migrationCheckpoint.";
+
+    private static final String PREFERENCE_MIGRATION_SOURCE_PREFIX = "migrationSource.";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final EncryptedSharedPreferences encryptedSharedPreferences;
+
+    private final SharedPreferences espSharedPreferences;
+
+    private final String checkpointKey;
+
+    private final String sourceKey;
+
+    PlaintextMigrator(EncryptedSharedPreferences encryptedSharedPreferences,
+                      SharedPreferences espSharedPreferences, String encryptedPreferencesName) {
+        this.encryptedSharedPreferences = encryptedSharedPreferences;
+        this.espSharedPreferences = espSharedPreferences;
+        checkpointKey = PREFERENCE_MIGRATION_CHECKPOINT_PREFIX + encryptedPreferencesName;
+        sourceKey = PREFERENCE_MIGRATION_SOURCE_PREFIX + encryptedPreferencesName;
+    }
+
+    void migrate(SharedPreferences source, MigrationOptions options,
+                 @Nullable MigrationProgressListener progressListener) {
+        if (options.getBatchSize() <= 0 || options.getParallelism() <= 0) {
+            throw new IllegalArgumentException("batchSize and parallelism must be positive");
+        }
+
+        SortedMap<String, ?> sourceEntries = new TreeMap<>(source.getAll());
+        String sourceFingerprint = getFingerprint(sourceEntries.keySet());
+        Set<String> migratedKeys = new HashSet<>();
+        if (sourceFingerprint.equals(espSharedPreferences.getString(sourceKey, null))) {
+            migratedKeys.addAll(espSharedPreferences.getStringSet(checkpointKey,
+                    Collections.emptySet()));
+        }
+        List<Map.Entry<String, ?>> remainingEntries = new ArrayList<>();
+        for (Map.Entry<String, ?> entry : sourceEntries.entrySet()) {
+            if (!migratedKeys.contains(entry.getKey())) {
+                remainingEntries.add(entry);
+            }
+        }
+
+        int totalCount = sourceEntries.size();
+        int migratedCount = totalCount - remainingEntries.size();
+        if (progressListener != null) {
+            progressListener.onProgress(migratedCount, totalCount);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(options.getParallelism());
+        try {
+            List<Map.Entry<String, ?>> batch = new ArrayList<>(options.getBatchSize());
+            for (Map.Entry<String, ?> entry : remainingEntries) {
+                batch.add(entry);
+                if (batch.size() == options.getBatchSize()) {
+                    migrateBatch(executor, batch, migratedKeys, sourceFingerprint);
+                    migratedCount += batch.size();
+                    batch.clear();
+                    if (progressListener != null) {
+                        progressListener.onProgress(migratedCount, totalCount);
+                    }
+                }
+            }
+            if (!batch.isEmpty()) {
+                migrateBatch(executor, batch, migratedKeys, sourceFingerprint);
+                migratedCount += batch.size();
+                if (progressListener != null) {
+                    progressListener.onProgress(migratedCount, totalCount);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (options.isDeleteSource()) {
+            verify(sourceEntries);
+            if (!source.edit().clear().commit()) {
+                throw new RuntimeException("Failed to clear the source SharedPreferences");
+            }
+        }
+
+        if (!espSharedPreferences.edit().remove(checkpointKey).remove(sourceKey).commit()) {
+            throw new RuntimeException("Failed to remove the migration checkpoint");
+        }
+    }
+
+    private void migrateBatch(ExecutorService executor, List<Map.Entry<String, ?>> batch,
+                              Set<String> migratedKeys, String sourceFingerprint) {
+        SharedPreferences.Editor encryptedSharedPreferencesEditor =
+                encryptedSharedPreferences.edit();
+
+        List<Callable<Void>> tasks = new ArrayList<>(batch.size());
+        for (Map.Entry<String, ?> entry : batch) {
+            tasks.add(() -> {
+                EncryptedSharedPreferences.putValue(encryptedSharedPreferencesEditor,
+                        entry.getKey(), entry.getValue());
+                return null;
+            });
+        }
+
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+
+        if (!encryptedSharedPreferencesEditor.commit()) {
+            throw new RuntimeException("Failed to commit the migrated entries");
+        }
+
+        for (Map.Entry<String, ?> entry : batch) {
+            migratedKeys.add(entry.getKey());
+        }
+        if (!espSharedPreferences.edit()
+                .putStringSet(checkpointKey, new HashSet<>(migratedKeys))
+                .putString(sourceKey, sourceFingerprint)
+                .commit()) {
+            throw new RuntimeException("Failed to store the migration checkpoint");
+        }
+    }
+
+    /**
+     * Returns the Base64 encoded SHA-256 of the specified sorted keys. Only the keys are hashed,
+     * since the checkpoint is stored unencrypted.
+     */
+    private static String getFingerprint(Set<String> sortedKeys) {
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            for (String key : sortedKeys) {
+                byte[] keyBytes = key.getBytes(UTF_8);
+                messageDigest.update(ByteBuffer.allocate(4).putInt(keyBytes.length).array());
+                messageDigest.update(keyBytes);
+            }
+            return Base64.encodeToString(messageDigest.digest(), Base64.NO_WRAP);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void verify(Map<String, ?> sourceEntries) {
+        Map<String, ?> migratedEntries = encryptedSharedPreferences.getAll();
+        for (Map.Entry<String, ?> sourceEntry : sourceEntries.entrySet()) {
+            Object migratedValue = migratedEntries.get(sourceEntry.getKey());
+            if (migratedValue == null || !migratedValue.equals(sourceEntry.getValue())) {
+                throw new RuntimeException("Failed to verify the migrated entry. key: " +
+                        sourceEntry.getKey());
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wasisto.encryptedsharedpreferences;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The packed primitive pages of one EncryptedSharedPreferences. Int, long, float, and boolean
+ * values are grouped into {@link #PAGE_COUNT} pages by the hash of their keys, and every page is
+ * stored as a single encrypted string preference. The decrypted pages are cached until their
+ * stored value changes. Writers of pages synchronize on this object.
+ * <p>
+ * The plaintext of a page is a sequence of entries, each formatted as the type character, the key
+ * length, a colon, the key, the value, and a line break.
+ */
+final class PrimitivePages {
+
+    static final int PAGE_COUNT = 16;
+
+    private static final String PAGE_KEY_PREFIX = "com.wasisto.encryptedsharedpreferences.page.";
+
+    private static final String[] PAGE_KEYS = new String[PAGE_COUNT];
+
+    static {
+        for (int i = 0; i < PAGE_COUNT; i++) {
+            PAGE_KEYS[i] = PAGE_KEY_PREFIX + i;
+        }
+    }
+
+    private static final char TYPE_INT = 'i';
+    private static final char TYPE_LONG = 'l';
+    private static final char TYPE_FLOAT = 'f';
+    private static final char TYPE_BOOLEAN = 'b';
+
+    private final Map<String, Page> pages = new ConcurrentHashMap<>();
+
+    private static final class Page {
+
+        private final String rawValue;
+
+        private final Map<String, Object> values;
+
+        private Page(String rawValue, Map<String, Object> values) {
+            this.rawValue = rawValue;
+            this.values = values;
+        }
+    }
+
+    static boolean isPackable(Object value) {
+        return value instanceof Integer || value instanceof Long || value instanceof Float ||
+                value instanceof Boolean;
+    }
+
+    static boolean isPageKey(String key) {
+        return key != null && key.startsWith(PAGE_KEY_PREFIX);
+    }
+
+    static String getPageKey(int index) {
+        return PAGE_KEYS[index];
+    }
+
+    /**
+     * Returns the key of the page the specified preference belongs to.
+     */
+    static String getPageKey(String key) {
+        return PAGE_KEYS[(key.hashCode() & 0x7fffffff) % PAGE_COUNT];
+    }
+
+    /**
+     * Returns the cached values of the specified page if they were decrypted from the specified
+     * stored value, or {@code null} otherwise.
+     */
+    Map<String, Object> getCachedValues(String pageKey, String rawValue) {
+        Page page = pages.get(pageKey);
+        return page != null && page.rawValue.equals(rawValue) ? page.values : null;
+    }
+
+    void putCachedValues(String pageKey, String rawValue, Map<String, Object> values) {
+        pages.put(pageKey, new Page(rawValue, Collections.unmodifiableMap(values)));
+    }
+
+    static String format(Map<String, Object> values) {
+        StringBuilder stringBuilder = new StringBuilder(values.size() * 24);
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            String key = entry.getKey();
+            Object value = entry.getValue();
+            if (value instanceof Integer) {
+                stringBuilder.append(TYPE_INT);
+            } else if (value instanceof Long) {
+                stringBuilder.append(TYPE_LONG);
+            } else if (value instanceof Float) {
+                stringBuilder.append(TYPE_FLOAT);
+            } else if (value instanceof Boolean) {
+                stringBuilder.append(TYPE_BOOLEAN);
+            } else {
+                throw new RuntimeException("Unsupported value type. valueType: " +
+                        (value != null ? value.getClass().getCanonicalName() : null));
+            }
+            stringBuilder.append(key.length()).append(':').append(key);
+            if (value instanceof Boolean) {
+                stringBuilder.append((Boolean) value ? '1' : '0');
+            } else {
+                stringBuilder.append(value);
+            }
+            stringBuilder.append('\n');
+        }
+        return stringBuilder.toString();
+    }
+
+    static Map<String, Object> parse(String plaintext) {
+        Map<String, Object> values = new HashMap<>();
+        int position = 0;
+        try {
+            while (position < plaintext.length()) {
+                char type = plaintext.charAt(position++);
+                int colon = plaintext.indexOf(':', position);
+                int keyLength = Integer.parseInt(plaintext.substring(position, colon));
+                position = colon + 1;
+                String key = plaintext.substring(position, position + keyLength);
+                position += keyLength;
+                int lineBreak = plaintext.indexOf('\n', position);
+                String value = plaintext.substring(position, lineBreak);
+                position = lineBreak + 1;
+                switch (type) {
+                    case TYPE_INT:
+                        values.put(key, Integer.parseInt(value));
+                        break;
+                    case TYPE_LONG:
+                        values.put(key, Long.parseLong(value));
+                        break;
+                    case TYPE_FLOAT:
+                        values.put(key, Float.parseFloat(value));
+                        break;
+                    case TYPE_BOOLEAN:
+                        values.put(key, value.equals("1"));
+                        break;
+                    default:
+                        throw new RuntimeException("Unsupported packed value type. type: " +
+                                type);
+                }
+            }
+        } catch (IndexOutOfBoundsException | NumberFormatException e) {
+            throw new RuntimeException("Malformed primitive page at index " + position, e);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.wasisto.encryptedsharedpreferences;
+
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The latest point-in-time copy of the raw preferences of one EncryptedSharedPreferences. The
+ * copy is shared by every snapshot taken until the preferences are modified, so taking a snapshot
+ * only copies the raw preferences after a modification.
+ * <p>
+ * Every modification increments the generation and drops the copy. A copy made concurrently with
+ * a modification is only kept if the generation it was made in is still current. Modifications
+ * made through EncryptedSharedPreferences invalidate the copy directly, and modifications made by
+ * other processes are noticed by listening to the underlying SharedPreferences.
+ */
+final class RawPreferencesSnapshot implements OnSharedPreferenceChangeListener {
+
+    private Map<String, ?> rawPreferences;
+
+    private long generation;
+
+    /**
+     * Returns the current copy, or {@code null} if the preferences have been modified since it
+     * was made.
+     */
+    synchronized Map<String, ?> get() {
+        return rawPreferences;
+    }
+
+    synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Keeps the specified raw preferences as the current copy if they were read in the current
+     * generation.
+     *
+     * @param rawPreferences A copy of the raw preferences that is not modified afterwards.
+     *
+     * @param generation The generation read before the raw preferences were.
+     *
+     * @return The unmodifiable raw preferences.
+     */
+    synchronized Map<String, ?> put(Map<String, ?> rawPreferences, long generation) {
+        Map<String, ?> unmodifiableRawPreferences = Collections.unmodifiableMap(rawPreferences);
+        if (generation == this.generation) {
+            this.rawPreferences = unmodifiableRawPreferences;
+        }
+        return unmodifiableRawPreferences;
+    }
+
+    synchronized void invalidate() {
+        generation++;
+        rawPreferences = null;
+    }
+
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+        invalidate();
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.wasisto.encryptedsharedpreferences;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/**
+ * A decrypted string value held outside of the Java heap, returned by
+ * {@link EncryptedSharedPreferences#getSecret(String)}. The UTF-8 bytes of the value are stored in
+ * a direct buffer that is overwritten with zeros once the secret is closed and no cached copy
+ * refers to it anymore. Closing a secret more than once has no effect.
+ */
+public final class Secret implements Closeable {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Buffer buffer;
+
+    private boolean closed;
+
+    /**
+     * A reference counted direct buffer shared by the secrets returned for the same stored value
+     * and the secret cache.
+     */
+    static final class Buffer {
+
+        private final ByteBuffer data;
+
+        private int referenceCount = 1;
+
+        private Buffer(ByteBuffer data) {
+            this.data = data;
+        }
+
+        /**
+         * Copies the specified bytes into a new buffer and overwrites them with zeros.
+         */
+        static Buffer wrap(byte[] data) {
+            ByteBuffer directData = ByteBuffer.allocateDirect(data.length);
+            directData.put(data).flip();
+            Arrays.fill(data, (byte) 0);
+            return new Buffer(directData);
+        }
+
+        /**
+         * Encodes the specified string into a new buffer without creating an intermediate byte
+         * array.
+         */
+        static Buffer encode(String value) {
+            ByteBuffer directData = ByteBuffer.allocateDirect(value.length() * 3);
+            CharsetEncoder encoder = UTF_8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            CoderResult result = encoder.encode(CharBuffer.wrap(value), directData, true);
+            if (!result.isUnderflow()) {
+                throw new RuntimeException("Failed to encode the secret. result: " + result);
+            }
+            encoder.flush(directData);
+            directData.flip();
+            return new Buffer(directData);
+        }
+
+        /**
+         * @return {@code false} if the buffer has already been wiped.
+         */
+        synchronized boolean retain() {
+            if (referenceCount == 0) {
+                return false;
+            }
+            referenceCount++;
+            return true;
+        }
+
+        synchronized void release() {
+            if (referenceCount > 0 && --referenceCount == 0) {
+                data.clear();
+                for (int i = 0; i < data.capacity(); i++) {
+                    data.put(i, (byte) 0);
+                }
+            }
+        }
+
+        synchronized boolean isWiped() {
+            return referenceCount == 0;
+        }
+    }
+
+    /**
+     * Takes over one reference of the specified buffer.
+     */
+    Secret(Buffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Returns the length of the UTF-8 encoded value in bytes.
+     *
+     * @return The length.
+     *
+     * @throws IllegalStateException If the secret is closed.
+     */
+    public synchronized int length() {
+        checkNotClosed();
+        return buffer.data.limit();
+    }
+
+    /**
+     * Returns a read-only view of the UTF-8 encoded value. The view is only valid until the
+     * secret is closed.
+     *
+     * @return The view.
+     *
+     * @throws IllegalStateException If the secret is closed.
+     */
+    public synchronized ByteBuffer getBytes() {
+        checkNotClosed();
+        return buffer.data.asReadOnlyBuffer();
+    }
+
+    /**
+     * Decodes the value into a new char array. The caller owns the array and should overwrite it
+     * once it is no longer needed.
+     *
+     * @return The characters of the value.
+     *
+     * @throws IllegalStateException If the secret is closed.
+     */
+    public synchronized char[] toCharArray() {
+        checkNotClosed();
+        ByteBuffer data = buffer.data.asReadOnlyBuffer();
+        char[] chars = new char[data.remaining()];
+        CharBuffer charBuffer = CharBuffer.wrap(chars);
+        CharsetDecoder decoder = UTF_8.newDecoder();
+        try {
+            CoderResult result = decoder.decode(data, charBuffer, true);
+            if (result.isError()) {
+                result.throwException();
+            }
+        } catch (CharacterCodingException e) {
+            Arrays.fill(chars, '\0');
+            throw new RuntimeException(e);
+        }
+        decoder.flush(charBuffer);
+        if (charBuffer.position() == chars.length) {
+            return chars;
+        }
+        char[] trimmedChars = Arrays.copyOf(chars, charBuffer.position());
+        Arrays.fill(chars, '\0');
+        return trimmedChars;
+    }
+
+    /**
+     * Releases the value. It is overwritten with zeros unless it is still cached.
+     */
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            buffer.release();
+        }
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    private void checkNotClosed() {
+        if (closed) {
+            throw new IllegalStateException("The secret is closed");
+        }
+    }
+}
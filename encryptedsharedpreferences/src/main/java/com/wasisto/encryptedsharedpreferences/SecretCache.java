@@ -0,0 +1,100 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.wasisto.encryptedsharedpreferences;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The decrypted secrets of one EncryptedSharedPreferences, least recently used first. The cache
+ * holds one reference to the buffer of every entry and releases it when the entry is evicted,
+ * replaced, or the cache is cleared, so the buffer is wiped once no open secret uses it either.
+ * An entry is only returned while the stored value is unchanged.
+ */
+final class SecretCache {
+
+    private final int maxEntries;
+
+    private final Map<String, Entry> entries;
+
+    private static final class Entry {
+
+        private final String rawValue;
+
+        private final Secret.Buffer buffer;
+
+        private Entry(String rawValue, Secret.Buffer buffer) {
+            this.rawValue = rawValue;
+            this.buffer = buffer;
+        }
+    }
+
+    SecretCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > SecretCache.this.maxEntries) {
+                    eldest.getValue().buffer.release();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Returns a new secret sharing the cached buffer of the specified key if it was decrypted from
+     * the specified stored value, or {@code null} otherwise.
+     */
+    synchronized Secret get(String key, String rawValue) {
+        Entry entry = entries.get(key);
+        if (entry == null || !entry.rawValue.equals(rawValue) || !entry.buffer.retain()) {
+            return null;
+        }
+        return new Secret(entry.buffer);
+    }
+
+    /**
+     * Caches the specified buffer, taking a reference of its own.
+     */
+    synchronized void put(String key, String rawValue, Secret.Buffer buffer) {
+        if (!buffer.retain()) {
+            return;
+        }
+        Entry previousEntry = entries.put(key, new Entry(rawValue, buffer));
+        if (previousEntry != null) {
+            previousEntry.buffer.release();
+        }
+    }
+
+    /**
+     * Releases every cached buffer.
+     */
+    synchronized void clear() {
+        for (Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext(); ) {
+            iterator.next().buffer.release();
+            iterator.remove();
+        }
+    }
+}
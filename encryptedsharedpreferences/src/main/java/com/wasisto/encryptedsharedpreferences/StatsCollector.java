@@ -0,0 +1,134 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wasisto.encryptedsharedpreferences;
+
+import com.wasisto.encryptedsharedpreferences.model.EncryptedSharedPreferencesStats;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Computes the footprint of an EncryptedSharedPreferences from its stored envelopes without
+ * decrypting them.
+ */
+final class StatsCollector {
+
+    static final int LARGEST_KEY_COUNT = 10;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private StatsCollector() {
+    }
+
+    @SuppressWarnings("unchecked")
+    static EncryptedSharedPreferencesStats collect(String preferencesName,
+                                                   Map<String, ?> encryptedPreferences,
+                                                   File file) {
+        EncryptedSharedPreferencesStats stats = new EncryptedSharedPreferencesStats();
+        stats.setPreferencesName(preferencesName);
+        stats.setEntryCount(encryptedPreferences.size());
+        stats.setFileSizeBytes(file.length());
+
+        List<Map.Entry<String, Long>> entrySizes = new ArrayList<>(encryptedPreferences.size());
+        for (Map.Entry<String, ?> encryptedPreference : encryptedPreferences.entrySet()) {
+            String key = encryptedPreference.getKey();
+            Object encryptedPreferenceValue = encryptedPreference.getValue();
+            long keyBytes = key.getBytes(UTF_8).length;
+            long valueBytes = 0;
+            if (encryptedPreferenceValue instanceof Set<?>) {
+                stats.setStringSetCount(stats.getStringSetCount() + 1);
+                for (String encryptedValueJson : (Set<String>) encryptedPreferenceValue) {
+                    valueBytes += collectEnvelope(stats,
+                            EncryptedValueEnvelope.parse(encryptedValueJson), encryptedValueJson);
+                }
+            } else {
+                String encryptedValueJson = (String) encryptedPreferenceValue;
+                EncryptedValueEnvelope envelope = EncryptedValueEnvelope.parse(encryptedValueJson);
+                valueBytes = collectEnvelope(stats, envelope, encryptedValueJson);
+                if (PrimitivePages.isPageKey(key)) {
+                    stats.setPrimitivePageCount(stats.getPrimitivePageCount() + 1);
+                } else {
+                    countType(stats, envelope.getType());
+                }
+            }
+            stats.setKeyBytes(stats.getKeyBytes() + keyBytes);
+            entrySizes.add(new AbstractMap.SimpleImmutableEntry<>(key,
+                    keyBytes + valueBytes));
+        }
+
+        Collections.sort(entrySizes, (entrySize, otherEntrySize) ->
+                Long.compare(otherEntrySize.getValue(), entrySize.getValue()));
+        Map<String, Long> largestKeys = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> entrySize : entrySizes.subList(0,
+                Math.min(LARGEST_KEY_COUNT, entrySizes.size()))) {
+            largestKeys.put(entrySize.getKey(), entrySize.getValue());
+        }
+        stats.setLargestKeys(largestKeys);
+        return stats;
+    }
+
+    /**
+     * Adds the payload and envelope sizes of the specified envelope to the stats.
+     *
+     * @return The size of the envelope in bytes.
+     */
+    private static long collectEnvelope(EncryptedSharedPreferencesStats stats,
+                                        EncryptedValueEnvelope envelope,
+                                        String encryptedValueJson) {
+        int payloadBytes = envelope.getEncryptedDataLength();
+        // Envelopes only contain ASCII characters
+        int envelopeBytes = encryptedValueJson.length();
+        stats.setPayloadBytes(stats.getPayloadBytes() + payloadBytes);
+        stats.setEnvelopeBytes(stats.getEnvelopeBytes() + envelopeBytes - payloadBytes);
+        if (envelope.getCompression() != null) {
+            stats.setCompressedCount(stats.getCompressedCount() + 1);
+        }
+        return envelopeBytes;
+    }
+
+    private static void countType(EncryptedSharedPreferencesStats stats, int type) {
+        switch (type) {
+            case EncryptedValueEnvelope.TYPE_STRING:
+                stats.setStringCount(stats.getStringCount() + 1);
+                break;
+            case EncryptedValueEnvelope.TYPE_INT:
+                stats.setIntCount(stats.getIntCount() + 1);
+                break;
+            case EncryptedValueEnvelope.TYPE_LONG:
+                stats.setLongCount(stats.getLongCount() + 1);
+                break;
+            case EncryptedValueEnvelope.TYPE_FLOAT:
+                stats.setFloatCount(stats.getFloatCount() + 1);
+                break;
+            case EncryptedValueEnvelope.TYPE_BOOLEAN:
+                stats.setBooleanCount(stats.getBooleanCount() + 1);
+                break;
+            case EncryptedValueEnvelope.TYPE_BYTES:
+                stats.setObjectCount(stats.getObjectCount() + 1);
+                break;
+            default:
+                break;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wasisto.encryptedsharedpreferences.annotation;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Sets the key and the default value of a method of a {@link PreferenceSchema} interface.
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.METHOD)
+public @interface PreferenceKey {
+
+    /**
+     * The value of {@link #defaultValue()} that stands for no default value.
+     */
+    String NO_DEFAULT_VALUE = "\u0000";
+
+    /**
+     * @return The key of the preference. Defaults to the name of the method.
+     */
+    String value() default "";
+
+    /**
+     * @return The default value of the preference. String defaults are used as they are, other
+     * defaults are parsed as a value of the type of the method at build time, for example
+     * {@code 42} or {@code true}. String sets do not support default values. Defaults to
+     * {@link #NO_DEFAULT_VALUE}, which makes the preference default to {@code null}, {@code 0}, or
+     * {@code false}.
+     */
+    String defaultValue() default NO_DEFAULT_VALUE;
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wasisto.encryptedsharedpreferences.annotation;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an interface whose methods describe the preferences of an EncryptedSharedPreferences. The
+ * encryptedsharedpreferences-compiler annotation processor generates an accessor class named
+ * {@code Encrypted} followed by the name of the interface, which implements the interface on top
+ * of the EncryptedSharedPreferences, provides a typed editor, and reads every preference of the
+ * interface in one batch.
+ * <p>
+ * Every method of the interface must not have parameters and must return {@code String},
+ * {@code Set<String>}, {@code int}, {@code long}, {@code float}, or {@code boolean}. The key of a
+ * method is the name of the method unless it is annotated with {@link PreferenceKey}.
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface PreferenceSchema {
+
+    /**
+     * @return The name of the EncryptedSharedPreferences.
+     */
+    String value();
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wasisto.encryptedsharedpreferences.exception;
+
+import java.io.IOException;
+
+/**
+ * An exception that will be thrown when a backup archive is corrupted, truncated, in an
+ * unsupported format, or was exported with a different key.
+ */
+public class InvalidBackupException extends IOException {
+
+    /**
+     * Constructs a new {@code InvalidBackupException} with the specified detail message.
+     *
+     * @param message The detail message.
+     */
+    public InvalidBackupException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wasisto.encryptedsharedpreferences.exception;
+
+import com.wasisto.encryptedsharedpreferences.model.MainThreadViolation;
+
+/**
+ * An exception that will be thrown when a blocking call is made on the main thread while the main
+ * thread guard is enabled with {@code throwOnViolation}.
+ */
+public class MainThreadViolationException extends RuntimeException {
+
+    private final MainThreadViolation violation;
+
+    /**
+     * Constructs a new {@code MainThreadViolationException} for the specified violation.
+     *
+     * @param violation The violation.
+     */
+    public MainThreadViolationException(MainThreadViolation violation) {
+        super(violation.getOperation() + " of " + violation.getPreferencesName() +
+                (violation.getKey() != null ? " (key: " + violation.getKey() + ")" : "") +
+                " took " + violation.getDurationMillis() + " ms on the main thread");
+        this.violation = violation;
+        setStackTrace(violation.getStackTrace());
+    }
+
+    /**
+     * @return The violation.
+     */
+    public MainThreadViolation getViolation() {
+        return violation;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.wasisto.encryptedsharedpreferences.model;
+
+import java.util.List;
+
+/**
+ * The reads of an EncryptedSharedPreferences recorded by the access profiler, and how many of them
+ * were served by the values preloaded from the hot key profile.
+ */
+public class AccessProfileReport {
+
+    private String preferencesName;
+
+    private long hitCount;
+
+    private long missCount;
+
+    private long mainThreadHitCount;
+
+    private long mainThreadMissCount;
+
+    private long mainThreadDecryptNanos;
+
+    private long savedMainThreadDecryptNanos;
+
+    private List<KeyAccessStats> keys;
+
+    /**
+     * @return The name of the preferences.
+     */
+    public String getPreferencesName() {
+        return preferencesName;
+    }
+
+    public void setPreferencesName(String preferencesName) {
+        this.preferencesName = preferencesName;
+    }
+
+    /**
+     * @return The number of reads served by a preloaded value.
+     */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public void setHitCount(long hitCount) {
+        this.hitCount = hitCount;
+    }
+
+    /**
+     * @return The number of reads that decrypted the value.
+     */
+    public long getMissCount() {
+        return missCount;
+    }
+
+    public void setMissCount(long missCount) {
+        this.missCount = missCount;
+    }
+
+    /**
+     * @return The number of reads on the main thread served by a preloaded value.
+     */
+    public long getMainThreadHitCount() {
+        return mainThreadHitCount;
+    }
+
+    public void setMainThreadHitCount(long mainThreadHitCount) {
+        this.mainThreadHitCount = mainThreadHitCount;
+    }
+
+    /**
+     * @return The number of reads on the main thread that decrypted the value.
+     */
+    public long getMainThreadMissCount() {
+        return mainThreadMissCount;
+    }
+
+    public void setMainThreadMissCount(long mainThreadMissCount) {
+        this.mainThreadMissCount = mainThreadMissCount;
+    }
+
+    /**
+     * @return The time spent decrypting values on the main thread in nanoseconds.
+     */
+    public long getMainThreadDecryptNanos() {
+        return mainThreadDecryptNanos;
+    }
+
+    public void setMainThreadDecryptNanos(long mainThreadDecryptNanos) {
+        this.mainThreadDecryptNanos = mainThreadDecryptNanos;
+    }
+
+    /**
+     * @return The estimated time the main thread hits would have spent decrypting their values in
+     * nanoseconds, based on the decrypt cost measured for the same keys.
+     */
+    public long getSavedMainThreadDecryptNanos() {
+        return savedMainThreadDecryptNanos;
+    }
+
+    public void setSavedMainThreadDecryptNanos(long savedMainThreadDecryptNanos) {
+        this.savedMainThreadDecryptNanos = savedMainThreadDecryptNanos;
+    }
+
+    /**
+     * @return The read preferences, most read first.
+     */
+    public List<KeyAccessStats> getKeys() {
+        return keys;
+    }
+
+    public void setKeys(List<KeyAccessStats> keys) {
+        this.keys = keys;
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wasisto.encryptedsharedpreferences.model;
+
+import java.util.Map;
+
+/**
+ * The footprint of an EncryptedSharedPreferences, computed from the stored envelopes without
+ * decrypting them.
+ */
+public class EncryptedSharedPreferencesStats {
+
+    private String preferencesName;
+
+    private int entryCount;
+
+    private int stringCount;
+
+    private int stringSetCount;
+
+    private int intCount;
+
+    private int longCount;
+
+    private int floatCount;
+
+    private int booleanCount;
+
+    private int objectCount;
+
+    private int primitivePageCount;
+
+    private int compressedCount;
+
+    private long keyBytes;
+
+    private long payloadBytes;
+
+    private long envelopeBytes;
+
+    private Map<String, Long> largestKeys;
+
+    private long fileSizeBytes;
+
+    /**
+     * @return The name of the EncryptedSharedPreferences.
+     */
+    public String getPreferencesName() {
+        return preferencesName;
+    }
+
+    public void setPreferencesName(String preferencesName) {
+        this.preferencesName = preferencesName;
+    }
+
+    /**
+     * @return The number of stored entries. A packed primitive page counts as one entry.
+     */
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    public void setEntryCount(int entryCount) {
+        this.entryCount = entryCount;
+    }
+
+    /**
+     * @return The number of string values.
+     */
+    public int getStringCount() {
+        return stringCount;
+    }
+
+    public void setStringCount(int stringCount) {
+        this.stringCount = stringCount;
+    }
+
+    /**
+     * @return The number of string set values.
+     */
+    public int getStringSetCount() {
+        return stringSetCount;
+    }
+
+    public void setStringSetCount(int stringSetCount) {
+        this.stringSetCount = stringSetCount;
+    }
+
+    /**
+     * @return The number of int values stored as separate entries.
+     */
+    public int getIntCount() {
+        return intCount;
+    }
+
+    public void setIntCount(int intCount) {
+        this.intCount = intCount;
+    }
+
+    /**
+     * @return The number of long values stored as separate entries.
+     */
+    public int getLongCount() {
+        return longCount;
+    }
+
+    public void setLongCount(int longCount) {
+        this.longCount = longCount;
+    }
+
+    /**
+     * @return The number of float values stored as separate entries.
+     */
+    public int getFloatCount() {
+        return floatCount;
+    }
+
+    public void setFloatCount(int floatCount) {
+        this.floatCount = floatCount;
+    }
+
+    /**
+     * @return The number of boolean values stored as separate entries.
+     */
+    public int getBooleanCount() {
+        return booleanCount;
+    }
+
+    public void setBooleanCount(int booleanCount) {
+        this.booleanCount = booleanCount;
+    }
+
+    /**
+     * @return The number of object values stored with an object codec.
+     */
+    public int getObjectCount() {
+        return objectCount;
+    }
+
+    public void setObjectCount(int objectCount) {
+        this.objectCount = objectCount;
+    }
+
+    /**
+     * @return The number of packed primitive pages. The values inside them are not counted
+     * because counting them requires decryption.
+     */
+    public int getPrimitivePageCount() {
+        return primitivePageCount;
+    }
+
+    public void setPrimitivePageCount(int primitivePageCount) {
+        this.primitivePageCount = primitivePageCount;
+    }
+
+    /**
+     * @return The number of compressed string values, including string set members.
+     */
+    public int getCompressedCount() {
+        return compressedCount;
+    }
+
+    public void setCompressedCount(int compressedCount) {
+        this.compressedCount = compressedCount;
+    }
+
+    /**
+     * @return The total size of the keys in UTF-8 bytes.
+     */
+    public long getKeyBytes() {
+        return keyBytes;
+    }
+
+    public void setKeyBytes(long keyBytes) {
+        this.keyBytes = keyBytes;
+    }
+
+    /**
+     * @return The total size of the encrypted data in bytes.
+     */
+    public long getPayloadBytes() {
+        return payloadBytes;
+    }
+
+    public void setPayloadBytes(long payloadBytes) {
+        this.payloadBytes = payloadBytes;
+    }
+
+    /**
+     * @return The total size in bytes of the stored envelopes minus the encrypted data, that is,
+     * the IVs, the Base64 expansion, and the JSON wrappers.
+     */
+    public long getEnvelopeBytes() {
+        return envelopeBytes;
+    }
+
+    public void setEnvelopeBytes(long envelopeBytes) {
+        this.envelopeBytes = envelopeBytes;
+    }
+
+    /**
+     * @return The keys with the largest stored entries mapped to the sizes of their entries in
+     * bytes, largest first.
+     */
+    public Map<String, Long> getLargestKeys() {
+        return largestKeys;
+    }
+
+    public void setLargestKeys(Map<String, Long> largestKeys) {
+        this.largestKeys = largestKeys;
+    }
+
+    /**
+     * @return The size of the preference file in bytes, or {@code 0} if it does not exist yet.
+     */
+    public long getFileSizeBytes() {
+        return fileSizeBytes;
+    }
+
+    public void setFileSizeBytes(long fileSizeBytes) {
+        this.fileSizeBytes = fileSizeBytes;
+    }
+}
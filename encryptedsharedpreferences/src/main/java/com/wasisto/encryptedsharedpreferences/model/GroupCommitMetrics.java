@@ -0,0 +1,88 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wasisto.encryptedsharedpreferences.model;
+
+/**
+ * The statistics of the group commit mode.
+ */
+public class GroupCommitMetrics {
+
+    private long flushCount;
+
+    private long mergedApplyCount;
+
+    private long savedWriteCount;
+
+    private int maxBatchSize;
+
+    private float averageBatchSize;
+
+    /**
+     * @return The number of writes performed by the group commit mode.
+     */
+    public long getFlushCount() {
+        return flushCount;
+    }
+
+    public void setFlushCount(long flushCount) {
+        this.flushCount = flushCount;
+    }
+
+    /**
+     * @return The number of {@code apply()} and {@code commit()} calls merged into the writes.
+     */
+    public long getMergedApplyCount() {
+        return mergedApplyCount;
+    }
+
+    public void setMergedApplyCount(long mergedApplyCount) {
+        this.mergedApplyCount = mergedApplyCount;
+    }
+
+    /**
+     * @return The number of writes avoided by merging.
+     */
+    public long getSavedWriteCount() {
+        return savedWriteCount;
+    }
+
+    public void setSavedWriteCount(long savedWriteCount) {
+        this.savedWriteCount = savedWriteCount;
+    }
+
+    /**
+     * @return The largest number of calls merged into a single write.
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * @return The average number of calls merged into a single write.
+     */
+    public float getAverageBatchSize() {
+        return averageBatchSize;
+    }
+
+    public void setAverageBatchSize(float averageBatchSize) {
+        this.averageBatchSize = averageBatchSize;
+    }
+}
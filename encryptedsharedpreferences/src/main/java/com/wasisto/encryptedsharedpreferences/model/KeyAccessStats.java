@@ -0,0 +1,78 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.wasisto.encryptedsharedpreferences.model;
+
+/**
+ * How one preference was read since its EncryptedSharedPreferences was opened.
+ */
+public class KeyAccessStats {
+
+    private String key;
+
+    private long readCount;
+
+    private long firstAccessMillis;
+
+    private long averageDecryptNanos;
+
+    /**
+     * @return The key of the preference.
+     */
+    public String getKey() {
+        return key;
+    }
+
+    public void setKey(String key) {
+        this.key = key;
+    }
+
+    /**
+     * @return The number of times the preference was read.
+     */
+    public long getReadCount() {
+        return readCount;
+    }
+
+    public void setReadCount(long readCount) {
+        this.readCount = readCount;
+    }
+
+    /**
+     * @return The time from opening the EncryptedSharedPreferences to the first read of the
+     * preference in milliseconds.
+     */
+    public long getFirstAccessMillis() {
+        return firstAccessMillis;
+    }
+
+    public void setFirstAccessMillis(long firstAccessMillis) {
+        this.firstAccessMillis = firstAccessMillis;
+    }
+
+    /**
+     * @return The average time it took to decrypt the preference in nanoseconds, or {@code 0} if
+     * it has not been decrypted by a read yet.
+     */
+    public long getAverageDecryptNanos() {
+        return averageDecryptNanos;
+    }
+
+    public void setAverageDecryptNanos(long averageDecryptNanos) {
+        this.averageDecryptNanos = averageDecryptNanos;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wasisto.encryptedsharedpreferences.model;
+
+/**
+ * The options of an encryption key rotation.
+ */
+public class KeyRotationOptions {
+
+    private int batchSize = 50;
+
+    private long batchIntervalMillis = 100;
+
+    /**
+     * @return The number of preferences re-encrypted and committed together. Defaults to 50.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return The time in milliseconds to wait between two batches. Defaults to 100.
+     */
+    public long getBatchIntervalMillis() {
+        return batchIntervalMillis;
+    }
+
+    public void setBatchIntervalMillis(long batchIntervalMillis) {
+        this.batchIntervalMillis = batchIntervalMillis;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wasisto.encryptedsharedpreferences.model;
+
+/**
+ * The options of the main thread guard. A call made on the main thread is reported if it takes at
+ * least the threshold of its operation. A threshold of {@code 0} reports every call of the
+ * operation, and a negative threshold reports none.
+ */
+public class MainThreadGuardOptions {
+
+    private long openThresholdMillis = 0;
+
+    private long readThresholdMillis = 0;
+
+    private long getAllThresholdMillis = 0;
+
+    private long commitThresholdMillis = 0;
+
+    private boolean throwOnViolation;
+
+    /**
+     * @return The threshold in milliseconds of opening an EncryptedSharedPreferences
+     * synchronously. Defaults to 0.
+     */
+    public long getOpenThresholdMillis() {
+        return openThresholdMillis;
+    }
+
+    public void setOpenThresholdMillis(long openThresholdMillis) {
+        this.openThresholdMillis = openThresholdMillis;
+    }
+
+    /**
+     * @return The threshold in milliseconds of reading a single value. Defaults to 0.
+     */
+    public long getReadThresholdMillis() {
+        return readThresholdMillis;
+    }
+
+    public void setReadThresholdMillis(long readThresholdMillis) {
+        this.readThresholdMillis = readThresholdMillis;
+    }
+
+    /**
+     * @return The threshold in milliseconds of reading every value. Defaults to 0.
+     */
+    public long getGetAllThresholdMillis() {
+        return getAllThresholdMillis;
+    }
+
+    public void setGetAllThresholdMillis(long getAllThresholdMillis) {
+        this.getAllThresholdMillis = getAllThresholdMillis;
+    }
+
+    /**
+     * @return The threshold in milliseconds of committing an editor. Defaults to 0.
+     */
+    public long getCommitThresholdMillis() {
+        return commitThresholdMillis;
+    }
+
+    public void setCommitThresholdMillis(long commitThresholdMillis) {
+        this.commitThresholdMillis = commitThresholdMillis;
+    }
+
+    /**
+     * @return Whether a {@link com.wasisto.encryptedsharedpreferences.exception.MainThreadViolationException}
+     * is thrown after a violation is reported, for example in debug builds. Defaults to
+     * {@code false}.
+     */
+    public boolean isThrowOnViolation() {
+        return throwOnViolation;
+    }
+
+    public void setThrowOnViolation(boolean throwOnViolation) {
+        this.throwOnViolation = throwOnViolation;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wasisto.encryptedsharedpreferences.model;
+
+/**
+ * A blocking EncryptedSharedPreferences call made on the main thread.
+ */
+public class MainThreadViolation {
+
+    /**
+     * The kinds of blocking calls.
+     */
+    public enum Operation {
+
+        /**
+         * Opening an EncryptedSharedPreferences synchronously.
+         */
+        OPEN,
+
+        /**
+         * Reading a single value.
+         */
+        READ,
+
+        /**
+         * Reading every value with {@code getAll()}.
+         */
+        GET_ALL,
+
+        /**
+         * Committing an editor.
+         */
+        COMMIT
+    }
+
+    private Operation operation;
+
+    private String preferencesName;
+
+    private String key;
+
+    private float durationMillis;
+
+    private StackTraceElement[] stackTrace;
+
+    /**
+     * @return The kind of the call.
+     */
+    public Operation getOperation() {
+        return operation;
+    }
+
+    public void setOperation(Operation operation) {
+        this.operation = operation;
+    }
+
+    /**
+     * @return The name of the EncryptedSharedPreferences.
+     */
+    public String getPreferencesName() {
+        return preferencesName;
+    }
+
+    public void setPreferencesName(String preferencesName) {
+        this.preferencesName = preferencesName;
+    }
+
+    /**
+     * @return The key that was read, or {@code null} if the call did not read a single value.
+     */
+    public String getKey() {
+        return key;
+    }
+
+    public void setKey(String key) {
+        this.key = key;
+    }
+
+    /**
+     * @return The duration of the call in milliseconds.
+     */
+    public float getDurationMillis() {
+        return durationMillis;
+    }
+
+    public void setDurationMillis(float durationMillis) {
+        this.durationMillis = durationMillis;
+    }
+
+    /**
+     * @return The stack trace of the call, starting at the call site outside this library.
+     */
+    public StackTraceElement[] getStackTrace() {
+        return stackTrace;
+    }
+
+    public void setStackTrace(StackTraceElement[] stackTrace) {
+        this.stackTrace = stackTrace;
+    }
+
+    /**
+     * @return The call site outside this library, or {@code null} if it is unknown.
+     */
+    public StackTraceElement getCallSite() {
+        return stackTrace != null && stackTrace.length > 0 ? stackTrace[0] : null;
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wasisto.encryptedsharedpreferences.model;
+
+/**
+ * The options of a migration from a plaintext SharedPreferences.
+ */
+public class MigrationOptions {
+
+    private int batchSize = 100;
+
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    private boolean deleteSource;
+
+    /**
+     * @return The number of entries encrypted and committed together. Defaults to 100.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return The number of threads encrypting the entries of a batch. Defaults to the number of
+     * available processors.
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @return Whether the source SharedPreferences is cleared once every entry has been migrated
+     * and verified. Defaults to {@code false}.
+     */
+    public boolean isDeleteSource() {
+        return deleteSource;
+    }
+
+    public void setDeleteSource(boolean deleteSource) {
+        this.deleteSource = deleteSource;
+    }
+}
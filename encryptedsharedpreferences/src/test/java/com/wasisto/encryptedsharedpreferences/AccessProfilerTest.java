@@ -0,0 +1,117 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.wasisto.encryptedsharedpreferences;
+
+import com.wasisto.encryptedsharedpreferences.model.AccessProfileReport;
+import com.wasisto.encryptedsharedpreferences.model.KeyAccessStats;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AccessProfilerTest {
+
+    @Test
+    public void formatAndParse() {
+        AccessProfiler accessProfiler = new AccessProfiler(1000);
+        accessProfiler.recordMiss("12:34\nfoo", 1250, 300, true);
+        accessProfiler.recordMiss("", 1100, 100, false);
+
+        List<KeyAccessStats> profile = AccessProfiler.parse(AccessProfiler.format(
+                accessProfiler.getHotKeys()));
+
+        assertEquals(2, profile.size());
+        assertEquals("", profile.get(0).getKey());
+        assertEquals(100, profile.get(0).getFirstAccessMillis());
+        assertEquals("12:34\nfoo", profile.get(1).getKey());
+        assertEquals(1, profile.get(1).getReadCount());
+        assertEquals(250, profile.get(1).getFirstAccessMillis());
+        assertEquals(300, profile.get(1).getAverageDecryptNanos());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void parse_truncated() {
+        AccessProfiler.parse("3:foo1,2");
+    }
+
+    @Test
+    public void getHotKeys() {
+        AccessProfiler accessProfiler = new AccessProfiler(0);
+        for (int i = 0; i < AccessProfiler.MAX_HOT_KEYS + 1; i++) {
+            accessProfiler.recordMiss("key" + i, i, 1, false);
+        }
+        accessProfiler.recordMiss("key" + AccessProfiler.MAX_HOT_KEYS, 100, 1, false);
+
+        List<KeyAccessStats> hotKeys = accessProfiler.getHotKeys();
+
+        assertEquals(AccessProfiler.MAX_HOT_KEYS, hotKeys.size());
+        assertEquals("key0", hotKeys.get(0).getKey());
+        assertEquals("key" + AccessProfiler.MAX_HOT_KEYS,
+                hotKeys.get(AccessProfiler.MAX_HOT_KEYS - 1).getKey());
+    }
+
+    @Test
+    public void getPreloadedValue() {
+        AccessProfiler accessProfiler = new AccessProfiler(0);
+        accessProfiler.putPreloadedValue("foo", "raw", 42);
+
+        assertEquals(42, accessProfiler.getPreloadedValue("foo", new String("raw")));
+        assertNull(accessProfiler.getPreloadedValue("bar", "raw"));
+        assertNull(accessProfiler.getPreloadedValue("foo", "changed"));
+        assertNull(accessProfiler.getPreloadedValue("foo", "raw"));
+    }
+
+    @Test
+    public void getReport() {
+        AccessProfiler accessProfiler = new AccessProfiler(0);
+        KeyAccessStats profiledKey = new KeyAccessStats();
+        profiledKey.setKey("foo");
+        profiledKey.setAverageDecryptNanos(500);
+        accessProfiler.setProfile(Collections.singletonList(profiledKey));
+
+        accessProfiler.recordHit("foo", 10, true);
+        accessProfiler.recordMiss("bar", 20, 200, true);
+        accessProfiler.recordHit("bar", 30, true);
+        accessProfiler.recordMiss("baz", 40, 300, false);
+
+        AccessProfileReport report = accessProfiler.getReport("qux");
+        assertEquals("qux", report.getPreferencesName());
+        assertEquals(2, report.getHitCount());
+        assertEquals(2, report.getMissCount());
+        assertEquals(2, report.getMainThreadHitCount());
+        assertEquals(1, report.getMainThreadMissCount());
+        assertEquals(200, report.getMainThreadDecryptNanos());
+        assertEquals(700, report.getSavedMainThreadDecryptNanos());
+        assertEquals("bar", report.getKeys().get(0).getKey());
+        assertEquals(500, report.getKeys().get(1).getAverageDecryptNanos());
+    }
+
+    @Test
+    public void shouldSave() {
+        AccessProfiler accessProfiler = new AccessProfiler(1000);
+
+        assertFalse(accessProfiler.shouldSave(1000 + AccessProfiler.PROFILING_WINDOW_MILLIS));
+        accessProfiler.recordMiss("foo", 1001, 1, false);
+        assertFalse(accessProfiler.shouldSave(1001));
+        assertTrue(accessProfiler.shouldSave(1000 + AccessProfiler.PROFILING_WINDOW_MILLIS));
+        assertFalse(accessProfiler.shouldSave(1000 + AccessProfiler.PROFILING_WINDOW_MILLIS));
+    }
+}
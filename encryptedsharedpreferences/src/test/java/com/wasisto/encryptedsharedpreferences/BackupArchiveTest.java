@@ -0,0 +1,273 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wasisto.encryptedsharedpreferences;
+
+import com.wasisto.encryptedsharedpreferences.exception.InvalidBackupException;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class BackupArchiveTest {
+
+    private static final char[] PASSPHRASE = "correct horse battery staple".toCharArray();
+
+    private static final byte[] KEY = new byte[32];
+
+    private static Map<String, Object> createEntries() {
+        Map<String, Object> entries = new HashMap<>();
+        entries.put("foo", "i hate it when hitler steals my nutella");
+        entries.put("bar", new HashSet<String>() {{
+            add("potato");
+            add("unicorn");
+            add("rubber");
+        }});
+        entries.put("baz", -110883086);
+        entries.put("qux", 836613320883456075L);
+        entries.put("quux", 9.61f);
+        entries.put("quuz", true);
+        return entries;
+    }
+
+    private static byte[] export(Map<String, Object> entries, char[] passphrase) throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        BackupArchive.Writer writer = new BackupArchive.Writer(outputStream, passphrase);
+        for (Map.Entry<String, Object> entry : entries.entrySet()) {
+            writer.writeEntry(entry.getKey(), entry.getValue());
+        }
+        writer.finish();
+        return outputStream.toByteArray();
+    }
+
+    private static Map<String, Object> read(BackupArchive.Reader reader) throws Exception {
+        Map<String, Object> entries = new HashMap<>();
+        Map.Entry<String, Object> entry;
+        while ((entry = reader.readEntry()) != null) {
+            entries.put(entry.getKey(), entry.getValue());
+        }
+        return entries;
+    }
+
+    @Test
+    public void roundTrip_passphrase() throws Exception {
+        Map<String, Object> entries = createEntries();
+
+        byte[] archive = export(entries, PASSPHRASE);
+
+        assertEquals(entries, read(new BackupArchive.Reader(new ByteArrayInputStream(archive),
+                PASSPHRASE)));
+    }
+
+    @Test
+    public void roundTrip_byteArray() throws Exception {
+        byte[] value = {-1, 0, 1, 2, 3};
+        Map<String, Object> entries = new HashMap<>();
+        entries.put("foo", value);
+        entries.put("bar", new byte[0]);
+
+        Map<String, Object> readEntries = read(new BackupArchive.Reader(new ByteArrayInputStream(
+                export(entries, PASSPHRASE)), PASSPHRASE));
+
+        assertArrayEquals(value, (byte[]) readEntries.get("foo"));
+        assertArrayEquals(new byte[0], (byte[]) readEntries.get("bar"));
+    }
+
+    @Test
+    public void roundTrip_expiry() throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        BackupArchive.Writer writer = new BackupArchive.Writer(outputStream, PASSPHRASE);
+        writer.writeEntry("foo", "i hate it when hitler steals my nutella", 1555000000000L);
+        writer.writeEntry("bar", 9.61f);
+        writer.finish();
+
+        BackupArchive.Reader reader = new BackupArchive.Reader(new ByteArrayInputStream(
+                outputStream.toByteArray()), PASSPHRASE);
+        BackupArchive.Entry entry = reader.readEntry();
+        assertEquals("foo", entry.getKey());
+        assertEquals("i hate it when hitler steals my nutella", entry.getValue());
+        assertEquals(1555000000000L, entry.getExpiresAtMillis());
+        entry = reader.readEntry();
+        assertEquals("bar", entry.getKey());
+        assertEquals(9.61f, entry.getValue());
+        assertEquals(0, entry.getExpiresAtMillis());
+        assertNull(reader.readEntry());
+    }
+
+    @Test
+    public void roundTrip_key() throws Exception {
+        Map<String, Object> entries = createEntries();
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        BackupArchive.Writer writer = new BackupArchive.Writer(outputStream, KEY);
+        for (Map.Entry<String, Object> entry : entries.entrySet()) {
+            writer.writeEntry(entry.getKey(), entry.getValue());
+        }
+        writer.finish();
+
+        assertEquals(entries, read(new BackupArchive.Reader(new ByteArrayInputStream(
+                outputStream.toByteArray()), KEY)));
+    }
+
+    @Test
+    public void roundTrip_multipleChunks() throws Exception {
+        char[] largeValue = new char[10000];
+        Arrays.fill(largeValue, 'x');
+        Map<String, Object> entries = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            entries.put("key" + i, new String(largeValue) + i);
+        }
+
+        byte[] archive = export(entries, PASSPHRASE);
+
+        assertEquals(entries, read(new BackupArchive.Reader(new ByteArrayInputStream(archive),
+                PASSPHRASE)));
+    }
+
+    @Test
+    public void roundTrip_empty() throws Exception {
+        byte[] archive = export(new HashMap<>(), PASSPHRASE);
+
+        assertTrue(read(new BackupArchive.Reader(new ByteArrayInputStream(archive),
+                PASSPHRASE)).isEmpty());
+    }
+
+    @Test
+    public void ciphertextDoesNotContainPlaintext() throws Exception {
+        byte[] archive = export(createEntries(), PASSPHRASE);
+
+        String archiveString = new String(archive, "ISO-8859-1");
+        assertFalse(archiveString.contains("nutella"));
+        assertFalse(archiveString.contains("unicorn"));
+    }
+
+    @Test(expected = InvalidBackupException.class)
+    public void wrongPassphrase() throws Exception {
+        byte[] archive = export(createEntries(), PASSPHRASE);
+
+        read(new BackupArchive.Reader(new ByteArrayInputStream(archive),
+                "wrong".toCharArray()));
+    }
+
+    @Test(expected = InvalidBackupException.class)
+    public void keyInsteadOfPassphrase() throws Exception {
+        byte[] archive = export(createEntries(), PASSPHRASE);
+
+        read(new BackupArchive.Reader(new ByteArrayInputStream(archive), KEY));
+    }
+
+    @Test
+    public void corruptedByte() throws Exception {
+        byte[] archive = export(createEntries(), PASSPHRASE);
+
+        for (int i = 0; i < archive.length; i++) {
+            byte[] corruptedArchive = archive.clone();
+            corruptedArchive[i] ^= 0x01;
+            try {
+                read(new BackupArchive.Reader(new ByteArrayInputStream(corruptedArchive),
+                        PASSPHRASE));
+                fail("Corruption at offset " + i + " was not detected");
+            } catch (InvalidBackupException expected) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void truncated() throws Exception {
+        byte[] archive = export(createEntries(), PASSPHRASE);
+
+        for (int length = 0; length < archive.length; length++) {
+            try {
+                read(new BackupArchive.Reader(new ByteArrayInputStream(
+                        Arrays.copyOf(archive, length)), PASSPHRASE));
+                fail("Truncation at length " + length + " was not detected");
+            } catch (InvalidBackupException expected) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void largeEntryAfterBufferedEntries() throws Exception {
+        byte[] largeValue = new byte[16 * 1024 * 1024 - 100];
+        Arrays.fill(largeValue, (byte) 1);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        BackupArchive.Writer writer = new BackupArchive.Writer(outputStream, PASSPHRASE);
+        writer.writeEntry("foo", "i hate it when hitler steals my nutella");
+        writer.writeEntry("bar", largeValue);
+        writer.finish();
+
+        Map<String, Object> readEntries = read(new BackupArchive.Reader(new ByteArrayInputStream(
+                outputStream.toByteArray()), PASSPHRASE));
+        assertEquals("i hate it when hitler steals my nutella", readEntries.get("foo"));
+        assertArrayEquals(largeValue, (byte[]) readEntries.get("bar"));
+    }
+
+    @Test
+    public void tooLargeEntryIsNotWritten() throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        BackupArchive.Writer writer = new BackupArchive.Writer(outputStream, PASSPHRASE);
+        writer.writeEntry("foo", "i hate it when hitler steals my nutella");
+        try {
+            writer.writeEntry("bar", new byte[16 * 1024 * 1024]);
+            fail("The too large entry was written");
+        } catch (IOException expected) {
+            // expected
+        }
+        writer.finish();
+
+        Map<String, Object> readEntries = read(new BackupArchive.Reader(new ByteArrayInputStream(
+                outputStream.toByteArray()), PASSPHRASE));
+        assertEquals(1, readEntries.size());
+        assertEquals("i hate it when hitler steals my nutella", readEntries.get("foo"));
+    }
+
+    @Test(expected = InvalidBackupException.class)
+    public void notAnArchive() throws Exception {
+        read(new BackupArchive.Reader(new ByteArrayInputStream(
+                "<map></map>".getBytes("UTF-8")), PASSPHRASE));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shortKey() throws Exception {
+        new BackupArchive.Writer(new ByteArrayOutputStream(), new byte[8]);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void stringSetValues() throws Exception {
+        Map<String, Object> entries = new HashMap<>();
+        Set<String> values = new HashSet<>(Arrays.asList("a", "", "\u00e9\u4e2d"));
+        entries.put("set", values);
+
+        byte[] archive = export(entries, PASSPHRASE);
+
+        Map<String, Object> readEntries = read(new BackupArchive.Reader(
+                new ByteArrayInputStream(archive), PASSPHRASE));
+        assertEquals(values, (Set<String>) readEntries.get("set"));
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wasisto.encryptedsharedpreferences;
+
+import com.wasisto.encryptedsharedpreferences.EncryptedSharedPreferences.CompressionCodec;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class CompressionTest {
+
+    @After
+    public void tearDown() {
+        Compression.disable();
+    }
+
+    @Test
+    public void deflate() {
+        StringBuilder stringBuilder = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            stringBuilder.append("{\"id\":").append(i).append(",\"name\":\"potato\"},");
+        }
+        byte[] data = stringBuilder.toString().getBytes();
+
+        byte[] compressedData = Compression.DEFLATE.compress(data);
+
+        assertTrue(compressedData.length < data.length / 4);
+        assertArrayEquals(data, Compression.DEFLATE.decompress(compressedData));
+    }
+
+    @Test
+    public void deflate_empty() {
+        assertArrayEquals(new byte[0], Compression.DEFLATE.decompress(
+                Compression.DEFLATE.compress(new byte[0])));
+    }
+
+    @Test
+    public void deflate_outputLargerThanInitialBuffer() {
+        byte[] data = new byte[1000000];
+        Arrays.fill(data, (byte) 'x');
+
+        assertArrayEquals(data, Compression.DEFLATE.decompress(Compression.DEFLATE.compress(data)));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void deflate_truncated() {
+        byte[] compressedData = Compression.DEFLATE.compress(new byte[1000]);
+
+        Compression.DEFLATE.decompress(Arrays.copyOf(compressedData, compressedData.length / 2));
+    }
+
+    @Test
+    public void getCodec_threshold() {
+        assertNull(Compression.getCodec(1000));
+
+        Compression.enable(100, Compression.DEFLATE);
+
+        assertNull(Compression.getCodec(99));
+        assertSame(Compression.DEFLATE, Compression.getCodec(100));
+        assertSame(Compression.DEFLATE, Compression.getCodec("deflate"));
+
+        Compression.disable();
+
+        assertNull(Compression.getCodec(100));
+        assertSame(Compression.DEFLATE, Compression.getCodec("deflate"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void enable_invalidName() {
+        Compression.enable(0, new CompressionCodec() {
+            @Override
+            public String getName() {
+                return "\"quoted\"";
+            }
+
+            @Override
+            public byte[] compress(byte[] data) {
+                return data;
+            }
+
+            @Override
+            public byte[] decompress(byte[] data) {
+                return data;
+            }
+        });
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void getCodec_unknown() {
+        Compression.getCodec("unknown");
+    }
+
+    @Test
+    public void envelopeCompression() {
+        EncryptedValueEnvelope envelope = EncryptedValueEnvelope.parse(
+                "{\"type\":\"java.lang.String\",\"encrypted_data\":\"AQ==\",\"iv\":\"AAEC\"," +
+                        "\"compression\":\"deflate\"}");
+
+        assertEquals("deflate", envelope.getCompression());
+
+        envelope = EncryptedValueEnvelope.parse(
+                "{\"type\":\"java.lang.String\",\"encrypted_data\":\"AQ==\",\"iv\":\"AAEC\"}");
+
+        assertNull(envelope.getCompression());
+    }
+}
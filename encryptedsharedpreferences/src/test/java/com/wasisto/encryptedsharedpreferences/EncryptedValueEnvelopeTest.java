@@ -0,0 +1,174 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wasisto.encryptedsharedpreferences;
+
+import com.wasisto.androidkeystoreencryption.model.EncryptedDataAndIv;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class EncryptedValueEnvelopeTest {
+
+    private static EncryptedDataAndIv createEncryptedDataAndIv(int encryptedDataLength) {
+        byte[] encryptedData = new byte[encryptedDataLength];
+        for (int i = 0; i < encryptedData.length; i++) {
+            encryptedData[i] = (byte) (i * 37 + 251);
+        }
+        EncryptedDataAndIv encryptedDataAndIv = new EncryptedDataAndIv();
+        encryptedDataAndIv.setEncryptedData(encryptedData);
+        encryptedDataAndIv.setIv(new byte[]{-1, -2, -3, 0, 1, 2, 3, 4, 5, 6, 7, 8});
+        return encryptedDataAndIv;
+    }
+
+    @Test
+    public void formatAndParse() {
+        for (int length = 0; length < 70; length++) {
+            EncryptedDataAndIv encryptedDataAndIv = createEncryptedDataAndIv(length);
+
+            EncryptedValueEnvelope envelope = EncryptedValueEnvelope.parse(
+                    EncryptedValueEnvelope.format(EncryptedValueEnvelope.TYPE_LONG,
+                            encryptedDataAndIv, 3));
+
+            assertEquals(EncryptedValueEnvelope.TYPE_LONG, envelope.getType());
+            assertEquals(3, envelope.getKeyVersion());
+            EncryptedDataAndIv parsedEncryptedDataAndIv = envelope.toEncryptedDataAndIv();
+            assertArrayEquals(encryptedDataAndIv.getEncryptedData(),
+                    parsedEncryptedDataAndIv.getEncryptedData());
+            assertArrayEquals(encryptedDataAndIv.getIv(), parsedEncryptedDataAndIv.getIv());
+        }
+    }
+
+    @Test
+    public void format_keyStoreKeyVersionIsOmitted() {
+        String json = EncryptedValueEnvelope.format(EncryptedValueEnvelope.TYPE_STRING,
+                createEncryptedDataAndIv(4), KeyRing.KEYSTORE_KEY_VERSION);
+
+        assertFalse(json.contains("key_version"));
+        assertEquals(KeyRing.KEYSTORE_KEY_VERSION,
+                EncryptedValueEnvelope.parse(json).getKeyVersion());
+    }
+
+    @Test
+    public void parse_jsonObjectOutput() {
+        String json = "{\"type\":\"java.lang.Integer\",\"encrypted_data\":\"q\\/+7\\n\"," +
+                "\"iv\":\"AAEC\\n\"}";
+
+        EncryptedValueEnvelope envelope = EncryptedValueEnvelope.parse(json);
+
+        assertEquals(EncryptedValueEnvelope.TYPE_INT, envelope.getType());
+        assertEquals(KeyRing.KEYSTORE_KEY_VERSION, envelope.getKeyVersion());
+        EncryptedDataAndIv encryptedDataAndIv = envelope.toEncryptedDataAndIv();
+        assertArrayEquals(new byte[]{(byte) 0xab, (byte) 0xff, (byte) 0xbb},
+                encryptedDataAndIv.getEncryptedData());
+        assertArrayEquals(new byte[]{0, 1, 2}, encryptedDataAndIv.getIv());
+    }
+
+    @Test
+    public void parse_fieldOrderAndUnknownFields() {
+        String json = "{ \"key_version\" : 2, \"iv\" : \"AAEC\", \"foo\" : \"b\\\"ar\", " +
+                "\"bar\" : 1.5, \"encrypted_data\" : \"AQ==\", \"type\" : \"java.lang.Float\" }";
+
+        EncryptedValueEnvelope envelope = EncryptedValueEnvelope.parse(json);
+
+        assertEquals(EncryptedValueEnvelope.TYPE_FLOAT, envelope.getType());
+        assertEquals(2, envelope.getKeyVersion());
+        assertArrayEquals(new byte[]{1}, envelope.toEncryptedDataAndIv().getEncryptedData());
+    }
+
+    @Test
+    public void checkType() {
+        EncryptedValueEnvelope envelope = EncryptedValueEnvelope.parse(
+                EncryptedValueEnvelope.format(EncryptedValueEnvelope.TYPE_BOOLEAN,
+                        createEncryptedDataAndIv(4), KeyRing.KEYSTORE_KEY_VERSION));
+
+        envelope.checkType(EncryptedValueEnvelope.TYPE_BOOLEAN);
+        try {
+            envelope.checkType(EncryptedValueEnvelope.TYPE_STRING);
+            fail();
+        } catch (ClassCastException e) {
+            assertEquals("java.lang.Boolean cannot be cast to java.lang.String", e.getMessage());
+        }
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void checkSupportedType() {
+        EncryptedValueEnvelope.parse("{\"type\":\"java.lang.Double\",\"encrypted_data\":\"\"," +
+                "\"iv\":\"\"}").checkSupportedType();
+    }
+
+    @Test
+    public void withKeyName() {
+        EncryptedDataAndIv encryptedKeyNameAndIv = createEncryptedDataAndIv(9);
+        String json = EncryptedValueEnvelope.withKeyName(EncryptedValueEnvelope.format(
+                EncryptedValueEnvelope.TYPE_INT, createEncryptedDataAndIv(4), 2),
+                encryptedKeyNameAndIv);
+
+        EncryptedValueEnvelope envelope = EncryptedValueEnvelope.parse(json);
+
+        assertEquals(EncryptedValueEnvelope.TYPE_INT, envelope.getType());
+        assertEquals(2, envelope.getKeyVersion());
+        assertArrayEquals(createEncryptedDataAndIv(4).getEncryptedData(),
+                envelope.toEncryptedDataAndIv().getEncryptedData());
+        EncryptedDataAndIv parsedEncryptedKeyNameAndIv = envelope.toEncryptedKeyNameAndIv();
+        assertArrayEquals(encryptedKeyNameAndIv.getEncryptedData(),
+                parsedEncryptedKeyNameAndIv.getEncryptedData());
+        assertArrayEquals(encryptedKeyNameAndIv.getIv(), parsedEncryptedKeyNameAndIv.getIv());
+    }
+
+    @Test
+    public void toEncryptedKeyNameAndIv_absent() {
+        assertNull(EncryptedValueEnvelope.parse(EncryptedValueEnvelope.format(
+                EncryptedValueEnvelope.TYPE_STRING, createEncryptedDataAndIv(4),
+                KeyRing.KEYSTORE_KEY_VERSION)).toEncryptedKeyNameAndIv());
+    }
+
+    @Test
+    public void withExpiry() {
+        String json = EncryptedValueEnvelope.withExpiry(EncryptedValueEnvelope.format(
+                EncryptedValueEnvelope.TYPE_STRING, createEncryptedDataAndIv(4),
+                KeyRing.KEYSTORE_KEY_VERSION), 1538352000000L);
+
+        EncryptedValueEnvelope envelope = EncryptedValueEnvelope.parse(json);
+
+        assertEquals(EncryptedValueEnvelope.TYPE_STRING, envelope.getType());
+        assertEquals(1538352000000L, envelope.getExpiresAtMillis());
+        assertArrayEquals(createEncryptedDataAndIv(4).getEncryptedData(),
+                envelope.toEncryptedDataAndIv().getEncryptedData());
+        assertEquals(0, EncryptedValueEnvelope.parse(EncryptedValueEnvelope.format(
+                EncryptedValueEnvelope.TYPE_STRING, createEncryptedDataAndIv(4),
+                KeyRing.KEYSTORE_KEY_VERSION)).getExpiresAtMillis());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void checkSupportedType_keyName() {
+        EncryptedValueEnvelope.parse(EncryptedValueEnvelope.format(
+                EncryptedValueEnvelope.TYPE_KEY_NAME, createEncryptedDataAndIv(4),
+                KeyRing.KEYSTORE_KEY_VERSION)).checkSupportedType();
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void parse_missingField() {
+        EncryptedValueEnvelope.parse("{\"type\":\"java.lang.String\",\"iv\":\"AAEC\"}");
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void parse_truncated() {
+        EncryptedValueEnvelope.parse("{\"type\":\"java.lang.String\",\"encrypted_data\":\"AQ==\"," +
+                "\"iv\":\"AA");
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.wasisto.encryptedsharedpreferences;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ExpirySweeperTest {
+
+    @Test
+    public void tryBegin() {
+        ExpirySweeper expirySweeper = new ExpirySweeper();
+
+        assertTrue(expirySweeper.tryBegin("foo", 1000));
+        assertFalse(expirySweeper.tryBegin("foo", 1000 + ExpirySweeper.MIN_SWEEP_INTERVAL_MILLIS));
+        assertTrue(expirySweeper.tryBegin("bar", 1000));
+
+        expirySweeper.end("foo");
+
+        assertFalse(expirySweeper.tryBegin("foo", 999 + ExpirySweeper.MIN_SWEEP_INTERVAL_MILLIS));
+        assertTrue(expirySweeper.tryBegin("foo", 1000 + ExpirySweeper.MIN_SWEEP_INTERVAL_MILLIS));
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.wasisto.encryptedsharedpreferences;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+public class KeyNameHasherTest {
+
+    @Test
+    public void hash() {
+        KeyNameHasher keyNameHasher = new KeyNameHasher("Jefe".getBytes(Charset.forName("UTF-8")));
+
+        String hashedKey = keyNameHasher.hash("what do ya want for nothing?");
+
+        // The first 128 bits of the HMAC-SHA256 test vector of RFC 4231 test case 2
+        assertEquals(KeyNameHasher.HASHED_KEY_PREFIX + "5bdcc146bf60754e6a042426089575c7",
+                hashedKey);
+        assertTrue(KeyNameHasher.isHashedKey(hashedKey));
+        assertFalse(KeyNameHasher.isHashedKey("what do ya want for nothing?"));
+        assertFalse(KeyNameHasher.isHashedKey(null));
+        assertFalse(PrimitivePages.isPageKey(hashedKey));
+    }
+
+    @Test
+    public void hash_differentKeys() {
+        KeyNameHasher keyNameHasher = new KeyNameHasher(new byte[32]);
+        KeyNameHasher otherKeyNameHasher = new KeyNameHasher(new byte[]{1});
+
+        assertNotEquals(keyNameHasher.hash("foo"), keyNameHasher.hash("bar"));
+        assertNotEquals(keyNameHasher.hash("foo"), otherKeyNameHasher.hash("foo"));
+        assertEquals(keyNameHasher.hash("foo"), new KeyNameHasher(new byte[32]).hash("foo"));
+    }
+
+    @Test
+    public void getKeyName() {
+        KeyNameHasher keyNameHasher = new KeyNameHasher(new byte[32]);
+        String hashedKey = new KeyNameHasher(new byte[32]).hash("foo");
+
+        assertNull(keyNameHasher.getKeyName(hashedKey));
+
+        keyNameHasher.putKeyName(hashedKey, "foo");
+
+        assertEquals("foo", keyNameHasher.getKeyName(hashedKey));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void putKeyName_mismatch() {
+        KeyNameHasher keyNameHasher = new KeyNameHasher(new byte[32]);
+
+        keyNameHasher.putKeyName(keyNameHasher.hash("foo"), "bar");
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wasisto.encryptedsharedpreferences;
+
+import com.wasisto.encryptedsharedpreferences.exception.MainThreadViolationException;
+import com.wasisto.encryptedsharedpreferences.model.MainThreadGuardOptions;
+import com.wasisto.encryptedsharedpreferences.model.MainThreadViolation;
+import com.wasisto.encryptedsharedpreferences.model.MainThreadViolation.Operation;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MainThreadGuardTest {
+
+    @After
+    public void tearDown() {
+        MainThreadGuard.disable();
+    }
+
+    @Test
+    public void end_reportsViolation() {
+        List<MainThreadViolation> violations = new ArrayList<>();
+        MainThreadGuardOptions options = new MainThreadGuardOptions();
+        options.setReadThresholdMillis(1);
+        MainThreadGuard.enable(options, violations::add);
+
+        MainThreadGuard.end(System.nanoTime() - 5000000, Operation.READ, "foo", "bar");
+
+        assertEquals(1, violations.size());
+        MainThreadViolation violation = violations.get(0);
+        assertEquals(Operation.READ, violation.getOperation());
+        assertEquals("foo", violation.getPreferencesName());
+        assertEquals("bar", violation.getKey());
+        assertTrue(violation.getDurationMillis() >= 5f);
+        assertEquals(MainThreadGuardTest.class.getName(),
+                violation.getCallSite().getClassName());
+    }
+
+    @Test
+    public void end_belowThreshold() {
+        List<MainThreadViolation> violations = new ArrayList<>();
+        MainThreadGuardOptions options = new MainThreadGuardOptions();
+        options.setCommitThresholdMillis(1000);
+        options.setReadThresholdMillis(-1);
+        MainThreadGuard.enable(options, violations::add);
+
+        MainThreadGuard.end(System.nanoTime() - 5000000, Operation.COMMIT, "foo", null);
+        MainThreadGuard.end(System.nanoTime() - 5000000, Operation.READ, "foo", "bar");
+        MainThreadGuard.end(-1, Operation.OPEN, "foo", null);
+
+        assertTrue(violations.isEmpty());
+    }
+
+    @Test(expected = MainThreadViolationException.class)
+    public void end_throwOnViolation() {
+        MainThreadGuardOptions options = new MainThreadGuardOptions();
+        options.setThrowOnViolation(true);
+        MainThreadGuard.enable(options, null);
+
+        MainThreadGuard.end(System.nanoTime(), Operation.GET_ALL, "foo", null);
+    }
+
+    @Test
+    public void end_disabled() {
+        MainThreadGuardOptions options = new MainThreadGuardOptions();
+        options.setThrowOnViolation(true);
+        MainThreadGuard.enable(options, null);
+        MainThreadGuard.disable();
+
+        MainThreadGuard.end(System.nanoTime(), Operation.GET_ALL, "foo", null);
+    }
+
+    @Test
+    public void getCallerStackTrace() {
+        StackTraceElement[] stackTrace = {
+                new StackTraceElement(MainThreadGuard.class.getName(), "end", null, 1),
+                new StackTraceElement(EncryptedSharedPreferences.Editor.class.getName(), "commit",
+                        null, 1),
+                new StackTraceElement("com.example.MainActivity", "onCreate", null, 2),
+                new StackTraceElement("android.app.Activity", "performCreate", null, 3)
+        };
+
+        StackTraceElement[] callerStackTrace = MainThreadGuard.getCallerStackTrace(stackTrace);
+
+        assertEquals(2, callerStackTrace.length);
+        assertEquals("com.example.MainActivity", callerStackTrace[0].getClassName());
+    }
+}
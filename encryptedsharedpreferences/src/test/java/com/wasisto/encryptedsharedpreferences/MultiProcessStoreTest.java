@@ -0,0 +1,273 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wasisto.encryptedsharedpreferences;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs a second JVM process against the same files. The other process runs {@link #main}.
+ */
+public class MultiProcessStoreTest {
+
+    private static final int CONCURRENT_WRITE_COUNT = 100;
+
+    private File directory;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("multiprocess", "");
+        assertTrue(directory.delete() && directory.mkdir());
+        file = new File(directory, "foo.esp.mp");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    public static void main(String[] args) throws IOException {
+        MultiProcessStore store = new MultiProcessStore(new File(args[0]));
+        switch (args[1]) {
+            case "replace":
+                if (!"1".equals(store.get("foo"))) {
+                    System.exit(2);
+                }
+                Modifications modifications = new Modifications();
+                modifications.remove("foo");
+                modifications.put("bar", "2");
+                modifications.put("baz", new HashSet<>(Arrays.asList("a", "b")));
+                store.addPending(modifications);
+                store.writePending();
+                break;
+            case "concurrent":
+                commitEach(store, "child");
+                break;
+            case "increment":
+                incrementEach(store);
+                break;
+            default:
+                System.exit(3);
+        }
+    }
+
+    private static void commitEach(MultiProcessStore store, String prefix) throws IOException {
+        for (int i = 0; i < CONCURRENT_WRITE_COUNT; i++) {
+            Modifications modifications = new Modifications();
+            modifications.put(prefix + i, String.valueOf(i));
+            store.addPending(modifications);
+            store.writePending();
+        }
+    }
+
+    private static void incrementEach(MultiProcessStore store) throws IOException {
+        for (int i = 0; i < CONCURRENT_WRITE_COUNT; i++) {
+            store.writeTransaction(values -> {
+                Integer count = (Integer) values.get("count");
+                Modifications modifications = new Modifications();
+                modifications.put("count", count != null ? count + 1 : 1);
+                return modifications;
+            });
+        }
+    }
+
+    private Process startOtherProcess(String mode) throws IOException {
+        return new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"), MultiProcessStoreTest.class.getName(),
+                file.getPath(), mode).inheritIO().start();
+    }
+
+    @Test
+    public void changesOfOtherProcessAreRead() throws Exception {
+        MultiProcessStore store = new MultiProcessStore(file);
+        Modifications modifications = new Modifications();
+        modifications.put("foo", "1");
+        modifications.put("qux", "3");
+        store.addPending(modifications);
+        store.writePending();
+        String qux = (String) store.get("qux");
+
+        assertEquals(0, startOtherProcess("replace").waitFor());
+
+        assertEquals(new HashSet<>(Arrays.asList("foo", "bar", "baz")), store.refresh());
+        assertNull(store.get("foo"));
+        assertEquals("2", store.get("bar"));
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), store.get("baz"));
+        assertSame(qux, store.get("qux"));
+    }
+
+    @Test
+    public void concurrentCommitsOfTwoProcessesAreNotLost() throws Exception {
+        MultiProcessStore store = new MultiProcessStore(file);
+
+        Process otherProcess = startOtherProcess("concurrent");
+        commitEach(store, "parent");
+        assertEquals(0, otherProcess.waitFor());
+
+        Map<String, Object> values = new MultiProcessStore(file).getAll();
+        assertEquals(2 * CONCURRENT_WRITE_COUNT, values.size());
+        for (int i = 0; i < CONCURRENT_WRITE_COUNT; i++) {
+            assertEquals(String.valueOf(i), values.get("parent" + i));
+            assertEquals(String.valueOf(i), values.get("child" + i));
+        }
+        assertEquals(values, store.getAll());
+        assertEquals(2 * CONCURRENT_WRITE_COUNT, store.getVersion());
+    }
+
+    @Test
+    public void concurrentTransactionsOfTwoProcessesReadLatestValues() throws Exception {
+        MultiProcessStore store = new MultiProcessStore(file);
+
+        Process otherProcess = startOtherProcess("increment");
+        incrementEach(store);
+        assertEquals(0, otherProcess.waitFor());
+
+        assertEquals(2 * CONCURRENT_WRITE_COUNT, new MultiProcessStore(file).get("count"));
+        assertEquals(2 * CONCURRENT_WRITE_COUNT, store.get("count"));
+    }
+
+    @Test
+    public void writeTransaction_nothingToWrite() throws Exception {
+        MultiProcessStore store = new MultiProcessStore(file);
+        Modifications modifications = new Modifications();
+        modifications.put("foo", "1");
+        store.addPending(modifications);
+        store.writePending();
+        long version = store.getVersion();
+
+        assertTrue(store.writeTransaction(values -> {
+            assertEquals("1", values.get("foo"));
+            return null;
+        }).isEmpty());
+        assertEquals(version, store.getVersion());
+    }
+
+    @Test
+    public void writeTransaction_writesPendingModificationsFirst() throws Exception {
+        MultiProcessStore store = new MultiProcessStore(file);
+        Modifications modifications = new Modifications();
+        modifications.put("foo", "1");
+        store.addPending(modifications);
+
+        store.writeTransaction(values -> {
+            assertEquals("1", values.get("foo"));
+            Modifications transactionModifications = new Modifications();
+            transactionModifications.put("foo", "2");
+            return transactionModifications;
+        });
+        store.writePending();
+
+        assertEquals("2", new MultiProcessStore(file).get("foo"));
+        assertEquals("2", store.get("foo"));
+        assertEquals(1, store.getVersion());
+    }
+
+    @Test
+    public void pendingModificationsSurviveRefresh() throws Exception {
+        MultiProcessStore store = new MultiProcessStore(file);
+        Modifications modifications = new Modifications();
+        modifications.put("foo", "1");
+        store.addPending(modifications);
+        store.writePending();
+        modifications = new Modifications();
+        modifications.put("pending", "4");
+        store.addPending(modifications);
+
+        assertEquals(0, startOtherProcess("replace").waitFor());
+
+        assertEquals("4", store.get("pending"));
+        assertEquals("2", store.get("bar"));
+        store.writePending();
+        Map<String, Object> values = new MultiProcessStore(file).getAll();
+        assertEquals("4", values.get("pending"));
+        assertEquals("2", values.get("bar"));
+    }
+
+    @Test
+    public void refresh_unchanged() throws Exception {
+        MultiProcessStore store = new MultiProcessStore(file);
+        Map<String, Object> values = store.getAll();
+
+        assertTrue(store.refresh().isEmpty());
+        assertSame(values, store.getAll());
+    }
+
+    @Test
+    public void initialize() throws Exception {
+        MultiProcessStore store = new MultiProcessStore(file);
+        Map<String, Object> values = new HashMap<>();
+        values.put("foo", "1");
+
+        assertTrue(store.initialize(values));
+        assertFalse(store.initialize(new HashMap<>()));
+        assertEquals(values, new MultiProcessStore(file).getAll());
+    }
+
+    @Test
+    public void delete() throws Exception {
+        MultiProcessStore store = new MultiProcessStore(file);
+        Modifications modifications = new Modifications();
+        modifications.put("foo", "1");
+        store.addPending(modifications);
+        store.writePending();
+        MultiProcessStore otherStore = new MultiProcessStore(file);
+
+        assertEquals(Collections.singleton("foo"), store.delete());
+
+        assertFalse(file.exists());
+        assertFalse(new File(file.getPath() + ".version").exists());
+        assertTrue(store.getAll().isEmpty());
+        assertTrue(otherStore.getAll().isEmpty());
+    }
+
+    @Test
+    public void writeAndReadPrimitives() throws Exception {
+        MultiProcessStore store = new MultiProcessStore(file);
+        Modifications modifications = new Modifications();
+        modifications.put("int", Integer.MIN_VALUE);
+        modifications.put("long", Long.MAX_VALUE);
+        modifications.put("float", 9.61f);
+        modifications.put("boolean", true);
+        store.addPending(modifications);
+        store.writePending();
+
+        Map<String, Object> values = new MultiProcessStore(file).getAll();
+        assertEquals(Integer.MIN_VALUE, values.get("int"));
+        assertEquals(Long.MAX_VALUE, values.get("long"));
+        assertEquals(9.61f, values.get("float"));
+        assertEquals(true, values.get("boolean"));
+    }
+}
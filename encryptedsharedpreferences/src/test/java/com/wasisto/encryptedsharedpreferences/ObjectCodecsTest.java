@@ -0,0 +1,117 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wasisto.encryptedsharedpreferences;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ObjectCodecsTest {
+
+    @Test
+    public void string() {
+        String value = "i hate it when hitler steals my nutella \uD83C\uDF70";
+
+        assertEquals(value, ObjectCodecs.STRING.decode(ObjectCodecs.STRING.encode(value)));
+    }
+
+    @Test
+    public void stringList() {
+        List<String> value = Arrays.asList("potato", "", "unicorn", "rubber", "unicorn");
+
+        assertEquals(value, ObjectCodecs.STRING_LIST.decode(ObjectCodecs.STRING_LIST.encode(
+                value)));
+        assertEquals(Collections.emptyList(), ObjectCodecs.STRING_LIST.decode(
+                ObjectCodecs.STRING_LIST.encode(new ArrayList<>())));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void stringList_truncated() {
+        byte[] data = ObjectCodecs.STRING_LIST.encode(Arrays.asList("potato", "unicorn"));
+
+        ObjectCodecs.STRING_LIST.decode(Arrays.copyOf(data, data.length - 1));
+    }
+
+    @Test
+    public void intArray() {
+        int[] value = {Integer.MIN_VALUE, -1, 0, 1, Integer.MAX_VALUE};
+
+        byte[] data = ObjectCodecs.INT_ARRAY.encode(value);
+
+        assertEquals(value.length * 4, data.length);
+        assertArrayEquals(value, ObjectCodecs.INT_ARRAY.decode(data));
+    }
+
+    @Test
+    public void longArray() {
+        long[] value = {Long.MIN_VALUE, 836613320883456075L, 0, Long.MAX_VALUE};
+
+        assertArrayEquals(value, ObjectCodecs.LONG_ARRAY.decode(ObjectCodecs.LONG_ARRAY.encode(
+                value)));
+    }
+
+    @Test
+    public void floatArray() {
+        float[] value = {9.61f, Float.NaN, Float.NEGATIVE_INFINITY, -0f};
+
+        assertArrayEquals(value, ObjectCodecs.FLOAT_ARRAY.decode(ObjectCodecs.FLOAT_ARRAY.encode(
+                value)), 0f);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void intArray_invalidLength() {
+        ObjectCodecs.INT_ARRAY.decode(new byte[5]);
+    }
+
+    @Test
+    public void serializable() {
+        ArrayList<Integer> value = new ArrayList<>(Arrays.asList(-110883086, 0, 1));
+        @SuppressWarnings("unchecked")
+        Class<ArrayList<Integer>> type = (Class<ArrayList<Integer>>) (Class<?>) ArrayList.class;
+
+        assertEquals(value, ObjectCodecs.serializable(type).decode(ObjectCodecs.serializable(type)
+                .encode(value)));
+    }
+
+    @Test(expected = ClassCastException.class)
+    public void serializable_wrongType() {
+        ObjectCodecs.serializable(Integer.class).decode(ObjectCodecs.serializable(String.class)
+                .encode("foo"));
+    }
+
+    @Test
+    public void objectCache() {
+        ObjectCache objectCache = new ObjectCache(2);
+        objectCache.put("foo", "raw", ObjectCodecs.STRING, "value");
+
+        assertEquals("value", objectCache.get("foo", new String("raw"), ObjectCodecs.STRING));
+        assertNull(objectCache.get("foo", "changed", ObjectCodecs.STRING));
+        assertNull(objectCache.get("foo", "raw", ObjectCodecs.BYTE_ARRAY));
+
+        objectCache.put("bar", "raw", ObjectCodecs.STRING, "value");
+        objectCache.get("foo", "raw", ObjectCodecs.STRING);
+        objectCache.put("baz", "raw", ObjectCodecs.STRING, "value");
+
+        assertNotNull(objectCache.get("foo", "raw", ObjectCodecs.STRING));
+        assertNull(objectCache.get("bar", "raw", ObjectCodecs.STRING));
+    }
+}
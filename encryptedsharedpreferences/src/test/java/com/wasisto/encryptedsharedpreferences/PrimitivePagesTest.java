@@ -0,0 +1,84 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wasisto.encryptedsharedpreferences;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class PrimitivePagesTest {
+
+    @Test
+    public void formatAndParse() {
+        Map<String, Object> values = new HashMap<>();
+        values.put("int", Integer.MIN_VALUE);
+        values.put("long", Long.MAX_VALUE);
+        values.put("float", 9.61f);
+        values.put("nan", Float.NaN);
+        values.put("infinity", Float.NEGATIVE_INFINITY);
+        values.put("true", true);
+        values.put("false", false);
+        values.put("", 0);
+        values.put("12:34\nfoo", -1L);
+
+        assertEquals(values, PrimitivePages.parse(PrimitivePages.format(values)));
+    }
+
+    @Test
+    public void formatAndParse_empty() {
+        assertTrue(PrimitivePages.parse(PrimitivePages.format(new HashMap<>())).isEmpty());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void format_unsupportedType() {
+        Map<String, Object> values = new HashMap<>();
+        values.put("foo", "bar");
+
+        PrimitivePages.format(values);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void parse_truncated() {
+        PrimitivePages.parse("i3:foo42");
+    }
+
+    @Test
+    public void getPageKey() {
+        String pageKey = PrimitivePages.getPageKey("foo");
+
+        assertTrue(PrimitivePages.isPageKey(pageKey));
+        assertEquals(pageKey, PrimitivePages.getPageKey("foo"));
+        assertFalse(PrimitivePages.isPageKey("foo"));
+        assertFalse(PrimitivePages.isPageKey(null));
+    }
+
+    @Test
+    public void getCachedValues() {
+        PrimitivePages primitivePages = new PrimitivePages();
+        Map<String, Object> values = new HashMap<>();
+        values.put("foo", 1);
+
+        primitivePages.putCachedValues("page", "raw", values);
+
+        assertEquals(values, primitivePages.getCachedValues("page", new String("raw")));
+        assertNull(primitivePages.getCachedValues("page", "changed"));
+        assertNull(primitivePages.getCachedValues("other", "raw"));
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.wasisto.encryptedsharedpreferences;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class RawPreferencesSnapshotTest {
+
+    @Test
+    public void putAndGet() {
+        RawPreferencesSnapshot rawPreferencesSnapshot = new RawPreferencesSnapshot();
+        Map<String, Object> rawPreferences = new HashMap<>();
+        rawPreferences.put("foo", "bar");
+
+        assertNull(rawPreferencesSnapshot.get());
+
+        Map<String, ?> unmodifiableRawPreferences = rawPreferencesSnapshot.put(rawPreferences,
+                rawPreferencesSnapshot.getGeneration());
+
+        assertEquals(rawPreferences, unmodifiableRawPreferences);
+        assertSame(unmodifiableRawPreferences, rawPreferencesSnapshot.get());
+
+        rawPreferencesSnapshot.invalidate();
+
+        assertNull(rawPreferencesSnapshot.get());
+    }
+
+    @Test
+    public void put_staleGeneration() {
+        RawPreferencesSnapshot rawPreferencesSnapshot = new RawPreferencesSnapshot();
+        long generation = rawPreferencesSnapshot.getGeneration();
+
+        rawPreferencesSnapshot.invalidate();
+        Map<String, ?> unmodifiableRawPreferences = rawPreferencesSnapshot.put(
+                new HashMap<String, Object>(), generation);
+
+        assertTrue(unmodifiableRawPreferences.isEmpty());
+        assertNull(rawPreferencesSnapshot.get());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void put_unmodifiable() {
+        RawPreferencesSnapshot rawPreferencesSnapshot = new RawPreferencesSnapshot();
+
+        rawPreferencesSnapshot.put(new HashMap<String, Object>(),
+                rawPreferencesSnapshot.getGeneration()).clear();
+    }
+
+    @Test
+    public void onSharedPreferenceChanged() {
+        RawPreferencesSnapshot rawPreferencesSnapshot = new RawPreferencesSnapshot();
+        rawPreferencesSnapshot.put(new HashMap<String, Object>(),
+                rawPreferencesSnapshot.getGeneration());
+
+        rawPreferencesSnapshot.onSharedPreferenceChanged(null, "foo");
+
+        assertNull(rawPreferencesSnapshot.get());
+    }
+}
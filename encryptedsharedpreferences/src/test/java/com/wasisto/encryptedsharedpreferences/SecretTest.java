@@ -0,0 +1,97 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.wasisto.encryptedsharedpreferences;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class SecretTest {
+
+    @Test
+    public void toCharArray() {
+        Secret secret = new Secret(Secret.Buffer.encode("f\u00f6\u00f6 \ud83d\udd11"));
+
+        assertArrayEquals("f\u00f6\u00f6 \ud83d\udd11".toCharArray(), secret.toCharArray());
+        assertEquals(10, secret.length());
+    }
+
+    @Test
+    public void wrap_wipesSource() {
+        byte[] data = {1, 2, 3};
+
+        Secret secret = new Secret(Secret.Buffer.wrap(data));
+
+        assertArrayEquals(new byte[3], data);
+        assertEquals(ByteBuffer.wrap(new byte[]{1, 2, 3}), secret.getBytes());
+    }
+
+    @Test
+    public void close_wipes() {
+        Secret secret = new Secret(Secret.Buffer.encode("foo"));
+        ByteBuffer bytes = secret.getBytes();
+
+        secret.close();
+        secret.close();
+
+        assertTrue(secret.isClosed());
+        assertEquals(ByteBuffer.wrap(new byte[3]), bytes);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void getBytes_closed() {
+        Secret secret = new Secret(Secret.Buffer.encode("foo"));
+        secret.close();
+
+        secret.getBytes();
+    }
+
+    @Test
+    public void secretCache() {
+        SecretCache secretCache = new SecretCache(1);
+        Secret.Buffer buffer = Secret.Buffer.encode("foo");
+        secretCache.put("foo", "raw", buffer);
+        new Secret(buffer).close();
+
+        Secret secret = secretCache.get("foo", new String("raw"));
+
+        assertNotNull(secret);
+        assertNull(secretCache.get("foo", "changed"));
+        assertNull(secretCache.get("bar", "raw"));
+        secretCache.put("bar", "raw", Secret.Buffer.encode("bar"));
+        assertNull(secretCache.get("foo", "raw"));
+        assertFalse(buffer.isWiped());
+        secret.close();
+        assertTrue(buffer.isWiped());
+    }
+
+    @Test
+    public void secretCache_clear() {
+        SecretCache secretCache = new SecretCache(2);
+        Secret.Buffer buffer = Secret.Buffer.encode("foo");
+        secretCache.put("foo", "raw", buffer);
+        new Secret(buffer).close();
+
+        secretCache.clear();
+
+        assertTrue(buffer.isWiped());
+        assertNull(secretCache.get("foo", "raw"));
+    }
+}
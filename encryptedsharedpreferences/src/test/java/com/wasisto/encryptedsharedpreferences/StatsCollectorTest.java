@@ -0,0 +1,104 @@
+/*
+ * Copyright 2018 Andika Wasisto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.wasisto.encryptedsharedpreferences;
+
+import com.wasisto.androidkeystoreencryption.model.EncryptedDataAndIv;
+import com.wasisto.encryptedsharedpreferences.model.EncryptedSharedPreferencesStats;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class StatsCollectorTest {
+
+    private static String createEnvelope(int type, int encryptedDataLength) {
+        EncryptedDataAndIv encryptedDataAndIv = new EncryptedDataAndIv();
+        encryptedDataAndIv.setEncryptedData(new byte[encryptedDataLength]);
+        encryptedDataAndIv.setIv(new byte[12]);
+        return EncryptedValueEnvelope.format(type, encryptedDataAndIv,
+                KeyRing.KEYSTORE_KEY_VERSION);
+    }
+
+    @Test
+    public void collect() throws Exception {
+        Map<String, Object> encryptedPreferences = new HashMap<>();
+        encryptedPreferences.put("string", createEnvelope(EncryptedValueEnvelope.TYPE_STRING,
+                1000));
+        Set<String> stringSet = new HashSet<>();
+        stringSet.add(createEnvelope(EncryptedValueEnvelope.TYPE_STRING, 10));
+        stringSet.add(createEnvelope(EncryptedValueEnvelope.TYPE_STRING, 20));
+        encryptedPreferences.put("stringSet", stringSet);
+        encryptedPreferences.put("int", createEnvelope(EncryptedValueEnvelope.TYPE_INT, 20));
+        encryptedPreferences.put("long", createEnvelope(EncryptedValueEnvelope.TYPE_LONG, 24));
+        encryptedPreferences.put("boolean", createEnvelope(EncryptedValueEnvelope.TYPE_BOOLEAN,
+                20));
+        encryptedPreferences.put(PrimitivePages.getPageKey(0), createEnvelope(
+                EncryptedValueEnvelope.TYPE_STRING, 200));
+
+        File file = File.createTempFile("stats", ".xml");
+        try {
+            try (FileOutputStream outputStream = new FileOutputStream(file)) {
+                outputStream.write(new byte[123]);
+            }
+
+            EncryptedSharedPreferencesStats stats = StatsCollector.collect("foo",
+                    encryptedPreferences, file);
+
+            assertEquals("foo", stats.getPreferencesName());
+            assertEquals(6, stats.getEntryCount());
+            assertEquals(1, stats.getStringCount());
+            assertEquals(1, stats.getStringSetCount());
+            assertEquals(1, stats.getIntCount());
+            assertEquals(1, stats.getLongCount());
+            assertEquals(0, stats.getFloatCount());
+            assertEquals(1, stats.getBooleanCount());
+            assertEquals(1, stats.getPrimitivePageCount());
+            assertEquals(0, stats.getCompressedCount());
+            assertEquals(1000 + 10 + 20 + 20 + 24 + 20 + 200, stats.getPayloadBytes());
+            assertTrue(stats.getEnvelopeBytes() > 0);
+            assertEquals(123, stats.getFileSizeBytes());
+            assertEquals("string", new ArrayList<>(stats.getLargestKeys().keySet()).get(0));
+            assertEquals(PrimitivePages.getPageKey(0), new ArrayList<>(
+                    stats.getLargestKeys().keySet()).get(1));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void collect_largestKeysLimit() {
+        Map<String, Object> encryptedPreferences = new HashMap<>();
+        for (int i = 0; i < StatsCollector.LARGEST_KEY_COUNT * 2; i++) {
+            encryptedPreferences.put("key" + i, createEnvelope(EncryptedValueEnvelope.TYPE_INT,
+                    20));
+        }
+
+        EncryptedSharedPreferencesStats stats = StatsCollector.collect("foo",
+                encryptedPreferences, new File("does-not-exist"));
+
+        assertEquals(StatsCollector.LARGEST_KEY_COUNT, stats.getLargestKeys().size());
+        assertEquals(0, stats.getFileSizeBytes());
+    }
+}